@@ -0,0 +1,92 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cluster node started by {@link ClusterScalingHarness} in its own process. Instead of the bot it runs handler that
+ * simulates fixed handling time and counts handled updates in Redis. Node leaves cluster when standard input closes.
+ * <p>
+ * Arguments: redis port, node id, partitions, lease millis, dispatcher lanes, handling millis.
+ */
+public class ClusterHarnessNode {
+  static final String HANDLED_KEY = "harness/handled";
+
+  public static void main(String[] args) throws IOException {
+    int redisPort = Integer.parseInt(args[0]);
+    String nodeId = args[1];
+    int partitions = Integer.parseInt(args[2]);
+    long leaseMillis = Long.parseLong(args[3]);
+    int lanes = Integer.parseInt(args[4]);
+    long handleMillis = Long.parseLong(args[5]);
+
+    JedisPoolConfig poolConfig = new JedisPoolConfig();
+    poolConfig.setMaxTotal(lanes + 4);
+    JedisPool redisPool = new JedisPool(poolConfig, "127.0.0.1", redisPort);
+
+    UpdateDispatcher dispatcher = new UpdateDispatcher(update -> {
+      try {
+        TimeUnit.MILLISECONDS.sleep(handleMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      try (Jedis redisDb = redisPool.getResource()) {
+        redisDb.incr(HANDLED_KEY);
+      }
+    }, lanes, 1000);
+
+    ClusterNode clusterNode = new ClusterNode(redisPool, nodeId, partitions, leaseMillis, dispatcher,
+        new ClusterNode.PartitionListener() {
+          @Override
+          public void acquired(int partition) {
+          }
+
+          @Override
+          public void released(int partition) {
+          }
+
+          @Override
+          public void lost(int partition) {
+          }
+        });
+    clusterNode.start();
+
+    while (System.in.read() >= 0) {
+      // parent closes standard input to stop the node
+    }
+
+    clusterNode.stopConsuming();
+    dispatcher.shutdown(30, TimeUnit.SECONDS);
+    clusterNode.leave();
+    redisPool.close();
+    System.exit(0);
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.telegram.telegrambots.api.objects.Update;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how update throughput grows with number of bot nodes. For every node count from 1 to max nodes it starts
+ * that many {@link ClusterHarnessNode} processes, waits until partitions are spread over them, publishes updates of
+ * many chats and measures time until all of them are handled.
+ * <p>
+ * Arguments, all optional: max nodes, updates, chats, handling millis, lanes per node, Redis port. Without Redis
+ * port in-process {@link RedisStandIn} is used.
+ */
+public class ClusterScalingHarness {
+  private static final int PARTITIONS = 256;
+  private static final long LEASE_MILLIS = 3_000;
+  private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+  private static final String UPDATE_TEMPLATE = "{\"update_id\":%d,\"message\":{\"message_id\":%<d,"
+      + "\"from\":{\"id\":%d,\"first_name\":\"User\"},\"chat\":{\"id\":%<d,\"type\":\"private\"},"
+      + "\"date\":1500000000,\"text\":\"/show\"}}";
+
+  public static void main(String[] args) throws Exception {
+    int maxNodes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int updates = args.length > 1 ? Integer.parseInt(args[1]) : 4_000;
+    int chats = args.length > 2 ? Integer.parseInt(args[2]) : 4_000;
+    long handleMillis = args.length > 3 ? Long.parseLong(args[3]) : 5;
+    int lanes = args.length > 4 ? Integer.parseInt(args[4]) : 2;
+
+    RedisStandIn standIn = args.length > 5 ? null : new RedisStandIn(0);
+    int redisPort = standIn == null ? Integer.parseInt(args[5]) : standIn.getPort();
+    JedisPool redisPool = new JedisPool(new JedisPoolConfig(), "127.0.0.1", redisPort);
+    // publishing doesn't need dispatcher, node is never started
+    ClusterNode publisher = new ClusterNode(redisPool, "publisher", PARTITIONS, LEASE_MILLIS, null, null);
+
+    ObjectMapper objectMapper = new ObjectMapper();
+    List<Update> batch = new ArrayList<>(updates);
+    for (int i = 0; i < updates; i++) {
+      batch.add(objectMapper.readValue(String.format(UPDATE_TEMPLATE, i, 1000 + i % chats), Update.class));
+    }
+
+    System.out.println("nodes  updates/s  speedup");
+    double baseline = 0;
+    for (int nodeCount = 1; nodeCount <= maxNodes; nodeCount++) {
+      try (Jedis redisDb = redisPool.getResource()) {
+        redisDb.flushAll();
+      }
+
+      List<Process> nodes = new ArrayList<>();
+      for (int i = 0; i < nodeCount; i++) {
+        nodes.add(startNode(redisPort, "node-" + i, lanes, handleMillis));
+      }
+      awaitBalanced(redisPool, nodeCount);
+
+      long startNanos = System.nanoTime();
+      for (Update update : batch) {
+        publisher.publish(update);
+      }
+      awaitHandled(redisPool, updates);
+      double throughput = updates / ((System.nanoTime() - startNanos) / 1e9);
+      if (nodeCount == 1) {
+        baseline = throughput;
+      }
+      System.out.printf("%5d  %9.0f  %7.2f%n", nodeCount, throughput, throughput / baseline);
+
+      for (Process node : nodes) {
+        node.getOutputStream().close();
+      }
+      for (Process node : nodes) {
+        node.waitFor(30, TimeUnit.SECONDS);
+      }
+    }
+
+    redisPool.close();
+    if (standIn != null) {
+      standIn.close();
+    }
+  }
+
+  private static Process startNode(int redisPort, String nodeId, int lanes, long handleMillis) throws IOException {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), ClusterHarnessNode.class.getName(),
+        String.valueOf(redisPort), nodeId, String.valueOf(PARTITIONS), String.valueOf(LEASE_MILLIS),
+        String.valueOf(lanes), String.valueOf(handleMillis))
+        .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+  }
+
+  /**
+   * Waits until every partition is leased by the node rendezvous hashing assigns it to.
+   */
+  private static void awaitBalanced(JedisPool redisPool, int nodeCount) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (System.currentTimeMillis() < deadline) {
+      try (Jedis redisDb = redisPool.getResource()) {
+        List<String> nodes = new ArrayList<>(redisDb.zrange("cluster/nodes", 0, -1));
+        boolean balanced = nodes.size() == nodeCount;
+        for (int partition = 0; balanced && partition < PARTITIONS; partition++) {
+          balanced = ClusterNode.ownerOf(partition, nodes).equals(redisDb.get("cluster/partition/" + partition + "/lease"));
+        }
+        if (balanced) {
+          return;
+        }
+      }
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+    throw new IllegalStateException("Partitions were not spread over " + nodeCount + " nodes in time.");
+  }
+
+  private static void awaitHandled(JedisPool redisPool, int updates) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (System.currentTimeMillis() < deadline) {
+      try (Jedis redisDb = redisPool.getResource()) {
+        String handled = redisDb.get(ClusterHarnessNode.HANDLED_KEY);
+        if (handled != null && Long.parseLong(handled) >= updates) {
+          return;
+        }
+      }
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    throw new IllegalStateException("Updates were not handled in time.");
+  }
+}
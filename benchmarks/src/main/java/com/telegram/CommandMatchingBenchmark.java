@@ -0,0 +1,79 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telegram.telegrambots.api.objects.Message;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing of private messages through the route table of LendMoneyBot. Handlers are bound to no-op ones, so only
+ * finding the handler is timed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandMatchingBenchmark {
+  // commands, keyboard label, dialog step input and a message matching nothing
+  @Param({"/start", "/about", "Show info", "/12", "Decrease", "hello there"})
+  public String message;
+
+  // idle conversation sends non-commands to fallback, edit action step takes them as step input
+  @Param({"IDLE", "AWAITING_EDIT_ACTION"})
+  public String state;
+
+  private CommandRouter commandRouter;
+  private CommandContext context;
+
+  @Setup
+  public void setUp() {
+    commandRouter = LendMoneyBot.createCommandRouter(handler -> routed -> { });
+    Message update = new Gson().fromJson("{\"message_id\":1,\"from\":{\"id\":42,\"first_name\":\"Ann\"},"
+        + "\"chat\":{\"id\":42,\"type\":\"private\"},\"date\":1500000000,\"text\":" + new Gson().toJson(message) + "}", Message.class);
+    Conversation conversation = new Conversation(ConversationState.valueOf(state), false, System.currentTimeMillis());
+    context = new CommandContext(update, update.getFrom(), conversation, null, null);
+  }
+
+  @Benchmark
+  public String route() {
+    return commandRouter.route(context);
+  }
+}
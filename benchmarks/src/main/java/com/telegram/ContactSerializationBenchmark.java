@@ -0,0 +1,141 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telegram.telegrambots.api.objects.Contact;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.SafeEncoder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contact round trip done between "/add" contact step and sum step, with the old Gson string path and the session
+ * codecs stored in session hash. Redis benchmarks need Redis on localhost:6379.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContactSerializationBenchmark {
+  private static final String REDIS_KEY = "benchmark/add_contact_value";
+  private static final byte[] SESSION_KEY = SafeEncoder.encode("benchmark/session");
+  private static final byte[] CONTACT_FIELD = SafeEncoder.encode("contact");
+
+  private Gson serializer;
+  private Contact contact;
+  private String contactJson;
+  private SessionCodec binaryCodec;
+  private SessionCodec gsonCodec;
+  private byte[] contactBinary;
+  private JedisPool redisPool;
+
+  @Setup
+  public void setUp() {
+    serializer = new GsonBuilder().create();
+    contact = serializer.fromJson(
+        "{\"phoneNumber\":\"+380501234567\",\"firstName\":\"Taras\",\"lastName\":\"Shevchenko\",\"userID\":123456789}",
+        Contact.class);
+    contactJson = serializer.toJson(contact);
+    binaryCodec = new BinarySessionCodec();
+    gsonCodec = new GsonSessionCodec();
+    contactBinary = binaryCodec.encodeContact(contact);
+    redisPool = new JedisPool();
+  }
+
+  @TearDown
+  public void tearDown() {
+    try (Jedis redisDb = redisPool.getResource()) {
+      redisDb.del(REDIS_KEY);
+      redisDb.del(SESSION_KEY);
+    }
+    redisPool.close();
+  }
+
+  @Benchmark
+  public String toJson() {
+    return serializer.toJson(contact);
+  }
+
+  @Benchmark
+  public Contact fromJson() {
+    return serializer.fromJson(contactJson, Contact.class);
+  }
+
+  @Benchmark
+  public Contact redisRoundTrip() {
+    try (Jedis redisDb = redisPool.getResource()) {
+      redisDb.set(REDIS_KEY, serializer.toJson(contact));
+      return serializer.fromJson(redisDb.get(REDIS_KEY), Contact.class);
+    }
+  }
+
+  @Benchmark
+  public byte[] binaryEncode() {
+    return binaryCodec.encodeContact(contact);
+  }
+
+  @Benchmark
+  public Contact binaryDecode() {
+    return binaryCodec.decodeContact(contactBinary);
+  }
+
+  @Benchmark
+  public Contact binarySessionRoundTrip() {
+    return sessionRoundTrip(binaryCodec);
+  }
+
+  @Benchmark
+  public Contact gsonSessionRoundTrip() {
+    return sessionRoundTrip(gsonCodec);
+  }
+
+  private Contact sessionRoundTrip(SessionCodec codec) {
+    try (Jedis redisDb = redisPool.getResource()) {
+      Pipeline pipeline = redisDb.pipelined();
+      pipeline.hset(SESSION_KEY, CONTACT_FIELD, codec.encodeContact(contact));
+      pipeline.pexpire(SESSION_KEY, TimeUnit.MINUTES.toMillis(30));
+      pipeline.sync();
+      return codec.decodeContact(redisDb.hget(SESSION_KEY, CONTACT_FIELD));
+    }
+  }
+}
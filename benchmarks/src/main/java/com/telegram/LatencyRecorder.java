@@ -0,0 +1,101 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reply latencies collected by {@link LoadHarness} per command. Unlike {@link LatencyHistogram} every sample is kept,
+ * so tail percentiles are exact rather than bucket bounds.
+ */
+class LatencyRecorder {
+  private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+  private final Map<String, Samples> commands = new TreeMap<>();
+
+  synchronized void record(String command, long latencyNanos) {
+    commands.computeIfAbsent(command, key -> new Samples()).add(latencyNanos);
+  }
+
+  synchronized void unanswered(String command) {
+    commands.computeIfAbsent(command, key -> new Samples()).unanswered++;
+  }
+
+  /**
+   * Forgets samples collected so far, used when warm up is over.
+   */
+  synchronized void reset() {
+    commands.clear();
+  }
+
+  /**
+   * Prints count, throughput and latency percentiles of every command and of all of them together.
+   *
+   * @param seconds how long samples were collected
+   */
+  synchronized void print(PrintStream out, double seconds) {
+    out.println("command              count   per sec    p50 ms    p90 ms    p99 ms  p99.9 ms    max ms  no reply");
+    Samples total = new Samples();
+    commands.forEach((command, samples) -> {
+      print(out, command, samples, seconds);
+      for (int i = 0; i < samples.size; i++) {
+        total.add(samples.values[i]);
+      }
+      total.unanswered += samples.unanswered;
+    });
+    print(out, "total", total, seconds);
+  }
+
+  private static void print(PrintStream out, String command, Samples samples, double seconds) {
+    long[] sorted = Arrays.copyOf(samples.values, samples.size);
+    Arrays.sort(sorted);
+    out.printf("%-18s %7d %9.1f", command, sorted.length, sorted.length / seconds);
+    for (double percentile : PERCENTILES) {
+      out.printf(" %9.2f", millis(sorted, (int) Math.ceil(percentile * sorted.length) - 1));
+    }
+    out.printf(" %9.2f %9d%n", millis(sorted, sorted.length - 1), samples.unanswered);
+  }
+
+  private static double millis(long[] sorted, int index) {
+    return sorted.length == 0 ? 0 : sorted[Math.max(0, index)] / 1e6;
+  }
+
+  private static class Samples {
+    private long[] values = new long[256];
+    private int size;
+    private long unanswered;
+
+    void add(long value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+  }
+}
@@ -0,0 +1,333 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.telegram.telegrambots.ApiContextInitializer;
+import org.telegram.telegrambots.api.objects.Message;
+import org.telegram.telegrambots.api.objects.Update;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the whole bot without Telegram. Updates are fed straight to {@link LendMoneyBot#onUpdateReceived(Update)}
+ * and replies end up in {@link ReplyRecorder}, which tells the harness how long every update waited for its reply.
+ * Updates come either from virtual users ({@link SyntheticUser}) offered at target rate, or from a log of recorded
+ * updates with one Update JSON per line, e.g. webhook request bodies, replayed in order of every chat.
+ * Prints throughput and latency percentiles per command.
+ * <p>
+ * Arguments, all optional, as name=value: rate (updates per second, 200), duration (seconds, 60), warmup (seconds,
+ * 10), users (1000), mix (see {@link LoadProfile}, "add:1,edit:1,show:4,inline:2"), think (mean millis, 1000),
+ * timeout (seconds to wait for reply, 10), store ("h2", "embedded" or JDBC link of local MariaDB, "h2"), redis (port
+ * of local Redis, in-process {@link RedisStandIn} when missing), limits (whether replies keep to Telegram rate limits,
+ * false) and replay (update log to replay instead of virtual users).
+ */
+public class LoadHarness {
+  private static final String H2_LINK = "jdbc:h2:mem:loadharness;MODE=MySQL;DB_CLOSE_DELAY=-1";
+  private static final int FIRST_USER_ID = 100_000;
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final LatencyRecorder recorder = new LatencyRecorder();
+  // updates waiting for reply by reply key, at most one per chat
+  private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+  private final DelayQueue<SyntheticUser> readyUsers = new DelayQueue<>();
+  private final ScheduledExecutorService timeoutChecker;
+  private final long timeoutNanos;
+  private final LendMoneyBot bot;
+  private long nextUpdateId = 1;
+  private long missedTicks;
+  private long measureStartNanos;
+  private long measureEndNanos;
+
+  private LoadHarness(PersistenceService persistenceService, int redisPort, boolean rateLimited, long timeoutNanos) {
+    this.timeoutNanos = timeoutNanos;
+    bot = new LendMoneyBot(persistenceService, LendMoneyBot.createRedisPool("127.0.0.1", redisPort),
+        new ReplyRecorder(this::replied), rateLimited);
+    timeoutChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "load-harness-timeouts");
+      thread.setDaemon(true);
+      return thread;
+    });
+    timeoutChecker.scheduleWithFixedDelay(this::expire, 100, 100, TimeUnit.MILLISECONDS);
+  }
+
+  public static void main(String[] args) throws Exception {
+    RingBufferAppender.install(BuildVars.LOG_RING_BUFFER_SIZE);
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int separator = arg.indexOf('=');
+      if (separator < 0) {
+        throw new IllegalArgumentException("Argument expected as name=value, got \"" + arg + "\".");
+      }
+      options.put(arg.substring(0, separator), arg.substring(separator + 1));
+    }
+    double rate = Double.parseDouble(options.getOrDefault("rate", "200"));
+    long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "60")));
+    long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "10")));
+    int users = Integer.parseInt(options.getOrDefault("users", "1000"));
+    LoadProfile profile = LoadProfile.parse(options.getOrDefault("mix", "add:1,edit:1,show:4,inline:2"),
+        Long.parseLong(options.getOrDefault("think", "1000")));
+    long timeoutNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("timeout", "10")));
+    String store = options.getOrDefault("store", "h2");
+    boolean rateLimited = Boolean.parseBoolean(options.getOrDefault("limits", "false"));
+    String replayPath = options.get("replay");
+    if (replayPath == null && (rate <= 0 || users < 2)) {
+      throw new IllegalArgumentException("Virtual users need positive rate and at least 2 users.");
+    }
+
+    ApiContextInitializer.init();
+    RedisStandIn standIn = options.containsKey("redis") ? null : new RedisStandIn(0);
+    int redisPort = standIn == null ? Integer.parseInt(options.get("redis")) : standIn.getPort();
+    LoadHarness harness = new LoadHarness(openPersistence(store), redisPort, rateLimited, timeoutNanos);
+
+    if (replayPath == null) {
+      System.out.printf("Offering %.0f updates/s of %d users (%s) for %d s after %d s warm up, store %s%n", rate, users,
+          profile, TimeUnit.NANOSECONDS.toSeconds(durationNanos), TimeUnit.NANOSECONDS.toSeconds(warmupNanos), store);
+      harness.generate(users, profile, rate, durationNanos, warmupNanos);
+    } else {
+      System.out.printf("Replaying %s at %s after %d s warm up, store %s%n", replayPath,
+          rate > 0 ? String.format("%.0f updates/s", rate) : "full speed", TimeUnit.NANOSECONDS.toSeconds(warmupNanos), store);
+      harness.replay(replayPath, rate, warmupNanos);
+    }
+    harness.awaitReplies();
+    harness.report();
+
+    harness.bot.shutdown(30, TimeUnit.SECONDS);
+    if (standIn != null) {
+      standIn.close();
+    }
+    System.exit(0);
+  }
+
+  private static PersistenceService openPersistence(String store) throws LedgerStoreException, IOException {
+    if (store.equals("embedded")) {
+      return new PersistenceService(EmbeddedLedgerStore.open(Files.createTempDirectory("load-harness").toString()));
+    }
+    return new PersistenceService(new PooledDataSource(store.equals("h2") ? H2_LINK : store, BuildVars.DATABASE_POOL_MIN_IDLE,
+        BuildVars.DATABASE_POOL_MAX_TOTAL, BuildVars.DATABASE_POOL_MAX_WAIT_MILLIS, BuildVars.DATABASE_VALIDATION_TIMEOUT_SECONDS,
+        BuildVars.DATABASE_LEAK_TIMEOUT_SECONDS));
+  }
+
+  /**
+   * Offers message of some idle virtual user at every tick of target rate. Tick without idle user is missed, so
+   * offered load stays below target when users think too long or replies are slow.
+   */
+  private void generate(int userCount, LoadProfile profile, double rate, long durationNanos, long warmupNanos)
+      throws IOException {
+    Random random = ThreadLocalRandom.current();
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < userCount; i++) {
+      SyntheticUser user = new SyntheticUser(FIRST_USER_ID + i, FIRST_USER_ID, userCount, profile);
+      user.thinkFrom(startNanos, random);
+      readyUsers.add(user);
+    }
+
+    long intervalNanos = (long) (1e9 / rate);
+    measureStartNanos = startNanos;
+    for (long tickNanos = startNanos; tickNanos - startNanos < warmupNanos + durationNanos; tickNanos += intervalNanos) {
+      if (measureStartNanos == startNanos && warmupNanos > 0 && tickNanos - startNanos >= warmupNanos) {
+        startMeasuring(tickNanos);
+      }
+      LockSupport.parkNanos(tickNanos - System.nanoTime());
+      SyntheticUser user = readyUsers.poll();
+      if (user == null) {
+        missedTicks++;
+        continue;
+      }
+      String update = user.nextUpdate(nextUpdateId++, random);
+      // latency counts from the tick, not from the moment harness got to it, so falling behind shows up
+      feed(user.getReplyKey(), user.getCommand(), objectMapper.readValue(update, Update.class), user,
+          Math.max(tickNanos, user.getReadyAtNanos()));
+    }
+    measureEndNanos = System.nanoTime();
+  }
+
+  /**
+   * Feeds logged updates in file order. Update of a chat that still waits for reply holds replay back until the reply
+   * comes or times out, so every chat sees its updates in order like with Telegram.
+   *
+   * @param rate updates per second, 0 replays as fast as replies allow
+   */
+  private void replay(String path, double rate, long warmupNanos) throws IOException, InterruptedException {
+    long intervalNanos = rate > 0 ? (long) (1e9 / rate) : 0;
+    long startNanos = System.nanoTime();
+    long tickNanos = startNanos;
+    measureStartNanos = startNanos;
+    try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        Update update = objectMapper.readValue(line, Update.class);
+        String replyKey = replyKeyOf(update);
+        synchronized (pending) {
+          while (replyKey != null && pending.containsKey(replyKey)) {
+            pending.wait();
+          }
+        }
+        LockSupport.parkNanos(tickNanos - System.nanoTime());
+        tickNanos += intervalNanos;
+
+        long sentNanos = System.nanoTime();
+        if (measureStartNanos == startNanos && warmupNanos > 0 && sentNanos - startNanos >= warmupNanos) {
+          startMeasuring(sentNanos);
+        }
+        if (replyKey == null) {
+          // nothing the bot answers to, e.g. edited message
+          bot.onUpdateReceived(update);
+        } else {
+          feed(replyKey, commandOf(update), update, null, sentNanos);
+        }
+      }
+    }
+    measureEndNanos = System.nanoTime();
+  }
+
+  private void startMeasuring(long nanos) {
+    recorder.reset();
+    missedTicks = 0;
+    measureStartNanos = nanos;
+  }
+
+  private void feed(String replyKey, String command, Update update, SyntheticUser user, long sentNanos) {
+    pending.put(replyKey, new Pending(command, sentNanos, user));
+    bot.onUpdateReceived(update);
+  }
+
+  /**
+   * Called by {@link ReplyRecorder} for every reply.
+   */
+  private void replied(String replyKey) {
+    Pending update = pending.remove(replyKey);
+    // null when update got more replies than one or its reply timed out
+    if (update != null) {
+      long nowNanos = System.nanoTime();
+      recorder.record(update.command, nowNanos - update.sentNanos);
+      release(update, nowNanos);
+    }
+  }
+
+  private void expire() {
+    long nowNanos = System.nanoTime();
+    pending.forEach((replyKey, update) -> {
+      if (nowNanos - update.sentNanos > timeoutNanos && pending.remove(replyKey, update)) {
+        recorder.unanswered(update.command);
+        if (update.user != null) {
+          update.user.abandon();
+        }
+        release(update, nowNanos);
+      }
+    });
+  }
+
+  private void release(Pending update, long nowNanos) {
+    if (update.user != null) {
+      update.user.thinkFrom(nowNanos, ThreadLocalRandom.current());
+      readyUsers.add(update.user);
+    } else {
+      synchronized (pending) {
+        pending.notifyAll();
+      }
+    }
+  }
+
+  private void awaitReplies() throws InterruptedException {
+    long deadline = System.nanoTime() + timeoutNanos;
+    while (!pending.isEmpty() && System.nanoTime() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+  }
+
+  private void report() {
+    recorder.print(System.out, (measureEndNanos - measureStartNanos) / 1e9);
+    if (missedTicks > 0) {
+      System.out.println("Missed ticks without idle user: " + missedTicks + ", add users or shorten think time.");
+    }
+  }
+
+  /**
+   * @return key of the first reply to the update, null if bot doesn't answer such updates
+   */
+  private static String replyKeyOf(Update update) {
+    if (update.hasInlineQuery()) {
+      return ReplyRecorder.inlineKey(update.getInlineQuery().getId());
+    } else if (update.hasCallbackQuery()) {
+      return ReplyRecorder.callbackKey(update.getCallbackQuery().getId());
+    } else if (update.hasMessage()) {
+      return ReplyRecorder.chatKey(String.valueOf(update.getMessage().getChatId()));
+    }
+    return null;
+  }
+
+  /**
+   * @return command label of logged update, dialog steps can't be told apart without bot state and are labelled by
+   * content
+   */
+  private static String commandOf(Update update) {
+    if (update.hasInlineQuery()) {
+      return "inline";
+    } else if (update.hasCallbackQuery()) {
+      return "callback";
+    }
+    Message message = update.getMessage();
+    if (message.hasText() && message.getText().startsWith("/")) {
+      return message.getText().split("[\\s@]", 2)[0];
+    } else if (message.hasText()) {
+      return "text";
+    } else if (message.getContact() != null) {
+      return "contact";
+    } else if (message.hasDocument()) {
+      return "document";
+    }
+    return "other";
+  }
+
+  private static class Pending {
+    private final String command;
+    private final long sentNanos;
+    private final SyntheticUser user;
+
+    Pending(String command, long sentNanos, SyntheticUser user) {
+      this.command = command;
+      this.sentNanos = sentNanos;
+      this.user = user;
+    }
+  }
+}
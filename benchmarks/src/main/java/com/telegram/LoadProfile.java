@@ -0,0 +1,99 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * How virtual users of {@link LoadHarness} behave: which dialogs they start and how long they think before each
+ * message. Mix is written as weights, e.g. "add:1,edit:1,show:4,inline:2", dialogs left out are never started.
+ */
+class LoadProfile {
+  enum Dialog {
+    ADD, EDIT, SHOW, INLINE, SETTLE
+  }
+
+  private final List<Dialog> dialogs = new ArrayList<>();
+  private final List<Double> cumulativeWeights = new ArrayList<>();
+  private final long meanThinkNanos;
+  private final String mix;
+
+  private LoadProfile(String mix, long meanThinkMillis) {
+    this.mix = mix;
+    this.meanThinkNanos = meanThinkMillis * 1_000_000;
+  }
+
+  /**
+   * @param mix             dialog weights, e.g. "add:1,edit:1,show:4,inline:2"
+   * @param meanThinkMillis mean pause between reply and next message of the same user
+   * @throws IllegalArgumentException if mix can't be parsed or has no dialog with positive weight
+   */
+  static LoadProfile parse(String mix, long meanThinkMillis) {
+    LoadProfile profile = new LoadProfile(mix, meanThinkMillis);
+    double total = 0;
+    for (String entry : mix.split(",")) {
+      String[] parts = entry.trim().split(":");
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("Dialog weight expected as name:weight, got \"" + entry + "\".");
+      }
+      double weight = Double.parseDouble(parts[1]);
+      if (weight > 0) {
+        total += weight;
+        profile.dialogs.add(Dialog.valueOf(parts[0].trim().toUpperCase(Locale.ROOT)));
+        profile.cumulativeWeights.add(total);
+      }
+    }
+    if (profile.dialogs.isEmpty()) {
+      throw new IllegalArgumentException("Mix \"" + mix + "\" has no dialog to start.");
+    }
+    return profile;
+  }
+
+  Dialog pick(Random random) {
+    double point = random.nextDouble() * cumulativeWeights.get(cumulativeWeights.size() - 1);
+    for (int i = 0; i < dialogs.size() - 1; i++) {
+      if (point < cumulativeWeights.get(i)) {
+        return dialogs.get(i);
+      }
+    }
+    return dialogs.get(dialogs.size() - 1);
+  }
+
+  /**
+   * @return exponentially distributed think time, so users don't fall into lockstep
+   */
+  long thinkNanos(Random random) {
+    return (long) (-Math.log(1 - random.nextDouble()) * meanThinkNanos);
+  }
+
+  @Override
+  public String toString() {
+    return mix + ", think " + meanThinkNanos / 1_000_000 + " ms";
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telegram.telegrambots.api.objects.Contact;
+import org.telegram.telegrambots.api.objects.User;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PersistenceService reads and writes against in-memory H2 database running in MySQL compatibility mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+  private static final String H2_LINK = "jdbc:h2:mem:lendmoneybot;MODE=MySQL;DB_CLOSE_DELAY=-1";
+  private static final int BORROWER_ID = 1;
+
+  @Param({"10", "100", "1000"})
+  public int ledgerSize;
+
+  private PooledDataSource dataSource;
+  private PersistenceService persistenceService;
+  private User borrower;
+
+  @Setup(Level.Trial)
+  public void setUp() throws LedgerStoreException {
+    dataSource = new PooledDataSource(H2_LINK + ledgerSize, 1, 4, 5_000, 2, 60);
+    persistenceService = new PersistenceService(dataSource);
+
+    Gson gson = new Gson();
+    borrower = gson.fromJson("{\"id\":" + BORROWER_ID + ",\"firstName\":\"Borrower\"}", User.class);
+    for (int lenderId = 2; lenderId < ledgerSize + 2; lenderId++) {
+      Contact lender = gson.fromJson("{\"firstName\":\"Lender\",\"lastName\":\"" + lenderId + "\",\"userID\":" + lenderId + "}",
+          Contact.class);
+      persistenceService.addLenderTo(lender, 100, BuildVars.BASE_CURRENCY, BORROWER_ID);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    persistenceService.close();
+  }
+
+  @Benchmark
+  public List<LendUser> cachedLedger() {
+    return persistenceService.getAllUsersInformation(borrower);
+  }
+
+  @Benchmark
+  public List<LendUser> uncachedLedger() {
+    persistenceService.getLedgerCache().invalidate(BORROWER_ID);
+    return persistenceService.getAllUsersInformation(borrower);
+  }
+
+  @Benchmark
+  public boolean editUser() {
+    int lenderId = 2 + ThreadLocalRandom.current().nextInt(ledgerSize);
+    return persistenceService.editUser(BORROWER_ID, lenderId, false, 1);
+  }
+}
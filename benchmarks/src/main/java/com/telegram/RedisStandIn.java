@@ -0,0 +1,396 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * In-process stand-in for Redis server with the few commands bot and cluster harness use, so cluster can be tried
+ * without Redis installed. EVAL only knows lease scripts of {@link ClusterNode}. Arguments are kept as ISO-8859-1
+ * strings, so binary session values come back byte for byte. Data is guarded by single lock, which is plenty for
+ * a harness but nothing like real Redis.
+ */
+public class RedisStandIn implements AutoCloseable {
+  private final ServerSocket serverSocket;
+  private final Map<String, Object> data = new HashMap<>();
+  private final Map<String, Long> expireAt = new HashMap<>();
+
+  public RedisStandIn(int port) throws IOException {
+    serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(this::accept, "redis-stand-in");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+  }
+
+  private void accept() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+        Thread connection = new Thread(() -> serve(socket), "redis-stand-in-connection");
+        connection.setDaemon(true);
+        connection.start();
+      } catch (IOException e) {
+        return;
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (Socket client = socket;
+         InputStream in = new BufferedInputStream(client.getInputStream());
+         OutputStream out = new BufferedOutputStream(client.getOutputStream())) {
+      while (true) {
+        List<String> command = readCommand(in);
+        if (command == null) {
+          return;
+        }
+        Object reply;
+        try {
+          reply = execute(command);
+        } catch (RuntimeException e) {
+          reply = new Error("ERR " + e.getMessage());
+        }
+        writeReply(out, reply);
+        if (in.available() == 0) {
+          out.flush();
+        }
+        if (command.get(0).equalsIgnoreCase("QUIT")) {
+          out.flush();
+          return;
+        }
+      }
+    } catch (IOException | InterruptedException e) {
+      // client went away
+    }
+  }
+
+  private Object execute(List<String> command) throws InterruptedException {
+    String name = command.get(0).toUpperCase();
+    synchronized (data) {
+      switch (name) {
+        case "PING":
+          return "PONG";
+        case "QUIT":
+        case "SELECT":
+          return "OK";
+        case "FLUSHALL":
+        case "FLUSHDB":
+          data.clear();
+          expireAt.clear();
+          return "OK";
+        case "GET":
+          return live(command.get(1)) instanceof String ? data.get(command.get(1)) : null;
+        case "SET":
+          return set(command);
+        case "DEL":
+          long deleted = 0;
+          for (String key : command.subList(1, command.size())) {
+            deleted += remove(key) ? 1 : 0;
+          }
+          return deleted;
+        case "INCR":
+          long value = live(command.get(1)) == null ? 1 : Long.parseLong((String) data.get(command.get(1))) + 1;
+          data.put(command.get(1), String.valueOf(value));
+          return value;
+        case "PEXPIRE":
+          return expire(command.get(1), Long.parseLong(command.get(2)));
+        case "EXPIRE":
+          return expire(command.get(1), Long.parseLong(command.get(2)) * 1000);
+        case "RPUSH":
+          ArrayDeque<String> list = collection(command.get(1), ArrayDeque::new);
+          list.addAll(command.subList(2, command.size()));
+          data.notifyAll();
+          return (long) list.size();
+        case "LLEN":
+          return live(command.get(1)) == null ? 0L : (long) ((ArrayDeque<?>) data.get(command.get(1))).size();
+        case "BLPOP":
+          return blockingPop(command);
+        case "ZADD":
+          Map<String, Double> zset = collection(command.get(1), HashMap::new);
+          long added = 0;
+          for (int i = 2; i + 1 < command.size(); i += 2) {
+            added += zset.put(command.get(i + 1), Double.parseDouble(command.get(i))) == null ? 1 : 0;
+          }
+          return added;
+        case "ZREM":
+          return live(command.get(1)) == null ? 0L : ((Map<?, ?>) data.get(command.get(1))).remove(command.get(2)) == null ? 0L : 1L;
+        case "ZREMRANGEBYSCORE":
+          return removeByScore(command.get(1), score(command.get(2)), score(command.get(3)));
+        case "ZRANGE":
+          return range(command.get(1), Integer.parseInt(command.get(2)), Integer.parseInt(command.get(3)));
+        case "HSET":
+          Map<String, String> fields = collection(command.get(1), HashMap::new);
+          return fields.put(command.get(2), command.get(3)) == null ? 1L : 0L;
+        case "HMSET":
+          Map<String, String> hash = collection(command.get(1), HashMap::new);
+          for (int i = 2; i + 1 < command.size(); i += 2) {
+            hash.put(command.get(i), command.get(i + 1));
+          }
+          return "OK";
+        case "HGET":
+          return live(command.get(1)) == null ? null : ((Map<?, ?>) data.get(command.get(1))).get(command.get(2));
+        case "HGETALL":
+          List<String> entries = new ArrayList<>();
+          if (live(command.get(1)) != null) {
+            ((Map<?, ?>) data.get(command.get(1))).forEach((field, fieldValue) -> {
+              entries.add((String) field);
+              entries.add((String) fieldValue);
+            });
+          }
+          return entries;
+        case "EVAL":
+          return eval(command);
+        default:
+          return new Error("ERR unknown command '" + name + "'");
+      }
+    }
+  }
+
+  private Object set(List<String> command) {
+    String key = command.get(1);
+    boolean exists = live(key) != null;
+    long ttlMillis = -1;
+    for (int i = 3; i < command.size(); i++) {
+      String option = command.get(i).toUpperCase();
+      if (option.equals("NX") && exists || option.equals("XX") && !exists) {
+        return null;
+      } else if (option.equals("PX")) {
+        ttlMillis = Long.parseLong(command.get(++i));
+      } else if (option.equals("EX")) {
+        ttlMillis = Long.parseLong(command.get(++i)) * 1000;
+      }
+    }
+    data.put(key, command.get(2));
+    expireAt.remove(key);
+    if (ttlMillis > 0) {
+      expireAt.put(key, System.currentTimeMillis() + ttlMillis);
+    }
+    return "OK";
+  }
+
+  private Object eval(List<String> command) {
+    String script = command.get(1);
+    String key = command.get(3);
+    String owner = command.get(4);
+    if (!owner.equals(live(key))) {
+      return 0L;
+    }
+    if (script.equals(ClusterNode.RENEW_LEASE_SCRIPT)) {
+      return expire(key, Long.parseLong(command.get(5)));
+    } else if (script.equals(ClusterNode.RELEASE_LEASE_SCRIPT)) {
+      return remove(key) ? 1L : 0L;
+    }
+    return new Error("ERR unknown script");
+  }
+
+  private Object blockingPop(List<String> command) throws InterruptedException {
+    long timeoutMillis = Long.parseLong(command.get(command.size() - 1)) * 1000;
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (true) {
+      for (String key : command.subList(1, command.size() - 1)) {
+        Object list = live(key);
+        if (list instanceof ArrayDeque && !((ArrayDeque<?>) list).isEmpty()) {
+          List<String> popped = new ArrayList<>();
+          popped.add(key);
+          popped.add((String) ((ArrayDeque<?>) list).pollFirst());
+          return popped;
+        }
+      }
+      long remaining = deadline - System.currentTimeMillis();
+      if (timeoutMillis > 0 && remaining <= 0) {
+        return null;
+      }
+      data.wait(timeoutMillis > 0 ? remaining : 0);
+    }
+  }
+
+  private long removeByScore(String key, double min, double max) {
+    if (live(key) == null) {
+      return 0;
+    }
+    Map<?, ?> zset = (Map<?, ?>) data.get(key);
+    int sizeBefore = zset.size();
+    zset.values().removeIf(score -> (Double) score >= min && (Double) score <= max);
+    return sizeBefore - zset.size();
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<String> range(String key, int start, int stop) {
+    List<String> members = new ArrayList<>();
+    if (live(key) == null) {
+      return members;
+    }
+    Map<String, Double> zset = (Map<String, Double>) data.get(key);
+    zset.entrySet().stream()
+        .sorted(Map.Entry.<String, Double>comparingByValue().thenComparing(Map.Entry.comparingByKey()))
+        .forEach(entry -> members.add(entry.getKey()));
+    int size = members.size();
+    int from = Math.max(start < 0 ? size + start : start, 0);
+    int to = Math.min(stop < 0 ? size + stop : stop, size - 1);
+    return from > to ? new ArrayList<>() : new ArrayList<>(members.subList(from, to + 1));
+  }
+
+  private long expire(String key, long ttlMillis) {
+    if (live(key) == null) {
+      return 0;
+    }
+    expireAt.put(key, System.currentTimeMillis() + ttlMillis);
+    return 1;
+  }
+
+  private boolean remove(String key) {
+    expireAt.remove(key);
+    return data.remove(key) != null;
+  }
+
+  /**
+   * Returns value of the key, dropping it first if it has expired.
+   */
+  private Object live(String key) {
+    Long expiry = expireAt.get(key);
+    if (expiry != null && expiry <= System.currentTimeMillis()) {
+      remove(key);
+    }
+    return data.get(key);
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> T collection(String key, Supplier<T> factory) {
+    Object value = live(key);
+    if (value == null) {
+      value = factory.get();
+      data.put(key, value);
+    }
+    return (T) value;
+  }
+
+  private static double score(String value) {
+    if (value.equalsIgnoreCase("-inf")) {
+      return Double.NEGATIVE_INFINITY;
+    } else if (value.equalsIgnoreCase("+inf") || value.equalsIgnoreCase("inf")) {
+      return Double.POSITIVE_INFINITY;
+    }
+    return Double.parseDouble(value);
+  }
+
+  private static List<String> readCommand(InputStream in) throws IOException {
+    int marker = in.read();
+    if (marker < 0) {
+      return null;
+    }
+    if (marker != '*') {
+      throw new IOException("Inline commands are not supported.");
+    }
+    int count = Integer.parseInt(readLine(in));
+    List<String> command = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      if (in.read() != '$') {
+        throw new IOException("Bulk string expected.");
+      }
+      byte[] argument = new byte[Integer.parseInt(readLine(in))];
+      int offset = 0;
+      while (offset < argument.length) {
+        int read = in.read(argument, offset, argument.length - offset);
+        if (read < 0) {
+          throw new IOException("Connection closed.");
+        }
+        offset += read;
+      }
+      readLine(in);
+      command.add(new String(argument, StandardCharsets.ISO_8859_1));
+    }
+    return command;
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    for (int value = in.read(); value != '\r'; value = in.read()) {
+      if (value < 0) {
+        throw new IOException("Connection closed.");
+      }
+      line.append((char) value);
+    }
+    in.read();
+    return line.toString();
+  }
+
+  private static void writeReply(OutputStream out, Object reply) throws IOException {
+    if (reply == null) {
+      out.write("$-1\r\n".getBytes(StandardCharsets.US_ASCII));
+    } else if (reply instanceof Error) {
+      out.write(("-" + ((Error) reply).message + "\r\n").getBytes(StandardCharsets.UTF_8));
+    } else if (reply instanceof Long) {
+      out.write((":" + reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    } else if (reply instanceof List) {
+      out.write(("*" + ((List<?>) reply).size() + "\r\n").getBytes(StandardCharsets.US_ASCII));
+      for (Object element : (List<?>) reply) {
+        writeBulk(out, (String) element);
+      }
+    } else if ("OK".equals(reply) || "PONG".equals(reply)) {
+      out.write(("+" + reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    } else {
+      writeBulk(out, (String) reply);
+    }
+  }
+
+  private static void writeBulk(OutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+    out.write(("$" + bytes.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    out.write(bytes);
+    out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static class Error {
+    private final String message;
+
+    Error(String message) {
+      this.message = message;
+    }
+  }
+}
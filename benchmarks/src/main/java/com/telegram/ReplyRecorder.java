@@ -0,0 +1,122 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import org.telegram.telegrambots.api.methods.AnswerCallbackQuery;
+import org.telegram.telegrambots.api.methods.AnswerInlineQuery;
+import org.telegram.telegrambots.api.methods.BotApiMethod;
+import org.telegram.telegrambots.api.methods.send.SendAudio;
+import org.telegram.telegrambots.api.methods.send.SendDocument;
+import org.telegram.telegrambots.api.methods.send.SendMessage;
+import org.telegram.telegrambots.api.methods.send.SendPhoto;
+import org.telegram.telegrambots.api.methods.send.SendSticker;
+import org.telegram.telegrambots.api.methods.send.SendVideo;
+import org.telegram.telegrambots.api.methods.send.SendVoice;
+import org.telegram.telegrambots.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.api.objects.Message;
+import org.telegram.telegrambots.bots.AbsSender;
+import org.telegram.telegrambots.updateshandlers.SentCallback;
+
+import java.io.Serializable;
+import java.util.function.Consumer;
+
+/**
+ * Stands in for Telegram API in {@link LoadHarness}. Replies go nowhere, each one only tells the harness which chat,
+ * inline query or callback query got answered.
+ */
+class ReplyRecorder extends AbsSender {
+  private final Consumer<String> replyListener;
+
+  /**
+   * @param replyListener gets key of every reply, see {@link #chatKey}, {@link #inlineKey} and {@link #callbackKey}
+   */
+  ReplyRecorder(Consumer<String> replyListener) {
+    this.replyListener = replyListener;
+  }
+
+  static String chatKey(String chatId) {
+    return "chat/" + chatId;
+  }
+
+  static String inlineKey(String inlineQueryId) {
+    return "inline/" + inlineQueryId;
+  }
+
+  static String callbackKey(String callbackQueryId) {
+    return "callback/" + callbackQueryId;
+  }
+
+  @Override
+  protected <T extends Serializable, Method extends BotApiMethod<T>> T sendApiMethod(Method method) {
+    if (method instanceof SendMessage) {
+      replyListener.accept(chatKey(((SendMessage) method).getChatId()));
+    } else if (method instanceof EditMessageText) {
+      replyListener.accept(chatKey(((EditMessageText) method).getChatId()));
+    } else if (method instanceof AnswerInlineQuery) {
+      replyListener.accept(inlineKey(((AnswerInlineQuery) method).getInlineQueryId()));
+    } else if (method instanceof AnswerCallbackQuery) {
+      replyListener.accept(callbackKey(((AnswerCallbackQuery) method).getCallbackQueryId()));
+    }
+    return null;
+  }
+
+  @Override
+  protected <T extends Serializable, Method extends BotApiMethod<T>, Callback extends SentCallback<T>> void sendApiMethodAsync(
+      Method method, Callback callback) {
+    callback.onResult(method, sendApiMethod(method));
+  }
+
+  @Override
+  public Message sendDocument(SendDocument sendDocument) {
+    replyListener.accept(chatKey(sendDocument.getChatId()));
+    return null;
+  }
+
+  @Override
+  public Message sendPhoto(SendPhoto sendPhoto) {
+    return null;
+  }
+
+  @Override
+  public Message sendVideo(SendVideo sendVideo) {
+    return null;
+  }
+
+  @Override
+  public Message sendSticker(SendSticker sendSticker) {
+    return null;
+  }
+
+  @Override
+  public Message sendAudio(SendAudio sendAudio) {
+    return null;
+  }
+
+  @Override
+  public Message sendVoice(SendVoice sendVoice) {
+    return null;
+  }
+}
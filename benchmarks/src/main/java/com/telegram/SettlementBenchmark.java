@@ -0,0 +1,129 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settlement done by /settle command and graph updates done after every ledger change. People are spread over
+ * circles of 1000, so every settlement walks a circle of the same size regardless of the graph size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SettlementBenchmark {
+  private static final int CIRCLE_SIZE = 1000;
+  private static final int DEBTS_PER_PERSON = 10;
+
+  @Param({"10000", "100000", "1000000"})
+  public int edgeCount;
+
+  private final Random random = new Random(42);
+  private SettlementEngine engine;
+  private GeneratedDebts debts;
+
+  @Setup
+  public void setUp() throws LedgerStoreException {
+    debts = new GeneratedDebts(edgeCount);
+    engine = new SettlementEngine(1, TimeUnit.DAYS, () -> FxRates.baseOnly(BuildVars.BASE_CURRENCY));
+    engine.settle(1, debts::forEachDebt);
+  }
+
+  @Benchmark
+  public Settlement settle() throws LedgerStoreException {
+    return engine.settle(random.nextInt(debts.people) + 1, debts::forEachDebt);
+  }
+
+  @Benchmark
+  public int refresh() throws LedgerStoreException {
+    engine.refresh(random.nextInt(debts.people) + 1, debts::findLedger);
+    return engine.getEdgeCount();
+  }
+
+  @Benchmark
+  public int load() throws LedgerStoreException {
+    engine.invalidate();
+    engine.settle(1, debts::forEachDebt);
+    return engine.getEdgeCount();
+  }
+
+  /**
+   * Seeded random debt graph, every person owes to DEBTS_PER_PERSON others of the same circle.
+   */
+  private static class GeneratedDebts {
+    private final int people;
+    private final int[] lenderIds;
+    private final long[] sums;
+
+    GeneratedDebts(int edgeCount) {
+      this.people = Math.max(edgeCount / DEBTS_PER_PERSON, 1);
+      this.lenderIds = new int[people * DEBTS_PER_PERSON];
+      this.sums = new long[people * DEBTS_PER_PERSON];
+      Random random = new Random(7);
+      for (int borrower = 0; borrower < people; borrower++) {
+        int circleStart = borrower / CIRCLE_SIZE * CIRCLE_SIZE;
+        int circlePeople = Math.min(CIRCLE_SIZE, people - circleStart);
+        for (int i = 0; i < DEBTS_PER_PERSON; i++) {
+          int edge = borrower * DEBTS_PER_PERSON + i;
+          lenderIds[edge] = circleStart + random.nextInt(circlePeople) + 1;
+          sums[edge] = 100 + random.nextInt(100_000);
+        }
+      }
+    }
+
+    List<LendUser> findLedger(int borrowerId) {
+      List<LendUser> ledger = new ArrayList<>(DEBTS_PER_PERSON);
+      for (int edge = (borrowerId - 1) * DEBTS_PER_PERSON; edge < borrowerId * DEBTS_PER_PERSON; edge++) {
+        ledger.add(new LendUser(lenderIds[edge], "Lender " + lenderIds[edge], sums[edge], BuildVars.BASE_CURRENCY));
+      }
+      return ledger;
+    }
+
+    void forEachDebt(LedgerStore.DebtConsumer consumer) {
+      for (int edge = 0; edge < lenderIds.length; edge++) {
+        consumer.accept(edge / DEBTS_PER_PERSON + 1, lenderIds[edge], "Lender " + lenderIds[edge], sums[edge], BuildVars.BASE_CURRENCY);
+      }
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Virtual user of {@link LoadHarness}. User goes through dialogs of its {@link LoadProfile} one message at a time and
+ * sends next message only after reply to the previous one came and think time passed, like a person would. Lenders
+ * the user adds are other virtual users, so ledgers link users together like real ones do.
+ */
+class SyntheticUser implements Delayed {
+  private static final String MESSAGE_TEMPLATE = "{\"update_id\":%d,\"message\":{\"message_id\":%<d,"
+      + "\"from\":{\"id\":%d,\"first_name\":\"User\",\"last_name\":\"%<d\"},\"chat\":{\"id\":%<d,\"type\":\"private\"},"
+      + "\"date\":%d,%s}}";
+  private static final String TEXT_TEMPLATE = "\"text\":\"%s\"";
+  private static final String CONTACT_TEMPLATE = "\"contact\":{\"phone_number\":\"+%d\",\"first_name\":\"User\","
+      + "\"last_name\":\"%<d\",\"user_id\":%<d}";
+  private static final String INLINE_QUERY_TEMPLATE = "{\"update_id\":%d,\"inline_query\":{\"id\":\"%<d\","
+      + "\"from\":{\"id\":%d,\"first_name\":\"User\",\"last_name\":\"%<d\"},\"query\":\"%s\",\"offset\":\"\"}}";
+
+  private final int userId;
+  private final int firstUserId;
+  private final int userCount;
+  private final LoadProfile profile;
+  private int lenderCount;
+  private LoadProfile.Dialog dialog;
+  private int step;
+  private String command;
+  private String replyKey;
+  private long readyAtNanos;
+
+  /**
+   * @param userId      user id, also id of the private chat with the bot
+   * @param firstUserId id of the first virtual user, users have consecutive ids
+   * @param userCount   number of virtual users
+   */
+  SyntheticUser(int userId, int firstUserId, int userCount, LoadProfile profile) {
+    this.userId = userId;
+    this.firstUserId = firstUserId;
+    this.userCount = userCount;
+    this.profile = profile;
+  }
+
+  /**
+   * Produces next message of current dialog, starting new dialog when previous one is over. {@link #getCommand()}
+   * and {@link #getReplyKey()} describe the produced update afterwards.
+   *
+   * @return update as Telegram would send it
+   */
+  String nextUpdate(long updateId, Random random) {
+    if (dialog == null) {
+      dialog = profile.pick(random);
+      // nothing to edit yet, add lender instead
+      if (dialog == LoadProfile.Dialog.EDIT && lenderCount == 0) {
+        dialog = LoadProfile.Dialog.ADD;
+      }
+      step = 0;
+    }
+    replyKey = ReplyRecorder.chatKey(String.valueOf(userId));
+
+    switch (dialog) {
+      case ADD:
+        return add(updateId, random);
+      case EDIT:
+        return edit(updateId, random);
+      case SHOW:
+        return lastStep(updateId, "/show");
+      case SETTLE:
+        return lastStep(updateId, "/settle");
+      default:
+        dialog = null;
+        command = "inline";
+        replyKey = ReplyRecorder.inlineKey(String.valueOf(updateId));
+        return String.format(INLINE_QUERY_TEMPLATE, updateId, userId, "");
+    }
+  }
+
+  /**
+   * Drops unfinished dialog, used when reply didn't come in time. Next message starts new dialog with a command,
+   * which the bot accepts in any state.
+   */
+  void abandon() {
+    dialog = null;
+  }
+
+  String getCommand() {
+    return command;
+  }
+
+  String getReplyKey() {
+    return replyKey;
+  }
+
+  /**
+   * Makes user think before the next message.
+   *
+   * @param nanos {@link System#nanoTime()} the reply came at
+   */
+  void thinkFrom(long nanos, Random random) {
+    readyAtNanos = nanos + profile.thinkNanos(random);
+  }
+
+  long getReadyAtNanos() {
+    return readyAtNanos;
+  }
+
+  @Override
+  public long getDelay(TimeUnit unit) {
+    return unit.convert(readyAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public int compareTo(Delayed other) {
+    return Long.compare(readyAtNanos, ((SyntheticUser) other).readyAtNanos);
+  }
+
+  private String add(long updateId, Random random) {
+    switch (step++) {
+      case 0:
+        command = "/add";
+        return text(updateId, "/add");
+      case 1:
+        command = "add_contact";
+        // lenders are distinct users until every other user is one
+        int lenderId = firstUserId + (userId - firstUserId + 1 + lenderCount % (userCount - 1)) % userCount;
+        return message(updateId, String.format(CONTACT_TEMPLATE, lenderId));
+      default:
+        dialog = null;
+        lenderCount = Math.min(lenderCount + 1, userCount - 1);
+        command = "add_sum";
+        return text(updateId, sum(1_000 + random.nextInt(50_000)));
+    }
+  }
+
+  private String edit(long updateId, Random random) {
+    switch (step++) {
+      case 0:
+        command = "/edit";
+        return text(updateId, "/edit");
+      case 1:
+        command = "edit_selection";
+        return text(updateId, String.valueOf(1 + random.nextInt(Math.min(lenderCount, BuildVars.LEDGER_PAGE_SIZE))));
+      case 2:
+        command = "edit_action";
+        return text(updateId, random.nextInt(4) == 0 ? "2" : "1");
+      default:
+        dialog = null;
+        command = "edit_sum";
+        // decreases are smaller than any added debt, so lenders are not paid off and page numbers stay valid
+        return text(updateId, sum(1 + random.nextInt(100)));
+    }
+  }
+
+  private String lastStep(long updateId, String text) {
+    dialog = null;
+    command = text;
+    return text(updateId, text);
+  }
+
+  private String text(long updateId, String text) {
+    return message(updateId, String.format(TEXT_TEMPLATE, text));
+  }
+
+  private String message(long updateId, String content) {
+    return String.format(MESSAGE_TEMPLATE, updateId, userId, System.currentTimeMillis() / 1000, content);
+  }
+
+  private static String sum(int minorUnits) {
+    return String.format(Locale.ROOT, "%d.%02d", minorUnits / 100, minorUnits % 100);
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Bill one group member paid, split equally between the members of the group.
+ *
+ * @see PersistenceService#splitBill
+ */
+@Value
+class BillSplit {
+  private final String payerName;
+  // whole bill in minor units of the currency, see Money
+  private final long sum;
+  private final String currency;
+  // what the bill was for, may be null
+  private final String description;
+  // people the bill is split between, payer included
+  private final int memberCount;
+  // share of every member in minor units of the bill currency, payer's own share also covers the remainder
+  private final long share;
+  // debts added to the payer, in the currency each member's debt to the payer is kept in
+  private final List<Debt> debts;
+
+  @Value
+  static class Debt {
+    private final int borrowerId;
+    private final String borrowerName;
+    // in minor units of the currency, see Money
+    private final long sum;
+    private final String currency;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder splitBuilder = new StringBuilder().append(payerName).append(" paid ");
+    Money.appendTo(splitBuilder, sum, currency);
+    if (description != null) {
+      splitBuilder.append(" for ").append(description);
+    }
+    splitBuilder.append(", that is ");
+    Money.appendTo(splitBuilder, share, currency).append(" for each of ").append(memberCount).append(" people.\n");
+
+    // big groups would not fit into one message, so only first members are named
+    int namedCount = Math.min(debts.size(), BuildVars.SPLIT_MAX_NAMED_MEMBERS);
+    for (int i = 0; i < namedCount; i++) {
+      splitBuilder.append(i == 0 ? "" : ", ").append(debts.get(i).borrowerName);
+    }
+    if (debts.size() > namedCount) {
+      splitBuilder.append(" and ").append(debts.size() - namedCount).append(" others");
+    }
+    splitBuilder.append(debts.size() == 1 ? " owes " : " owe ").append(payerName).append(" a share now.");
+    for (int i = 0; i < namedCount; i++) {
+      Debt debt = debts.get(i);
+      if (!debt.currency.equals(currency)) {
+        splitBuilder.append("\n").append(debt.borrowerName).append(" keeps debt to ").append(payerName).append(" in ")
+            .append(debt.currency).append(", so ");
+        Money.appendTo(splitBuilder, debt.sum, debt.currency).append(" was added.");
+      }
+    }
+    return splitBuilder.toString();
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import lombok.extern.log4j.Log4j;
+import org.telegram.telegrambots.api.objects.Contact;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Session codec with compact binary format.
+ * <p>
+ * Every value starts with format version byte. Readers ignore bytes after the fields they know, so new optional
+ * fields can be appended without changing the version; version is increased only when existing fields change.
+ * Values starting with '{' were written by {@link GsonSessionCodec} and are decoded by it, so values written
+ * before switching codec are still readable.
+ * <p>
+ * Contact v1: version, flags (which optional fields are present), user id (4 bytes), then phone number, first name
+ * and last name, each as 2 byte length and UTF-8 bytes.
+ * <p>
+ * User ids v1: version, number of ids (2 bytes), ids (4 bytes each).
+ */
+@Log4j
+class BinarySessionCodec implements SessionCodec {
+  private static final byte VERSION = 1;
+  private static final byte JSON_START = '{';
+
+  private static final int HAS_USER_ID = 1;
+  private static final int HAS_PHONE_NUMBER = 1 << 1;
+  private static final int HAS_FIRST_NAME = 1 << 2;
+  private static final int HAS_LAST_NAME = 1 << 3;
+
+  // Contact has no setters, fields are filled directly
+  private static final Field USER_ID_FIELD = contactField("userID");
+  private static final Field PHONE_NUMBER_FIELD = contactField("phoneNumber");
+  private static final Field FIRST_NAME_FIELD = contactField("firstName");
+  private static final Field LAST_NAME_FIELD = contactField("lastName");
+
+  private final SessionCodec fallback = new GsonSessionCodec();
+
+  @Override
+  public byte[] encodeContact(Contact contact) {
+    byte[] phoneNumber = bytes(contact.getPhoneNumber());
+    byte[] firstName = bytes(contact.getFirstName());
+    byte[] lastName = bytes(contact.getLastName());
+    int flags = (contact.getUserID() != null ? HAS_USER_ID : 0) | (phoneNumber != null ? HAS_PHONE_NUMBER : 0)
+        | (firstName != null ? HAS_FIRST_NAME : 0) | (lastName != null ? HAS_LAST_NAME : 0);
+
+    byte[] data = new byte[2 + ((flags & HAS_USER_ID) != 0 ? 4 : 0) + length(phoneNumber) + length(firstName) + length(lastName)];
+    data[0] = VERSION;
+    data[1] = (byte) flags;
+    int position = 2;
+    if (contact.getUserID() != null) {
+      position = putInt(data, position, contact.getUserID());
+    }
+    position = putString(data, position, phoneNumber);
+    position = putString(data, position, firstName);
+    putString(data, position, lastName);
+    return data;
+  }
+
+  @Override
+  public Contact decodeContact(byte[] data) {
+    if (data.length > 0 && data[0] == JSON_START) {
+      return fallback.decodeContact(data);
+    }
+    if (data.length < 2 || data[0] != VERSION) {
+      log.error("Unsupported contact format version " + (data.length > 0 ? data[0] : -1));
+      return null;
+    }
+
+    try {
+      int flags = data[1];
+      int position = 2;
+      Contact contact = new Contact();
+      if ((flags & HAS_USER_ID) != 0) {
+        USER_ID_FIELD.set(contact, getInt(data, position));
+        position += 4;
+      }
+      if ((flags & HAS_PHONE_NUMBER) != 0) {
+        PHONE_NUMBER_FIELD.set(contact, getString(data, position));
+        position += 2 + getUnsignedShort(data, position);
+      }
+      if ((flags & HAS_FIRST_NAME) != 0) {
+        FIRST_NAME_FIELD.set(contact, getString(data, position));
+        position += 2 + getUnsignedShort(data, position);
+      }
+      if ((flags & HAS_LAST_NAME) != 0) {
+        LAST_NAME_FIELD.set(contact, getString(data, position));
+      }
+      return contact;
+    } catch (IllegalAccessException | IndexOutOfBoundsException e) {
+      log.error("Unable to decode contact: " + e.getMessage());
+      return null;
+    }
+  }
+
+  @Override
+  public byte[] encodeUserId(int userId) {
+    byte[] data = new byte[5];
+    data[0] = VERSION;
+    putInt(data, 1, userId);
+    return data;
+  }
+
+  @Override
+  public Integer decodeUserId(byte[] data) {
+    if (data.length != 5 || data[0] != VERSION) {
+      // ids written by Gson codec are plain digits
+      return fallback.decodeUserId(data);
+    }
+    return getInt(data, 1);
+  }
+
+  @Override
+  public byte[] encodeUserIds(int[] userIds) {
+    if (userIds.length > 0xFFFF) {
+      throw new IllegalArgumentException("Too many session user ids.");
+    }
+    byte[] data = new byte[3 + userIds.length * 4];
+    data[0] = VERSION;
+    data[1] = (byte) (userIds.length >>> 8);
+    data[2] = (byte) userIds.length;
+    for (int i = 0; i < userIds.length; i++) {
+      putInt(data, 3 + i * 4, userIds[i]);
+    }
+    return data;
+  }
+
+  @Override
+  public int[] decodeUserIds(byte[] data) {
+    if (data.length > 0 && data[0] == '[') {
+      return fallback.decodeUserIds(data);
+    }
+    if (data.length < 3 || data[0] != VERSION || data.length < 3 + getUnsignedShort(data, 1) * 4) {
+      log.error("Unable to decode session user ids.");
+      return null;
+    }
+    int[] userIds = new int[getUnsignedShort(data, 1)];
+    for (int i = 0; i < userIds.length; i++) {
+      userIds[i] = getInt(data, 3 + i * 4);
+    }
+    return userIds;
+  }
+
+  private static byte[] bytes(String value) {
+    if (value == null) {
+      return null;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > 0xFFFF) {
+      throw new IllegalArgumentException("Session string is too long.");
+    }
+    return bytes;
+  }
+
+  private static int length(byte[] string) {
+    return string == null ? 0 : 2 + string.length;
+  }
+
+  private static int putInt(byte[] data, int position, int value) {
+    data[position] = (byte) (value >>> 24);
+    data[position + 1] = (byte) (value >>> 16);
+    data[position + 2] = (byte) (value >>> 8);
+    data[position + 3] = (byte) value;
+    return position + 4;
+  }
+
+  private static int putString(byte[] data, int position, byte[] string) {
+    if (string == null) {
+      return position;
+    }
+    data[position] = (byte) (string.length >>> 8);
+    data[position + 1] = (byte) string.length;
+    System.arraycopy(string, 0, data, position + 2, string.length);
+    return position + 2 + string.length;
+  }
+
+  private static int getInt(byte[] data, int position) {
+    return (data[position] & 0xFF) << 24 | (data[position + 1] & 0xFF) << 16
+        | (data[position + 2] & 0xFF) << 8 | data[position + 3] & 0xFF;
+  }
+
+  private static int getUnsignedShort(byte[] data, int position) {
+    return (data[position] & 0xFF) << 8 | data[position + 1] & 0xFF;
+  }
+
+  private static String getString(byte[] data, int position) {
+    int length = getUnsignedShort(data, position);
+    if (position + 2 + length > data.length) {
+      throw new IndexOutOfBoundsException("String is longer than data.");
+    }
+    return new String(data, position + 2, length, StandardCharsets.UTF_8);
+  }
+
+  private static Field contactField(String name) {
+    try {
+      Field field = Contact.class.getDeclaredField(name);
+      field.setAccessible(true);
+      return field;
+    } catch (NoSuchFieldException e) {
+      throw new IllegalStateException("Contact has no field " + name, e);
+    }
+  }
+}
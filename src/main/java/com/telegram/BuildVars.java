@@ -24,6 +24,8 @@
 
 package com.telegram;
 
+import java.lang.management.ManagementFactory;
+
 class BuildVars {
   static final String BOT_NAME = <bot-name>;
   static final String BOT_API_KEY = <super-secret-api-token>;
@@ -34,5 +36,123 @@ class BuildVars {
   private static final Integer DATABASE_PORT = 3306;
 
   static final String DATABASE_LINK = "jdbc:mariadb://localhost:" +
-      DATABASE_PORT + "/" + DATABASE_NAME + "?user=" + DATABASE_USER + "&password=" + DATABASE_PASSWORD;
+      DATABASE_PORT + "/" + DATABASE_NAME + "?user=" + DATABASE_USER + "&password=" + DATABASE_PASSWORD +
+      "&useServerPrepStmts=true&cachePrepStmts=true&prepStmtCacheSize=64";
+
+  // connection pool settings
+  static final int DATABASE_POOL_MIN_IDLE = 2;
+  static final int DATABASE_POOL_MAX_TOTAL = 10;
+  static final long DATABASE_POOL_MAX_WAIT_MILLIS = 5_000;
+  static final int DATABASE_VALIDATION_TIMEOUT_SECONDS = 2;
+  // connections borrowed for longer than this are considered leaked and reclaimed
+  static final int DATABASE_LEAK_TIMEOUT_SECONDS = 60;
+
+  // ledgers of most active borrowers are kept in memory
+  static final int LEDGER_CACHE_MAX_SIZE = 10_000;
+  static final long LEDGER_CACHE_TTL_MINUTES = 10;
+  // Telegram caches personal inline results on its side, edits show up in inline mode after this time
+  static final int INLINE_CACHE_TIME_SECONDS = 10;
+  // /settle keeps debt graph of all users in memory and reloads it after this time to pick up changes of other nodes
+  static final long SETTLEMENT_MAX_AGE_MINUTES = 10;
+  // CSV import adds debts in transactions of this many rows, see LedgerCsv
+  static final int IMPORT_CHUNK_SIZE = 1000;
+  // Telegram lets bots download files up to 20 MB
+  static final int IMPORT_MAX_FILE_BYTES = 20 * 1024 * 1024;
+  // same as first_name column length
+  static final int IMPORT_MAX_NAME_LENGTH = 255;
+  // /show and /edit list this many lenders per message, other pages are opened with inline buttons
+  static final int LEDGER_PAGE_SIZE = 20;
+  // debts without currency are in base currency, rates of other currencies are units of base currency per unit.
+  // Rates are read from FX_RATES_PATH, bundled fx-rates.properties is used until it exists, file is checked for
+  // changes every FX_RATES_RELOAD_SECONDS
+  static final String BASE_CURRENCY = "UAH";
+  static final String FX_RATES_PATH = "fx-rates.properties";
+  static final long FX_RATES_RELOAD_SECONDS = 60;
+  // /split in a group divides the bill between members the bot has seen there, groups with more members can't split
+  static final int SPLIT_MAX_MEMBERS = 1000;
+  // split reply names this many members who owe, others are only counted
+  static final int SPLIT_MAX_NAMED_MEMBERS = 20;
+
+  // embedded ledger store keeps ledger in memory-mapped files instead of MariaDB, suits single node deployments
+  static final boolean EMBEDDED_STORE_ENABLED = false;
+  static final String EMBEDDED_STORE_PATH = "ledger-data";
+  static final int EMBEDDED_STORE_LOG_SIZE = 16 * 1024 * 1024;
+  static final int EMBEDDED_STORE_SNAPSHOT_RECORDS = 100_000;
+  // force every mutation to disk, otherwise only process crash (not OS crash) is survived
+  static final boolean EMBEDDED_STORE_SYNC_WRITES = false;
+
+  // write-behind mode acknowledges MariaDB ledger changes once they are fsync'd to local journal and commits them
+  // in batches in the background. Journal has to survive restarts, replay continues from the database checkpoint
+  static final boolean WRITE_BEHIND_ENABLED = false;
+  static final String WRITE_BEHIND_JOURNAL_PATH = "ledger-journal";
+  // changes arriving within this time share one fsync
+  static final long WRITE_BEHIND_GROUP_COMMIT_MILLIS = 5;
+  static final int WRITE_BEHIND_BATCH_SIZE = 500;
+  static final long WRITE_BEHIND_SEGMENT_SIZE = 16 * 1024 * 1024;
+  // after this many failed commits of the same batch, about a minute of retries, new changes are rejected until it
+  // is committed
+  static final int WRITE_BEHIND_MAX_COMMIT_ATTEMPTS = 10;
+
+  // Redis keeps dialog scratch data, conversation checkpoints and cluster state
+  static final String REDIS_HOST = "localhost";
+  static final int REDIS_PORT = 6379;
+  static final int REDIS_POOL_MAX_TOTAL = 16;
+
+  // several bot processes share the load, chats are split into partitions and every partition is owned by one node
+  // through Redis lease. Nodes need shared Redis and database, embedded ledger store can't be used
+  static final boolean CLUSTER_ENABLED = false;
+  static final String CLUSTER_NODE_ID = ManagementFactory.getRuntimeMXBean().getName();
+  // must be the same on all nodes
+  static final int CLUSTER_PARTITIONS = 256;
+  static final long CLUSTER_LEASE_MILLIS = 10_000;
+  // in long polling mode only one node may receive updates from Telegram, others only handle them
+  static final boolean CLUSTER_POLLING_NODE = true;
+
+  // updates are pushed by Telegram to WEBHOOK_URL + WEBHOOK_PATH instead of long polling. WEBHOOK_URL must be HTTPS,
+  // reverse proxy there terminates TLS and forwards requests to WEBHOOK_HOST:WEBHOOK_PORT
+  static final boolean WEBHOOK_ENABLED = false;
+  static final String WEBHOOK_URL = "https://example.com";
+  static final String WEBHOOK_PATH = "/lendmoneybot";
+  // Telegram sends it with every update so forged requests can be told apart. 1-256 characters A-Z, a-z, 0-9, _ and -,
+  // must be the same on all nodes
+  static final String WEBHOOK_SECRET_TOKEN = <webhook-secret-token>;
+  static final String WEBHOOK_HOST = "127.0.0.1";
+  static final int WEBHOOK_PORT = 8443;
+  // max size of single update request, buffers of this size are pooled
+  static final int WEBHOOK_BUFFER_SIZE = 64 * 1024;
+  static final int WEBHOOK_BUFFER_POOL_SIZE = 64;
+
+  // metrics are served on http://METRICS_HOST:METRICS_PORT/metrics, 0 disables endpoint
+  static final String METRICS_HOST = "127.0.0.1";
+  static final int METRICS_PORT = 9404;
+
+  // unfinished dialogs are dropped after this time
+  static final long CONVERSATION_TTL_MINUTES = 30;
+  // dialog scratch values are stored in compact binary format, false keeps JSON (binary codec reads JSON values too)
+  static final boolean SESSION_BINARY_CODEC = true;
+
+  // updates are handled in parallel lanes, updates of one chat always go to the same lane
+  static final int DISPATCHER_LANES = 8;
+  static final int DISPATCHER_LANE_CAPACITY = 100;
+  static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+  // replies are sent in background within Telegram limits: ~30 messages per second overall, ~1 per second per chat
+  static final int OUTBOUND_SENDER_THREADS = 4;
+  static final int OUTBOUND_QUEUE_CAPACITY = 10_000;
+  static final double OUTBOUND_GLOBAL_RATE = 30;
+  static final double OUTBOUND_CHAT_RATE = 1;
+  static final double OUTBOUND_CHAT_BURST = 3;
+  static final int OUTBOUND_MAX_RETRIES = 3;
+  // merge plain text replies waiting for the same chat into one message
+  static final boolean OUTBOUND_COALESCE = true;
+
+  // debt reminders fire up to one tick late and are sent in batches, only while outbound queue is shorter than
+  // max depth, so they never crowd out replies to users
+  static final long REMINDER_TICK_MILLIS = 1000;
+  static final int REMINDER_BATCH_SIZE = 500;
+  static final int REMINDER_MAX_OUTBOUND_DEPTH = 1000;
+
+  // log events are written to console and file by background thread, events logged while the ring is full are
+  // dropped. Must be a power of two
+  static final int LOG_RING_BUFFER_SIZE = 8192;
 }
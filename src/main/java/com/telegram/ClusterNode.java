@@ -0,0 +1,421 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.log4j.Log4j;
+import org.telegram.telegrambots.api.objects.Update;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Member of a group of bot processes that share the load through Redis.
+ * <p>
+ * Every received update is pushed to Redis list of its partition, partition is chosen by chat id. Partitions are
+ * spread over live nodes by rendezvous hashing, so node join or leave only moves partitions of that node. Node
+ * consumes partition only while it holds Redis lease of the partition, so every chat is handled by one node at a
+ * time and in order. Before lease is released, updates already taken from the partition are handled and
+ * {@link PartitionListener} hands over state of the partition chats. Lease of a crashed node expires after
+ * leaseMillis, updates it took but didn't handle are lost.
+ */
+@Log4j
+class ClusterNode {
+  // lease is changed only by the node that holds it
+  static final String RENEW_LEASE_SCRIPT =
+      "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('pexpire', KEYS[1], ARGV[2]) else return 0 end";
+  static final String RELEASE_LEASE_SCRIPT =
+      "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end";
+
+  private static final String NODES_KEY = "cluster/nodes";
+  private static final String PARTITION_KEY_PREFIX = "cluster/partition/";
+  private static final String LEASE_KEY_SUFFIX = "/lease";
+  private static final String QUEUE_KEY_SUFFIX = "/updates";
+  private static final int POLL_TIMEOUT_SECONDS = 1;
+
+  private final JedisPool redisPool;
+  private final String nodeId;
+  private final int partitions;
+  private final long leaseMillis;
+  private final UpdateDispatcher dispatcher;
+  private final PartitionListener listener;
+  // updates are written from annotated fields, some getters of Telegram objects fail on missing optional fields
+  private final ObjectMapper objectMapper = new ObjectMapper()
+      .setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE)
+      .setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+
+  // changed by coordinator thread only
+  private final boolean[] owned;
+  private final boolean[] releasing;
+  private final long[] releaseCycle;
+  // queue keys of partitions consumer should poll, replaced by coordinator thread
+  private volatile List<String> consumedKeys = Collections.emptyList();
+  // incremented after every poll, so coordinator knows when consumer no longer uses previous key list
+  private final AtomicLong consumerCycle = new AtomicLong();
+  private final AtomicIntegerArray inFlight;
+
+  private ScheduledExecutorService coordinator;
+  private Thread consumer;
+  private volatile boolean consuming;
+
+  /**
+   * @param redisPool   Redis shared by all nodes
+   * @param nodeId      id unique among nodes
+   * @param partitions  number of partitions, must be the same on all nodes
+   * @param leaseMillis time after which partitions of silent node are taken over
+   * @param dispatcher  dispatcher that handles updates of owned partitions
+   * @param listener    notified when node starts and stops owning partition
+   */
+  ClusterNode(JedisPool redisPool, String nodeId, int partitions, long leaseMillis, UpdateDispatcher dispatcher,
+              PartitionListener listener) {
+    this.redisPool = redisPool;
+    this.nodeId = nodeId;
+    this.partitions = partitions;
+    this.leaseMillis = leaseMillis;
+    this.dispatcher = dispatcher;
+    this.listener = listener;
+    this.owned = new boolean[partitions];
+    this.releasing = new boolean[partitions];
+    this.releaseCycle = new long[partitions];
+    this.inFlight = new AtomicIntegerArray(partitions);
+  }
+
+  /**
+   * Joins the cluster and starts consuming updates of partitions assigned to this node.
+   */
+  void start() {
+    consuming = true;
+    consumer = new Thread(this::consume, "cluster-consumer");
+    consumer.start();
+
+    coordinator = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "cluster-coordinator"));
+    coordinator.scheduleWithFixedDelay(this::coordinate, 0, leaseMillis / 3, TimeUnit.MILLISECONDS);
+    log.info("Cluster node " + nodeId + " started.");
+  }
+
+  /**
+   * Queues update for the node that owns its chat. Can be called on any node, also not started one.
+   *
+   * @param update update received from Telegram
+   */
+  void publish(Update update) {
+    long startNanos = System.nanoTime();
+    try (Jedis redisDb = redisPool.getResource()) {
+      redisDb.rpush(queueKey(partitionOf(UpdateDispatcher.chatKey(update), partitions)), objectMapper.writeValueAsString(update));
+    } catch (IOException | JedisException e) {
+      Metrics.increment(Metrics.ERRORS, "cluster");
+      log.error("Unable to publish update " + update.getUpdateId() + ": " + e.getMessage());
+    } finally {
+      Metrics.histogram(Metrics.REDIS_LATENCY, "publish").recordSince(startNanos);
+    }
+  }
+
+  /**
+   * Stops taking new updates. Updates already taken are still handled by dispatcher.
+   */
+  void stopConsuming() {
+    consuming = false;
+    if (consumer != null) {
+      try {
+        consumer.join(TimeUnit.SECONDS.toMillis(POLL_TIMEOUT_SECONDS * 2));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Hands over all owned partitions and leaves the cluster. Call after dispatcher has handled taken updates.
+   */
+  void leave() {
+    if (coordinator == null) {
+      return;
+    }
+    coordinator.shutdownNow();
+    try {
+      coordinator.awaitTermination(leaseMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    try (Jedis redisDb = redisPool.getResource()) {
+      for (int partition = 0; partition < partitions; partition++) {
+        if (owned[partition]) {
+          release(redisDb, partition);
+        }
+      }
+      redisDb.zrem(NODES_KEY, nodeId);
+    } catch (JedisException e) {
+      log.error("Unable to leave cluster cleanly, partitions are taken over after lease expiry: " + e.getMessage());
+    }
+    log.info("Cluster node " + nodeId + " left.");
+  }
+
+  /**
+   * Returns number of partitions this node holds leases of.
+   *
+   * @return owned partitions count
+   */
+  int getOwnedPartitions() {
+    int count = 0;
+    for (boolean isOwned : owned) {
+      count += isOwned ? 1 : 0;
+    }
+    return count;
+  }
+
+  /**
+   * Returns partition of the chat. User id works as well, it equals to id of private chat with the user.
+   *
+   * @param chatKey    chat id, see {@link UpdateDispatcher#chatKey(Update)}
+   * @param partitions number of partitions
+   * @return partition number
+   */
+  static int partitionOf(long chatKey, int partitions) {
+    return (int) Math.floorMod(mix(chatKey), (long) partitions);
+  }
+
+  /**
+   * Picks owner of the partition among live nodes. Every node gets the same answer for the same node list.
+   */
+  static String ownerOf(int partition, Collection<String> nodes) {
+    String owner = null;
+    long ownerWeight = Long.MIN_VALUE;
+    for (String node : nodes) {
+      long weight = mix(mix(node.hashCode()) + partition);
+      if (owner == null || weight > ownerWeight || weight == ownerWeight && node.compareTo(owner) < 0) {
+        owner = node;
+        ownerWeight = weight;
+      }
+    }
+    return owner;
+  }
+
+  private void coordinate() {
+    try (Jedis redisDb = redisPool.getResource()) {
+      long now = System.currentTimeMillis();
+      redisDb.zadd(NODES_KEY, now, nodeId);
+      redisDb.zremrangeByScore(NODES_KEY, 0, now - leaseMillis);
+      List<String> nodes = new ArrayList<>(redisDb.zrange(NODES_KEY, 0, -1));
+
+      renewLeases(redisDb);
+      boolean keysChanged = false;
+      for (int partition = 0; partition < partitions; partition++) {
+        boolean assigned = nodeId.equals(ownerOf(partition, nodes));
+        if (owned[partition] && !assigned && !releasing[partition]) {
+          // stop polling first, release once updates taken before are handled
+          releasing[partition] = true;
+          releaseCycle[partition] = consumerCycle.get();
+          keysChanged = true;
+        } else if (owned[partition] && releasing[partition] && consumerCycle.get() > releaseCycle[partition] + 1
+            && inFlight.get(partition) == 0) {
+          release(redisDb, partition);
+        } else if (!owned[partition] && assigned
+            && "OK".equals(redisDb.set(leaseKey(partition), nodeId, "NX", "PX", leaseMillis))) {
+          listener.acquired(partition);
+          owned[partition] = true;
+          keysChanged = true;
+        }
+      }
+
+      if (keysChanged) {
+        updateConsumedKeys();
+      }
+    } catch (JedisException e) {
+      Metrics.increment(Metrics.ERRORS, "cluster");
+      log.error("Cluster coordination failed: " + e.getMessage());
+    } catch (RuntimeException e) {
+      Metrics.increment(Metrics.ERRORS, "cluster");
+      log.error("Cluster coordination failed: " + e.getMessage(), e);
+    }
+  }
+
+  private void renewLeases(Jedis redisDb) {
+    Pipeline pipeline = redisDb.pipelined();
+    List<Response<Object>> renewals = new ArrayList<>(partitions);
+    // binary eval, string one of pipeline can't decode integer reply
+    byte[] script = SafeEncoder.encode(RENEW_LEASE_SCRIPT);
+    List<byte[]> renewArgs = Arrays.asList(SafeEncoder.encode(nodeId), SafeEncoder.encode(String.valueOf(leaseMillis)));
+    for (int partition = 0; partition < partitions; partition++) {
+      renewals.add(owned[partition]
+          ? pipeline.eval(script, Collections.singletonList(SafeEncoder.encode(leaseKey(partition))), renewArgs) : null);
+    }
+    pipeline.sync();
+
+    boolean keysChanged = false;
+    for (int partition = 0; partition < partitions; partition++) {
+      if (renewals.get(partition) != null && Long.valueOf(0).equals(renewals.get(partition).get())) {
+        // lease expired while node was paused and may be taken by other node already
+        log.error("Lease of partition " + partition + " was lost.");
+        Metrics.increment(Metrics.ERRORS, "cluster");
+        owned[partition] = false;
+        releasing[partition] = false;
+        listener.lost(partition);
+        keysChanged = true;
+      }
+    }
+    if (keysChanged) {
+      updateConsumedKeys();
+    }
+  }
+
+  private void release(Jedis redisDb, int partition) {
+    listener.released(partition);
+    redisDb.eval(RELEASE_LEASE_SCRIPT, Collections.singletonList(leaseKey(partition)), Collections.singletonList(nodeId));
+    owned[partition] = false;
+    releasing[partition] = false;
+  }
+
+  private void updateConsumedKeys() {
+    List<String> keys = new ArrayList<>();
+    for (int partition = 0; partition < partitions; partition++) {
+      if (owned[partition] && !releasing[partition]) {
+        keys.add(queueKey(partition));
+      }
+    }
+    consumedKeys = keys;
+  }
+
+  private void consume() {
+    while (consuming) {
+      List<String> keys = consumedKeys;
+      try {
+        if (keys.isEmpty()) {
+          TimeUnit.MILLISECONDS.sleep(100);
+        } else {
+          take(keys);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (JedisException e) {
+        Metrics.increment(Metrics.ERRORS, "cluster");
+        log.error("Unable to take updates: " + e.getMessage());
+      } finally {
+        consumerCycle.incrementAndGet();
+      }
+    }
+  }
+
+  private void take(List<String> keys) {
+    List<String> taken;
+    try (Jedis redisDb = redisPool.getResource()) {
+      taken = redisDb.blpop(POLL_TIMEOUT_SECONDS, keys.toArray(new String[keys.size()]));
+    }
+    if (taken == null || taken.size() < 2) {
+      return;
+    }
+
+    String key = taken.get(0);
+    int partition = Integer.parseInt(key.substring(PARTITION_KEY_PREFIX.length(), key.length() - QUEUE_KEY_SUFFIX.length()));
+    try {
+      Update update = objectMapper.readValue(taken.get(1), Update.class);
+      if (update == null) {
+        Metrics.increment(Metrics.ERRORS, "cluster");
+        log.error("Empty update read from " + key);
+        return;
+      }
+      inFlight.incrementAndGet(partition);
+      try {
+        dispatcher.dispatch(update, () -> inFlight.decrementAndGet(partition));
+      } catch (RuntimeException e) {
+        // update never reached a lane, partition would stay in flight and never be handed over
+        inFlight.decrementAndGet(partition);
+        Metrics.increment(Metrics.ERRORS, "cluster");
+        log.error("Unable to dispatch update from " + key + ": " + e.getMessage());
+      }
+    } catch (IOException e) {
+      Metrics.increment(Metrics.ERRORS, "cluster");
+      log.error("Unable to read update from " + key + ": " + e.getMessage());
+    }
+  }
+
+  private static String leaseKey(int partition) {
+    return PARTITION_KEY_PREFIX + partition + LEASE_KEY_SUFFIX;
+  }
+
+  private static String queueKey(int partition) {
+    return PARTITION_KEY_PREFIX + partition + QUEUE_KEY_SUFFIX;
+  }
+
+  /**
+   * Spreads sequential ids evenly, finalizer of MurmurHash3.
+   */
+  private static long mix(long value) {
+    value ^= value >>> 33;
+    value *= 0xff51afd7ed558ccdL;
+    value ^= value >>> 33;
+    value *= 0xc4ceb9fe1a85ec53L;
+    value ^= value >>> 33;
+    return value;
+  }
+
+  /**
+   * Moves state of partition chats between nodes.
+   */
+  interface PartitionListener {
+
+    /**
+     * Called before node starts handling updates of the partition. Anything cached for partition chats before
+     * may be stale.
+     *
+     * @param partition partition number
+     */
+    void acquired(int partition);
+
+    /**
+     * Called after all taken updates of the partition are handled, right before lease is released. State of
+     * partition chats should be saved to Redis here, so the next owner continues with it.
+     *
+     * @param partition partition number
+     */
+    void released(int partition);
+
+    /**
+     * Called when lease of the partition expired before it was renewed, so other node may own it already.
+     * State of partition chats must not be saved, only dropped.
+     *
+     * @param partition partition number
+     */
+    void lost(int partition);
+  }
+}
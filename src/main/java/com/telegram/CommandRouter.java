@@ -0,0 +1,145 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Routes private messages to handlers. Commands and keyboard labels are found by a single hash lookup of message
+ * text and always win over the dialog step, so user can leave unfinished dialog by any command. Messages that are
+ * not commands go to the handler of current conversation state, then to the fallback handler.
+ */
+class CommandRouter {
+
+  /**
+   * Handles routed message.
+   */
+  @FunctionalInterface
+  interface Handler {
+    void handle(CommandContext context);
+  }
+
+  private static final class Route {
+    // label used for latency metrics
+    private final String name;
+    private final Handler handler;
+    private final boolean textOnly;
+
+    private Route(String name, Handler handler, boolean textOnly) {
+      this.name = name;
+      this.handler = handler;
+      this.textOnly = textOnly;
+    }
+  }
+
+  private final Map<String, Route> commands = new HashMap<>();
+  private final Map<ConversationState, Route> states = new EnumMap<>(ConversationState.class);
+  // command descriptions in registration order
+  private final Map<String, String> descriptions = new LinkedHashMap<>();
+  private Route fallback = new Route("unknown", context -> { }, false);
+
+  /**
+   * Registers command.
+   *
+   * @param command       command text, e.g. "/add"
+   * @param keyboardLabel custom keyboard button text that runs the same command, may be null
+   * @param description   line shown in help, may be null to hide command from help
+   * @param handler       command handler
+   * @return this router
+   */
+  CommandRouter command(String command, String keyboardLabel, String description, Handler handler) {
+    Route route = new Route(command, handler, true);
+    register(command, route);
+    if (keyboardLabel != null) {
+      register(keyboardLabel, route);
+    }
+    if (description != null) {
+      descriptions.put(command, description);
+    }
+    return this;
+  }
+
+  /**
+   * Registers handler of dialog step.
+   *
+   * @param state    conversation state the handler is called in
+   * @param name     label used for latency metrics
+   * @param textOnly whether messages without text are ignored by the handler
+   * @param handler  step handler
+   * @return this router
+   */
+  CommandRouter state(ConversationState state, String name, boolean textOnly, Handler handler) {
+    if (states.putIfAbsent(state, new Route(name, handler, textOnly)) != null) {
+      throw new IllegalArgumentException("State " + state + " already has a handler.");
+    }
+    return this;
+  }
+
+  /**
+   * @param handler handler of messages no other handler accepted
+   * @return this router
+   */
+  CommandRouter otherwise(Handler handler) {
+    fallback = new Route("unknown", handler, false);
+    return this;
+  }
+
+  /**
+   * Passes message to its handler.
+   *
+   * @param context message context
+   * @return name of the handler that was called
+   */
+  String route(CommandContext context) {
+    String text = context.getText();
+    Route route = text != null ? commands.get(text) : null;
+    if (route == null) {
+      route = states.get(context.getConversation().getState());
+      if (route == null || (route.textOnly && text == null)) {
+        route = fallback;
+      }
+    }
+    route.handler.handle(context);
+    return route.name;
+  }
+
+  /**
+   * @return "command - description" lines of all described commands
+   */
+  String helpText() {
+    StringBuilder helpBuilder = new StringBuilder();
+    descriptions.forEach((command, description) -> helpBuilder.append(command).append(" - ").append(description).append('\n'));
+    return helpBuilder.toString();
+  }
+
+  private void register(String text, Route route) {
+    if (commands.putIfAbsent(text, route) != null) {
+      throw new IllegalArgumentException("Command " + text + " is already registered.");
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import lombok.Value;
+
+/**
+ * Immutable snapshot of a single user dialog. New snapshot is created on every transition,
+ * so it can be safely shared between threads without locking.
+ */
+@Value
+class Conversation {
+  private final ConversationState state;
+  // edit direction chosen on AWAITING_EDIT_ACTION step
+  private final boolean decreaseDebt;
+  private final long touchedAt;
+
+  static Conversation idle() {
+    return new Conversation(ConversationState.IDLE, false, System.currentTimeMillis());
+  }
+
+  Conversation moveTo(ConversationState next, boolean decreaseDebt) {
+    return new Conversation(next, decreaseDebt, System.currentTimeMillis());
+  }
+
+  boolean isExpired(long now, long ttlMillis) {
+    return now - touchedAt > ttlMillis;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+/**
+ * States of the per-user dialog with the bot. Every state knows which state has to precede it,
+ * so out of order messages can't push a conversation into a state it was never meant to reach.
+ */
+enum ConversationState {
+  IDLE(null, true),
+  AWAITING_CONTACT(null, false),
+  AWAITING_ADD_SUM(AWAITING_CONTACT, true),
+  AWAITING_EDIT_SELECTION(null, false),
+  AWAITING_EDIT_ACTION(AWAITING_EDIT_SELECTION, true),
+  AWAITING_EDIT_SUM(AWAITING_EDIT_ACTION, true),
+  AWAITING_IMPORT_FILE(null, false),
+  AWAITING_BALANCE_DATE(null, false),
+  AWAITING_REMINDER_SELECTION(null, false),
+  AWAITING_REMINDER_INTERVAL(AWAITING_REMINDER_SELECTION, true);
+
+  // state conversation has to be in before moving to this one, null when reachable from any state
+  private final ConversationState predecessor;
+  // whether entering this state should be written through to Redis
+  private final boolean checkpoint;
+
+  ConversationState(ConversationState predecessor, boolean checkpoint) {
+    this.predecessor = predecessor;
+    this.checkpoint = checkpoint;
+  }
+
+  /**
+   * Checks if conversation can move from this state to the specified one.
+   *
+   * @param next state to move to
+   * @return true if transition is allowed
+   */
+  boolean canMoveTo(ConversationState next) {
+    return next.predecessor == null || next.predecessor == this;
+  }
+
+  boolean isCheckpoint() {
+    return checkpoint;
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import lombok.extern.log4j.Log4j;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+
+/**
+ * Keeps dialog state of every user in memory keyed by Telegram user id.
+ * Abandoned dialogs are evicted after TTL, checkpoint states are written through to Redis
+ * so conversation survives bot restart.
+ */
+@Log4j
+class ConversationStore {
+  private static final String STATE_FIELD = "state";
+  private static final String DECREASE_DEBT_FIELD = "decrease_debt";
+
+  private final Map<Integer, Conversation> conversations = new ConcurrentHashMap<>();
+  private final JedisPool redisPool;
+  private final long ttlMillis;
+  private final ScheduledExecutorService evictionExecutor;
+
+  ConversationStore(JedisPool redisPool, long ttl, TimeUnit unit) {
+    this.redisPool = redisPool;
+    this.ttlMillis = unit.toMillis(ttl);
+
+    evictionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "conversation-eviction");
+      thread.setDaemon(true);
+      return thread;
+    });
+    evictionExecutor.scheduleWithFixedDelay(this::evictExpired, ttlMillis, ttlMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns current conversation of the user. If there is nothing in memory last checkpoint is restored from Redis.
+   *
+   * @param userId Telegram user id
+   * @return current conversation, idle one if user has no active dialog
+   */
+  Conversation get(int userId) {
+    Conversation conversation = conversations.get(userId);
+    if (conversation != null && !conversation.isExpired(System.currentTimeMillis(), ttlMillis)) {
+      return conversation;
+    }
+
+    conversation = restore(userId);
+    conversations.put(userId, conversation);
+    return conversation;
+  }
+
+  /**
+   * Moves user conversation to the next state.
+   *
+   * @param userId Telegram user id
+   * @param next   state to move to
+   * @throws IllegalStateException if transition is not allowed from the current state
+   */
+  void moveTo(int userId, ConversationState next) {
+    moveTo(userId, next, false);
+  }
+
+  /**
+   * Moves user conversation to the next state and remembers selected edit direction.
+   *
+   * @param userId       Telegram user id
+   * @param next         state to move to
+   * @param decreaseDebt edit direction
+   * @throws IllegalStateException if transition is not allowed from the current state
+   */
+  void moveTo(int userId, ConversationState next, boolean decreaseDebt) {
+    Conversation current = get(userId);
+    if (!current.getState().canMoveTo(next)) {
+      throw new IllegalStateException("Can't move from " + current.getState() + " to " + next);
+    }
+
+    Conversation moved = current.moveTo(next, decreaseDebt);
+    conversations.put(userId, moved);
+
+    if (next.isCheckpoint()) {
+      checkpoint(userId, moved);
+    } else if (current.getState() != ConversationState.IDLE) {
+      // state written by an earlier move or by handOver would be restored instead of this one
+      removeCheckpoint(userId);
+    }
+  }
+
+  /**
+   * Removes conversations that weren't touched during TTL.
+   */
+  void evictExpired() {
+    long now = System.currentTimeMillis();
+    conversations.values().removeIf(conversation -> conversation.isExpired(now, ttlMillis));
+  }
+
+  /**
+   * Writes active conversations of matching users to Redis and forgets them, so another bot node can continue them.
+   *
+   * @param userIds users whose conversations are handed over
+   */
+  void handOver(IntPredicate userIds) {
+    long now = System.currentTimeMillis();
+    for (Map.Entry<Integer, Conversation> entry : conversations.entrySet()) {
+      if (userIds.test(entry.getKey())) {
+        if (!entry.getValue().isExpired(now, ttlMillis)) {
+          checkpoint(entry.getKey(), entry.getValue());
+        }
+        conversations.remove(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Forgets conversations of matching users without saving them. Next access restores them from Redis.
+   *
+   * @param userIds users whose conversations are dropped
+   */
+  void forget(IntPredicate userIds) {
+    conversations.keySet().removeIf(userIds::test);
+  }
+
+  void shutdown() {
+    evictionExecutor.shutdownNow();
+  }
+
+  private void checkpoint(int userId, Conversation conversation) {
+    if (conversation.getState() == ConversationState.IDLE) {
+      removeCheckpoint(userId);
+      return;
+    }
+
+    String key = redisKey(userId);
+    long startNanos = System.nanoTime();
+    try (Jedis redisDb = redisPool.getResource()) {
+      Map<String, String> fields = new HashMap<>();
+      fields.put(STATE_FIELD, conversation.getState().name());
+      fields.put(DECREASE_DEBT_FIELD, String.valueOf(conversation.isDecreaseDebt()));
+      redisDb.hmset(key, fields);
+      redisDb.pexpire(key, ttlMillis);
+    } finally {
+      Metrics.histogram(Metrics.REDIS_LATENCY, "checkpoint").recordSince(startNanos);
+    }
+  }
+
+  private void removeCheckpoint(int userId) {
+    long startNanos = System.nanoTime();
+    try (Jedis redisDb = redisPool.getResource()) {
+      redisDb.del(redisKey(userId));
+    } finally {
+      Metrics.histogram(Metrics.REDIS_LATENCY, "checkpoint").recordSince(startNanos);
+    }
+  }
+
+  private Conversation restore(int userId) {
+    Map<String, String> fields;
+    long startNanos = System.nanoTime();
+    try (Jedis redisDb = redisPool.getResource()) {
+      fields = redisDb.hgetAll(redisKey(userId));
+    } finally {
+      Metrics.histogram(Metrics.REDIS_LATENCY, "restore").recordSince(startNanos);
+    }
+    if (fields == null || !fields.containsKey(STATE_FIELD)) {
+      return Conversation.idle();
+    }
+
+    try {
+      return new Conversation(ConversationState.valueOf(fields.get(STATE_FIELD)),
+          Boolean.parseBoolean(fields.get(DECREASE_DEBT_FIELD)), System.currentTimeMillis());
+    } catch (IllegalArgumentException e) {
+      log.error(e.getMessage());
+      return Conversation.idle();
+    }
+  }
+
+  private static String redisKey(int userId) {
+    return "user/" + userId + "/conversation";
+  }
+}
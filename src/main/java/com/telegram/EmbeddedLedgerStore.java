@@ -0,0 +1,729 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import lombok.extern.log4j.Log4j;
+import org.telegram.telegrambots.api.objects.Contact;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Ledger store that keeps whole ledger in memory and needs no database server.
+ * <p>
+ * Every mutation is appended to memory-mapped log file before it is applied to the in-memory index, so the log
+ * survives process crash. Log record is [payload length][CRC32 of payload][payload], recovery stops at the first
+ * record that is empty or doesn't match its checksum. Every snapshotEveryRecords mutations whole index is written
+ * to snapshot file and log starts over with the next generation, so restart never replays more than that.
+ */
+@Log4j
+class EmbeddedLedgerStore implements LedgerStore {
+  private static final int SNAPSHOT_MAGIC = 0x4C4D4253;
+  // version 1 kept sums as double major units, version 2 keeps them as long minor units, version 3 adds currency
+  private static final int LEGACY_FORMAT_VERSION = 1;
+  private static final int MINOR_UNITS_FORMAT_VERSION = 2;
+  private static final int FORMAT_VERSION = 3;
+  private static final String SNAPSHOT_FILE = "ledger.snapshot";
+  private static final String LOG_FILE_PREFIX = "ledger-";
+  private static final String LOG_FILE_SUFFIX = ".log";
+
+  // records of types 1 and 2 were written with double sums and records of type 3 without currency, they are only
+  // replayed from old logs
+  private static final byte LEGACY_ADD_LENDER_RECORD = 1;
+  private static final byte LEGACY_EDIT_BALANCE_RECORD = 2;
+  private static final byte UAH_ADD_LENDER_RECORD = 3;
+  private static final byte EDIT_BALANCE_RECORD = 4;
+  private static final byte ADD_LENDER_RECORD = 5;
+  // debts written before currencies were supported are in hryvnias
+  private static final String LEGACY_CURRENCY = "UAH";
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final int MAX_PAYLOAD_SIZE = 1024;
+  private static final int MAX_CURRENCY_BYTES = 8;
+  private static final int MAX_NAME_BYTES = MAX_PAYLOAD_SIZE - 32 - MAX_CURRENCY_BYTES;
+
+  private final Path directory;
+  private final int initialLogSize;
+  private final int snapshotEveryRecords;
+  private final boolean syncWrites;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  // borrower id -> debts of the borrower
+  private final LongObjectHashMap<Ledger> ledgers = new LongObjectHashMap<>(1024);
+  // lender id -> lender name
+  private final LongObjectHashMap<String> names = new LongObjectHashMap<>(1024);
+
+  private final ByteBuffer payloadBuffer = ByteBuffer.allocate(MAX_PAYLOAD_SIZE);
+  private final CRC32 crc = new CRC32();
+
+  private long generation;
+  private FileChannel logChannel;
+  private MappedByteBuffer logBuffer;
+  private int recordsSinceSnapshot;
+
+  /**
+   * Opens store in the directory, restoring ledger from the last snapshot and log written after it.
+   *
+   * @param directory            directory with store files, created if missing
+   * @param initialLogSize       initial size of mapped log file in bytes, it is doubled when full
+   * @param snapshotEveryRecords number of mutations after which snapshot is taken
+   * @param syncWrites           whether every mutation is forced to disk, otherwise only process crash is survived
+   * @throws LedgerStoreException if store files can't be read
+   */
+  EmbeddedLedgerStore(Path directory, int initialLogSize, int snapshotEveryRecords, boolean syncWrites)
+      throws LedgerStoreException {
+    this.directory = directory;
+    this.initialLogSize = initialLogSize;
+    this.snapshotEveryRecords = snapshotEveryRecords;
+    this.syncWrites = syncWrites;
+
+    try {
+      Files.createDirectories(directory);
+      recover();
+    } catch (IOException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  @Override
+  public List<LendUser> findLedger(int borrowerId) {
+    lock.readLock().lock();
+    try {
+      Ledger ledger = ledgers.get(borrowerId);
+      if (ledger == null) {
+        return new ArrayList<>();
+      }
+
+      List<LendUser> userData = new ArrayList<>(ledger.size);
+      for (int i = 0; i < ledger.size; i++) {
+        userData.add(new LendUser(ledger.lenderIds[i], names.get(ledger.lenderIds[i]), ledger.sums[i], ledger.currencies[i]));
+      }
+      return userData;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public LedgerPage findLedgerPage(int borrowerId, int fromLenderId, boolean forward, int limit) {
+    // whole ledger is in memory already, page is cut from it
+    return LedgerPage.slice(findLedger(borrowerId), fromLenderId, forward, limit);
+  }
+
+  @Override
+  public void addLender(Contact lender, long sum, String currency, int borrowerId) throws LedgerStoreException {
+    String name = lender.getLastName() == null ? lender.getFirstName() : lender.getFirstName() + " " + lender.getLastName();
+    byte[] nameBytes = encodeName(name);
+    byte[] currencyBytes = encodeCurrency(currency);
+
+    lock.writeLock().lock();
+    try {
+      int logStart = logBuffer.position();
+      int recordsBefore = recordsSinceSnapshot;
+      try {
+        appendAddLender(borrowerId, lender.getUserID(), sum, currencyBytes, nameBytes);
+      } catch (IOException e) {
+        discardLog(logStart, recordsBefore);
+        throw e;
+      }
+      applyAddLender(borrowerId, lender.getUserID(), sum, currency, name);
+      snapshotIfNeeded();
+    } catch (IOException e) {
+      throw new LedgerStoreException(e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void addLenders(int borrowerId, List<LedgerMutation> adds) throws LedgerStoreException {
+    addDebts(adds);
+  }
+
+  @Override
+  public void addDebts(List<LedgerMutation> adds) throws LedgerStoreException {
+    // names are checked before anything is written and records appended before a failed write are discarded, so
+    // either all debts are added or none
+    String[] names = new String[adds.size()];
+    byte[][] nameBytes = new byte[adds.size()][];
+    byte[][] currencyBytes = new byte[adds.size()][];
+    for (int i = 0; i < adds.size(); i++) {
+      LedgerMutation add = adds.get(i);
+      names[i] = add.getLastName() == null ? add.getFirstName() : add.getFirstName() + " " + add.getLastName();
+      nameBytes[i] = encodeName(names[i]);
+      currencyBytes[i] = encodeCurrency(add.getCurrency());
+    }
+
+    lock.writeLock().lock();
+    try {
+      int logStart = logBuffer.position();
+      int recordsBefore = recordsSinceSnapshot;
+      try {
+        for (int i = 0; i < adds.size(); i++) {
+          LedgerMutation add = adds.get(i);
+          appendAddLender(add.getBorrowerId(), add.getLenderId(), add.getSum(), currencyBytes[i], nameBytes[i]);
+        }
+      } catch (IOException e) {
+        discardLog(logStart, recordsBefore);
+        throw e;
+      }
+      for (int i = 0; i < adds.size(); i++) {
+        LedgerMutation add = adds.get(i);
+        applyAddLender(add.getBorrowerId(), add.getLenderId(), add.getSum(), add.getCurrency(), names[i]);
+      }
+      snapshotIfNeeded();
+    } catch (IOException e) {
+      throw new LedgerStoreException(e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void editBalance(int borrowerId, int lenderId, boolean decreaseDebt, long sum) throws LedgerStoreException {
+    long delta = decreaseDebt ? -sum : sum;
+
+    lock.writeLock().lock();
+    try {
+      Ledger ledger = ledgers.get(borrowerId);
+      if (ledger == null || ledger.indexOf(lenderId) < 0) {
+        throw new LedgerStoreException("Borrower " + borrowerId + " has no debt to lender " + lenderId);
+      }
+      payloadBuffer.clear();
+      payloadBuffer.put(EDIT_BALANCE_RECORD).putInt(borrowerId).putInt(lenderId).putLong(delta);
+      int logStart = logBuffer.position();
+      int recordsBefore = recordsSinceSnapshot;
+      try {
+        append();
+      } catch (IOException e) {
+        discardLog(logStart, recordsBefore);
+        throw e;
+      }
+      applyEditBalance(borrowerId, lenderId, delta);
+      snapshotIfNeeded();
+    } catch (IOException e) {
+      throw new LedgerStoreException(e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public int count(int borrowerId) {
+    lock.readLock().lock();
+    try {
+      Ledger ledger = ledgers.get(borrowerId);
+      return ledger == null ? 0 : ledger.size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void forEachDebt(int borrowerId, DebtConsumer consumer) {
+    lock.readLock().lock();
+    try {
+      Ledger ledger = ledgers.get(borrowerId);
+      for (int i = 0; ledger != null && i < ledger.size; i++) {
+        consumer.accept(borrowerId, ledger.lenderIds[i], names.get(ledger.lenderIds[i]), ledger.sums[i], ledger.currencies[i]);
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void forEachDebtTo(int lenderId, Collection<Integer> borrowerIds, DebtConsumer consumer) {
+    lock.readLock().lock();
+    try {
+      for (int borrowerId : borrowerIds) {
+        Ledger ledger = ledgers.get(borrowerId);
+        int index = ledger == null ? -1 : ledger.indexOf(lenderId);
+        if (index >= 0) {
+          consumer.accept(borrowerId, lenderId, names.get(lenderId), ledger.sums[index], ledger.currencies[index]);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void forEachDebt(DebtConsumer consumer) {
+    lock.readLock().lock();
+    try {
+      ledgers.forEach((borrowerId, ledger) -> {
+        for (int i = 0; i < ledger.size; i++) {
+          consumer.accept((int) borrowerId, ledger.lenderIds[i], names.get(ledger.lenderIds[i]), ledger.sums[i], ledger.currencies[i]);
+        }
+      });
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public HistoryPage findHistoryPage(int borrowerId, long fromEntryId, boolean older, int limit) throws LedgerStoreException {
+    // log is compacted by snapshots, so past changes are not kept
+    throw new LedgerStoreException("Embedded store doesn't keep ledger history.");
+  }
+
+  @Override
+  public List<LendUser> findLedgerAt(int borrowerId, long timeMillis) throws LedgerStoreException {
+    throw new LedgerStoreException("Embedded store doesn't keep ledger history.");
+  }
+
+  @Override
+  public void saveReminder(Reminder reminder) throws LedgerStoreException {
+    throw new LedgerStoreException("Embedded store doesn't keep reminders.");
+  }
+
+  @Override
+  public void removeReminder(int borrowerId, int lenderId) throws LedgerStoreException {
+    throw new LedgerStoreException("Embedded store doesn't keep reminders.");
+  }
+
+  @Override
+  public void completeReminders(List<Reminder> fired, List<Reminder> next) {
+    // no reminder is ever saved, so none fires
+  }
+
+  @Override
+  public void forEachReminder(Consumer<Reminder> consumer) {
+  }
+
+  /**
+   * Writes snapshot of the whole ledger and starts new log generation.
+   *
+   * @throws LedgerStoreException if snapshot can't be written
+   */
+  void snapshot() throws LedgerStoreException {
+    lock.writeLock().lock();
+    try {
+      takeSnapshot();
+    } catch (IOException e) {
+      throw new LedgerStoreException(e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    lock.writeLock().lock();
+    try {
+      takeSnapshot();
+      logChannel.close();
+    } catch (IOException e) {
+      log.error("Unable to close embedded ledger store: " + e.getMessage());
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Appends record from payload buffer to the log. Called under write lock.
+   */
+  private void append() throws IOException {
+    payloadBuffer.flip();
+    int payloadLength = payloadBuffer.remaining();
+    crc.reset();
+    crc.update(payloadBuffer.array(), 0, payloadLength);
+
+    if (logBuffer.remaining() < RECORD_HEADER_SIZE + payloadLength) {
+      growLog();
+    }
+    logBuffer.putInt(payloadLength).putInt((int) crc.getValue()).put(payloadBuffer);
+    if (syncWrites) {
+      logBuffer.force();
+    }
+    recordsSinceSnapshot++;
+  }
+
+  /**
+   * Zeroes records appended from the log position on, so records of a failed mutation are never replayed and the
+   * next record is written in their place. Called under write lock before anything is applied to the index.
+   *
+   * @param logStart      log position the failed mutation started at
+   * @param recordsBefore records since snapshot before the failed mutation
+   */
+  private void discardLog(int logStart, int recordsBefore) {
+    int logEnd = logBuffer.position();
+    for (int position = logStart; position < logEnd; position++) {
+      logBuffer.put(position, (byte) 0);
+    }
+    logBuffer.position(logStart);
+    recordsSinceSnapshot = recordsBefore;
+  }
+
+  /**
+   * Appends add lender record to the log. Called under write lock.
+   */
+  private void appendAddLender(int borrowerId, int lenderId, long sum, byte[] currencyBytes, byte[] nameBytes) throws IOException {
+    payloadBuffer.clear();
+    payloadBuffer.put(ADD_LENDER_RECORD).putInt(borrowerId).putInt(lenderId).putLong(sum)
+        .put((byte) currencyBytes.length).put(currencyBytes)
+        .putShort((short) nameBytes.length).put(nameBytes);
+    append();
+  }
+
+  private static byte[] encodeName(String name) throws LedgerStoreException {
+    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    if (nameBytes.length > MAX_NAME_BYTES) {
+      throw new LedgerStoreException("Lender name is too long.");
+    }
+    return nameBytes;
+  }
+
+  private static byte[] encodeCurrency(String currency) throws LedgerStoreException {
+    byte[] currencyBytes = currency.getBytes(StandardCharsets.US_ASCII);
+    if (currencyBytes.length > MAX_CURRENCY_BYTES) {
+      throw new LedgerStoreException("Currency code is too long.");
+    }
+    return currencyBytes;
+  }
+
+  private void snapshotIfNeeded() throws IOException {
+    if (recordsSinceSnapshot >= snapshotEveryRecords) {
+      takeSnapshot();
+    }
+  }
+
+  private void growLog() throws IOException {
+    int position = logBuffer.position();
+    logBuffer.force();
+    logBuffer = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) logBuffer.capacity() << 1);
+    logBuffer.position(position);
+  }
+
+  private void applyAddLender(int borrowerId, int lenderId, long sum, String currency, String name) {
+    // same as INSERT ignore, first known name of the lender is kept
+    if (names.get(lenderId) == null) {
+      names.put(lenderId, name);
+    }
+
+    Ledger ledger = ledgers.get(borrowerId);
+    if (ledger == null) {
+      ledger = new Ledger();
+      ledgers.put(borrowerId, ledger);
+    }
+    ledger.add(lenderId, sum, currency);
+  }
+
+  private void applyEditBalance(int borrowerId, int lenderId, long delta) {
+    Ledger ledger = ledgers.get(borrowerId);
+    if (ledger == null) {
+      return;
+    }
+
+    int index = ledger.indexOf(lenderId);
+    if (index < 0) {
+      return;
+    }
+    ledger.sums[index] += delta;
+    if (ledger.sums[index] <= 0) {
+      ledger.remove(index);
+    }
+  }
+
+  private void recover() throws IOException {
+    long snapshotGeneration = 0;
+    Path snapshotPath = directory.resolve(SNAPSHOT_FILE);
+    if (Files.exists(snapshotPath)) {
+      snapshotGeneration = readSnapshot(snapshotPath);
+    }
+
+    List<Long> logGenerations = new ArrayList<>();
+    try (DirectoryStream<Path> logFiles = Files.newDirectoryStream(directory, LOG_FILE_PREFIX + "*" + LOG_FILE_SUFFIX)) {
+      for (Path logFile : logFiles) {
+        String fileName = logFile.getFileName().toString();
+        logGenerations.add(Long.parseLong(fileName.substring(LOG_FILE_PREFIX.length(), fileName.length() - LOG_FILE_SUFFIX.length())));
+      }
+    }
+    Collections.sort(logGenerations);
+
+    generation = snapshotGeneration + 1;
+    for (long logGeneration : logGenerations) {
+      if (logGeneration <= snapshotGeneration) {
+        // already included into snapshot
+        Files.delete(logPath(logGeneration));
+        continue;
+      }
+
+      if (logChannel != null) {
+        logChannel.close();
+      }
+      generation = logGeneration;
+      openLog(generation);
+      int replayed = replayLog();
+      recordsSinceSnapshot += replayed;
+      log.info("Replayed " + replayed + " ledger records from generation " + logGeneration);
+    }
+
+    if (logChannel == null) {
+      openLog(generation);
+    }
+  }
+
+  /**
+   * Applies all valid records of the opened log and leaves log buffer positioned after the last one.
+   */
+  private int replayLog() {
+    int replayed = 0;
+    byte[] payload = new byte[MAX_PAYLOAD_SIZE];
+    while (logBuffer.remaining() >= RECORD_HEADER_SIZE) {
+      int recordStart = logBuffer.position();
+      int payloadLength = logBuffer.getInt();
+      int checksum = logBuffer.getInt();
+      if (payloadLength <= 0 || payloadLength > MAX_PAYLOAD_SIZE || payloadLength > logBuffer.remaining()) {
+        logBuffer.position(recordStart);
+        break;
+      }
+
+      logBuffer.get(payload, 0, payloadLength);
+      crc.reset();
+      crc.update(payload, 0, payloadLength);
+      if ((int) crc.getValue() != checksum) {
+        log.error("Torn ledger record at " + recordStart + " in generation " + generation + ", dropping log tail.");
+        logBuffer.position(recordStart);
+        break;
+      }
+
+      applyRecord(ByteBuffer.wrap(payload, 0, payloadLength));
+      replayed++;
+    }
+
+    // clear whatever is left after the last valid record, so it is never mistaken for a record later
+    int position = logBuffer.position();
+    while (logBuffer.hasRemaining() && logBuffer.get(logBuffer.position()) != 0) {
+      logBuffer.put((byte) 0);
+    }
+    logBuffer.position(position);
+    return replayed;
+  }
+
+  private void applyRecord(ByteBuffer record) {
+    byte type = record.get();
+    int borrowerId = record.getInt();
+    int lenderId = record.getInt();
+    boolean legacy = type == LEGACY_ADD_LENDER_RECORD || type == LEGACY_EDIT_BALANCE_RECORD;
+    long sum = legacy ? toMinorUnits(record.getDouble()) : record.getLong();
+    if (type == ADD_LENDER_RECORD || type == UAH_ADD_LENDER_RECORD || type == LEGACY_ADD_LENDER_RECORD) {
+      String currency = LEGACY_CURRENCY;
+      if (type == ADD_LENDER_RECORD) {
+        byte[] currencyBytes = new byte[record.get()];
+        record.get(currencyBytes);
+        currency = new String(currencyBytes, StandardCharsets.US_ASCII).intern();
+      }
+      byte[] nameBytes = new byte[record.getShort()];
+      record.get(nameBytes);
+      applyAddLender(borrowerId, lenderId, sum, currency, new String(nameBytes, StandardCharsets.UTF_8));
+    } else if (type == EDIT_BALANCE_RECORD || type == LEGACY_EDIT_BALANCE_RECORD) {
+      applyEditBalance(borrowerId, lenderId, sum);
+    } else {
+      log.error("Unknown ledger record type " + type);
+    }
+  }
+
+  private void openLog(long logGeneration) throws IOException {
+    Path logPath = logPath(logGeneration);
+    logChannel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    long size = Math.max(logChannel.size(), initialLogSize);
+    logBuffer = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+  }
+
+  /**
+   * Writes snapshot that includes all logs up to the current generation and switches to the next log generation.
+   * Called under write lock.
+   */
+  private void takeSnapshot() throws IOException {
+    logBuffer.force();
+
+    Path snapshotPath = directory.resolve(SNAPSHOT_FILE);
+    Path temporaryPath = directory.resolve(SNAPSHOT_FILE + ".tmp");
+    try (FileOutputStream fileStream = new FileOutputStream(temporaryPath.toFile());
+         DataOutputStream snapshotStream = new DataOutputStream(new BufferedOutputStream(fileStream))) {
+      snapshotStream.writeInt(SNAPSHOT_MAGIC);
+      snapshotStream.writeInt(FORMAT_VERSION);
+      snapshotStream.writeLong(generation);
+
+      snapshotStream.writeInt(names.size());
+      IOException[] writeError = new IOException[1];
+      names.forEach((lenderId, name) -> {
+        try {
+          snapshotStream.writeLong(lenderId);
+          snapshotStream.writeUTF(name);
+        } catch (IOException e) {
+          writeError[0] = e;
+        }
+      });
+
+      snapshotStream.writeInt(ledgers.size());
+      ledgers.forEach((borrowerId, ledger) -> {
+        try {
+          snapshotStream.writeLong(borrowerId);
+          snapshotStream.writeInt(ledger.size);
+          for (int i = 0; i < ledger.size; i++) {
+            snapshotStream.writeInt(ledger.lenderIds[i]);
+            snapshotStream.writeLong(ledger.sums[i]);
+            snapshotStream.writeUTF(ledger.currencies[i]);
+          }
+        } catch (IOException e) {
+          writeError[0] = e;
+        }
+      });
+      if (writeError[0] != null) {
+        throw writeError[0];
+      }
+
+      snapshotStream.flush();
+      fileStream.getFD().sync();
+    }
+    Files.move(temporaryPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    // snapshot is durable now, logs it includes are not needed anymore
+    long snapshotGeneration = generation;
+    logChannel.close();
+    generation++;
+    openLog(generation);
+    for (long oldGeneration = snapshotGeneration; Files.deleteIfExists(logPath(oldGeneration)); oldGeneration--) {
+      log.info("Removed ledger log of generation " + oldGeneration);
+    }
+    recordsSinceSnapshot = 0;
+  }
+
+  private long readSnapshot(Path snapshotPath) throws IOException {
+    try (DataInputStream snapshotStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+      if (snapshotStream.readInt() != SNAPSHOT_MAGIC) {
+        throw new IOException("Unsupported ledger snapshot format.");
+      }
+      int version = snapshotStream.readInt();
+      if (version != FORMAT_VERSION && version != MINOR_UNITS_FORMAT_VERSION && version != LEGACY_FORMAT_VERSION) {
+        throw new IOException("Unsupported ledger snapshot version " + version + ".");
+      }
+      long snapshotGeneration = snapshotStream.readLong();
+
+      int namesCount = snapshotStream.readInt();
+      for (int i = 0; i < namesCount; i++) {
+        names.put(snapshotStream.readLong(), snapshotStream.readUTF());
+      }
+
+      int ledgersCount = snapshotStream.readInt();
+      for (int i = 0; i < ledgersCount; i++) {
+        long borrowerId = snapshotStream.readLong();
+        int size = snapshotStream.readInt();
+        Ledger ledger = new Ledger();
+        for (int j = 0; j < size; j++) {
+          int lenderId = snapshotStream.readInt();
+          long sum = version == LEGACY_FORMAT_VERSION ? toMinorUnits(snapshotStream.readDouble()) : snapshotStream.readLong();
+          ledger.add(lenderId, sum, version == FORMAT_VERSION ? snapshotStream.readUTF().intern() : LEGACY_CURRENCY);
+        }
+        ledgers.put(borrowerId, ledger);
+      }
+      return snapshotGeneration;
+    }
+  }
+
+  private Path logPath(long logGeneration) {
+    return directory.resolve(LOG_FILE_PREFIX + logGeneration + LOG_FILE_SUFFIX);
+  }
+
+  private static long toMinorUnits(double majorUnits) {
+    return Math.round(majorUnits * Money.MINOR_UNITS_PER_MAJOR);
+  }
+
+  static EmbeddedLedgerStore open(String directory) throws LedgerStoreException {
+    return new EmbeddedLedgerStore(Paths.get(directory), BuildVars.EMBEDDED_STORE_LOG_SIZE,
+        BuildVars.EMBEDDED_STORE_SNAPSHOT_RECORDS, BuildVars.EMBEDDED_STORE_SYNC_WRITES);
+  }
+
+  /**
+   * Debts of a single borrower kept in parallel primitive arrays.
+   */
+  private static class Ledger {
+    private int[] lenderIds = new int[4];
+    private long[] sums = new long[4];
+    private String[] currencies = new String[4];
+    private int size;
+
+    int indexOf(int lenderId) {
+      for (int i = 0; i < size; i++) {
+        if (lenderIds[i] == lenderId) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    void add(int lenderId, long sum, String currency) {
+      // pair keeps the currency of its first debt, later sums are converted to it before they get here
+      int index = indexOf(lenderId);
+      if (index >= 0) {
+        sums[index] += sum;
+        return;
+      }
+
+      if (size == lenderIds.length) {
+        lenderIds = Arrays.copyOf(lenderIds, size << 1);
+        sums = Arrays.copyOf(sums, size << 1);
+        currencies = Arrays.copyOf(currencies, size << 1);
+      }
+      lenderIds[size] = lenderId;
+      sums[size] = sum;
+      currencies[size] = currency;
+      size++;
+    }
+
+    void remove(int index) {
+      System.arraycopy(lenderIds, index + 1, lenderIds, index, size - index - 1);
+      System.arraycopy(sums, index + 1, sums, index, size - index - 1);
+      System.arraycopy(currencies, index + 1, currencies, index, size - index - 1);
+      currencies[--size] = null;
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import lombok.extern.log4j.Log4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FX rates loaded from a local file, see {@link FxRates#parse} for its format.
+ * <p>
+ * Current rates are an immutable snapshot behind a volatile reference, so readers take it without locking and
+ * always see a complete table. Reload builds a new snapshot and swaps it in with a single write. File is checked
+ * for changes every reloadSeconds, rates bundled with the bot are used until it exists. File that can't be read
+ * leaves current rates in place.
+ */
+@Log4j
+class FxRateTable {
+  private static final String BUNDLED_RATES = "/fx-rates.properties";
+
+  private final Path path;
+  private final String baseCurrency;
+  private final ScheduledExecutorService reloader;
+  private volatile FxRates rates;
+  // modification time of the loaded file, -1 while bundled rates are used
+  private long loadedModifiedMillis = -1;
+
+  /**
+   * Loads rates and starts checking the file for changes.
+   *
+   * @param path          rates file
+   * @param baseCurrency  ISO 4217 code of the currency rates are given in
+   * @param reloadSeconds time between checks of the file, 0 turns reload off
+   */
+  FxRateTable(Path path, String baseCurrency, long reloadSeconds) {
+    this.path = path;
+    this.baseCurrency = baseCurrency;
+    this.rates = loadBundled();
+    reload();
+
+    if (reloadSeconds > 0) {
+      reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "fx-rates-reloader");
+        thread.setDaemon(true);
+        return thread;
+      });
+      reloader.scheduleWithFixedDelay(this::reload, reloadSeconds, reloadSeconds, TimeUnit.SECONDS);
+    } else {
+      reloader = null;
+    }
+  }
+
+  /**
+   * @return current rates snapshot
+   */
+  FxRates get() {
+    return rates;
+  }
+
+  /**
+   * Loads rates file if it changed since last load.
+   *
+   * @return whether rates were replaced
+   */
+  synchronized boolean reload() {
+    try {
+      if (!Files.exists(path)) {
+        return false;
+      }
+      long modifiedMillis = Files.getLastModifiedTime(path).toMillis();
+      if (modifiedMillis == loadedModifiedMillis) {
+        return false;
+      }
+
+      try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+        rates = FxRates.parse(reader, baseCurrency);
+      }
+      loadedModifiedMillis = modifiedMillis;
+      log.info("Loaded FX rates of " + rates.getCurrencies() + " from " + path);
+      return true;
+    } catch (IOException | RuntimeException e) {
+      // exception would cancel the periodic task
+      Metrics.increment(Metrics.ERRORS, "fx_rates");
+      log.error("Unable to load FX rates from " + path + ": " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Stops checking the file for changes.
+   */
+  void close() {
+    if (reloader != null) {
+      reloader.shutdownNow();
+    }
+  }
+
+  private FxRates loadBundled() {
+    InputStream ratesStream = FxRateTable.class.getResourceAsStream(BUNDLED_RATES);
+    if (ratesStream == null) {
+      return FxRates.baseOnly(baseCurrency);
+    }
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(ratesStream, StandardCharsets.UTF_8))) {
+      return FxRates.parse(reader, baseCurrency);
+    } catch (IOException e) {
+      log.error("Unable to load bundled FX rates: " + e.getMessage());
+      return FxRates.baseOnly(baseCurrency);
+    }
+  }
+}
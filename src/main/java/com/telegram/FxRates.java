@@ -0,0 +1,150 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable snapshot of FX rates: units of base currency per one unit of every other currency. Snapshot never
+ * changes after it is built, {@link FxRateTable} replaces the whole snapshot when rates change, so it is read from
+ * any thread without locking.
+ */
+final class FxRates {
+  // "EUR=44.90", whitespace around both parts is allowed
+  private static final Pattern RATE_LINE_PATTERN = Pattern.compile("\\s*([A-Z]{3})\\s*=\\s*([0-9]+(?:\\.[0-9]+)?)\\s*");
+  private static final String COMMENT_PREFIX = "#";
+
+  private final String baseCurrency;
+  // currency -> units of base currency per unit, base currency first
+  private final Map<String, BigDecimal> rates;
+  private final long loadedAtMillis;
+
+  private FxRates(String baseCurrency, Map<String, BigDecimal> rates, long loadedAtMillis) {
+    this.baseCurrency = baseCurrency;
+    this.rates = Collections.unmodifiableMap(rates);
+    this.loadedAtMillis = loadedAtMillis;
+  }
+
+  /**
+   * @param baseCurrency ISO 4217 code of base currency
+   * @return snapshot that knows only the base currency
+   */
+  static FxRates baseOnly(String baseCurrency) {
+    Map<String, BigDecimal> rates = new LinkedHashMap<>();
+    rates.put(baseCurrency, BigDecimal.ONE);
+    return new FxRates(baseCurrency, rates, System.currentTimeMillis());
+  }
+
+  /**
+   * Reads rates of "CODE=rate" lines, like "EUR=44.90". Empty lines and lines starting with # are skipped.
+   *
+   * @param reader       rate lines
+   * @param baseCurrency ISO 4217 code of the currency rates are given in
+   * @return snapshot of the rates
+   * @throws IOException if lines can't be read or one of them is not a valid rate
+   */
+  static FxRates parse(BufferedReader reader, String baseCurrency) throws IOException {
+    Map<String, BigDecimal> rates = new LinkedHashMap<>();
+    rates.put(baseCurrency, BigDecimal.ONE);
+    int lineNumber = 0;
+    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+      lineNumber++;
+      if (line.trim().isEmpty() || line.trim().startsWith(COMMENT_PREFIX)) {
+        continue;
+      }
+
+      Matcher rateMatcher = RATE_LINE_PATTERN.matcher(line);
+      if (!rateMatcher.matches() || rateMatcher.group(1).equals(baseCurrency)) {
+        throw new IOException("Invalid FX rate at line " + lineNumber + ": " + line);
+      }
+      BigDecimal rate = new BigDecimal(rateMatcher.group(2));
+      if (rate.signum() <= 0) {
+        throw new IOException("FX rate must be positive at line " + lineNumber + ": " + line);
+      }
+      rates.put(rateMatcher.group(1), rate);
+    }
+    return new FxRates(baseCurrency, rates, System.currentTimeMillis());
+  }
+
+  /**
+   * @param currency ISO 4217 code of the currency
+   * @return whether amounts in the currency can be converted
+   */
+  boolean supports(String currency) {
+    return rates.containsKey(currency);
+  }
+
+  /**
+   * Converts amount between currencies, rounding half to even to whole minor units.
+   *
+   * @param minorUnits amount in minor units of the from currency
+   * @param from       ISO 4217 code of the amount currency
+   * @param to         ISO 4217 code of the result currency
+   * @return amount in minor units of the to currency
+   * @throws IllegalArgumentException if one of the currencies has no rate
+   * @throws ArithmeticException      if result doesn't fit into long
+   */
+  long convert(long minorUnits, String from, String to) {
+    if (from.equals(to)) {
+      return minorUnits;
+    }
+    BigDecimal fromRate = rateOf(from);
+    BigDecimal toRate = rateOf(to);
+    return BigDecimal.valueOf(minorUnits).multiply(fromRate).divide(toRate, 0, RoundingMode.HALF_EVEN).longValueExact();
+  }
+
+  /**
+   * @return ISO 4217 codes of all known currencies, base currency first
+   */
+  Set<String> getCurrencies() {
+    return rates.keySet();
+  }
+
+  String getBaseCurrency() {
+    return baseCurrency;
+  }
+
+  long getLoadedAtMillis() {
+    return loadedAtMillis;
+  }
+
+  private BigDecimal rateOf(String currency) {
+    BigDecimal rate = rates.get(currency);
+    if (rate == null) {
+      throw new IllegalArgumentException("No FX rate of " + currency + ".");
+    }
+    return rate;
+  }
+}
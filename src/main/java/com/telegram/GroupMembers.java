@@ -0,0 +1,94 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import org.telegram.telegrambots.api.objects.User;
+import redis.clients.jedis.Jedis;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Members of group chats bills are split between, kept in Redis as one hash per group: user id -> name. Telegram
+ * doesn't tell bots who is in a group, so a member is added when the bot sees their message or join, or when they
+ * send /join, and removed when they leave the group or send /leave.
+ */
+final class GroupMembers {
+
+  private GroupMembers() {
+  }
+
+  /**
+   * Adds member to the group or refreshes their name.
+   *
+   * @param redisDb Redis connection
+   * @param chatId  Telegram id of the group chat
+   * @param user    member
+   */
+  static void add(Jedis redisDb, long chatId, User user) {
+    long startNanos = System.nanoTime();
+    redisDb.hset(membersKey(chatId), Integer.toString(user.getId()), nameOf(user));
+    Metrics.histogram(Metrics.REDIS_LATENCY, "group_member_add").recordSince(startNanos);
+  }
+
+  /**
+   * Removes member from the group, does nothing if they are not a member.
+   *
+   * @param redisDb Redis connection
+   * @param chatId  Telegram id of the group chat
+   * @param userId  Telegram id of the member
+   */
+  static void remove(Jedis redisDb, long chatId, int userId) {
+    long startNanos = System.nanoTime();
+    redisDb.hdel(membersKey(chatId), Integer.toString(userId));
+    Metrics.histogram(Metrics.REDIS_LATENCY, "group_member_remove").recordSince(startNanos);
+  }
+
+  /**
+   * Reads all members of the group in one round trip.
+   *
+   * @param redisDb Redis connection
+   * @param chatId  Telegram id of the group chat
+   * @return member id -> name, ordered by id
+   */
+  static Map<Integer, String> get(Jedis redisDb, long chatId) {
+    long startNanos = System.nanoTime();
+    Map<String, String> fields = redisDb.hgetAll(membersKey(chatId));
+    Metrics.histogram(Metrics.REDIS_LATENCY, "group_members_get").recordSince(startNanos);
+
+    Map<Integer, String> members = new TreeMap<>();
+    fields.forEach((userId, name) -> members.put(Integer.valueOf(userId), name));
+    return members;
+  }
+
+  static String nameOf(User user) {
+    return user.getLastName() == null ? user.getFirstName() : user.getFirstName() + " " + user.getLastName();
+  }
+
+  private static String membersKey(long chatId) {
+    return "group/" + chatId + "/members";
+  }
+}
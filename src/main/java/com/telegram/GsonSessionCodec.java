@@ -0,0 +1,81 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import org.telegram.telegrambots.api.objects.Contact;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Session codec that keeps values as JSON, like the bot did before {@link BinarySessionCodec}.
+ */
+class GsonSessionCodec implements SessionCodec {
+  private final Gson serializer = new GsonBuilder().create();
+
+  @Override
+  public byte[] encodeContact(Contact contact) {
+    return serializer.toJson(contact).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public Contact decodeContact(byte[] data) {
+    try {
+      return serializer.fromJson(new String(data, StandardCharsets.UTF_8), Contact.class);
+    } catch (JsonParseException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public byte[] encodeUserId(int userId) {
+    return String.valueOf(userId).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public Integer decodeUserId(byte[] data) {
+    try {
+      return Integer.valueOf(new String(data, StandardCharsets.UTF_8));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public byte[] encodeUserIds(int[] userIds) {
+    return serializer.toJson(userIds).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public int[] decodeUserIds(byte[] data) {
+    try {
+      return serializer.fromJson(new String(data, StandardCharsets.UTF_8), int[].class);
+    } catch (JsonParseException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import lombok.Value;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Single change of a debt kept in ledger history.
+ */
+@Value
+class HistoryEntry {
+  private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneOffset.UTC);
+
+  private final long id;
+  private final int lenderId;
+  private final String lenderName;
+  // signed change of the debt, in minor units
+  private final long delta;
+  // debt to the lender after the change, in minor units
+  private final long balance;
+  // ISO 4217 code of the debt currency
+  private final String currency;
+  private final long createdAtMillis;
+
+  @Override
+  public String toString() {
+    StringBuilder entryBuilder = new StringBuilder(64);
+    TIME_FORMATTER.formatTo(Instant.ofEpochMilli(createdAtMillis), entryBuilder);
+    entryBuilder.append(' ').append(lenderName).append(": ").append(delta < 0 ? '-' : '+');
+    Money.appendTo(entryBuilder, Math.abs(delta), currency);
+    entryBuilder.append(" → ");
+    return Money.appendTo(entryBuilder, balance, currency).toString();
+  }
+}
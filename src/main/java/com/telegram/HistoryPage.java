@@ -0,0 +1,72 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import lombok.Value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Part of a borrower history, newest entries first. Pages are read by key like {@link LedgerPage}: older page
+ * starts before the last entry id of the current page, newer page ends after the first one.
+ */
+@Value
+class HistoryPage {
+  // entry id the first page starts before
+  static final long START = Long.MAX_VALUE;
+
+  // newest entries first
+  private final List<HistoryEntry> entries;
+  private final boolean hasNewer;
+  private final boolean hasOlder;
+
+  /**
+   * Builds page from entries read in page direction. Reader asks for one entry more than limit to know if there
+   * are more entries in that direction.
+   *
+   * @param fetched     up to limit + 1 entries in reading order
+   * @param fromEntryId entry id the page was read from
+   * @param older       whether page was read towards older entries
+   * @param limit       max number of entries on page
+   * @return page with newest entries first
+   */
+  static HistoryPage of(List<HistoryEntry> fetched, long fromEntryId, boolean older, int limit) {
+    boolean more = fetched.size() > limit;
+    List<HistoryEntry> entries = new ArrayList<>(more ? fetched.subList(0, limit) : fetched);
+    if (older) {
+      return new HistoryPage(entries, fromEntryId != START, more);
+    }
+    Collections.reverse(entries);
+    // newer page is read from the first entry of an existing page
+    return new HistoryPage(entries, more, true);
+  }
+
+  boolean isEmpty() {
+    return entries.isEmpty();
+  }
+}
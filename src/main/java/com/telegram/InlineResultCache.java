@@ -0,0 +1,202 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import org.telegram.telegrambots.api.objects.inlinequery.inputmessagecontent.InputTextMessageContent;
+import org.telegram.telegrambots.api.objects.inlinequery.result.InlineQueryResult;
+import org.telegram.telegrambots.api.objects.inlinequery.result.InlineQueryResultArticle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+/**
+ * Inline query results rendered from user ledgers. Results are rendered once per ledger and reused by every
+ * following inline query of the user until ledger changes.
+ */
+class InlineResultCache {
+  // icon URL that shows up in inline results
+  private static final String THUMBNAIL_URL_STRING = "http://via.placeholder.com/100x100";
+  // Telegram accepts no more than 50 results per inline query answer
+  private static final int MAX_RESULTS = 50;
+  // ledger results are numbered from 1
+  private static final String SETTLEMENT_RESULT_ID = "settlement";
+
+  private final Map<Integer, RenderedLedger> renderedLedgers;
+
+  InlineResultCache(int maxSize) {
+    this.renderedLedgers = new LinkedHashMap<Integer, RenderedLedger>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, RenderedLedger> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Returns inline results for the ledger, rendering them only if the ledger differs from the one rendered last time.
+   *
+   * @param userId Telegram id of the ledger owner
+   * @param ledger current ledger of the user, as returned by {@link LedgerCache}
+   * @param query  inline query text, empty or "me" returns all results, otherwise lenders are filtered by name prefix
+   * @return unmodifiable list of inline results
+   */
+  List<InlineQueryResult> get(int userId, List<LendUser> ledger, String query) {
+    RenderedLedger renderedLedger;
+    synchronized (renderedLedgers) {
+      renderedLedger = renderedLedgers.get(userId);
+    }
+
+    // cached ledger list is replaced on every reload, so same instance means nothing changed since rendering
+    if (renderedLedger == null || renderedLedger.ledger != ledger) {
+      renderedLedger = new RenderedLedger(ledger);
+      synchronized (renderedLedgers) {
+        renderedLedgers.put(userId, renderedLedger);
+      }
+    }
+    return renderedLedger.filter(query.trim().toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * Drops rendered results of the user. Called on every write to user debts.
+   *
+   * @param userId Telegram id of the ledger owner
+   */
+  void invalidate(int userId) {
+    synchronized (renderedLedgers) {
+      renderedLedgers.remove(userId);
+    }
+  }
+
+  /**
+   * Drops rendered results of matching users.
+   *
+   * @param userIds users whose results are dropped
+   */
+  void invalidateIf(IntPredicate userIds) {
+    synchronized (renderedLedgers) {
+      renderedLedgers.keySet().removeIf(userIds::test);
+    }
+  }
+
+  int size() {
+    synchronized (renderedLedgers) {
+      return renderedLedgers.size();
+    }
+  }
+
+  /**
+   * Renders settlement of the user circle as inline result.
+   *
+   * @param settlement settlement to share
+   * @return inline result
+   */
+  static InlineQueryResult render(Settlement settlement) {
+    return new InlineQueryResultArticle()
+        .setId(SETTLEMENT_RESULT_ID)
+        .setTitle("Settle up")
+        .setDescription("Fewest transfers that settle debts between me and people I'm connected with.")
+        .setInputMessageContent(
+            new InputTextMessageContent()
+                .setMessageText(settlement.toString())
+                .disableWebPagePreview()
+        )
+        .setThumbUrl(THUMBNAIL_URL_STRING)
+        .setThumbHeight(100)
+        .setThumbWidth(100)
+        .setHideUrl(true);
+  }
+
+  private static InlineQueryResult render(int id, LendUser lendUser) {
+    return new InlineQueryResultArticle()
+        .setId(String.valueOf(id))
+        .setTitle("Debt to " + lendUser.getName())
+        .setDescription("How much money do I have to return to this person.")
+        .setInputMessageContent(
+            new InputTextMessageContent()
+                .setMessageText("I own " + lendUser.getName() + " " + Money.format(lendUser.getSum(), lendUser.getCurrency()))
+                .disableWebPagePreview()
+        )
+        .setThumbUrl(THUMBNAIL_URL_STRING)
+        .setThumbHeight(100)
+        .setThumbWidth(100)
+        .setHideUrl(true);
+  }
+
+  private static class RenderedLedger {
+    private final List<LendUser> ledger;
+    private final List<InlineQueryResult> results;
+    // first MAX_RESULTS results, answered to queries without filter
+    private final List<InlineQueryResult> firstResults;
+    // lower case lender names, in the same order as results
+    private final String[] names;
+
+    RenderedLedger(List<LendUser> ledger) {
+      this.ledger = ledger;
+      List<InlineQueryResult> renderedResults = new ArrayList<>(ledger.size());
+      names = new String[ledger.size()];
+      for (int i = 0; i < ledger.size(); i++) {
+        renderedResults.add(render(i + 1, ledger.get(i)));
+        names[i] = ledger.get(i).getName() == null ? "" : ledger.get(i).getName().toLowerCase(Locale.ROOT);
+      }
+      results = renderedResults;
+      firstResults = Collections.unmodifiableList(results.size() > MAX_RESULTS ? results.subList(0, MAX_RESULTS) : results);
+    }
+
+    /**
+     * Returns results whose lender has a name word starting with the prefix.
+     */
+    List<InlineQueryResult> filter(String prefix) {
+      if (prefix.isEmpty() || prefix.equals("me")) {
+        return firstResults;
+      }
+
+      List<InlineQueryResult> matching = new ArrayList<>();
+      for (int i = 0; i < names.length && matching.size() < MAX_RESULTS; i++) {
+        if (hasWordStartingWith(names[i], prefix)) {
+          matching.add(results.get(i));
+        }
+      }
+      return Collections.unmodifiableList(matching);
+    }
+
+    private static boolean hasWordStartingWith(String name, String prefix) {
+      int start = 0;
+      while (!name.startsWith(prefix, start)) {
+        start = name.indexOf(' ', start) + 1;
+        if (start == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,750 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import lombok.extern.log4j.Log4j;
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.handlers.ScalarHandler;
+import org.telegram.telegrambots.api.objects.Contact;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+/**
+ * Ledger store backed by MariaDB user and lending tables. Every change of a debt is also appended to lending_history
+ * together with the balance of the pair after it and its currency. Every CHECKPOINT_ENTRIES entries of a borrower balances of all
+ * their lenders are saved to ledger_checkpoint, so balances at any moment are read from the nearest checkpoint and
+ * at most that many entries after it. Debt reminders are kept in reminder table.
+ */
+@Log4j
+class JdbcLedgerStore implements LedgerStore {
+  private static final String LENDER_STRING = "lender";
+  private static final String LENDER_ID_STRING = "lender_id";
+  private static final String PENDING_MONEY_STRING = "pending_money";
+  private static final String CURRENCY_STRING = "currency";
+  // FIND_USER_QUERY columns are read by index, so no column label lookup is done per row
+  private static final int PENDING_MONEY_COLUMN = 1;
+  private static final int LENDER_COLUMN = 2;
+  private static final int LENDER_ID_COLUMN = 3;
+  private static final int CURRENCY_COLUMN = 4;
+
+  // served by lending (borrower_id, lender_id) index and user primary key
+  private static final String FIND_USER_QUERY = "SELECT " +
+      "lending.sum_minor AS '" + PENDING_MONEY_STRING + "', " +
+      "CONCAT_WS(' ', lender.first_name, lender.last_name) AS '" + LENDER_STRING + "', " +
+      "lending.lender_id AS '" + LENDER_ID_STRING + "', " +
+      "lending.currency AS '" + CURRENCY_STRING + "' " +
+      "FROM lending " +
+      " INNER JOIN user AS lender ON lender.telegram_id = lending.lender_id" +
+      " WHERE lending.borrower_id = ?";
+  // pages are read by (borrower_id, lender_id) index range, every pair has one row
+  private static final String FIND_NEXT_PAGE_QUERY = FIND_USER_QUERY +
+      " AND lending.lender_id > ? ORDER BY lending.lender_id LIMIT ?";
+  private static final String FIND_PREVIOUS_PAGE_QUERY = FIND_USER_QUERY +
+      " AND lending.lender_id < ? ORDER BY lending.lender_id DESC LIMIT ?";
+  private static final String FIND_ALL_DEBTS_QUERY = "SELECT " +
+      "lending.borrower_id, lending.lender_id, lending.sum_minor, CONCAT_WS(' ', lender.first_name, lender.last_name), lending.currency " +
+      "FROM lending " +
+      " INNER JOIN user AS lender ON lender.telegram_id = lending.lender_id";
+  private static final String FIND_BORROWER_DEBTS_QUERY = FIND_ALL_DEBTS_QUERY + " WHERE lending.borrower_id = ?";
+  // borrower id placeholders are appended, followed by ")"
+  private static final String FIND_DEBTS_TO_LENDER_QUERY = FIND_ALL_DEBTS_QUERY + " WHERE lending.lender_id = ? AND lending.borrower_id IN (?";
+  // whole lending table is streamed in chunks of this many rows
+  private static final int STREAM_FETCH_SIZE = 1000;
+  private static final String COUNT_LENDERS_QUERY = "SELECT COUNT(*) FROM lending WHERE borrower_id = ?";
+
+  private static final String ADD_CONTACT_QUERY =
+      "INSERT ignore into user (telegram_id, username, first_name, last_name) VALUES (?, null, ?, ?)";
+  // debt to a lender the borrower already owes is added to the row of the pair, it keeps its currency
+  private static final String ADD_LEND_INFO_QUERY = "INSERT INTO lending (lender_id, borrower_id, sum_minor, currency) VALUES (?, ?, ?, ?)";
+  private static final String ADD_LEND_INFO_QUERY_TAIL = " ON DUPLICATE KEY UPDATE sum_minor = sum_minor + VALUES(sum_minor)";
+
+  private static final String INCREASE_DEBT_QUERY = "UPDATE lending set sum_minor = sum_minor + ? where lender_id = ? and borrower_id = ?";
+  private static final String DECREASE_DEBT_QUERY = "UPDATE lending set sum_minor = sum_minor - ? where lender_id = ? and borrower_id = ?";
+  private static final String DELETE_NEGATIVE_SUM_QUERY = "DELETE FROM lending WHERE lender_id = ? and borrower_id = ? and sum_minor <= 0";
+  // signed change used by batches of journaled mutations
+  private static final String EDIT_BALANCE_QUERY = "UPDATE lending set sum_minor = sum_minor + ? where lender_id = ? and borrower_id = ?";
+
+  // row is inserted or updated in place, either way it stays locked until the transaction ends
+  private static final String LOCK_LEDGER_QUERY = "INSERT INTO ledger_lock (borrower_id) VALUES (?)";
+  private static final String LOCK_LEDGER_QUERY_TAIL = " ON DUPLICATE KEY UPDATE borrower_id = borrower_id";
+
+  private static final String FIND_CHECKPOINT_QUERY = "SELECT committed_sequence FROM journal_checkpoint WHERE journal_id = ?";
+  private static final String SAVE_CHECKPOINT_QUERY = "INSERT INTO journal_checkpoint (journal_id, committed_sequence) VALUES (?, ?) " +
+      "ON DUPLICATE KEY UPDATE committed_sequence = VALUES(committed_sequence)";
+  // balance of the pair is read after the insert, minus sums the same statement added to the pair later
+  private static final String ADD_HISTORY_QUERY = "INSERT INTO lending_history (borrower_id, lender_id, delta_minor, balance_minor, currency) " +
+      "SELECT ?, ?, ?, COALESCE(SUM(GREATEST(sum_minor, 0)), 0) - ?, COALESCE(MIN(currency), ?) FROM lending " +
+      "WHERE borrower_id = ? AND lender_id = ?";
+  // edit is recorded only if the pair has a row, change of a decrease below zero is clamped to the debt it removed
+  private static final String ADD_EDIT_HISTORY_QUERY = "INSERT INTO lending_history (borrower_id, lender_id, delta_minor, balance_minor, currency) " +
+      "SELECT borrower_id, lender_id, ? - LEAST(sum_minor, 0), GREATEST(sum_minor, 0), currency FROM lending " +
+      "WHERE borrower_id = ? AND lender_id = ?";
+  private static final String FIND_HISTORY_QUERY = "SELECT " +
+      "history.id, history.lender_id, CONCAT_WS(' ', lender.first_name, lender.last_name), history.delta_minor, " +
+      "history.balance_minor, history.created_at, history.currency " +
+      "FROM lending_history AS history " +
+      " INNER JOIN user AS lender ON lender.telegram_id = history.lender_id";
+  private static final String FIND_OLDER_HISTORY_QUERY = FIND_HISTORY_QUERY +
+      " WHERE history.borrower_id = ? AND history.id < ? ORDER BY history.id DESC LIMIT ?";
+  private static final String FIND_NEWER_HISTORY_QUERY = FIND_HISTORY_QUERY +
+      " WHERE history.borrower_id = ? AND history.id > ? ORDER BY history.id LIMIT ?";
+  private static final String COUNT_UNCHECKPOINTED_QUERY = "SELECT COUNT(*) FROM lending_history WHERE borrower_id = ? AND id > " +
+      "(SELECT COALESCE(MAX(history_id), 0) FROM ledger_checkpoint WHERE borrower_id = ?)";
+  // counts of several borrowers, borrower id placeholders are put between the parts
+  private static final String COUNT_UNCHECKPOINTED_BATCH_QUERY_HEAD = "SELECT history.borrower_id, COUNT(*) " +
+      "FROM lending_history AS history WHERE history.borrower_id IN (?";
+  private static final String COUNT_UNCHECKPOINTED_BATCH_QUERY_TAIL = ") AND history.id > " +
+      "(SELECT COALESCE(MAX(checkpoint.history_id), 0) FROM ledger_checkpoint AS checkpoint WHERE checkpoint.borrower_id = history.borrower_id) " +
+      "GROUP BY history.borrower_id";
+  private static final String ADD_LEDGER_CHECKPOINT_QUERY = "INSERT INTO ledger_checkpoint (borrower_id, history_id, created_at) " +
+      "SELECT borrower_id, id, created_at FROM lending_history WHERE borrower_id = ? ORDER BY id DESC LIMIT 1";
+  private static final String ADD_CHECKPOINT_BALANCES_QUERY = "INSERT INTO ledger_checkpoint_balance " +
+      "(borrower_id, history_id, lender_id, balance_minor, currency) " +
+      "SELECT borrower_id, (SELECT MAX(history_id) FROM ledger_checkpoint WHERE borrower_id = ?), lender_id, SUM(sum_minor), MIN(currency) " +
+      "FROM lending WHERE borrower_id = ? GROUP BY borrower_id, lender_id";
+  private static final String FIND_CHECKPOINT_BEFORE_QUERY = "SELECT history_id FROM ledger_checkpoint " +
+      "WHERE borrower_id = ? AND created_at <= ? ORDER BY created_at DESC, history_id DESC LIMIT 1";
+  private static final String FIND_CHECKPOINT_AFTER_QUERY = "SELECT MIN(history_id) FROM ledger_checkpoint WHERE borrower_id = ? AND history_id > ?";
+  private static final String FIND_CHECKPOINT_BALANCES_QUERY = "SELECT " +
+      "balance.lender_id, balance.balance_minor, CONCAT_WS(' ', lender.first_name, lender.last_name), balance.currency " +
+      "FROM ledger_checkpoint_balance AS balance " +
+      " INNER JOIN user AS lender ON lender.telegram_id = balance.lender_id" +
+      " WHERE balance.borrower_id = ? AND balance.history_id = ?";
+  // replay is limited by the next checkpoint, so entries after the moment are not scanned to the end of history
+  private static final String FIND_HISTORY_REPLAY_QUERY = "SELECT " +
+      "history.lender_id, history.balance_minor, CONCAT_WS(' ', lender.first_name, lender.last_name), history.currency " +
+      "FROM lending_history AS history " +
+      " INNER JOIN user AS lender ON lender.telegram_id = history.lender_id" +
+      " WHERE history.borrower_id = ? AND history.id > ? AND history.id <= ? AND history.created_at <= ? ORDER BY history.id";
+  // history entries of a borrower between ledger checkpoints
+  private static final int CHECKPOINT_ENTRIES = 100;
+  private static final String SAVE_REMINDER_QUERY = "INSERT INTO reminder (borrower_id, lender_id, interval_millis, next_fire_at) " +
+      "VALUES (?, ?, ?, ?) ON DUPLICATE KEY UPDATE interval_millis = VALUES(interval_millis), next_fire_at = VALUES(next_fire_at)";
+  private static final String REMOVE_REMINDER_QUERY = "DELETE FROM reminder WHERE borrower_id = ? AND lender_id = ?";
+  // reminder replaced by the borrower after it fired has another fire time and is left alone
+  private static final String ADVANCE_REMINDER_QUERY = "UPDATE reminder SET next_fire_at = ? " +
+      "WHERE borrower_id = ? AND lender_id = ? AND next_fire_at = ?";
+  private static final String REMOVE_FIRED_REMINDER_QUERY = REMOVE_REMINDER_QUERY + " AND next_fire_at = ?";
+  private static final String FIND_ALL_REMINDERS_QUERY = "SELECT borrower_id, lender_id, interval_millis, next_fire_at FROM reminder";
+  // multi-row inserts of bigger batches are split into statements of this many rows
+  private static final int MAX_INSERT_ROWS = 500;
+  // borrower ids per IN list
+  private static final int MAX_IN_LIST_IDS = 500;
+
+  private final DataSource dataSource;
+  private final QueryRunner queryRunner;
+
+  /**
+   * @throws LedgerStoreException if schema can't be brought to the latest version
+   */
+  JdbcLedgerStore(DataSource dataSource) throws LedgerStoreException {
+    this.dataSource = dataSource;
+    this.queryRunner = new QueryRunner(dataSource);
+
+    if (dataSource instanceof PooledDataSource) {
+      Metrics.gauge("db_pool_active", ((PooledDataSource) dataSource)::getNumActive);
+      Metrics.gauge("db_pool_idle", ((PooledDataSource) dataSource)::getNumIdle);
+    }
+
+    try {
+      new SchemaMigrator(dataSource).migrate();
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  @Override
+  public List<LendUser> findLedger(int borrowerId) throws LedgerStoreException {
+    try {
+      return queryRunner.query(FIND_USER_QUERY, JdbcLedgerStore::readLedger, borrowerId);
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  @Override
+  public LedgerPage findLedgerPage(int borrowerId, int fromLenderId, boolean forward, int limit) throws LedgerStoreException {
+    try (Connection connection = dataSource.getConnection();
+         PreparedStatement statement = connection.prepareStatement(forward ? FIND_NEXT_PAGE_QUERY : FIND_PREVIOUS_PAGE_QUERY)) {
+      // one more row tells if there is another page, rows are fetched as they are read
+      statement.setFetchSize(limit + 1);
+      statement.setInt(1, borrowerId);
+      statement.setInt(2, fromLenderId);
+      statement.setInt(3, limit + 1);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        return LedgerPage.of(readLedger(resultSet), fromLenderId, forward, limit);
+      }
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  @Override
+  public void forEachDebt(DebtConsumer consumer) throws LedgerStoreException {
+    try (Connection connection = dataSource.getConnection();
+         PreparedStatement statement = connection.prepareStatement(FIND_ALL_DEBTS_QUERY)) {
+      statement.setFetchSize(STREAM_FETCH_SIZE);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+          consumer.accept(resultSet.getInt(1), resultSet.getInt(2), resultSet.getString(4), resultSet.getLong(3), resultSet.getString(5));
+        }
+      }
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  @Override
+  public void forEachDebt(int borrowerId, DebtConsumer consumer) throws LedgerStoreException {
+    try (Connection connection = dataSource.getConnection();
+         PreparedStatement statement = connection.prepareStatement(FIND_BORROWER_DEBTS_QUERY)) {
+      statement.setFetchSize(STREAM_FETCH_SIZE);
+      statement.setInt(1, borrowerId);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+          consumer.accept(resultSet.getInt(1), resultSet.getInt(2), resultSet.getString(4), resultSet.getLong(3), resultSet.getString(5));
+        }
+      }
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  @Override
+  public void forEachDebtTo(int lenderId, Collection<Integer> borrowerIds, DebtConsumer consumer) throws LedgerStoreException {
+    List<Integer> ids = new ArrayList<>(borrowerIds);
+    try (Connection connection = dataSource.getConnection()) {
+      for (int chunkStart = 0; chunkStart < ids.size(); chunkStart += MAX_IN_LIST_IDS) {
+        List<Integer> chunk = ids.subList(chunkStart, Math.min(chunkStart + MAX_IN_LIST_IDS, ids.size()));
+        try (PreparedStatement statement = connection.prepareStatement(
+            FIND_DEBTS_TO_LENDER_QUERY + repeat(", ?", chunk.size() - 1) + ")")) {
+          statement.setInt(1, lenderId);
+          for (int i = 0; i < chunk.size(); i++) {
+            statement.setInt(i + 2, chunk.get(i));
+          }
+          try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+              consumer.accept(resultSet.getInt(1), resultSet.getInt(2), resultSet.getString(4), resultSet.getLong(3), resultSet.getString(5));
+            }
+          }
+        }
+      }
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  @Override
+  public HistoryPage findHistoryPage(int borrowerId, long fromEntryId, boolean older, int limit) throws LedgerStoreException {
+    try (Connection connection = dataSource.getConnection();
+         PreparedStatement statement = connection.prepareStatement(older ? FIND_OLDER_HISTORY_QUERY : FIND_NEWER_HISTORY_QUERY)) {
+      // one more row tells if there is another page
+      statement.setFetchSize(limit + 1);
+      statement.setInt(1, borrowerId);
+      statement.setLong(2, fromEntryId);
+      statement.setInt(3, limit + 1);
+      List<HistoryEntry> fetched = new ArrayList<>(limit + 1);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+          fetched.add(new HistoryEntry(resultSet.getLong(1), resultSet.getInt(2), resultSet.getString(3), resultSet.getLong(4),
+              resultSet.getLong(5), resultSet.getString(7), resultSet.getTimestamp(6).getTime()));
+        }
+      }
+      return HistoryPage.of(fetched, fromEntryId, older, limit);
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  @Override
+  public List<LendUser> findLedgerAt(int borrowerId, long timeMillis) throws LedgerStoreException {
+    Timestamp time = new Timestamp(timeMillis);
+    try (Connection connection = dataSource.getConnection()) {
+      // checkpoint and entries after it are read from the same snapshot
+      connection.setAutoCommit(false);
+      try {
+        Number checkpoint = queryRunner.query(connection, FIND_CHECKPOINT_BEFORE_QUERY, new ScalarHandler<Number>(), borrowerId, time);
+        long fromHistoryId = checkpoint == null ? 0 : checkpoint.longValue();
+        Number nextCheckpoint = queryRunner.query(connection, FIND_CHECKPOINT_AFTER_QUERY, new ScalarHandler<Number>(), borrowerId, fromHistoryId);
+        long toHistoryId = nextCheckpoint == null ? Long.MAX_VALUE : nextCheckpoint.longValue();
+
+        NavigableMap<Integer, LendUser> balances = new TreeMap<>();
+        if (checkpoint != null) {
+          queryRunner.query(connection, FIND_CHECKPOINT_BALANCES_QUERY, resultSet -> readBalances(resultSet, balances), borrowerId, fromHistoryId);
+        }
+        queryRunner.query(connection, FIND_HISTORY_REPLAY_QUERY, resultSet -> readBalances(resultSet, balances),
+            borrowerId, fromHistoryId, toHistoryId, time);
+        connection.commit();
+
+        List<LendUser> ledger = new ArrayList<>(balances.size());
+        for (LendUser lendUser : balances.values()) {
+          if (lendUser.getSum() > 0) {
+            ledger.add(lendUser);
+          }
+        }
+        return ledger;
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      }
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  /**
+   * Reads ledger together with the journal checkpoint it includes. Both are read from the same InnoDB snapshot
+   * (default REPEATABLE READ isolation), so ledger contains exactly the journal records up to returned sequence.
+   *
+   * @param borrowerId Telegram id of the borrower
+   * @param journalId  id of the write-behind journal
+   * @param ledger     list debts of the borrower are added to
+   * @return sequence of the last committed journal record, 0 if none was committed
+   */
+  long findLedger(int borrowerId, String journalId, List<LendUser> ledger) throws LedgerStoreException {
+    try (Connection connection = dataSource.getConnection()) {
+      connection.setAutoCommit(false);
+      try {
+        Number committedSequence = queryRunner.query(connection, FIND_CHECKPOINT_QUERY, new ScalarHandler<Number>(), journalId);
+        ledger.addAll(queryRunner.query(connection, FIND_USER_QUERY, JdbcLedgerStore::readLedger, borrowerId));
+        connection.commit();
+        return committedSequence == null ? 0 : committedSequence.longValue();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      }
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  /**
+   * @param journalId id of the write-behind journal
+   * @return sequence of the last committed journal record, 0 if none was committed
+   */
+  long findCheckpoint(String journalId) throws LedgerStoreException {
+    try {
+      Number committedSequence = queryRunner.query(FIND_CHECKPOINT_QUERY, new ScalarHandler<Number>(), journalId);
+      return committedSequence == null ? 0 : committedSequence.longValue();
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  /**
+   * Moves journal checkpoint past records that are not applied, like mutations the database rejected.
+   *
+   * @param journalId id of the write-behind journal
+   * @param sequence  sequence of the last skipped record
+   */
+  void saveCheckpoint(String journalId, long sequence) throws LedgerStoreException {
+    try {
+      queryRunner.update(SAVE_CHECKPOINT_QUERY, journalId, sequence);
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  /**
+   * Applies journaled mutations and moves journal checkpoint to the last of them in one transaction. Consecutive
+   * adds become multi-row inserts and consecutive edits become JDBC batches, order of mutations is kept.
+   *
+   * @param journalId id of the write-behind journal
+   * @param mutations mutations in journal order
+   */
+  void applyBatch(String journalId, List<LedgerMutation> mutations) throws LedgerStoreException {
+    try (Connection connection = dataSource.getConnection()) {
+      connection.setAutoCommit(false);
+      try {
+        Set<Integer> borrowerIds = new HashSet<>();
+        for (LedgerMutation mutation : mutations) {
+          borrowerIds.add(mutation.getBorrowerId());
+        }
+        lockLedgers(connection, borrowerIds);
+        int runStart = 0;
+        while (runStart < mutations.size()) {
+          LedgerMutation.Type type = mutations.get(runStart).getType();
+          int runEnd = runStart + 1;
+          while (runEnd < mutations.size() && mutations.get(runEnd).getType() == type) {
+            runEnd++;
+          }
+
+          if (type == LedgerMutation.Type.ADD_LENDER) {
+            insertLenders(connection, mutations.subList(runStart, runEnd));
+          } else {
+            editBalances(connection, mutations.subList(runStart, runEnd));
+          }
+          runStart = runEnd;
+        }
+        checkpointIfDue(connection, borrowerIds);
+        queryRunner.update(connection, SAVE_CHECKPOINT_QUERY, journalId, mutations.get(mutations.size() - 1).getSequence());
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      }
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  @Override
+  public void addLender(Contact lender, long sum, String currency, int borrowerId) throws LedgerStoreException {
+    try (Connection connection = dataSource.getConnection()) {
+      connection.setAutoCommit(false);
+      try {
+        lockLedgers(connection, Collections.singleton(borrowerId));
+        // Add contact candidate to user table and make connection between current user and lender
+        queryRunner.update(connection, ADD_CONTACT_QUERY, lender.getUserID(), lender.getFirstName(), lender.getLastName());
+        queryRunner.update(connection, ADD_LEND_INFO_QUERY + ADD_LEND_INFO_QUERY_TAIL, lender.getUserID(), borrowerId, sum, currency);
+        queryRunner.update(connection, ADD_HISTORY_QUERY, borrowerId, lender.getUserID(), sum, 0, currency, borrowerId, lender.getUserID());
+        checkpointIfDue(connection, borrowerId);
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      }
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  @Override
+  public void addLenders(int borrowerId, List<LedgerMutation> adds) throws LedgerStoreException {
+    try (Connection connection = dataSource.getConnection()) {
+      connection.setAutoCommit(false);
+      try {
+        lockLedgers(connection, Collections.singleton(borrowerId));
+        insertLenders(connection, adds);
+        checkpointIfDue(connection, borrowerId);
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      }
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  @Override
+  public void addDebts(List<LedgerMutation> adds) throws LedgerStoreException {
+    try (Connection connection = dataSource.getConnection()) {
+      connection.setAutoCommit(false);
+      try {
+        Set<Integer> borrowerIds = new HashSet<>();
+        for (LedgerMutation add : adds) {
+          borrowerIds.add(add.getBorrowerId());
+        }
+        lockLedgers(connection, borrowerIds);
+        insertLenders(connection, adds);
+        checkpointIfDue(connection, borrowerIds);
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      }
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  @Override
+  public void editBalance(int borrowerId, int lenderId, boolean decreaseDebt, long sum) throws LedgerStoreException {
+    try (Connection connection = dataSource.getConnection()) {
+      connection.setAutoCommit(false);
+      try {
+        lockLedgers(connection, Collections.singleton(borrowerId));
+        int updated = queryRunner.update(connection, decreaseDebt ? DECREASE_DEBT_QUERY : INCREASE_DEBT_QUERY, sum, lenderId, borrowerId);
+        if (updated == 0) {
+          throw new SQLException("Borrower " + borrowerId + " has no debt to lender " + lenderId);
+        }
+        queryRunner.update(connection, ADD_EDIT_HISTORY_QUERY, decreaseDebt ? -sum : sum, borrowerId, lenderId);
+        // only decrease can bring debt to zero
+        if (decreaseDebt) {
+          queryRunner.update(connection, DELETE_NEGATIVE_SUM_QUERY, lenderId, borrowerId);
+        }
+        checkpointIfDue(connection, borrowerId);
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      }
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  @Override
+  public int count(int borrowerId) throws LedgerStoreException {
+    try {
+      Number count = queryRunner.query(COUNT_LENDERS_QUERY, new ScalarHandler<Number>(), borrowerId);
+      return count == null ? 0 : count.intValue();
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  private void insertLenders(Connection connection, List<LedgerMutation> adds) throws SQLException {
+    // inserts commute, so every chunk is inserted with two statements
+    for (int chunkStart = 0; chunkStart < adds.size(); chunkStart += MAX_INSERT_ROWS) {
+      List<LedgerMutation> chunk = adds.subList(chunkStart, Math.min(chunkStart + MAX_INSERT_ROWS, adds.size()));
+      Object[] contactParams = new Object[chunk.size() * 3];
+      Object[] lendingParams = new Object[chunk.size() * 4];
+      for (int i = 0; i < chunk.size(); i++) {
+        LedgerMutation add = chunk.get(i);
+        contactParams[i * 3] = add.getLenderId();
+        contactParams[i * 3 + 1] = add.getFirstName();
+        contactParams[i * 3 + 2] = add.getLastName();
+        lendingParams[i * 4] = add.getLenderId();
+        lendingParams[i * 4 + 1] = add.getBorrowerId();
+        lendingParams[i * 4 + 2] = add.getSum();
+        lendingParams[i * 4 + 3] = add.getCurrency();
+      }
+      queryRunner.update(connection, ADD_CONTACT_QUERY + repeat(", (?, null, ?, ?)", chunk.size() - 1), contactParams);
+      queryRunner.update(connection, ADD_LEND_INFO_QUERY + repeat(", (?, ?, ?, ?)", chunk.size() - 1) + ADD_LEND_INFO_QUERY_TAIL,
+          lendingParams);
+
+      // history is added after the whole chunk, so balance of every entry excludes later adds of the same pair
+      Object[][] historyParams = new Object[chunk.size()][];
+      Map<Long, Long> laterSums = new HashMap<>();
+      for (int i = chunk.size() - 1; i >= 0; i--) {
+        LedgerMutation add = chunk.get(i);
+        long pair = add.getPairKey();
+        long laterSum = laterSums.getOrDefault(pair, 0L);
+        historyParams[i] = new Object[]{add.getBorrowerId(), add.getLenderId(), add.getSum(), laterSum, add.getCurrency(),
+            add.getBorrowerId(), add.getLenderId()};
+        laterSums.put(pair, laterSum + add.getSum());
+      }
+      queryRunner.batch(connection, ADD_HISTORY_QUERY, historyParams);
+    }
+  }
+
+  private void editBalances(Connection connection, List<LedgerMutation> edits) throws SQLException {
+    // edits of different pairs commute, edits of the same pair are split into separate rounds, so every pair
+    // gets its update and delete in journal order. Edit of a pair without a row changes nothing and gets no history
+    List<Object[]> updateParams = new ArrayList<>();
+    List<Object[]> deleteParams = new ArrayList<>();
+    List<Object[]> historyParams = new ArrayList<>();
+    Set<Long> roundPairs = new HashSet<>();
+    for (LedgerMutation edit : edits) {
+      long pair = edit.getPairKey();
+      if (!roundPairs.add(pair)) {
+        executeEditRound(connection, updateParams, deleteParams, historyParams);
+        roundPairs.clear();
+        roundPairs.add(pair);
+      }
+      updateParams.add(new Object[]{edit.getSum(), edit.getLenderId(), edit.getBorrowerId()});
+      // only decrease can bring debt to zero
+      if (edit.getSum() < 0) {
+        deleteParams.add(new Object[]{edit.getLenderId(), edit.getBorrowerId()});
+      }
+      historyParams.add(new Object[]{edit.getSum(), edit.getBorrowerId(), edit.getLenderId()});
+    }
+    executeEditRound(connection, updateParams, deleteParams, historyParams);
+  }
+
+  private void executeEditRound(Connection connection, List<Object[]> updateParams, List<Object[]> deleteParams,
+                                List<Object[]> historyParams) throws SQLException {
+    queryRunner.batch(connection, EDIT_BALANCE_QUERY, updateParams.toArray(new Object[0][]));
+    queryRunner.batch(connection, ADD_EDIT_HISTORY_QUERY, historyParams.toArray(new Object[0][]));
+    if (!deleteParams.isEmpty()) {
+      queryRunner.batch(connection, DELETE_NEGATIVE_SUM_QUERY, deleteParams.toArray(new Object[0][]));
+    }
+    updateParams.clear();
+    deleteParams.clear();
+    historyParams.clear();
+  }
+
+  /**
+   * Locks ledgers of the borrowers until the transaction ends. Changes of a borrower come not only from their own
+   * chat but also from bill splits in groups, so every transaction adding history takes the lock before its first
+   * change. Borrowers are locked in id order, so transactions changing several ledgers don't deadlock.
+   */
+  private void lockLedgers(Connection connection, Collection<Integer> borrowerIds) throws SQLException {
+    List<Integer> ids = new ArrayList<>(new TreeSet<>(borrowerIds));
+    for (int chunkStart = 0; chunkStart < ids.size(); chunkStart += MAX_INSERT_ROWS) {
+      List<Integer> chunk = ids.subList(chunkStart, Math.min(chunkStart + MAX_INSERT_ROWS, ids.size()));
+      queryRunner.update(connection, LOCK_LEDGER_QUERY + repeat(", (?)", chunk.size() - 1) + LOCK_LEDGER_QUERY_TAIL, chunk.toArray());
+    }
+  }
+
+  /**
+   * Saves balances of all borrower lenders once borrower has CHECKPOINT_ENTRIES history entries after the last
+   * checkpoint. Caller holds the borrower ledger lock, so no entry older than the checkpoint can be committed after it.
+   */
+  private void checkpointIfDue(Connection connection, int borrowerId) throws SQLException {
+    Number uncheckpointed = queryRunner.query(connection, COUNT_UNCHECKPOINTED_QUERY, new ScalarHandler<Number>(), borrowerId, borrowerId);
+    if (uncheckpointed != null && uncheckpointed.intValue() >= CHECKPOINT_ENTRIES) {
+      queryRunner.update(connection, ADD_LEDGER_CHECKPOINT_QUERY, borrowerId);
+      queryRunner.update(connection, ADD_CHECKPOINT_BALANCES_QUERY, borrowerId, borrowerId);
+    }
+  }
+
+  /**
+   * Checkpoints every borrower that is due with one count query per MAX_IN_LIST_IDS borrowers instead of one per
+   * borrower, checkpoints themselves are rare.
+   */
+  private void checkpointIfDue(Connection connection, Collection<Integer> borrowerIds) throws SQLException {
+    List<Integer> ids = new ArrayList<>(borrowerIds);
+    for (int chunkStart = 0; chunkStart < ids.size(); chunkStart += MAX_IN_LIST_IDS) {
+      List<Integer> chunk = ids.subList(chunkStart, Math.min(chunkStart + MAX_IN_LIST_IDS, ids.size()));
+      List<Integer> dueIds = queryRunner.query(connection,
+          COUNT_UNCHECKPOINTED_BATCH_QUERY_HEAD + repeat(", ?", chunk.size() - 1) + COUNT_UNCHECKPOINTED_BATCH_QUERY_TAIL,
+          resultSet -> {
+            List<Integer> due = new ArrayList<>();
+            while (resultSet.next()) {
+              if (resultSet.getInt(2) >= CHECKPOINT_ENTRIES) {
+                due.add(resultSet.getInt(1));
+              }
+            }
+            return due;
+          }, chunk.toArray());
+      for (int borrowerId : dueIds) {
+        queryRunner.update(connection, ADD_LEDGER_CHECKPOINT_QUERY, borrowerId);
+        queryRunner.update(connection, ADD_CHECKPOINT_BALANCES_QUERY, borrowerId, borrowerId);
+      }
+    }
+  }
+
+  /**
+   * Puts lender balances of the result set to the map, later rows replace earlier balances of the same lender.
+   */
+  private static Void readBalances(ResultSet resultSet, Map<Integer, LendUser> balances) throws SQLException {
+    while (resultSet.next()) {
+      balances.put(resultSet.getInt(1), new LendUser(resultSet.getInt(1), resultSet.getString(3), resultSet.getLong(2), resultSet.getString(4)));
+    }
+    return null;
+  }
+
+  private static List<LendUser> readLedger(ResultSet resultSet) throws SQLException {
+    List<LendUser> userData = new ArrayList<>();
+    while (resultSet.next()) {
+      userData.add(new LendUser(resultSet.getInt(LENDER_ID_COLUMN), resultSet.getString(LENDER_COLUMN),
+          resultSet.getLong(PENDING_MONEY_COLUMN), resultSet.getString(CURRENCY_COLUMN)));
+    }
+    return userData;
+  }
+
+  @Override
+  public void saveReminder(Reminder reminder) throws LedgerStoreException {
+    try {
+      queryRunner.update(SAVE_REMINDER_QUERY, reminder.getBorrowerId(), reminder.getLenderId(), reminder.getIntervalMillis(),
+          new Timestamp(reminder.getNextFireAtMillis()));
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  @Override
+  public void removeReminder(int borrowerId, int lenderId) throws LedgerStoreException {
+    try {
+      queryRunner.update(REMOVE_REMINDER_QUERY, borrowerId, lenderId);
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  @Override
+  public void completeReminders(List<Reminder> fired, List<Reminder> next) throws LedgerStoreException {
+    List<Object[]> advanceParams = new ArrayList<>();
+    List<Object[]> removeParams = new ArrayList<>();
+    for (int i = 0; i < fired.size(); i++) {
+      Reminder reminder = fired.get(i);
+      Timestamp firedAt = new Timestamp(reminder.getNextFireAtMillis());
+      if (next.get(i) != null) {
+        advanceParams.add(new Object[]{new Timestamp(next.get(i).getNextFireAtMillis()), reminder.getBorrowerId(), reminder.getLenderId(), firedAt});
+      } else {
+        removeParams.add(new Object[]{reminder.getBorrowerId(), reminder.getLenderId(), firedAt});
+      }
+    }
+
+    try (Connection connection = dataSource.getConnection()) {
+      connection.setAutoCommit(false);
+      try {
+        if (!advanceParams.isEmpty()) {
+          queryRunner.batch(connection, ADVANCE_REMINDER_QUERY, advanceParams.toArray(new Object[0][]));
+        }
+        if (!removeParams.isEmpty()) {
+          queryRunner.batch(connection, REMOVE_FIRED_REMINDER_QUERY, removeParams.toArray(new Object[0][]));
+        }
+        connection.commit();
+      } catch (SQLException e) {
+        connection.rollback();
+        throw e;
+      }
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  @Override
+  public void forEachReminder(Consumer<Reminder> consumer) throws LedgerStoreException {
+    try (Connection connection = dataSource.getConnection();
+         PreparedStatement statement = connection.prepareStatement(FIND_ALL_REMINDERS_QUERY)) {
+      statement.setFetchSize(STREAM_FETCH_SIZE);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+          consumer.accept(new Reminder(resultSet.getInt(1), resultSet.getInt(2), resultSet.getLong(3), resultSet.getTimestamp(4).getTime()));
+        }
+      }
+    } catch (SQLException e) {
+      throw new LedgerStoreException(e);
+    }
+  }
+
+  private static String repeat(String values, int times) {
+    StringBuilder builder = new StringBuilder(values.length() * times);
+    for (int i = 0; i < times; i++) {
+      builder.append(values);
+    }
+    return builder.toString();
+  }
+
+  @Override
+  public void close() {
+    if (dataSource instanceof PooledDataSource) {
+      ((PooledDataSource) dataSource).close();
+    }
+  }
+}
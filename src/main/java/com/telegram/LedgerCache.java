@@ -0,0 +1,190 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
+
+/**
+ * Read-through cache of borrower ledgers. Keeps at most maxSize ledgers, least recently used one is evicted first.
+ * Ledger older than TTL is loaded again on the next read.
+ * <p>
+ * Load puts a placeholder entry for the borrower before reading the database and caches the ledger only if the
+ * placeholder is still there afterwards. Invalidation removes the entry, so a write drops in-flight loads of its own
+ * borrower only. Map lock is held for map operations only, never during a load.
+ */
+class LedgerCache {
+  private final Map<Integer, Entry> ledgers;
+  private final long ttlMillis;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  LedgerCache(int maxSize, long ttl, TimeUnit unit) {
+    this.ttlMillis = unit.toMillis(ttl);
+    this.ledgers = new LinkedHashMap<Integer, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+        if (size() > maxSize) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns cached ledger of the borrower or loads it if there is no fresh one.
+   *
+   * @param borrowerId Telegram id of the borrower
+   * @param loader     loads ledger from the database
+   * @return unmodifiable list of borrower debts
+   * @throws LedgerStoreException if ledger could not be loaded, failed loads are not cached
+   */
+  List<LendUser> get(int borrowerId, LedgerLoader loader) throws LedgerStoreException {
+    long now = System.currentTimeMillis();
+    Entry placeholder;
+    synchronized (ledgers) {
+      Entry entry = ledgers.get(borrowerId);
+      if (entry != null && entry.ledger != null) {
+        if (now - entry.loadedAt <= ttlMillis) {
+          hits.incrementAndGet();
+          return entry.ledger;
+        }
+        evictions.incrementAndGet();
+        entry = null;
+      }
+      // concurrent loads of the borrower share the placeholder, the first to finish caches its ledger
+      if (entry == null) {
+        entry = new Entry(null, now);
+        ledgers.put(borrowerId, entry);
+      }
+      placeholder = entry;
+    }
+
+    misses.incrementAndGet();
+    List<LendUser> ledger;
+    try {
+      ledger = Collections.unmodifiableList(loader.load(borrowerId));
+    } catch (LedgerStoreException | RuntimeException e) {
+      synchronized (ledgers) {
+        ledgers.remove(borrowerId, placeholder);
+      }
+      throw e;
+    }
+
+    synchronized (ledgers) {
+      // placeholder is gone if the borrower ledger was invalidated during the load
+      if (ledgers.get(borrowerId) == placeholder) {
+        ledgers.put(borrowerId, new Entry(ledger, now));
+      }
+    }
+    return ledger;
+  }
+
+  /**
+   * Returns cached ledger of the borrower without loading it.
+   *
+   * @param borrowerId Telegram id of the borrower
+   * @return unmodifiable list of borrower debts or null if there is no fresh one in cache
+   */
+  List<LendUser> getIfPresent(int borrowerId) {
+    long now = System.currentTimeMillis();
+    synchronized (ledgers) {
+      Entry entry = ledgers.get(borrowerId);
+      if (entry == null || entry.ledger == null || now - entry.loadedAt > ttlMillis) {
+        return null;
+      }
+      hits.incrementAndGet();
+      return entry.ledger;
+    }
+  }
+
+  /**
+   * Drops cached ledger of the borrower. Must be called after every write to borrower debts.
+   *
+   * @param borrowerId Telegram id of the borrower
+   */
+  void invalidate(int borrowerId) {
+    synchronized (ledgers) {
+      ledgers.remove(borrowerId);
+    }
+  }
+
+  /**
+   * Drops cached ledgers of matching borrowers.
+   *
+   * @param borrowerIds borrowers whose ledgers are dropped
+   */
+  void invalidateIf(IntPredicate borrowerIds) {
+    synchronized (ledgers) {
+      ledgers.keySet().removeIf(borrowerIds::test);
+    }
+  }
+
+  long getHits() {
+    return hits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  long getEvictions() {
+    return evictions.get();
+  }
+
+  int size() {
+    synchronized (ledgers) {
+      return ledgers.size();
+    }
+  }
+
+  @FunctionalInterface
+  interface LedgerLoader {
+    List<LendUser> load(int borrowerId) throws LedgerStoreException;
+  }
+
+  private static class Entry {
+    // null while the ledger is being loaded
+    private final List<LendUser> ledger;
+    private final long loadedAt;
+
+    Entry(List<LendUser> ledger, long loadedAt) {
+      this.ledger = ledger;
+      this.loadedAt = loadedAt;
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CSV format of ledger import and export, one debt per line: {@code lender_id,name,sum,currency}. Sum is written in
+ * major units like "12.50", name is quoted when it contains comma or quote. Currency is optional on import, lines
+ * without it are in the base currency. Export starts with the header line, import skips it if present.
+ */
+final class LedgerCsv {
+  static final String HEADER = "lender_id,name,sum,currency";
+  static final int LENDER_ID_FIELD = 0;
+  static final int NAME_FIELD = 1;
+  static final int SUM_FIELD = 2;
+  static final int CURRENCY_FIELD = 3;
+  // lines of older exports have no currency field
+  static final int MIN_FIELD_COUNT = 3;
+  static final int FIELD_COUNT = 4;
+  private static final char SEPARATOR = ',';
+  private static final char QUOTE = '"';
+  // byte order mark some spreadsheet editors put in front of UTF-8 files
+  private static final char BOM = '\uFEFF';
+
+  private LedgerCsv() {
+  }
+
+  /**
+   * Writes single debt line.
+   *
+   * @param writer   writer to append to
+   * @param lenderId Telegram id of the lender
+   * @param name     lender name, may be null
+   * @param sum      debt in minor units
+   * @param currency ISO 4217 code of the debt currency
+   */
+  static void writeLine(Writer writer, int lenderId, String name, long sum, String currency) throws IOException {
+    writer.write(Integer.toString(lenderId));
+    writer.write(SEPARATOR);
+    if (name != null) {
+      writeField(writer, name);
+    }
+    writer.write(SEPARATOR);
+    writer.write(Money.format(sum));
+    writer.write(SEPARATOR);
+    writer.write(currency);
+    writer.write('\n');
+  }
+
+  /**
+   * Splits line into fields, quoted fields can contain separators and doubled quotes.
+   *
+   * @param line line without line terminator
+   * @return fields of the line
+   * @throws IllegalArgumentException if quotes are not balanced
+   */
+  static List<String> parseLine(String line) {
+    List<String> fields = new ArrayList<>(FIELD_COUNT);
+    StringBuilder field = new StringBuilder();
+    int position = !line.isEmpty() && line.charAt(0) == BOM ? 1 : 0;
+    boolean quoted = false;
+    for (; position < line.length(); position++) {
+      char character = line.charAt(position);
+      if (quoted) {
+        if (character != QUOTE) {
+          field.append(character);
+        } else if (position + 1 < line.length() && line.charAt(position + 1) == QUOTE) {
+          field.append(QUOTE);
+          position++;
+        } else {
+          quoted = false;
+        }
+      } else if (character == QUOTE && field.length() == 0) {
+        quoted = true;
+      } else if (character == SEPARATOR) {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(character);
+      }
+    }
+    if (quoted) {
+      throw new IllegalArgumentException("Quote is not closed.");
+    }
+    fields.add(field.toString());
+    return fields;
+  }
+
+  /**
+   * @param fields fields of the first line
+   * @return whether the line is the header
+   */
+  static boolean isHeader(List<String> fields) {
+    return fields.size() >= MIN_FIELD_COUNT && fields.size() <= FIELD_COUNT
+        && fields.get(LENDER_ID_FIELD).trim().equalsIgnoreCase("lender_id");
+  }
+
+  private static void writeField(Writer writer, String value) throws IOException {
+    if (value.indexOf(SEPARATOR) < 0 && value.indexOf(QUOTE) < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+      writer.write(value);
+      return;
+    }
+
+    writer.write(QUOTE);
+    for (int i = 0; i < value.length(); i++) {
+      char character = value.charAt(i);
+      // line breaks would split the debt into two lines
+      if (character == '\n' || character == '\r') {
+        character = ' ';
+      } else if (character == QUOTE) {
+        writer.write(QUOTE);
+      }
+      writer.write(character);
+    }
+    writer.write(QUOTE);
+  }
+}
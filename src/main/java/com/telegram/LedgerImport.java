@@ -0,0 +1,69 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Outcome of ledger import from CSV document.
+ *
+ * @see PersistenceService#importLedger
+ */
+@Value
+class LedgerImport {
+  // numbers of first skipped lines shown to the user
+  static final int MAX_REPORTED_LINES = 10;
+
+  private final int importedCount;
+  private final int skippedCount;
+  // 1-based numbers of first MAX_REPORTED_LINES skipped lines
+  private final List<Integer> skippedLines;
+  // whether store failed, lines after the last imported chunk were not imported
+  private final boolean failed;
+
+  @Override
+  public String toString() {
+    StringBuilder importBuilder = new StringBuilder();
+    if (failed) {
+      importBuilder.append("Error importing debts. :( ");
+    }
+    importBuilder.append("Imported ").append(importedCount).append(importedCount == 1 ? " debt." : " debts.");
+    if (skippedCount > 0) {
+      importBuilder.append("\nSkipped ").append(skippedCount).append(" invalid ").append(skippedCount == 1 ? "line" : "lines")
+          .append(skippedLines.size() == 1 ? ", see line " : ", see lines ");
+      for (int i = 0; i < skippedLines.size(); i++) {
+        importBuilder.append(i == 0 ? "" : ", ").append(skippedLines.get(i));
+      }
+      if (skippedCount > skippedLines.size()) {
+        importBuilder.append(" and others");
+      }
+      importBuilder.append(".\nEvery line should look like \"").append(LedgerCsv.HEADER).append("\", e.g. \"12345,John Doe,10.50,EUR\".");
+    }
+    return importBuilder.toString();
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Single ledger change queued by {@link WriteBehindLedgerStore} or added in bulk by {@link LedgerStore#addLenders}.
+ */
+@Value
+class LedgerMutation {
+  enum Type {
+    ADD_LENDER,
+    EDIT_BALANCE
+  }
+
+  // journal sequence number, 0 until mutation is written to journal
+  private final long sequence;
+  private final Type type;
+  private final int borrowerId;
+  private final int lenderId;
+  // added sum for ADD_LENDER, signed balance change for EDIT_BALANCE, in minor units
+  private final long sum;
+  // lender names and debt currency, only set for ADD_LENDER
+  private final String firstName;
+  private final String lastName;
+  private final String currency;
+
+  static LedgerMutation addLender(int borrowerId, int lenderId, long sum, String currency, String firstName, String lastName) {
+    return new LedgerMutation(0, Type.ADD_LENDER, borrowerId, lenderId, sum, firstName, lastName, currency);
+  }
+
+  static LedgerMutation editBalance(int borrowerId, int lenderId, long delta) {
+    return new LedgerMutation(0, Type.EDIT_BALANCE, borrowerId, lenderId, delta, null, null, null);
+  }
+
+  LedgerMutation withSequence(long sequence) {
+    return new LedgerMutation(sequence, type, borrowerId, lenderId, sum, firstName, lastName, currency);
+  }
+
+  /**
+   * @return key of the lending pair the mutation changes
+   */
+  long getPairKey() {
+    return (long) borrowerId << 32 | (lenderId & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Applies mutation to ledger read from the database the same way SQL statements would change it.
+   *
+   * @param ledger debts of the mutation borrower, changed in place
+   */
+  void applyTo(List<LendUser> ledger) {
+    if (type == Type.ADD_LENDER) {
+      // same as INSERT ignore into user, first known name of the lender is kept
+      String name = lastName == null ? firstName : firstName + " " + lastName;
+      for (LendUser lendUser : ledger) {
+        if (lendUser.getUserId() == lenderId) {
+          name = lendUser.getName();
+          break;
+        }
+      }
+      ledger.add(new LendUser(lenderId, name, sum, currency));
+    } else {
+      ledger.removeIf(lendUser -> {
+        if (lendUser.getUserId() != lenderId) {
+          return false;
+        }
+        lendUser.setSum(lendUser.getSum() + sum);
+        return lendUser.getSum() <= 0;
+      });
+    }
+  }
+}
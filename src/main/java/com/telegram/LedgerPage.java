@@ -0,0 +1,105 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import lombok.Value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Part of a borrower ledger ordered by lender id. Pages are read by key: next page starts after the last lender id
+ * of the current page, previous page ends before the first one, so reading a page never scans earlier entries.
+ */
+@Value
+class LedgerPage {
+  // lender id the first page starts after
+  static final int START = Integer.MIN_VALUE;
+
+  // debts ordered by lender id, one entry per lender
+  private final List<LendUser> entries;
+  private final boolean hasPrevious;
+  private final boolean hasNext;
+
+  /**
+   * Builds page from entries read in page direction. Reader asks for one entry more than limit to know if there
+   * are more entries in that direction.
+   *
+   * @param fetched      up to limit + 1 entries in reading order
+   * @param fromLenderId lender id the page was read from
+   * @param forward      whether page was read towards bigger lender ids
+   * @param limit        max number of entries on page
+   * @return page with entries ordered by lender id
+   */
+  static LedgerPage of(List<LendUser> fetched, int fromLenderId, boolean forward, int limit) {
+    boolean more = fetched.size() > limit;
+    List<LendUser> entries = new ArrayList<>(more ? fetched.subList(0, limit) : fetched);
+    if (forward) {
+      return new LedgerPage(entries, fromLenderId != START, more);
+    }
+    Collections.reverse(entries);
+    // previous page is read from the first entry of an existing page
+    return new LedgerPage(entries, more, true);
+  }
+
+  /**
+   * Reads page from ledger that is already in memory.
+   *
+   * @param ledger       all debts of the borrower in any order
+   * @param fromLenderId lender id page starts after or, when reading backwards, ends before
+   * @param forward      whether page is read towards bigger lender ids
+   * @param limit        max number of entries on page
+   * @return page with entries ordered by lender id
+   */
+  static LedgerPage slice(List<LendUser> ledger, int fromLenderId, boolean forward, int limit) {
+    NavigableMap<Integer, LendUser> byLender = new TreeMap<>();
+    for (LendUser lendUser : ledger) {
+      byLender.merge(lendUser.getUserId(), new LendUser(lendUser.getUserId(), lendUser.getName(), lendUser.getSum(), lendUser.getCurrency()),
+          (first, second) -> {
+            first.setSum(first.getSum() + second.getSum());
+            return first;
+          });
+    }
+
+    NavigableMap<Integer, LendUser> range = forward ? byLender.tailMap(fromLenderId, false)
+        : byLender.headMap(fromLenderId, false).descendingMap();
+    List<LendUser> fetched = new ArrayList<>(limit + 1);
+    for (Map.Entry<Integer, LendUser> entry : range.entrySet()) {
+      if (fetched.size() > limit) {
+        break;
+      }
+      fetched.add(entry.getValue());
+    }
+    return of(fetched, fromLenderId, forward, limit);
+  }
+
+  boolean isEmpty() {
+    return entries.isEmpty();
+  }
+}
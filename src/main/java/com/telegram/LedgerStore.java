@@ -0,0 +1,196 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import org.telegram.telegrambots.api.objects.Contact;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Storage of debts between users. Every ledger entry says how much borrower owns to lender and in which currency.
+ * Lending pair keeps the currency of its first debt, {@link PersistenceService} converts debts added to the pair
+ * later to that currency, so stores never mix currencies within a pair.
+ *
+ * @see PersistenceService
+ */
+interface LedgerStore {
+
+  /**
+   * Returns all debts of the borrower.
+   *
+   * @param borrowerId Telegram id of the borrower
+   * @return list of lenders with pending sums
+   */
+  List<LendUser> findLedger(int borrowerId) throws LedgerStoreException;
+
+  /**
+   * Returns part of the borrower debts ordered by lender id, see {@link LedgerPage}.
+   *
+   * @param borrowerId   Telegram id of the borrower
+   * @param fromLenderId lender id page starts after or, when reading backwards, ends before
+   * @param forward      whether page is read towards bigger lender ids
+   * @param limit        max number of entries on page
+   * @return page of debts
+   */
+  LedgerPage findLedgerPage(int borrowerId, int fromLenderId, boolean forward, int limit) throws LedgerStoreException;
+
+  /**
+   * Remembers lender contact and adds debt of the borrower to this lender.
+   *
+   * @param lender     contact of the lender
+   * @param sum        debt sum in minor units
+   * @param currency   ISO 4217 code of the debt currency
+   * @param borrowerId Telegram id of the borrower
+   */
+  void addLender(Contact lender, long sum, String currency, int borrowerId) throws LedgerStoreException;
+
+  /**
+   * Adds debts of the borrower to several lenders at once, all or none of them. Used by bulk import, so stores
+   * should write them with as few round trips as they can.
+   *
+   * @param borrowerId Telegram id of the borrower
+   * @param adds       {@link LedgerMutation.Type#ADD_LENDER} mutations of the borrower
+   */
+  void addLenders(int borrowerId, List<LedgerMutation> adds) throws LedgerStoreException;
+
+  /**
+   * Adds debts of several borrowers at once, all or none of them. Used by group bill splits, so stores should write
+   * them with a number of round trips that doesn't grow with the number of borrowers.
+   *
+   * @param adds {@link LedgerMutation.Type#ADD_LENDER} mutations of any borrowers
+   */
+  void addDebts(List<LedgerMutation> adds) throws LedgerStoreException;
+
+  /**
+   * Increases or decreases debt of the borrower to the lender in the currency of the debt. Debt that reaches zero
+   * is removed. Borrower must already owe the lender, otherwise nothing is changed and exception is thrown.
+   *
+   * @param borrowerId   Telegram id of the borrower
+   * @param lenderId     Telegram id of the lender
+   * @param decreaseDebt whether sum is subtracted from the debt
+   * @param sum          amount of money in minor units
+   */
+  void editBalance(int borrowerId, int lenderId, boolean decreaseDebt, long sum) throws LedgerStoreException;
+
+  /**
+   * Returns number of lenders the borrower has debts to.
+   *
+   * @param borrowerId Telegram id of the borrower
+   * @return number of ledger entries
+   */
+  int count(int borrowerId) throws LedgerStoreException;
+
+  /**
+   * Passes every debt of every borrower to the consumer, used to build the whole debt graph.
+   *
+   * @param consumer receiver of debts
+   */
+  void forEachDebt(DebtConsumer consumer) throws LedgerStoreException;
+
+  /**
+   * Passes every debt of the borrower to the consumer without reading the whole ledger into memory first.
+   *
+   * @param borrowerId Telegram id of the borrower
+   * @param consumer   receiver of debts
+   */
+  void forEachDebt(int borrowerId, DebtConsumer consumer) throws LedgerStoreException;
+
+  /**
+   * Passes debts of the borrowers to one lender to the consumer, read together rather than borrower by borrower.
+   *
+   * @param lenderId    Telegram id of the lender
+   * @param borrowerIds Telegram ids of the borrowers
+   * @param consumer    receiver of debts
+   */
+  void forEachDebtTo(int lenderId, Collection<Integer> borrowerIds, DebtConsumer consumer) throws LedgerStoreException;
+
+  /**
+   * Returns part of the borrower history, newest entries first, see {@link HistoryPage}.
+   *
+   * @param borrowerId  Telegram id of the borrower
+   * @param fromEntryId entry id page starts before or, when reading newer entries, ends after
+   * @param older       whether page is read towards older entries
+   * @param limit       max number of entries on page
+   * @return page of history entries
+   */
+  HistoryPage findHistoryPage(int borrowerId, long fromEntryId, boolean older, int limit) throws LedgerStoreException;
+
+  /**
+   * Returns debts of the borrower as they were at the moment.
+   *
+   * @param borrowerId Telegram id of the borrower
+   * @param timeMillis moment in milliseconds since epoch
+   * @return list of lenders with pending sums at that moment, ordered by lender id
+   */
+  List<LendUser> findLedgerAt(int borrowerId, long timeMillis) throws LedgerStoreException;
+
+  /**
+   * Creates reminder of the lending pair or replaces the one it has.
+   *
+   * @param reminder reminder to keep
+   */
+  void saveReminder(Reminder reminder) throws LedgerStoreException;
+
+  /**
+   * Removes reminder of the lending pair if it has one.
+   *
+   * @param borrowerId Telegram id of the borrower
+   * @param lenderId   Telegram id of the lender
+   */
+  void removeReminder(int borrowerId, int lenderId) throws LedgerStoreException;
+
+  /**
+   * Records that reminders were sent, in one round trip for the whole batch. Every fired reminder is moved to its
+   * next fire time or removed, unless the borrower replaced or removed it in the meantime.
+   *
+   * @param fired reminders as they were when they fired
+   * @param next  reminders to keep at the same positions as fired ones, null for reminders to remove
+   */
+  void completeReminders(List<Reminder> fired, List<Reminder> next) throws LedgerStoreException;
+
+  /**
+   * Passes every reminder to the consumer, used to rebuild reminder schedule.
+   *
+   * @param consumer receiver of reminders
+   */
+  void forEachReminder(Consumer<Reminder> consumer) throws LedgerStoreException;
+
+  /**
+   * Releases resources held by the store.
+   */
+  void close();
+
+  /**
+   * Receives debts read by {@link #forEachDebt(DebtConsumer)}, {@link #forEachDebt(int, DebtConsumer)} and
+   * {@link #forEachDebtTo(int, Collection, DebtConsumer)}.
+   */
+  @FunctionalInterface
+  interface DebtConsumer {
+    void accept(int borrowerId, int lenderId, String lenderName, long sum, String currency);
+  }
+}
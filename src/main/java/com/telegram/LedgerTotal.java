@@ -0,0 +1,75 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import lombok.Value;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+
+/**
+ * Debts of the user added up in one currency.
+ *
+ * @see PersistenceService#getLedgerTotal
+ */
+@Value
+class LedgerTotal {
+  private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneOffset.UTC);
+
+  private final String currency;
+  // in minor units of the currency, see Money
+  private final long sum;
+  // currency of debts -> their sum in minor units of that currency
+  private final Map<String, Long> sums;
+  // currency of debts -> their sum converted to the total currency, currencies without a rate are missing
+  private final Map<String, Long> convertedSums;
+  private final long ratesLoadedAtMillis;
+
+  @Override
+  public String toString() {
+    if (sums.isEmpty()) {
+      return "You have no debts. :)";
+    }
+
+    StringBuilder totalBuilder = new StringBuilder("You owe ");
+    Money.appendTo(totalBuilder, sum, currency).append(" in total.\n");
+    for (Map.Entry<String, Long> currencySum : sums.entrySet()) {
+      Money.appendTo(totalBuilder, currencySum.getValue(), currencySum.getKey());
+      Long convertedSum = convertedSums.get(currencySum.getKey());
+      if (convertedSum == null) {
+        totalBuilder.append(" is not counted, there is no rate for it");
+      } else if (!currencySum.getKey().equals(currency)) {
+        totalBuilder.append(" = ");
+        Money.appendTo(totalBuilder, convertedSum, currency);
+      }
+      totalBuilder.append("\n");
+    }
+    return totalBuilder.append("Rates of ").append(TIME_FORMATTER.format(Instant.ofEpochMilli(ratesLoadedAtMillis)))
+        .append(" UTC.").toString();
+  }
+}
@@ -24,44 +24,146 @@
 
 package com.telegram;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import lombok.extern.log4j.Log4j;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.telegram.telegrambots.ApiConstants;
+import org.telegram.telegrambots.api.methods.AnswerCallbackQuery;
 import org.telegram.telegrambots.api.methods.AnswerInlineQuery;
+import org.telegram.telegrambots.api.methods.GetFile;
+import org.telegram.telegrambots.api.methods.send.SendDocument;
 import org.telegram.telegrambots.api.methods.send.SendMessage;
+import org.telegram.telegrambots.api.methods.updates.SetWebhook;
+import org.telegram.telegrambots.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.api.objects.CallbackQuery;
 import org.telegram.telegrambots.api.objects.Contact;
+import org.telegram.telegrambots.api.objects.Document;
+import org.telegram.telegrambots.api.objects.Message;
 import org.telegram.telegrambots.api.objects.Update;
 import org.telegram.telegrambots.api.objects.User;
+import org.telegram.telegrambots.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.api.objects.replykeyboard.ReplyKeyboardMarkup;
+import org.telegram.telegrambots.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 import org.telegram.telegrambots.api.objects.replykeyboard.buttons.KeyboardRow;
+import org.telegram.telegrambots.bots.AbsSender;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.SafeEncoder;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Log4j
 public class LendMoneyBot extends TelegramLongPollingBot {
-  private static boolean addLenderStatus = false;
-  private static boolean addLendSum = false;
-
-  private static boolean editUserStart = false;
-  private static boolean editUserAction = false, decreaseDebt = false;
-  private static boolean editUserSum = false;
+  private static final byte[] CONTACT_FIELD = SafeEncoder.encode("contact");
+  private static final byte[] EDIT_USER_ID_FIELD = SafeEncoder.encode("edit_user_id");
+  // lender ids listed on the last shown edit page
+  private static final byte[] EDIT_PAGE_FIELD = SafeEncoder.encode("edit_page");
+  // setWebhook parameter the bundled SetWebhook method doesn't know yet
+  private static final String SECRET_TOKEN_FIELD = "secret_token";
+  private static final String SETTLE_INLINE_QUERY = "settle";
+  private static final String SHOW_VIEW = "show";
+  private static final String EDIT_VIEW = "edit";
+  private static final String HISTORY_VIEW = "history";
+  private static final String TOTAL_VIEW = "total";
+  private static final String NEXT_PAGE = ">";
+  private static final String PREVIOUS_PAGE = "<";
+  // "<view>:<direction>:<lender id>" callback data of page buttons
+  private static final Pattern PAGE_CALLBACK_PATTERN = Pattern.compile("(show|edit):([<>]):(-?[0-9]{1,10})");
+  // "history:<direction>:<entry id>" callback data of history page buttons, ">" reads older entries, 18 digits fit long
+  private static final Pattern HISTORY_CALLBACK_PATTERN = Pattern.compile("history:([<>]):([0-9]{1,18})");
+  // "total:<currency>" callback data of /show total buttons
+  private static final Pattern TOTAL_CALLBACK_PATTERN = Pattern.compile(TOTAL_VIEW + ":([A-Z]{3})");
+  private static final int TOTAL_BUTTONS_PER_ROW = 4;
+  // "20", "20 EUR" or "eur 20" on add sum step, sum without currency code is in the base currency
+  private static final Pattern ADD_SUM_PATTERN = Pattern.compile("\\s*(?:([A-Za-z]{3})\\s*([^A-Za-z\\s]+)|([^A-Za-z\\s]+)\\s*([A-Za-z]{3})?)\\s*");
+  // "/3" or "3" on edit selection step, limited to 9 digits to fit int
+  private static final Pattern USER_NUMBER_PATTERN = Pattern.compile("/?([0-9]{1,9})");
+  // "/1", "2 " or keyboard label on edit action step
+  private static final Pattern EDIT_ACTION_PATTERN = Pattern.compile("/?([12])\\s?|(Increase|Decrease)");
+  // "/split 600 dinner" or "/split@LendMoneyBot 12.50 EUR taxi" in a group, bot name is checked by the handler
+  private static final Pattern GROUP_COMMAND_PATTERN = Pattern.compile("/(split|join|leave)(?:@(\\w+))?(?:\\s+(.*))?", Pattern.DOTALL);
+  // sum, optional currency code and optional description after /split
+  private static final Pattern SPLIT_ARGUMENTS_PATTERN = Pattern.compile("(\\S+)(?:\\s+([A-Za-z]{3})(?=\\s|$))?(?:\\s+(.*))?", Pattern.DOTALL);
+  private static final Pattern REMINDER_INTERVAL_PATTERN = Pattern.compile("/?(daily|weekly|monthly|off)", Pattern.CASE_INSENSITIVE);
 
   private PersistenceService persistenceService;
-  private Jedis redisDb;
-  private Gson serializer;
+  private JedisPool redisPool;
+  private ConversationStore conversationStore;
+  private UpdateDispatcher updateDispatcher;
+  private OutboundSender outboundSender;
+  private ClusterNode clusterNode;
+  private ReminderScheduler reminderScheduler;
+  private SessionCodec sessionCodec;
   private ReplyKeyboardMarkup mainKeyboardMarkup;
+  private CommandRouter commandRouter;
+  private String helpText;
+
+  LendMoneyBot() throws LedgerStoreException {
+    this(new PersistenceService(), createRedisPool(BuildVars.REDIS_HOST, BuildVars.REDIS_PORT), null, true);
+  }
 
-  LendMoneyBot() {
-    persistenceService = new PersistenceService();
-    redisDb = new Jedis();
-    serializer = new GsonBuilder().create();
+  /**
+   * Creates bot on given persistence and Redis. Load harness passes its own reply sender here, so replies never reach
+   * Telegram and updates can be fed straight to {@link #onUpdateReceived(Update)}.
+   *
+   * @param replySender sender of outbound replies, bot itself sends them to Telegram if it is null
+   * @param rateLimited whether replies keep to Telegram rate limits, harness lifts them to measure the bot alone
+   */
+  LendMoneyBot(PersistenceService persistenceService, JedisPool redisPool, AbsSender replySender, boolean rateLimited) {
+    this.persistenceService = persistenceService;
+    this.redisPool = redisPool;
+    conversationStore = new ConversationStore(redisPool, BuildVars.CONVERSATION_TTL_MINUTES, TimeUnit.MINUTES);
+    updateDispatcher = new UpdateDispatcher(this::handleUpdate, BuildVars.DISPATCHER_LANES, BuildVars.DISPATCHER_LANE_CAPACITY);
+    Metrics.gauge("dispatcher_queue_depth", updateDispatcher::getQueueDepth);
+    outboundSender = new OutboundSender(replySender != null ? replySender : this, BuildVars.OUTBOUND_SENDER_THREADS, BuildVars.OUTBOUND_QUEUE_CAPACITY,
+        rateLimited ? BuildVars.OUTBOUND_GLOBAL_RATE : Double.MAX_VALUE, rateLimited ? BuildVars.OUTBOUND_CHAT_RATE : Double.MAX_VALUE,
+        rateLimited ? BuildVars.OUTBOUND_CHAT_BURST : Double.MAX_VALUE, BuildVars.OUTBOUND_MAX_RETRIES, BuildVars.OUTBOUND_COALESCE);
+    Metrics.gauge("outbound_queue_depth", outboundSender::getQueueDepth);
+    reminderScheduler = new ReminderScheduler(persistenceService, this::deliverReminders, BuildVars.REMINDER_TICK_MILLIS,
+        BuildVars.REMINDER_BATCH_SIZE);
+    Metrics.gauge("reminders_scheduled", reminderScheduler::getScheduled);
+    if (BuildVars.CLUSTER_ENABLED) {
+      clusterNode = new ClusterNode(redisPool, BuildVars.CLUSTER_NODE_ID, BuildVars.CLUSTER_PARTITIONS,
+          BuildVars.CLUSTER_LEASE_MILLIS, updateDispatcher, new PartitionHandOver());
+      Metrics.gauge("cluster_owned_partitions", clusterNode::getOwnedPartitions);
+      clusterNode.start();
+    } else {
+      reminderScheduler.load(userId -> true);
+    }
+    sessionCodec = BuildVars.SESSION_BINARY_CODEC ? new BinarySessionCodec() : new GsonSessionCodec();
 
     // Setup bot keyboard layout by rows
     KeyboardRow firstRow = new KeyboardRow();
@@ -69,209 +171,872 @@ public class LendMoneyBot extends TelegramLongPollingBot {
     KeyboardRow secondRow = new KeyboardRow();
     Arrays.asList("Show info", "Edit lender info", "Help").forEach(secondRow::add);
     mainKeyboardMarkup = new ReplyKeyboardMarkup().setKeyboard(Arrays.asList(firstRow, secondRow));
+
+    commandRouter = createCommandRouter(handler -> context -> handler.accept(this, context));
+    helpText = "I can help you to track information about your debts to other people on Telegram.\n"
+        + "\nList of available commands:\n" + commandRouter.helpText()
+        + "\nAdd me to a group to split bills: members send /join, then \"/split 600 dinner\" makes everyone else owe "
+        + "the sender an equal share.";
+  }
+
+  static JedisPool createRedisPool(String host, int port) {
+    JedisPoolConfig redisPoolConfig = new JedisPoolConfig();
+    redisPoolConfig.setMaxTotal(BuildVars.REDIS_POOL_MAX_TOTAL);
+    return new JedisPool(redisPoolConfig, host, port);
   }
 
   @Override
   public void onUpdateReceived(Update update) {
+    if (clusterNode != null) {
+      clusterNode.publish(update);
+    } else {
+      updateDispatcher.dispatch(update);
+    }
+  }
+
+  /**
+   * Tells Telegram to push updates to the url instead of waiting for getUpdates calls. Updates posted to the url
+   * should be passed to {@link #onUpdateReceived(Update)}, see {@link WebhookServer}.
+   *
+   * @param url         public HTTPS url of the webhook
+   * @param secretToken token Telegram sends back in X-Telegram-Bot-Api-Secret-Token header of every update
+   * @throws TelegramApiRequestException if Telegram rejected the webhook
+   */
+  void setWebhook(String url, String secretToken) throws TelegramApiRequestException {
+    HttpPost httpPost = new HttpPost(ApiConstants.BASE_URL + getBotToken() + "/" + SetWebhook.PATH);
+    httpPost.setEntity(new UrlEncodedFormEntity(Arrays.asList(new BasicNameValuePair(SetWebhook.URL_FIELD, url),
+        new BasicNameValuePair(SECRET_TOKEN_FIELD, secretToken)), StandardCharsets.UTF_8));
+
+    try (CloseableHttpClient httpClient = HttpClients.createDefault();
+         CloseableHttpResponse response = httpClient.execute(httpPost)) {
+      JSONObject jsonObject = new JSONObject(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+      if (!jsonObject.getBoolean(ApiConstants.RESPONSE_FIELD_OK)) {
+        throw new TelegramApiRequestException("Error setting webhook", jsonObject);
+      }
+    } catch (IOException | JSONException e) {
+      throw new TelegramApiRequestException("Error setting webhook", e);
+    }
+  }
+
+  /**
+   * Stops handling new updates, waits for queued updates and replies and releases resources.
+   *
+   * @param timeout max time to wait for queued updates, same time is given to queued replies
+   * @param unit    time unit of the timeout argument
+   */
+  void shutdown(long timeout, TimeUnit unit) {
+    if (clusterNode != null) {
+      clusterNode.stopConsuming();
+    }
+    updateDispatcher.shutdown(timeout, unit);
+    if (clusterNode != null) {
+      clusterNode.leave();
+    }
+    reminderScheduler.shutdown(timeout, unit);
+    outboundSender.shutdown(timeout, unit);
+    conversationStore.shutdown();
+    redisPool.close();
+    persistenceService.close();
+  }
+
+  /**
+   * Handles single update. Called from dispatcher lane, so updates of the same chat never run concurrently.
+   *
+   * @param update update received from Telegram
+   */
+  private void handleUpdate(Update update) {
+    long startNanos = System.nanoTime();
+    // command label used for latency metrics
+    String command = "unknown";
+    // chat for the update log line, user id for inline queries and page buttons
+    long chatId = 0;
+
     /* Inline mode */
     if (update.hasInlineQuery()) {
-      log.info("Query inlined: " + update.getInlineQuery().getQuery());
-      if (update.getInlineQuery().getQuery().equals("me")) {
-        log.info("ID: " + update.getInlineQuery().getId());
-        log.info("Query: " + update.getInlineQuery().getQuery());
+      command = "inline";
+      Logs.debug(log, "Query inlined: {}", update.getInlineQuery().getQuery());
 
-        AnswerInlineQuery answerInlineQuery = new AnswerInlineQuery()
-            .setResults(persistenceService.findInlineInfoWithUser(update.getInlineQuery().getFrom()))
-            .setInlineQueryId(update.getInlineQuery().getId());
+      // "me" or empty query lists all debts, "settle" shares settlement, anything else is matched against lender names
+      String query = update.getInlineQuery().getQuery();
+      User inlineUser = update.getInlineQuery().getFrom();
+      chatId = inlineUser.getId();
+      AnswerInlineQuery answerInlineQuery = new AnswerInlineQuery()
+          .setResults(query.trim().equalsIgnoreCase(SETTLE_INLINE_QUERY) ? persistenceService.findInlineSettlement(inlineUser)
+              : persistenceService.findInlineInfoWithUser(inlineUser, query))
+          .setInlineQueryId(update.getInlineQuery().getId())
+          .setCacheTime(BuildVars.INLINE_CACHE_TIME_SECONDS)
+          .setPersonal(true);
 
-        try {
-          answerInlineQuery(answerInlineQuery);
-        } catch (TelegramApiException e) {
-          e.printStackTrace();
-          log.error(e.getMessage());
-        }
-      }
+      outboundSender.enqueue(answerInlineQuery);
+
+    /* Group mode */
+    } else if (update.hasMessage() && (update.getMessage().isGroupMessage() || update.getMessage().isSuperGroupMessage())) {
+      chatId = update.getMessage().getChatId();
+      command = handleGroupMessage(update.getMessage());
 
     /* PM mode */
     } else if (update.hasMessage()) {
-      try {
-        // Aliases used in this block
-        Long chatId = update.getMessage().getChatId();
-        boolean updateHasText = update.getMessage().hasText();
-        String updateMessage = update.getMessage().getText();
+      chatId = update.getMessage().getChatId();
+      try (Jedis redisDb = redisPool.getResource()) {
         User currentUser = update.getMessage().getFrom();
-        String redisUserString = "user/" + currentUser.getId();
-
-        // Initialize bot
-        if (updateHasText && updateMessage.equals("/start")) {
-          String greetingText = "Welcome to LendMoneyBot!\nUse /add to start adding or /help to get things clear.";
-          SendMessage startSendMessage = new SendMessage().setChatId(chatId).setText(greetingText);
-          startSendMessage.setReplyMarkup(mainKeyboardMarkup);
-
-          sendMessage(startSendMessage);
-
-          // Add new lender candidate action
-        } else if (updateHasText && (updateMessage.equals("/add") || updateMessage.equals("Add lender"))) {
-          String addLenderMessage = "Send lender contact to this bot to proceed.";
-          sendMessage(new SendMessage().setChatId(chatId).setText(addLenderMessage));
-          addLenderStatus = true;
-
-          // Getting contact from user
-        } else if (addLenderStatus) {
-          if (update.getMessage().getContact() != null) {
-            redisDb.set(redisUserString + "/add_contact_value", serializer.toJson(update.getMessage().getContact()));
-            String lendSumMessage = "Got it. How much do you own to this person? :)";
-            sendMessage(new SendMessage().setChatId(chatId).setText(lendSumMessage));
-            addLenderStatus = false;
-            addLendSum = true;
-          } else {
-            sendMessage(new SendMessage().setChatId(chatId).setText("Invalid contact received. Try again!"));
-          }
+        CommandContext context = new CommandContext(update.getMessage(), currentUser, conversationStore.get(currentUser.getId()),
+            redisDb, sessionKey(currentUser.getId()));
+        try {
+          command = commandRouter.route(context);
+        } catch (IllegalStateException e) {
+          // conversation expired between reading and moving its state, start over from the menu
+          log.warn("Resetting conversation of user " + currentUser.getId() + ": " + e.getMessage());
+          conversationStore.moveTo(currentUser.getId(), ConversationState.IDLE);
+          send(new SendMessage().setChatId(chatId).setReplyMarkup(mainKeyboardMarkup)
+              .setText("Conversation has expired. Choose what to do next."));
+        }
+      }
 
-          // Getting sum information from user
-        } else if (addLendSum && updateHasText) {
-          String resultMessage;
-          try {
-            Double lendSum = Double.parseDouble(updateMessage);
-            if (lendSum <= 0) {
-              throw new Exception("Sum must be greater than 0.");
-            }
-
-            Contact deserializeContact = serializer.fromJson(redisDb.get(redisUserString + "/add_contact_value"), Contact.class);
-            boolean isTransactionSuccess = persistenceService.addLenderTo(deserializeContact, lendSum, currentUser.getId());
-
-            if (isTransactionSuccess) {
-              resultMessage = "Successfully added lender. You can now track info by using /show command";
-            } else {
-              resultMessage = "Error adding lender. :(";
-            }
-            addLendSum = false;
-          } catch (NumberFormatException e) {
-            log.error(e.getMessage());
-            e.printStackTrace();
-            resultMessage = "Error while getting sum number. Try again :D";
-          } catch (Exception e) {
-            log.error(e.getMessage());
-            resultMessage = e.getMessage();
-          }
-          sendMessage(new SendMessage().setChatId(chatId).setText(resultMessage));
-
-          // Show information about all users connected with current user
-        } else if (updateHasText && (updateMessage.equals("/show") || updateMessage.equals("Show info"))) {
-          List<LendUser> allUserInformation = persistenceService.getAllUsersInformation(currentUser);
-          if (allUserInformation.isEmpty()) {
-            sendMessage(new SendMessage().setChatId(chatId).setText("You don't have any debts. Congrats! :)"));
-          } else {
-            sendMessage(new SendMessage()
-                .setChatId(chatId)
-                .setText(
-                    String.join("\n", allUserInformation.stream().map(LendUser::toString).collect(Collectors.toCollection(ArrayList::new)))
-                )
-            );
-          }
+    /* Page buttons */
+    } else if (update.hasCallbackQuery()) {
+      command = "turn_page";
+      chatId = update.getCallbackQuery().getFrom().getId();
+      turnPage(update.getCallbackQuery());
+    }
 
-          // Lend info edit process
-        } else if (updateHasText && (updateMessage.equals("/edit") || updateMessage.equals("Edit lender info"))) {
-          if (persistenceService.getAmountOfUsers(currentUser) > 0) {
-            StringBuilder editMessageBuilder = new StringBuilder().append("Select user: \n");
-            List<LendUser> allUserInformation = persistenceService.getAllUsersInformation(currentUser);
-            for (int i = 0; i < allUserInformation.size(); i++) {
-              editMessageBuilder.append("/").append(i + 1).append(" ").append(allUserInformation.get(i).toString()).append("\n");
-            }
-
-            sendMessage(new SendMessage().setChatId(chatId).setText(editMessageBuilder.toString()));
-            editUserStart = true;
-          } else {
-            sendMessage(new SendMessage().setChatId(chatId).setText("No users to edit. :)"));
-          }
-        } else if (editUserStart && updateHasText) {
-          List<LendUser> allUserInformation = persistenceService.getAllUsersInformation(currentUser);
-
-          if (updateMessage.matches("(/)?[0-9]+")) {
-            int userNumber = Integer.parseInt(updateMessage.replace("/", "").trim()) - 1;
-            redisDb.set(redisUserString + "/edit_user_id", String.valueOf(allUserInformation.get(userNumber).getUserId()));
-
-            if (userNumber >= allUserInformation.size()) {
-              sendMessage(new SendMessage().setChatId(chatId).setText("Number entered is too big to be correct. Try again!"));
-            } else {
-              ReplyKeyboardMarkup replyKeyboardMarkup = new ReplyKeyboardMarkup();
-              KeyboardRow firstRow = new KeyboardRow();
-              Arrays.asList("Increase", "Decrease").forEach(firstRow::add);
-              replyKeyboardMarkup.setKeyboard(Collections.singletonList(firstRow));
-
-              sendMessage(new SendMessage().setReplyMarkup(replyKeyboardMarkup).setChatId(chatId).setText("/1 Increase debt or /2 decrease ?"));
-              editUserStart = false;
-              editUserAction = true;
-            }
-          } else {
-            sendMessage(new SendMessage().setChatId(chatId).setText("User number format not correct."));
-          }
+    Metrics.histogram(Metrics.COMMAND_LATENCY, command).recordSince(startNanos);
+    Logs.update(log, chatId, command, System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Handles message in a group chat. Groups have no dialogs: members the bot sees are remembered, so bills can be
+   * split between them, and only /split, /join and /leave are answered.
+   *
+   * @return command label used for latency metrics
+   */
+  private String handleGroupMessage(Message message) {
+    try (Jedis redisDb = redisPool.getResource()) {
+      Long chatId = message.getChatId();
+      if (message.getNewChatMember() != null) {
+        // bot itself is never a member
+        if (!getBotUsername().equalsIgnoreCase(message.getNewChatMember().getUserName())) {
+          GroupMembers.add(redisDb, chatId, message.getNewChatMember());
+        }
+        return "group_join";
+      }
+      if (message.getLeftChatMember() != null) {
+        GroupMembers.remove(redisDb, chatId, message.getLeftChatMember().getId());
+        return "group_leave";
+      }
+      User from = message.getFrom();
+      if (from == null) {
+        return "unknown";
+      }
 
-        } else if (editUserAction && updateHasText) {
-          if (updateMessage.matches("(\\/)?[1-2](\\s)?|(Increase|Decrease)")) {
-            if (updateMessage.matches("(Increase|Decrease)")) {
-              updateMessage = (updateMessage.equals("Increase")) ? "1" : "2"; // fixme
-            }
+      Matcher commandMatcher = GROUP_COMMAND_PATTERN.matcher(message.hasText() ? message.getText().trim() : "");
+      if (!commandMatcher.matches() || (commandMatcher.group(2) != null && !commandMatcher.group(2).equalsIgnoreCase(getBotUsername()))) {
+        GroupMembers.add(redisDb, chatId, from);
+        return "group_message";
+      }
+      switch (commandMatcher.group(1)) {
+        case "join":
+          GroupMembers.add(redisDb, chatId, from);
+          send(new SendMessage().setChatId(chatId).setText(GroupMembers.nameOf(from) + " takes part in bill splits of this group now."));
+          return "group_join";
+        case "leave":
+          GroupMembers.remove(redisDb, chatId, from.getId());
+          send(new SendMessage().setChatId(chatId).setText(GroupMembers.nameOf(from) + " doesn't take part in bill splits of this group anymore."));
+          return "group_leave";
+        default:
+          GroupMembers.add(redisDb, chatId, from);
+          send(new SendMessage().setChatId(chatId).setText(splitBill(redisDb, chatId, from, commandMatcher.group(3))));
+          return "split";
+      }
+    }
+  }
 
-            int userAction = Integer.parseInt(updateMessage.replace("/", "").trim());
+  /**
+   * Splits bill of the /split arguments between the payer and the other group members.
+   *
+   * @return reply to the group
+   */
+  private String splitBill(Jedis redisDb, long chatId, User payer, String arguments) {
+    String usage = "Use /split <sum> [currency] [what it was for], e.g. \"/split 600 dinner\" or \"/split 20 EUR taxi\".";
+    Matcher argumentsMatcher = SPLIT_ARGUMENTS_PATTERN.matcher(arguments == null ? "" : arguments.trim());
+    if (!argumentsMatcher.matches()) {
+      return usage;
+    }
+    long sum;
+    try {
+      sum = Money.parse(argumentsMatcher.group(1));
+    } catch (NumberFormatException e) {
+      return usage;
+    }
+    if (sum <= 0) {
+      return "Sum must be greater than 0.";
+    }
 
-            sendMessage(new SendMessage().setChatId(chatId).setReplyMarkup(mainKeyboardMarkup).setText("Enter sum to " + ((userAction == 1) ? "increase" : "decrease")));
-            editUserAction = false;
-            editUserSum = true;
-            decreaseDebt = (userAction == 2);
-          } else {
-            sendMessage(new SendMessage().setChatId(chatId).setText("User number format not correct"));
-          }
-        } else if (editUserSum && updateHasText) {
-          try {
-            double editLendSum = Double.parseDouble(updateMessage);
-            if (editLendSum <= 0) {
-              throw new Exception("Sum should be greater than 0");
-            }
-
-            boolean result = persistenceService.editUser(currentUser.getId(), Integer.parseInt(redisDb.get(redisUserString + "/edit_user_id")), decreaseDebt, editLendSum);
-
-            sendMessage(new SendMessage().setChatId(chatId).setText(result ? "Successfully edited user! :)" : "Error editing user. :("));
-            editUserSum = false;
-          } catch (NumberFormatException e) {
-            log.error(e.getMessage());
-            e.printStackTrace();
-
-            sendMessage(new SendMessage().setChatId(chatId).setText("Error while getting sum number. Try again :D"));
-          } catch (Exception e) {
-            log.error(e.getMessage());
-            e.printStackTrace();
-
-            sendMessage(new SendMessage().setChatId(chatId).setText(e.getMessage()));
+    // three letters are description, like "bar", unless they are a known currency
+    FxRates rates = persistenceService.getFxRates();
+    String currency = BuildVars.BASE_CURRENCY;
+    String description = argumentsMatcher.group(3);
+    if (argumentsMatcher.group(2) != null) {
+      String code = argumentsMatcher.group(2).toUpperCase(Locale.ROOT);
+      if (rates.supports(code)) {
+        currency = code;
+      } else {
+        description = description == null ? argumentsMatcher.group(2) : argumentsMatcher.group(2) + " " + description;
+      }
+    }
+
+    Map<Integer, String> members = GroupMembers.get(redisDb, chatId);
+    members.remove(payer.getId());
+    if (members.isEmpty()) {
+      return "Nobody to split with yet. Members who want to share bills of this group should send /join.";
+    }
+    if (members.size() + 1 > BuildVars.SPLIT_MAX_MEMBERS) {
+      return "Bills can be split between at most " + BuildVars.SPLIT_MAX_MEMBERS + " people.";
+    }
+    if (sum / (members.size() + 1) == 0) {
+      return "Sum is too small to split between " + (members.size() + 1) + " people.";
+    }
+
+    BillSplit split = persistenceService.splitBill(payer, members, sum, currency, description);
+    return split == null ? "Error splitting the bill. :(" : split.toString();
+  }
+
+  /**
+   * Builds route table of private messages. Handlers are methods of the bot, binder ties them to a bot instance.
+   * Benchmarks bind them to no-op handlers to time routing through the same table.
+   *
+   * @param binder turns bot method into handler
+   * @return router with all commands and dialog steps
+   */
+  static CommandRouter createCommandRouter(Function<BiConsumer<LendMoneyBot, CommandContext>, CommandRouter.Handler> binder) {
+    return new CommandRouter()
+        .command("/start", null, "initiate bot, reset all current data", binder.apply(LendMoneyBot::start))
+        .command("/add", "Add lender", "add new person on debt list", binder.apply(LendMoneyBot::add))
+        .command("/show", "Show info", "print out all people on the list", binder.apply(LendMoneyBot::show))
+        .command("/edit", "Edit lender info", "change information about person on the list", binder.apply(LendMoneyBot::edit))
+        .command("/settle", null, "suggest fewest transfers that settle debts between you and people you're connected with",
+            binder.apply(LendMoneyBot::settle))
+        .command("/history", null, "print out changes of your debts, newest first", binder.apply(LendMoneyBot::history))
+        .command("/balance", null, "print out your debts as they were at the end of a given day", binder.apply(LendMoneyBot::balance))
+        .command("/import", null, "add debts from CSV file, one \"" + LedgerCsv.HEADER + "\" per line",
+            binder.apply(LendMoneyBot::importLedger))
+        .command("/export", null, "get all your debts as CSV file", binder.apply(LendMoneyBot::exportLedger))
+        .command("/remind", null, "remind you about a debt daily, weekly or monthly", binder.apply(LendMoneyBot::remind))
+        .command("/help", "Help", "print this message", binder.apply(LendMoneyBot::help))
+        .command("/about", null, "write any bugs, wishes and feedback here", binder.apply(LendMoneyBot::about))
+        .state(ConversationState.AWAITING_CONTACT, "add_contact", false, binder.apply(LendMoneyBot::addContact))
+        .state(ConversationState.AWAITING_ADD_SUM, "add_sum", true, binder.apply(LendMoneyBot::addSum))
+        .state(ConversationState.AWAITING_EDIT_SELECTION, "edit_selection", true, binder.apply(LendMoneyBot::editSelection))
+        .state(ConversationState.AWAITING_EDIT_ACTION, "edit_action", true, binder.apply(LendMoneyBot::editAction))
+        .state(ConversationState.AWAITING_EDIT_SUM, "edit_sum", true, binder.apply(LendMoneyBot::editSum))
+        .state(ConversationState.AWAITING_REMINDER_SELECTION, "reminder_selection", true,
+            binder.apply(LendMoneyBot::reminderSelection))
+        .state(ConversationState.AWAITING_REMINDER_INTERVAL, "reminder_interval", true, binder.apply(LendMoneyBot::reminderInterval))
+        .state(ConversationState.AWAITING_IMPORT_FILE, "import_file", false, binder.apply(LendMoneyBot::importFile))
+        .state(ConversationState.AWAITING_BALANCE_DATE, "balance_date", true, binder.apply(LendMoneyBot::balanceDate))
+        .otherwise(binder.apply((bot, context) -> bot.send(new SendMessage().setChatId(context.getChatId())
+            .setText("Unknown command. Use '/help' or custom keyboard to show available commands."))));
+  }
+
+  // Initialize bot
+  private void start(CommandContext context) {
+    String greetingText = "Welcome to LendMoneyBot!\nUse /add to start adding or /help to get things clear.";
+    SendMessage startSendMessage = new SendMessage().setChatId(context.getChatId()).setText(greetingText);
+    startSendMessage.setReplyMarkup(mainKeyboardMarkup);
+
+    send(startSendMessage);
+    conversationStore.moveTo(context.getUser().getId(), ConversationState.IDLE);
+  }
+
+  // Add new lender candidate action
+  private void add(CommandContext context) {
+    String addLenderMessage = "Send lender contact to this bot to proceed.";
+    send(new SendMessage().setChatId(context.getChatId()).setText(addLenderMessage));
+    conversationStore.moveTo(context.getUser().getId(), ConversationState.AWAITING_CONTACT);
+  }
+
+  // Getting contact from user
+  private void addContact(CommandContext context) {
+    Long chatId = context.getChatId();
+    Contact contact = context.getMessage().getContact();
+    if (contact != null) {
+      sessionSet(context.getRedisDb(), context.getSessionKey(), CONTACT_FIELD, sessionCodec.encodeContact(contact));
+      String lendSumMessage = "Got it. How much do you own to this person? :) Add currency code to the sum if it is not in "
+          + BuildVars.BASE_CURRENCY + ", e.g. \"20 EUR\".";
+      send(new SendMessage().setChatId(chatId).setText(lendSumMessage));
+      conversationStore.moveTo(context.getUser().getId(), ConversationState.AWAITING_ADD_SUM);
+    } else {
+      send(new SendMessage().setChatId(chatId).setText("Invalid contact received. Try again!"));
+    }
+  }
+
+  // Getting sum information from user
+  private void addSum(CommandContext context) {
+    int currentUserId = context.getUser().getId();
+    String resultMessage;
+    try {
+      Matcher addSumMatcher = ADD_SUM_PATTERN.matcher(context.getText());
+      if (!addSumMatcher.matches()) {
+        throw new NumberFormatException("Not a sum: " + context.getText());
+      }
+      boolean codeFirst = addSumMatcher.group(2) != null;
+      long lendSum = Money.parse(codeFirst ? addSumMatcher.group(2) : addSumMatcher.group(3));
+      String currencyCode = codeFirst ? addSumMatcher.group(1) : addSumMatcher.group(4);
+      String currency = currencyCode == null ? BuildVars.BASE_CURRENCY : currencyCode.toUpperCase(Locale.ROOT);
+      if (lendSum <= 0) {
+        throw new Exception("Sum must be greater than 0.");
+      }
+      FxRates rates = persistenceService.getFxRates();
+      if (!rates.supports(currency)) {
+        throw new Exception("Unknown currency " + currency + ", use one of " + String.join(", ", rates.getCurrencies()) + ".");
+      }
+
+      Contact deserializeContact = sessionGet(context.getRedisDb(), context.getSessionKey(), CONTACT_FIELD, sessionCodec::decodeContact);
+      LendUser added = deserializeContact == null ? null : persistenceService.addLenderTo(deserializeContact, lendSum, currency, currentUserId);
+      if (deserializeContact == null) {
+        resultMessage = "Contact was lost. Use /add to start again.";
+      } else if (added == null) {
+        resultMessage = "Error adding lender. :(";
+      } else if (!added.getCurrency().equals(currency)) {
+        resultMessage = "Successfully added lender. Debt to this person is kept in " + added.getCurrency() + ", so "
+            + Money.format(added.getSum(), added.getCurrency()) + " was added. You can now track info by using /show command";
+      } else {
+        resultMessage = "Successfully added lender. You can now track info by using /show command";
+      }
+      conversationStore.moveTo(currentUserId, ConversationState.IDLE);
+    } catch (NumberFormatException e) {
+      log.error(e.getMessage(), e);
+      resultMessage = "Error while getting sum number. Try again :D";
+    } catch (Exception e) {
+      log.error(e.getMessage());
+      resultMessage = e.getMessage();
+    }
+    send(new SendMessage().setChatId(context.getChatId()).setText(resultMessage));
+  }
+
+  // Show information about users connected with current user, page by page
+  private void show(CommandContext context) {
+    LedgerPage page = persistenceService.getLedgerPage(context.getUser(), LedgerPage.START, true);
+    if (page.isEmpty()) {
+      send(new SendMessage().setChatId(context.getChatId()).setText("You don't have any debts. Congrats! :)"));
+    } else {
+      send(new SendMessage().setChatId(context.getChatId()).setText(renderShowPage(page)).setReplyMarkup(showKeyboard(page)));
+    }
+  }
+
+  // Lend info edit process, lenders are numbered within the page
+  private void edit(CommandContext context) {
+    LedgerPage page = persistenceService.getLedgerPage(context.getUser(), LedgerPage.START, true);
+    if (!page.isEmpty()) {
+      rememberEditPage(context.getRedisDb(), context.getSessionKey(), page);
+      send(new SendMessage().setChatId(context.getChatId()).setText(renderEditPage(page)).setReplyMarkup(pageKeyboard(EDIT_VIEW, page)));
+      conversationStore.moveTo(context.getUser().getId(), ConversationState.AWAITING_EDIT_SELECTION);
+    } else {
+      send(new SendMessage().setChatId(context.getChatId()).setText("No users to edit. :)"));
+    }
+  }
+
+  private void editSelection(CommandContext context) {
+    Long chatId = context.getChatId();
+    Matcher userNumberMatcher = USER_NUMBER_PATTERN.matcher(context.getText());
+    if (userNumberMatcher.matches()) {
+      int[] pageUserIds = sessionGet(context.getRedisDb(), context.getSessionKey(), EDIT_PAGE_FIELD, sessionCodec::decodeUserIds);
+      int userNumber = Integer.parseInt(userNumberMatcher.group(1)) - 1;
+
+      if (pageUserIds == null) {
+        send(new SendMessage().setChatId(chatId).setText("User list was lost. Use /edit to start again."));
+      } else if (userNumber < 0 || userNumber >= pageUserIds.length) {
+        send(new SendMessage().setChatId(chatId).setText("Number entered is too big to be correct. Try again!"));
+      } else {
+        sessionSet(context.getRedisDb(), context.getSessionKey(), EDIT_USER_ID_FIELD, sessionCodec.encodeUserId(pageUserIds[userNumber]));
+        ReplyKeyboardMarkup replyKeyboardMarkup = new ReplyKeyboardMarkup();
+        KeyboardRow firstRow = new KeyboardRow();
+        Arrays.asList("Increase", "Decrease").forEach(firstRow::add);
+        replyKeyboardMarkup.setKeyboard(Collections.singletonList(firstRow));
+
+        send(new SendMessage().setReplyMarkup(replyKeyboardMarkup).setChatId(chatId).setText("/1 Increase debt or /2 decrease ?"));
+        conversationStore.moveTo(context.getUser().getId(), ConversationState.AWAITING_EDIT_ACTION);
+      }
+    } else {
+      send(new SendMessage().setChatId(chatId).setText("User number format not correct."));
+    }
+  }
+
+  private void editAction(CommandContext context) {
+    Matcher editActionMatcher = EDIT_ACTION_PATTERN.matcher(context.getText());
+    if (editActionMatcher.matches()) {
+      // group 1 holds action number, group 2 holds keyboard label
+      boolean decreaseDebt = editActionMatcher.group(1) != null ? editActionMatcher.group(1).equals("2")
+          : editActionMatcher.group(2).equals("Decrease");
+
+      send(new SendMessage().setChatId(context.getChatId()).setReplyMarkup(mainKeyboardMarkup)
+          .setText("Enter sum to " + (decreaseDebt ? "decrease" : "increase")));
+      conversationStore.moveTo(context.getUser().getId(), ConversationState.AWAITING_EDIT_SUM, decreaseDebt);
+    } else {
+      send(new SendMessage().setChatId(context.getChatId()).setText("User number format not correct"));
+    }
+  }
+
+  private void editSum(CommandContext context) {
+    Long chatId = context.getChatId();
+    int currentUserId = context.getUser().getId();
+    try {
+      long editLendSum = Money.parse(context.getText());
+      if (editLendSum <= 0) {
+        throw new Exception("Sum should be greater than 0");
+      }
+
+      Integer editUserId = sessionGet(context.getRedisDb(), context.getSessionKey(), EDIT_USER_ID_FIELD, sessionCodec::decodeUserId);
+      if (editUserId == null) {
+        send(new SendMessage().setChatId(chatId).setText("Selected user was lost. Use /edit to start again."));
+      } else {
+        boolean result = persistenceService.editUser(currentUserId, editUserId, context.getConversation().isDecreaseDebt(), editLendSum);
+        send(new SendMessage().setChatId(chatId).setText(result ? "Successfully edited user! :)" : "Error editing user. :("));
+      }
+      conversationStore.moveTo(currentUserId, ConversationState.IDLE);
+    } catch (NumberFormatException e) {
+      log.error(e.getMessage(), e);
+
+      send(new SendMessage().setChatId(chatId).setText("Error while getting sum number. Try again :D"));
+    } catch (Exception e) {
+      log.error(e.getMessage(), e);
+
+      send(new SendMessage().setChatId(chatId).setText(e.getMessage()));
+    }
+  }
+
+  // Reminder setup, lenders are numbered within the page like in edit
+  private void remind(CommandContext context) {
+    LedgerPage page = persistenceService.getLedgerPage(context.getUser(), LedgerPage.START, true);
+    if (!page.isEmpty()) {
+      rememberEditPage(context.getRedisDb(), context.getSessionKey(), page);
+      send(new SendMessage().setChatId(context.getChatId()).setText(renderEditPage(page)).setReplyMarkup(pageKeyboard(EDIT_VIEW, page)));
+      conversationStore.moveTo(context.getUser().getId(), ConversationState.AWAITING_REMINDER_SELECTION);
+    } else {
+      send(new SendMessage().setChatId(context.getChatId()).setText("No debts to remind you about. :)"));
+    }
+  }
+
+  private void reminderSelection(CommandContext context) {
+    Long chatId = context.getChatId();
+    Matcher userNumberMatcher = USER_NUMBER_PATTERN.matcher(context.getText());
+    if (userNumberMatcher.matches()) {
+      int[] pageUserIds = sessionGet(context.getRedisDb(), context.getSessionKey(), EDIT_PAGE_FIELD, sessionCodec::decodeUserIds);
+      int userNumber = Integer.parseInt(userNumberMatcher.group(1)) - 1;
+
+      if (pageUserIds == null) {
+        send(new SendMessage().setChatId(chatId).setText("User list was lost. Use /remind to start again."));
+      } else if (userNumber < 0 || userNumber >= pageUserIds.length) {
+        send(new SendMessage().setChatId(chatId).setText("Number entered is too big to be correct. Try again!"));
+      } else {
+        sessionSet(context.getRedisDb(), context.getSessionKey(), EDIT_USER_ID_FIELD, sessionCodec.encodeUserId(pageUserIds[userNumber]));
+        KeyboardRow firstRow = new KeyboardRow();
+        Arrays.asList("Daily", "Weekly", "Monthly", "Off").forEach(firstRow::add);
+        send(new SendMessage().setReplyMarkup(new ReplyKeyboardMarkup().setKeyboard(Collections.singletonList(firstRow))).setChatId(chatId)
+            .setText("How often should I remind you? /daily, /weekly, /monthly or /off to stop reminders."));
+        conversationStore.moveTo(context.getUser().getId(), ConversationState.AWAITING_REMINDER_INTERVAL);
+      }
+    } else {
+      send(new SendMessage().setChatId(chatId).setText("User number format not correct."));
+    }
+  }
+
+  private void reminderInterval(CommandContext context) {
+    Matcher intervalMatcher = REMINDER_INTERVAL_PATTERN.matcher(context.getText());
+    if (!intervalMatcher.matches()) {
+      send(new SendMessage().setChatId(context.getChatId()).setText("Choose /daily, /weekly, /monthly or /off."));
+      return;
+    }
+
+    int currentUserId = context.getUser().getId();
+    String interval = intervalMatcher.group(1).toLowerCase();
+    Integer lenderId = sessionGet(context.getRedisDb(), context.getSessionKey(), EDIT_USER_ID_FIELD, sessionCodec::decodeUserId);
+    String resultMessage;
+    if (lenderId == null) {
+      resultMessage = "Selected user was lost. Use /remind to start again.";
+    } else if (interval.equals("off")) {
+      if (persistenceService.removeReminder(currentUserId, lenderId)) {
+        reminderScheduler.cancel(currentUserId, lenderId);
+        resultMessage = "Reminder is off.";
+      } else {
+        resultMessage = "Error turning reminder off. :(";
+      }
+    } else {
+      long intervalDays = interval.equals("daily") ? 1 : interval.equals("weekly") ? 7 : 30;
+      Reminder reminder = persistenceService.setReminder(currentUserId, lenderId, TimeUnit.DAYS.toMillis(intervalDays));
+      if (reminder != null) {
+        reminderScheduler.schedule(reminder);
+        resultMessage = "Done! I'll remind you about this debt " + interval + ".";
+      } else {
+        resultMessage = "Error setting reminder. :(";
+      }
+    }
+    send(new SendMessage().setChatId(context.getChatId()).setReplyMarkup(mainKeyboardMarkup).setText(resultMessage));
+    conversationStore.moveTo(currentUserId, ConversationState.IDLE);
+  }
+
+  /**
+   * Sends due reminders to borrowers' private chats. Called on reminder worker thread, which waits while outbound
+   * queue is long, so reminders only take sending capacity replies to users leave.
+   *
+   * @return whether each reminder is still needed, reminders of paid off debts are not
+   */
+  private boolean[] deliverReminders(List<Reminder> due) {
+    boolean[] keep = new boolean[due.size()];
+    Map<Integer, List<LendUser>> ledgers = new HashMap<>();
+    for (int i = 0; i < due.size(); i++) {
+      while (outboundSender.getQueueDepth() > BuildVars.REMINDER_MAX_OUTBOUND_DEPTH) {
+        try {
+          TimeUnit.MILLISECONDS.sleep(100);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+
+      Reminder reminder = due.get(i);
+      List<LendUser> ledger = ledgers.computeIfAbsent(reminder.getBorrowerId(), persistenceService::getLedger);
+      if (ledger == null) {
+        // ledger can't be read now, try next time
+        keep[i] = true;
+        continue;
+      }
+      String lenderName = null;
+      String currency = null;
+      long debt = 0;
+      for (LendUser lendUser : ledger) {
+        if (lendUser.getUserId() == reminder.getLenderId()) {
+          lenderName = lendUser.getName();
+          currency = lendUser.getCurrency();
+          debt += lendUser.getSum();
+        }
+      }
+      if (debt > 0) {
+        // private chat of the borrower has the same id as the borrower
+        long chatId = reminder.getBorrowerId();
+        send(new SendMessage().setChatId(chatId)
+            .setText("Reminder: you owe " + lenderName + " " + Money.format(debt, currency) + ". Use /remind to change or turn it off."));
+        keep[i] = true;
+      }
+    }
+    return keep;
+  }
+
+  private void settle(CommandContext context) {
+    Settlement settlement = persistenceService.getSettlement(context.getUser());
+    send(new SendMessage().setChatId(context.getChatId()).setText(settlement == null ? "Error computing settlement. :(" : settlement.toString()));
+  }
+
+  // Changes of debts, page by page
+  private void history(CommandContext context) {
+    HistoryPage page = persistenceService.getHistoryPage(context.getUser(), HistoryPage.START, true);
+    if (page == null) {
+      send(new SendMessage().setChatId(context.getChatId()).setText("History is not available. :("));
+    } else if (page.isEmpty()) {
+      send(new SendMessage().setChatId(context.getChatId()).setText("No changes yet. :)"));
+    } else {
+      send(new SendMessage().setChatId(context.getChatId()).setText(renderHistoryPage(page)).setReplyMarkup(historyKeyboard(page)));
+    }
+  }
+
+  private void balance(CommandContext context) {
+    send(new SendMessage().setChatId(context.getChatId()).setText("Enter the day as YYYY-MM-DD, e.g. 2017-03-31. Time is in UTC."));
+    conversationStore.moveTo(context.getUser().getId(), ConversationState.AWAITING_BALANCE_DATE);
+  }
+
+  // Getting day from user, debts are shown as they were at the end of it
+  private void balanceDate(CommandContext context) {
+    Long chatId = context.getChatId();
+    LocalDate day;
+    try {
+      day = LocalDate.parse(context.getText().trim());
+    } catch (DateTimeParseException e) {
+      send(new SendMessage().setChatId(chatId).setText("Day format not correct. Try again!"));
+      return;
+    }
+
+    long endOfDayMillis = day.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() - 1;
+    List<LendUser> ledger = persistenceService.getLedgerAt(context.getUser(), endOfDayMillis);
+    String resultMessage;
+    if (ledger == null) {
+      resultMessage = "History is not available. :(";
+    } else if (ledger.isEmpty()) {
+      resultMessage = "You didn't have any debts at the end of " + day + ". :)";
+    } else {
+      StringBuilder balanceMessageBuilder = new StringBuilder().append("Debts at the end of ").append(day).append(":");
+      for (int i = 0; i < ledger.size() && i < BuildVars.LEDGER_PAGE_SIZE; i++) {
+        balanceMessageBuilder.append("\n").append(ledger.get(i).toString());
+      }
+      if (ledger.size() > BuildVars.LEDGER_PAGE_SIZE) {
+        balanceMessageBuilder.append("\n...and ").append(ledger.size() - BuildVars.LEDGER_PAGE_SIZE).append(" more.");
+      }
+      resultMessage = balanceMessageBuilder.toString();
+    }
+    send(new SendMessage().setChatId(chatId).setText(resultMessage));
+    conversationStore.moveTo(context.getUser().getId(), ConversationState.IDLE);
+  }
+
+  private void importLedger(CommandContext context) {
+    send(new SendMessage().setChatId(context.getChatId()).setText("Send CSV file with one debt per line: \""
+        + LedgerCsv.HEADER + "\", e.g. \"12345,John Doe,10.50,EUR\". Lender id is Telegram user id."));
+    conversationStore.moveTo(context.getUser().getId(), ConversationState.AWAITING_IMPORT_FILE);
+  }
+
+  // Getting CSV document from user, file is downloaded to temporary file and read line by line
+  private void importFile(CommandContext context) {
+    Long chatId = context.getChatId();
+    Document document = context.getMessage().getDocument();
+    if (document == null) {
+      send(new SendMessage().setChatId(chatId).setText("Invalid file received. Send CSV file as document. Try again!"));
+      return;
+    }
+    if (document.getFileSize() != null && document.getFileSize() > BuildVars.IMPORT_MAX_FILE_BYTES) {
+      send(new SendMessage().setChatId(chatId).setText("File is too big, split it into files under "
+          + BuildVars.IMPORT_MAX_FILE_BYTES / 1024 / 1024 + " MB."));
+      return;
+    }
+
+    String resultMessage;
+    File file = null;
+    try {
+      file = downloadFile(getFile(new GetFile().setFileId(document.getFileId())));
+      try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+        resultMessage = persistenceService.importLedger(context.getUser(), reader).toString();
+      }
+      conversationStore.moveTo(context.getUser().getId(), ConversationState.IDLE);
+    } catch (TelegramApiException e) {
+      Metrics.increment(Metrics.ERRORS, "telegram");
+      log.error("Unable to download " + document.getFileId() + ": " + e.getMessage());
+      resultMessage = "Unable to get the file from Telegram. Try again!";
+    } catch (IOException e) {
+      // malformed UTF-8 included
+      log.error(e.getMessage());
+      resultMessage = "Unable to read the file, make sure it is UTF-8 text. Try again!";
+    } finally {
+      if (file != null && !file.delete()) {
+        log.error("Unable to delete imported file " + file + ".");
+      }
+    }
+    send(new SendMessage().setChatId(chatId).setText(resultMessage));
+  }
+
+  // Debts are written to temporary file, outbound sender deletes it after upload
+  private void exportLedger(CommandContext context) {
+    Long chatId = context.getChatId();
+    Path path = null;
+    try {
+      path = Files.createTempFile("ledger-", ".csv");
+      int exportedCount;
+      try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+        exportedCount = persistenceService.exportLedger(context.getUser(), writer);
+      }
+
+      if (exportedCount > 0) {
+        outboundSender.enqueue(new SendDocument().setChatId(chatId).setNewDocument(path.toFile())
+            .setCaption(exportedCount + (exportedCount == 1 ? " debt" : " debts")));
+        path = null;
+      } else {
+        send(new SendMessage().setChatId(chatId).setText(exportedCount == 0 ? "You don't have any debts. Congrats! :)" : "Error exporting debts. :("));
+      }
+    } catch (IOException e) {
+      log.error(e.getMessage());
+      send(new SendMessage().setChatId(chatId).setText("Error exporting debts. :("));
+    } finally {
+      try {
+        if (path != null) {
+          Files.deleteIfExists(path);
+        }
+      } catch (IOException e) {
+        log.error("Unable to delete export file " + path + ": " + e.getMessage());
+      }
+    }
+  }
+
+  // Simple help information with possible commands, generated from registered commands
+  private void help(CommandContext context) {
+    send(new SendMessage().setChatId(context.getChatId()).setText(helpText));
+  }
+
+  private void about(CommandContext context) {
+    StringBuilder aboutStringBuilder = new StringBuilder();
+    aboutStringBuilder
+        .append("Developer: @maksym_tymoshyk\n");
+//        .append("Icons: icon authors");
+    send(new SendMessage().setChatId(context.getChatId()).setText(aboutStringBuilder.toString()));
+  }
+
+  /**
+   * Turns the page of /show, /edit or /history message on prev/next button press, sends total of /show debts on
+   * total button press.
+   */
+  private void turnPage(CallbackQuery callbackQuery) {
+    AnswerCallbackQuery answerCallbackQuery = new AnswerCallbackQuery().setCallbackQueryId(callbackQuery.getId());
+    String data = callbackQuery.getData() == null ? "" : callbackQuery.getData();
+    Matcher pageMatcher = PAGE_CALLBACK_PATTERN.matcher(data);
+    Matcher historyPageMatcher = HISTORY_CALLBACK_PATTERN.matcher(data);
+    Matcher totalMatcher = TOTAL_CALLBACK_PATTERN.matcher(data);
+    Message message = callbackQuery.getMessage();
+    if (totalMatcher.matches() && message != null) {
+      LedgerTotal total = persistenceService.getLedgerTotal(callbackQuery.getFrom(), totalMatcher.group(1));
+      if (total == null) {
+        answerCallbackQuery.setText("Can't count total now. :(");
+      } else {
+        send(new SendMessage().setChatId(message.getChatId()).setText(total.toString()));
+      }
+    } else if (historyPageMatcher.matches() && message != null) {
+      HistoryPage page = persistenceService.getHistoryPage(callbackQuery.getFrom(), Long.parseLong(historyPageMatcher.group(2)),
+          historyPageMatcher.group(1).equals(NEXT_PAGE));
+      if (page == null || page.isEmpty()) {
+        answerCallbackQuery.setText("Nothing more to show.");
+      } else {
+        outboundSender.enqueue(new EditMessageText().setChatId(message.getChatId()).setMessageId(message.getMessageId())
+            .setText(renderHistoryPage(page)).setReplyMarkup(historyKeyboard(page)));
+      }
+    } else if (pageMatcher.matches() && message != null) {
+      String view = pageMatcher.group(1);
+      long fromLenderId = Long.parseLong(pageMatcher.group(3));
+      LedgerPage page = fromLenderId < Integer.MIN_VALUE || fromLenderId > Integer.MAX_VALUE ? null
+          : persistenceService.getLedgerPage(callbackQuery.getFrom(), (int) fromLenderId, pageMatcher.group(2).equals(NEXT_PAGE));
+
+      if (page == null || page.isEmpty()) {
+        answerCallbackQuery.setText("Nothing more to show.");
+      } else {
+        String text;
+        if (view.equals(EDIT_VIEW)) {
+          try (Jedis redisDb = redisPool.getResource()) {
+            rememberEditPage(redisDb, sessionKey(callbackQuery.getFrom().getId()), page);
           }
-          // Simple help information with possible commands
-        } else if (updateHasText && (updateMessage.equals("/help") || updateMessage.equals("Help"))) {
-          StringBuilder helpBuilder = new StringBuilder();
-          helpBuilder
-              .append("I can help you to track information about your debts to other people on Telegram.\n")
-              .append("\nList of available commands:\n")
-              .append("/start - initiate bot, reset all current data\n")
-              .append("/add - add new person on debt list\n")
-              .append("/show - print out all people on the list\n")
-              .append("/edit - change information about person on the list\n")
-              .append("/help - print this message\n")
-              .append("/about - write any bugs, wishes and feedback here\n");
-
-          sendMessage(new SendMessage().setChatId(chatId).setText(helpBuilder.toString()));
-        } else if (updateHasText && updateMessage.equals("/about")) {
-          StringBuilder aboutStringBuilder = new StringBuilder();
-          aboutStringBuilder
-              .append("Developer: @maksym_tymoshyk\n");
-//              .append("Icons: icon authors");
-          sendMessage(new SendMessage().setChatId(chatId).setText(aboutStringBuilder.toString()));
+          text = renderEditPage(page);
         } else {
-          sendMessage(new SendMessage().setChatId(chatId).setText("Unknown command. Use '/help' or custom keyboard to show available commands."));
+          text = renderShowPage(page);
         }
-      } catch (TelegramApiException e) {
-        e.printStackTrace();
-        log.error(e.getMessage());
+        outboundSender.enqueue(new EditMessageText().setChatId(message.getChatId()).setMessageId(message.getMessageId())
+            .setText(text).setReplyMarkup(view.equals(EDIT_VIEW) ? pageKeyboard(view, page) : showKeyboard(page)));
+      }
+    }
+    outboundSender.enqueue(answerCallbackQuery);
+  }
+
+  private void rememberEditPage(Jedis redisDb, byte[] sessionKey, LedgerPage page) {
+    int[] pageUserIds = new int[page.getEntries().size()];
+    for (int i = 0; i < pageUserIds.length; i++) {
+      pageUserIds[i] = page.getEntries().get(i).getUserId();
+    }
+    sessionSet(redisDb, sessionKey, EDIT_PAGE_FIELD, sessionCodec.encodeUserIds(pageUserIds));
+  }
+
+  static String renderShowPage(LedgerPage page) {
+    StringBuilder showMessageBuilder = new StringBuilder();
+    for (LendUser lendUser : page.getEntries()) {
+      if (showMessageBuilder.length() > 0) {
+        showMessageBuilder.append("\n");
+      }
+      showMessageBuilder.append(lendUser.toString());
+    }
+    return showMessageBuilder.toString();
+  }
+
+  static String renderEditPage(LedgerPage page) {
+    StringBuilder editMessageBuilder = new StringBuilder().append("Select user: \n");
+    for (int i = 0; i < page.getEntries().size(); i++) {
+      editMessageBuilder.append("/").append(i + 1).append(" ").append(page.getEntries().get(i).toString()).append("\n");
+    }
+    return editMessageBuilder.toString();
+  }
+
+  private static String renderHistoryPage(HistoryPage page) {
+    StringBuilder historyMessageBuilder = new StringBuilder();
+    for (HistoryEntry entry : page.getEntries()) {
+      if (historyMessageBuilder.length() > 0) {
+        historyMessageBuilder.append("\n");
+      }
+      historyMessageBuilder.append(entry.toString());
+    }
+    return historyMessageBuilder.toString();
+  }
+
+  /**
+   * @return newer/older buttons of the history page or null if page is the only one
+   */
+  private static InlineKeyboardMarkup historyKeyboard(HistoryPage page) {
+    List<InlineKeyboardButton> buttons = new ArrayList<>(2);
+    List<HistoryEntry> entries = page.getEntries();
+    if (page.isHasNewer()) {
+      buttons.add(new InlineKeyboardButton().setText("« Newer")
+          .setCallbackData(HISTORY_VIEW + ":" + PREVIOUS_PAGE + ":" + entries.get(0).getId()));
+    }
+    if (page.isHasOlder()) {
+      buttons.add(new InlineKeyboardButton().setText("Older »")
+          .setCallbackData(HISTORY_VIEW + ":" + NEXT_PAGE + ":" + entries.get(entries.size() - 1).getId()));
+    }
+    return buttons.isEmpty() ? null : new InlineKeyboardMarkup().setKeyboard(Collections.singletonList(buttons));
+  }
+
+  /**
+   * @return prev/next buttons of the page or null if page is the only one
+   */
+  private static InlineKeyboardMarkup pageKeyboard(String view, LedgerPage page) {
+    List<InlineKeyboardButton> buttons = new ArrayList<>(2);
+    List<LendUser> entries = page.getEntries();
+    if (page.isHasPrevious()) {
+      buttons.add(new InlineKeyboardButton().setText("« Prev")
+          .setCallbackData(view + ":" + PREVIOUS_PAGE + ":" + entries.get(0).getUserId()));
+    }
+    if (page.isHasNext()) {
+      buttons.add(new InlineKeyboardButton().setText("Next »")
+          .setCallbackData(view + ":" + NEXT_PAGE + ":" + entries.get(entries.size() - 1).getUserId()));
+    }
+    return buttons.isEmpty() ? null : new InlineKeyboardMarkup().setKeyboard(Collections.singletonList(buttons));
+  }
+
+  /**
+   * @return prev/next buttons of the /show page followed by total buttons, one per known currency
+   */
+  private InlineKeyboardMarkup showKeyboard(LedgerPage page) {
+    List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+    InlineKeyboardMarkup pageKeyboard = pageKeyboard(SHOW_VIEW, page);
+    if (pageKeyboard != null) {
+      rows.addAll(pageKeyboard.getKeyboard());
+    }
+    List<InlineKeyboardButton> totalButtons = new ArrayList<>(TOTAL_BUTTONS_PER_ROW);
+    for (String currency : persistenceService.getFxRates().getCurrencies()) {
+      if (totalButtons.size() == TOTAL_BUTTONS_PER_ROW) {
+        rows.add(totalButtons);
+        totalButtons = new ArrayList<>(TOTAL_BUTTONS_PER_ROW);
       }
+      totalButtons.add(new InlineKeyboardButton().setText("Total " + currency).setCallbackData(TOTAL_VIEW + ":" + currency));
     }
+    rows.add(totalButtons);
+    return new InlineKeyboardMarkup().setKeyboard(rows);
+  }
+
+  private static byte[] sessionKey(int userId) {
+    return SafeEncoder.encode("user/" + userId + "/session");
+  }
+
+  private void send(SendMessage sendMessage) {
+    outboundSender.enqueue(sendMessage);
+  }
+
+  /**
+   * Stores dialog scratch value in user session hash. Session expires together with unfinished dialog.
+   */
+  private static void sessionSet(Jedis redisDb, byte[] sessionKey, byte[] field, byte[] value) {
+    long startNanos = System.nanoTime();
+    Pipeline pipeline = redisDb.pipelined();
+    pipeline.hset(sessionKey, field, value);
+    pipeline.pexpire(sessionKey, TimeUnit.MINUTES.toMillis(BuildVars.CONVERSATION_TTL_MINUTES));
+    pipeline.sync();
+    Metrics.histogram(Metrics.REDIS_LATENCY, "session_set").recordSince(startNanos);
+  }
+
+  /**
+   * @return decoded session value or null if it is missing or unreadable
+   */
+  private static <T> T sessionGet(Jedis redisDb, byte[] sessionKey, byte[] field, Function<byte[], T> decoder) {
+    long startNanos = System.nanoTime();
+    byte[] value = redisDb.hget(sessionKey, field);
+    Metrics.histogram(Metrics.REDIS_LATENCY, "session_get").recordSince(startNanos);
+    return value == null ? null : decoder.apply(value);
   }
 
   @Override
@@ -283,4 +1048,32 @@ public class LendMoneyBot extends TelegramLongPollingBot {
   public String getBotToken() {
     return BuildVars.BOT_API_KEY;
   }
+
+  /**
+   * Moves conversations, cached ledgers and reminders of partition users between cluster nodes. Conversations go
+   * through Redis, ledgers and reminders are simply loaded again from the shared store by the next owner.
+   */
+  private class PartitionHandOver implements ClusterNode.PartitionListener {
+
+    @Override
+    public void acquired(int partition) {
+      conversationStore.forget(userId -> ClusterNode.partitionOf(userId, BuildVars.CLUSTER_PARTITIONS) == partition);
+      persistenceService.invalidateCachedLedgers(userId -> ClusterNode.partitionOf(userId, BuildVars.CLUSTER_PARTITIONS) == partition);
+      reminderScheduler.load(userId -> ClusterNode.partitionOf(userId, BuildVars.CLUSTER_PARTITIONS) == partition);
+    }
+
+    @Override
+    public void released(int partition) {
+      conversationStore.handOver(userId -> ClusterNode.partitionOf(userId, BuildVars.CLUSTER_PARTITIONS) == partition);
+      persistenceService.invalidateCachedLedgers(userId -> ClusterNode.partitionOf(userId, BuildVars.CLUSTER_PARTITIONS) == partition);
+      reminderScheduler.forget(userId -> ClusterNode.partitionOf(userId, BuildVars.CLUSTER_PARTITIONS) == partition);
+    }
+
+    @Override
+    public void lost(int partition) {
+      conversationStore.forget(userId -> ClusterNode.partitionOf(userId, BuildVars.CLUSTER_PARTITIONS) == partition);
+      persistenceService.invalidateCachedLedgers(userId -> ClusterNode.partitionOf(userId, BuildVars.CLUSTER_PARTITIONS) == partition);
+      reminderScheduler.forget(userId -> ClusterNode.partitionOf(userId, BuildVars.CLUSTER_PARTITIONS) == partition);
+    }
+  }
 }
@@ -32,10 +32,13 @@ import lombok.Data;
 public class LendUser {
   private int userId;
   private String name;
-  private double sum;
+  // in minor units, see Money
+  private long sum;
+  // ISO 4217 code, all debts of a lending pair are in one currency
+  private String currency;
 
   @Override
   public String toString() {
-    return name + " -> ₴" + sum + " pending.";
+    return name + " -> " + Money.format(sum, currency) + " pending.";
   }
 }
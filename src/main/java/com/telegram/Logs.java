@@ -0,0 +1,139 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Parameterized and structured log lines for the request path. Message is formatted only when its level is enabled,
+ * and there are no varargs arrays or boxed fields, so a call with disabled level allocates nothing.
+ * <p>
+ * Parameterized messages replace every {@code {}} with next argument, e.g. {@code Logs.debug(log, "Query: {}", query)}.
+ * Structured lines are written as {@code key=value} fields, values with spaces or quotes are quoted.
+ */
+final class Logs {
+  private static final String PLACEHOLDER = "{}";
+
+  private Logs() {
+  }
+
+  static void debug(Logger log, String pattern, Object argument) {
+    if (log.isDebugEnabled()) {
+      log.debug(format(pattern, argument, null, 1));
+    }
+  }
+
+  static void debug(Logger log, String pattern, Object first, Object second) {
+    if (log.isDebugEnabled()) {
+      log.debug(format(pattern, first, second, 2));
+    }
+  }
+
+  static void info(Logger log, String pattern, Object argument) {
+    if (log.isInfoEnabled()) {
+      log.info(format(pattern, argument, null, 1));
+    }
+  }
+
+  static void info(Logger log, String pattern, Object first, Object second) {
+    if (log.isInfoEnabled()) {
+      log.info(format(pattern, first, second, 2));
+    }
+  }
+
+  static void error(Logger log, String pattern, Object argument) {
+    if (log.isEnabledFor(Level.ERROR)) {
+      log.error(format(pattern, argument, null, 1));
+    }
+  }
+
+  static void error(Logger log, String pattern, Object first, Object second) {
+    if (log.isEnabledFor(Level.ERROR)) {
+      log.error(format(pattern, first, second, 2));
+    }
+  }
+
+  static void error(Logger log, String pattern, Object first, Object second, Throwable throwable) {
+    if (log.isEnabledFor(Level.ERROR)) {
+      log.error(format(pattern, first, second, 2), throwable);
+    }
+  }
+
+  /**
+   * Logs handled update at debug level, e.g. {@code update chat_id=42 command=/add latency_ms=1.250}.
+   *
+   * @param log          logger to write to
+   * @param chatId       chat the update came from, user id for inline queries and page buttons
+   * @param command      command label, as used in command latency metric
+   * @param latencyNanos time spent handling the update
+   */
+  static void update(Logger log, long chatId, String command, long latencyNanos) {
+    if (log.isDebugEnabled()) {
+      StringBuilder line = new StringBuilder(64).append("update");
+      appendField(line, "chat_id").append(chatId);
+      appendValue(appendField(line, "command"), command);
+      appendMillis(appendField(line, "latency_ms"), latencyNanos);
+      log.debug(line.toString());
+    }
+  }
+
+  private static String format(String pattern, Object first, Object second, int argumentCount) {
+    StringBuilder message = new StringBuilder(pattern.length() + 32);
+    int start = 0;
+    for (int argument = 0; argument < argumentCount; argument++) {
+      int placeholder = pattern.indexOf(PLACEHOLDER, start);
+      if (placeholder < 0) {
+        break;
+      }
+      message.append(pattern, start, placeholder).append(argument == 0 ? first : second);
+      start = placeholder + PLACEHOLDER.length();
+    }
+    return message.append(pattern, start, pattern.length()).toString();
+  }
+
+  private static StringBuilder appendField(StringBuilder line, String key) {
+    return line.append(' ').append(key).append('=');
+  }
+
+  private static void appendValue(StringBuilder line, String value) {
+    if (value.isEmpty() || value.indexOf(' ') >= 0 || value.indexOf('"') >= 0 || value.indexOf('=') >= 0) {
+      line.append('"').append(value.replace("\"", "\\\"")).append('"');
+    } else {
+      line.append(value);
+    }
+  }
+
+  private static void appendMillis(StringBuilder line, long nanos) {
+    long micros = nanos / 1000;
+    long fraction = micros % 1000;
+    line.append(micros / 1000).append('.');
+    if (fraction < 100) {
+      line.append(fraction < 10 ? "00" : "0");
+    }
+    line.append(fraction);
+  }
+}
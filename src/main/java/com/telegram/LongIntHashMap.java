@@ -0,0 +1,124 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from primitive long keys to primitive int values, neither keys nor values are boxed.
+ * Free slots hold the missing value, so it can't be stored. Entries can't be removed, which is enough for indexes
+ * where keys only ever get added.
+ * Not thread safe.
+ */
+class LongIntHashMap {
+  private static final float LOAD_FACTOR = 0.6f;
+
+  private final int missingValue;
+  private long[] keys;
+  private int[] values;
+  private int size;
+  private int resizeThreshold;
+
+  /**
+   * @param expectedSize number of entries map is sized for
+   * @param missingValue value returned for keys that are not in the map
+   */
+  LongIntHashMap(int expectedSize, int missingValue) {
+    this.missingValue = missingValue;
+    int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+    allocate(capacity);
+  }
+
+  /**
+   * @param key map key
+   * @return value under the key or missing value if there is none
+   */
+  int get(long key) {
+    int mask = keys.length - 1;
+    for (int slot = slotOf(key, mask); values[slot] != missingValue; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        return values[slot];
+      }
+    }
+    return missingValue;
+  }
+
+  /**
+   * Puts value under the key replacing previous one.
+   *
+   * @param key   map key
+   * @param value any value except the missing value
+   */
+  void put(long key, int value) {
+    if (value == missingValue) {
+      throw new IllegalArgumentException("Missing value can't be stored.");
+    }
+
+    int mask = keys.length - 1;
+    int slot = slotOf(key, mask);
+    while (values[slot] != missingValue) {
+      if (keys[slot] == key) {
+        values[slot] = value;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size > resizeThreshold) {
+      resize();
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void resize() {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(keys.length << 1);
+    size = 0;
+    for (int slot = 0; slot < oldKeys.length; slot++) {
+      if (oldValues[slot] != missingValue) {
+        put(oldKeys[slot], oldValues[slot]);
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new int[capacity];
+    Arrays.fill(values, missingValue);
+    resizeThreshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private static int slotOf(long key, int mask) {
+    // spread bits, ids are often sequential
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map with primitive long keys, avoids boxing of every key and per-entry node objects.
+ * Entries can't be removed, which is enough for indexes where keys only ever get added.
+ * Not thread safe.
+ *
+ * @param <V> type of values
+ */
+class LongObjectHashMap<V> {
+  private static final float LOAD_FACTOR = 0.6f;
+
+  private long[] keys;
+  private Object[] values;
+  private int size;
+  private int resizeThreshold;
+
+  LongObjectHashMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+    allocate(capacity);
+  }
+
+  @SuppressWarnings("unchecked")
+  V get(long key) {
+    int mask = keys.length - 1;
+    for (int slot = slotOf(key, mask); values[slot] != null; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        return (V) values[slot];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Puts value under the key replacing previous one.
+   *
+   * @param key   map key
+   * @param value non-null value
+   */
+  void put(long key, V value) {
+    if (value == null) {
+      throw new IllegalArgumentException("Null values are not supported.");
+    }
+
+    int mask = keys.length - 1;
+    int slot = slotOf(key, mask);
+    while (values[slot] != null) {
+      if (keys[slot] == key) {
+        values[slot] = value;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size > resizeThreshold) {
+      resize();
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  @SuppressWarnings("unchecked")
+  void forEach(Consumer<V> consumer) {
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (values[slot] != null) {
+        consumer.accept(keys[slot], (V) values[slot]);
+      }
+    }
+  }
+
+  void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  private void resize() {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate(keys.length << 1);
+    size = 0;
+    for (int slot = 0; slot < oldKeys.length; slot++) {
+      if (oldValues[slot] != null) {
+        put(oldKeys[slot], uncheckedCast(oldValues[slot]));
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    resizeThreshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  @SuppressWarnings("unchecked")
+  private V uncheckedCast(Object value) {
+    return (V) value;
+  }
+
+  private static int slotOf(long key, int mask) {
+    // spread bits, ids are often sequential
+    long hash = key * 0x9E3779B97F4A7C15L;
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+
+  @FunctionalInterface
+  interface Consumer<V> {
+    void accept(long key, V value);
+  }
+}
@@ -25,24 +25,99 @@
 package com.telegram;
 
 import lombok.extern.log4j.Log4j;
+import org.apache.log4j.LogManager;
 import org.telegram.telegrambots.ApiContextInitializer;
 import org.telegram.telegrambots.TelegramBotsApi;
 import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+import org.telegram.telegrambots.generics.BotSession;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 @Log4j
 public class Main {
   public static void main(String[] args) {
+    RingBufferAppender.install(BuildVars.LOG_RING_BUFFER_SIZE);
     ApiContextInitializer.init();
     log.info("ApiContextInitializer initialized.");
 
     TelegramBotsApi telegramBotsApi = new TelegramBotsApi();
     log.info("TelegramBotsApi instance created.");
+    MetricsServer metricsServer = null;
+    if (BuildVars.METRICS_PORT > 0) {
+      try {
+        metricsServer = new MetricsServer(BuildVars.METRICS_HOST, BuildVars.METRICS_PORT);
+        metricsServer.start();
+      } catch (IOException e) {
+        log.error("Unable to start metrics server: " + e.getMessage());
+      }
+    }
+
+    LendMoneyBot lendMoneyBot = null;
     try {
-      telegramBotsApi.registerBot(new LendMoneyBot());
-      log.info("Successfully registered bot.");
+      lendMoneyBot = new LendMoneyBot();
+      Runnable stopReceiving;
+      if (BuildVars.WEBHOOK_ENABLED) {
+        WebhookServer webhookServer = new WebhookServer(BuildVars.WEBHOOK_HOST, BuildVars.WEBHOOK_PORT,
+            BuildVars.WEBHOOK_BUFFER_SIZE, BuildVars.WEBHOOK_BUFFER_POOL_SIZE);
+        webhookServer.register(BuildVars.WEBHOOK_PATH, BuildVars.WEBHOOK_SECRET_TOKEN, lendMoneyBot::onUpdateReceived);
+        Metrics.gauge("webhook_connections", webhookServer::getConnections);
+        webhookServer.start();
+        try {
+          lendMoneyBot.setWebhook(BuildVars.WEBHOOK_URL + BuildVars.WEBHOOK_PATH, BuildVars.WEBHOOK_SECRET_TOKEN);
+        } catch (TelegramApiRequestException e) {
+          webhookServer.stop();
+          throw e;
+        }
+        stopReceiving = webhookServer::stop;
+        log.info("Successfully registered bot webhook.");
+      } else if (!BuildVars.CLUSTER_ENABLED || BuildVars.CLUSTER_POLLING_NODE) {
+        BotSession botSession = telegramBotsApi.registerBot(lendMoneyBot);
+        stopReceiving = botSession::stop;
+        log.info("Successfully registered bot.");
+      } else {
+        stopReceiving = () -> { };
+        log.info("Cluster node started, updates are received by polling node.");
+      }
+
+      // Stop receiving first, then let already received updates finish
+      LendMoneyBot runningBot = lendMoneyBot;
+      MetricsServer runningMetricsServer = metricsServer;
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        log.info("Shutting down, draining queued updates.");
+        stopReceiving.run();
+        runningBot.shutdown(BuildVars.SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (runningMetricsServer != null) {
+          runningMetricsServer.stop();
+        }
+        log.info("Bot stopped.");
+        LogManager.shutdown();
+      }));
+      log.info("Bot successfully started!");
     } catch (TelegramApiRequestException e) {
       log.error(e.getMessage());
+      exitOnStartupFailure(lendMoneyBot, metricsServer);
+    } catch (IOException e) {
+      log.error("Unable to start webhook server: " + e.getMessage());
+      exitOnStartupFailure(lendMoneyBot, metricsServer);
+    } catch (LedgerStoreException e) {
+      log.error("Unable to open ledger store: " + e.getMessage());
+      exitOnStartupFailure(lendMoneyBot, metricsServer);
+    }
+  }
+
+  /**
+   * Stops threads started before the failure so the process doesn't hang half alive, exit status tells the supervisor
+   * startup failed.
+   */
+  private static void exitOnStartupFailure(LendMoneyBot lendMoneyBot, MetricsServer metricsServer) {
+    if (lendMoneyBot != null) {
+      lendMoneyBot.shutdown(BuildVars.SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+    if (metricsServer != null) {
+      metricsServer.stop();
     }
-    log.info("Bot successfully started!");
+    LogManager.shutdown();
+    System.exit(1);
   }
 }
\ No newline at end of file
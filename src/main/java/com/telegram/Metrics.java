@@ -0,0 +1,144 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Process wide registry of latency histograms, counters and gauges. Every histogram and counter has one label,
+ * e.g. command name for command latency. Registry is rendered in Prometheus text format by {@link #scrape()}.
+ */
+final class Metrics {
+  static final String COMMAND_LATENCY = "command_seconds";
+  static final String DB_LATENCY = "db_seconds";
+  static final String REDIS_LATENCY = "redis_seconds";
+  static final String TELEGRAM_LATENCY = "telegram_seconds";
+  static final String QUEUE_WAIT_LATENCY = "queue_wait_seconds";
+  static final String ERRORS = "errors_total";
+  static final String REMINDERS = "reminders_total";
+
+  private static final String PREFIX = "lendmoneybot_";
+
+  private static final Map<String, String> LABEL_NAMES = new ConcurrentHashMap<>();
+  private static final Map<String, Map<String, LatencyHistogram>> HISTOGRAMS = new ConcurrentHashMap<>();
+  private static final Map<String, Map<String, AtomicLong>> COUNTERS = new ConcurrentHashMap<>();
+  private static final Map<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+
+  static {
+    LABEL_NAMES.put(COMMAND_LATENCY, "command");
+    LABEL_NAMES.put(DB_LATENCY, "query");
+    LABEL_NAMES.put(REDIS_LATENCY, "operation");
+    LABEL_NAMES.put(TELEGRAM_LATENCY, "method");
+    LABEL_NAMES.put(QUEUE_WAIT_LATENCY, "queue");
+    LABEL_NAMES.put(ERRORS, "type");
+    LABEL_NAMES.put(REMINDERS, "outcome");
+  }
+
+  private Metrics() {
+  }
+
+  /**
+   * Returns histogram of the metric for specified label value, creates it on first use.
+   *
+   * @param metric     one of latency metric names
+   * @param labelValue value of metric label
+   * @return histogram to record values to
+   */
+  static LatencyHistogram histogram(String metric, String labelValue) {
+    return HISTOGRAMS.computeIfAbsent(metric, name -> new ConcurrentHashMap<>())
+        .computeIfAbsent(labelValue, value -> new LatencyHistogram());
+  }
+
+  /**
+   * Increments counter of the metric for specified label value.
+   *
+   * @param metric     counter metric name
+   * @param labelValue value of metric label
+   */
+  static void increment(String metric, String labelValue) {
+    COUNTERS.computeIfAbsent(metric, name -> new ConcurrentHashMap<>())
+        .computeIfAbsent(labelValue, value -> new AtomicLong())
+        .incrementAndGet();
+  }
+
+  /**
+   * Registers value that is read on every scrape, e.g. queue depth.
+   *
+   * @param metric gauge metric name
+   * @param value  supplier of the current value
+   */
+  static void gauge(String metric, LongSupplier value) {
+    GAUGES.put(metric, value);
+  }
+
+  /**
+   * Renders all metrics in Prometheus text exposition format.
+   *
+   * @return metrics text
+   */
+  static String scrape() {
+    StringBuilder scrapeBuilder = new StringBuilder();
+
+    new TreeMap<>(HISTOGRAMS).forEach((metric, histograms) -> {
+      String name = PREFIX + metric;
+      String labelName = LABEL_NAMES.getOrDefault(metric, "label");
+      scrapeBuilder.append("# TYPE ").append(name).append(" histogram\n");
+      new TreeMap<>(histograms).forEach((labelValue, histogram) -> {
+        String labels = labelName + "=\"" + escape(labelValue) + "\"";
+        for (int i = 0; i <= LatencyHistogram.BUCKET_BOUNDS.length; i++) {
+          String bound = i < LatencyHistogram.BUCKET_BOUNDS.length ? String.valueOf(LatencyHistogram.BUCKET_BOUNDS[i]) : "+Inf";
+          scrapeBuilder.append(name).append("_bucket{").append(labels).append(",le=\"").append(bound).append("\"} ")
+              .append(histogram.getCumulativeCount(i)).append('\n');
+        }
+        scrapeBuilder.append(name).append("_sum{").append(labels).append("} ").append(histogram.getSumSeconds()).append('\n');
+        scrapeBuilder.append(name).append("_count{").append(labels).append("} ").append(histogram.getCount()).append('\n');
+      });
+    });
+
+    new TreeMap<>(COUNTERS).forEach((metric, counters) -> {
+      String name = PREFIX + metric;
+      String labelName = LABEL_NAMES.getOrDefault(metric, "label");
+      scrapeBuilder.append("# TYPE ").append(name).append(" counter\n");
+      new TreeMap<>(counters).forEach((labelValue, counter) -> scrapeBuilder.append(name)
+          .append('{').append(labelName).append("=\"").append(escape(labelValue)).append("\"} ")
+          .append(counter.get()).append('\n'));
+    });
+
+    new TreeMap<>(GAUGES).forEach((metric, value) -> scrapeBuilder
+        .append("# TYPE ").append(PREFIX).append(metric).append(" gauge\n")
+        .append(PREFIX).append(metric).append(' ').append(value.getAsLong()).append('\n'));
+
+    return scrapeBuilder.toString();
+  }
+
+  private static String escape(String labelValue) {
+    return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
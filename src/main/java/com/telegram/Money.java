@@ -0,0 +1,168 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Money amounts are kept as long number of minor units (kopiyky, cents), so sums stay exact after any number of
+ * edits. Every supported currency has two fraction digits.
+ */
+final class Money {
+  static final int MINOR_UNITS_PER_MAJOR = 100;
+  private static final int FRACTION_DIGITS = 2;
+  private static final Map<String, String> CURRENCY_SIGNS = new HashMap<>();
+
+  static {
+    CURRENCY_SIGNS.put("UAH", "₴");
+    CURRENCY_SIGNS.put("EUR", "€");
+    CURRENCY_SIGNS.put("USD", "$");
+    CURRENCY_SIGNS.put("GBP", "£");
+  }
+
+  private Money() {
+  }
+
+  /**
+   * Parses amount entered by user, like "12", "12.5" or "12,50".
+   *
+   * @param text amount in major units with at most two fraction digits
+   * @return amount in minor units
+   * @throws NumberFormatException if text is not a valid amount or doesn't fit into long
+   */
+  static long parse(String text) {
+    String amount = text.trim();
+    int length = amount.length();
+    int position = 0;
+    boolean negative = false;
+    if (position < length && (amount.charAt(position) == '-' || amount.charAt(position) == '+')) {
+      negative = amount.charAt(position) == '-';
+      position++;
+    }
+
+    long major = 0;
+    int majorDigits = 0;
+    for (; position < length && isAsciiDigit(amount.charAt(position)); position++, majorDigits++) {
+      major = major * 10 + amount.charAt(position) - '0';
+      if (major > (Long.MAX_VALUE - MINOR_UNITS_PER_MAJOR + 1) / MINOR_UNITS_PER_MAJOR) {
+        throw new NumberFormatException("Amount is too big: " + text);
+      }
+    }
+
+    long minor = 0;
+    int fractionDigits = 0;
+    if (position < length && (amount.charAt(position) == '.' || amount.charAt(position) == ',')) {
+      for (position++; position < length && isAsciiDigit(amount.charAt(position)); position++, fractionDigits++) {
+        if (fractionDigits == FRACTION_DIGITS) {
+          throw new NumberFormatException("At most " + FRACTION_DIGITS + " digits after point are allowed: " + text);
+        }
+        minor = minor * 10 + amount.charAt(position) - '0';
+      }
+    }
+    if (position != length || majorDigits + fractionDigits == 0) {
+      throw new NumberFormatException("Not a money amount: " + text);
+    }
+    for (; fractionDigits < FRACTION_DIGITS; fractionDigits++) {
+      minor *= 10;
+    }
+
+    long total = major * MINOR_UNITS_PER_MAJOR + minor;
+    return negative ? -total : total;
+  }
+
+  /**
+   * Formats amount as major units with two fraction digits, like "12.50".
+   *
+   * @param minorUnits amount in minor units
+   * @return formatted amount
+   */
+  static String format(long minorUnits) {
+    return appendTo(new StringBuilder(24), minorUnits).toString();
+  }
+
+  /**
+   * Formats amount with currency sign, like "₴12.50", or with currency code if currency has no known sign, like
+   * "12.50 PLN".
+   *
+   * @param minorUnits amount in minor units
+   * @param currency   ISO 4217 code of the currency
+   * @return formatted amount
+   */
+  static String format(long minorUnits, String currency) {
+    return appendTo(new StringBuilder(24), minorUnits, currency).toString();
+  }
+
+  /**
+   * Appends formatted amount to the builder.
+   *
+   * @param builder    builder to append to
+   * @param minorUnits amount in minor units
+   * @return the builder
+   */
+  static StringBuilder appendTo(StringBuilder builder, long minorUnits) {
+    if (minorUnits < 0) {
+      builder.append('-');
+    }
+    return appendMagnitude(builder, minorUnits);
+  }
+
+  /**
+   * Appends formatted amount with currency sign or code to the builder, see {@link #format(long, String)}.
+   *
+   * @param builder    builder to append to
+   * @param minorUnits amount in minor units
+   * @param currency   ISO 4217 code of the currency
+   * @return the builder
+   */
+  static StringBuilder appendTo(StringBuilder builder, long minorUnits, String currency) {
+    String sign = CURRENCY_SIGNS.get(currency);
+    if (sign == null) {
+      return appendTo(builder, minorUnits).append(' ').append(currency);
+    }
+    if (minorUnits < 0) {
+      builder.append('-');
+    }
+    return appendMagnitude(builder.append(sign), minorUnits);
+  }
+
+  private static StringBuilder appendMagnitude(StringBuilder builder, long minorUnits) {
+    // Math.abs of Long.MIN_VALUE is negative, so remainder is taken before sign is dropped
+    long major = Math.abs(minorUnits / MINOR_UNITS_PER_MAJOR);
+    int minor = (int) Math.abs(minorUnits % MINOR_UNITS_PER_MAJOR);
+    builder.append(major).append('.');
+    if (minor < 10) {
+      builder.append('0');
+    }
+    return builder.append(minor);
+  }
+
+  /**
+   * Character.isDigit also accepts digits of other scripts, like '٣', which don't count from '0'.
+   */
+  private static boolean isAsciiDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+}
@@ -0,0 +1,385 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import lombok.extern.log4j.Log4j;
+import org.telegram.telegrambots.api.methods.AnswerCallbackQuery;
+import org.telegram.telegrambots.api.methods.AnswerInlineQuery;
+import org.telegram.telegrambots.api.methods.BotApiMethod;
+import org.telegram.telegrambots.api.methods.PartialBotApiMethod;
+import org.telegram.telegrambots.api.methods.send.SendDocument;
+import org.telegram.telegrambots.api.methods.send.SendMessage;
+import org.telegram.telegrambots.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.bots.AbsSender;
+import org.telegram.telegrambots.exceptions.TelegramApiException;
+import org.telegram.telegrambots.exceptions.TelegramApiRequestException;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends bot replies in background, so update handlers never wait for Telegram API.
+ * <p>
+ * Replies are queued per chat and every chat is served by one sender thread at a time, so replies of a chat keep
+ * their order. Sending is limited by per-chat and global token buckets. When several plain text replies are waiting
+ * for the same chat they are sent as one message. Requests rejected with 429 are retried after retry_after seconds.
+ */
+@Log4j
+class OutboundSender {
+  private static final int MAX_MESSAGE_LENGTH = 4096;
+  private static final int TOO_MANY_REQUESTS = 429;
+  private static final String INLINE_KEY_PREFIX = "inline/";
+  private static final String CALLBACK_KEY_PREFIX = "callback/";
+
+  private final AbsSender sender;
+  private final TokenBucket globalBucket;
+  private final double chatRatePerSecond;
+  private final double chatBurst;
+  private final int maxRetries;
+  private final boolean coalesce;
+
+  private final Map<String, ChatQueue> chats = new ConcurrentHashMap<>();
+  private final BlockingQueue<ChatQueue> readyChats = new LinkedBlockingQueue<>();
+  private final Semaphore capacity;
+  private final int queueCapacity;
+  private final ExecutorService workers;
+  private final ScheduledExecutorService scheduler;
+  private volatile boolean accepting = true;
+
+  OutboundSender(AbsSender sender, int threads, int queueCapacity, double globalRatePerSecond, double chatRatePerSecond,
+                 double chatBurst, int maxRetries, boolean coalesce) {
+    this.sender = sender;
+    this.globalBucket = new TokenBucket(globalRatePerSecond, globalRatePerSecond);
+    this.chatRatePerSecond = chatRatePerSecond;
+    this.chatBurst = chatBurst;
+    this.maxRetries = maxRetries;
+    this.coalesce = coalesce;
+    this.queueCapacity = queueCapacity;
+    this.capacity = new Semaphore(queueCapacity);
+
+    AtomicInteger threadNumber = new AtomicInteger();
+    workers = Executors.newFixedThreadPool(threads, runnable -> new Thread(runnable, "outbound-" + threadNumber.getAndIncrement()));
+    for (int i = 0; i < threads; i++) {
+      workers.execute(this::work);
+    }
+
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "outbound-scheduler");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // chats that were quiet long enough to refill their bucket don't need to be remembered
+    scheduler.scheduleWithFixedDelay(this::removeIdleChats, 1, 1, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Queues message to be sent. Blocks when outbound queue is full.
+   *
+   * @param sendMessage message to send
+   */
+  void enqueue(SendMessage sendMessage) {
+    enqueue(sendMessage.getChatId(), sendMessage, true);
+  }
+
+  /**
+   * Queues inline query answer. Answers are not limited by chat limits and never merged.
+   *
+   * @param answerInlineQuery answer to send
+   */
+  void enqueue(AnswerInlineQuery answerInlineQuery) {
+    enqueue(INLINE_KEY_PREFIX + answerInlineQuery.getInlineQueryId(), answerInlineQuery, false);
+  }
+
+  /**
+   * Queues edit of earlier sent message. Edits count towards chat limits and are never merged.
+   *
+   * @param editMessageText edit to send
+   */
+  void enqueue(EditMessageText editMessageText) {
+    enqueue(editMessageText.getChatId(), editMessageText, true);
+  }
+
+  /**
+   * Queues callback query answer. Answers are not limited by chat limits and never merged.
+   *
+   * @param answerCallbackQuery answer to send
+   */
+  void enqueue(AnswerCallbackQuery answerCallbackQuery) {
+    enqueue(CALLBACK_KEY_PREFIX + answerCallbackQuery.getCallbackQueryId(), answerCallbackQuery, false);
+  }
+
+  /**
+   * Queues document upload. Uploads count towards chat limits and are never merged. Uploaded file is deleted once
+   * it is sent or dropped.
+   *
+   * @param sendDocument document to send
+   */
+  void enqueue(SendDocument sendDocument) {
+    enqueue(sendDocument.getChatId(), sendDocument, true);
+  }
+
+  /**
+   * Returns number of replies waiting to be sent.
+   *
+   * @return outbound queue depth
+   */
+  int getQueueDepth() {
+    return queueCapacity - capacity.availablePermits();
+  }
+
+  /**
+   * Stops accepting new replies and waits until already queued ones are sent.
+   *
+   * @param timeout max time to wait
+   * @param unit    time unit of the timeout argument
+   * @return true if all replies were sent in time
+   */
+  boolean shutdown(long timeout, TimeUnit unit) {
+    accepting = false;
+    boolean drained = false;
+    try {
+      drained = capacity.tryAcquire(queueCapacity, timeout, unit);
+      if (drained) {
+        capacity.release(queueCapacity);
+      } else {
+        log.error("Not all replies were sent before shutdown timeout, " + getQueueDepth() + " dropped.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    workers.shutdownNow();
+    scheduler.shutdownNow();
+    return drained;
+  }
+
+  private void enqueue(String key, PartialBotApiMethod<?> method, boolean chatLimited) {
+    if (!accepting) {
+      Logs.error(log, "Outbound sender is shut down, reply to {} dropped.", key);
+      discard(method);
+      return;
+    }
+
+    try {
+      capacity.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      Logs.error(log, "Interrupted while waiting for outbound queue, reply to {} dropped.", key);
+      discard(method);
+      return;
+    }
+
+    chats.compute(key, (chatKey, queue) -> {
+      if (queue == null) {
+        queue = new ChatQueue(chatKey, chatLimited ? new TokenBucket(chatRatePerSecond, chatBurst) : null);
+      }
+      queue.pending.addLast(new Outbound(method));
+      if (!queue.scheduled) {
+        queue.scheduled = true;
+        readyChats.add(queue);
+      }
+      return queue;
+    });
+  }
+
+  private void work() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        ChatQueue queue = readyChats.take();
+
+        if (queue.bucket != null) {
+          long chatWaitNanos = queue.bucket.tryAcquire();
+          if (chatWaitNanos > 0) {
+            scheduler.schedule(() -> readyChats.add(queue), chatWaitNanos, TimeUnit.NANOSECONDS);
+            continue;
+          }
+          for (long globalWaitNanos = globalBucket.tryAcquire(); globalWaitNanos > 0; globalWaitNanos = globalBucket.tryAcquire()) {
+            TimeUnit.NANOSECONDS.sleep(globalWaitNanos);
+          }
+        }
+
+        send(queue);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Sends next reply of the chat, merging following plain text replies into it when possible.
+   */
+  private void send(ChatQueue queue) {
+    int[] merged = new int[1];
+    Outbound outbound = takeNext(queue, merged);
+
+    long startNanos = System.nanoTime();
+    try {
+      if (outbound.method instanceof SendMessage) {
+        sender.sendMessage((SendMessage) outbound.method);
+      } else if (outbound.method instanceof AnswerInlineQuery) {
+        sender.answerInlineQuery((AnswerInlineQuery) outbound.method);
+      } else if (outbound.method instanceof EditMessageText) {
+        sender.editMessageText((EditMessageText) outbound.method);
+      } else if (outbound.method instanceof AnswerCallbackQuery) {
+        sender.answerCallbackQuery((AnswerCallbackQuery) outbound.method);
+      } else if (outbound.method instanceof SendDocument) {
+        sender.sendDocument((SendDocument) outbound.method);
+      }
+      done(queue, outbound, merged[0]);
+    } catch (TelegramApiRequestException e) {
+      Metrics.increment(Metrics.ERRORS, "telegram");
+      if (e.getErrorCode() != null && e.getErrorCode() == TOO_MANY_REQUESTS && e.getParameters() != null
+          && e.getParameters().getRetryAfter() != null) {
+        Logs.error(log, "Telegram asked to retry {} after {}s.", queue.key, e.getParameters().getRetryAfter());
+        retry(queue, outbound, merged[0], TimeUnit.SECONDS.toMillis(e.getParameters().getRetryAfter()));
+      } else {
+        Logs.error(log, "Reply to {} rejected: {}", queue.key, e.getApiResponse());
+        done(queue, outbound, merged[0]);
+      }
+    } catch (TelegramApiException e) {
+      Metrics.increment(Metrics.ERRORS, "telegram");
+      Logs.error(log, "Unable to send reply to {}: {}", queue.key, e.getMessage());
+      if (++outbound.attempts <= maxRetries) {
+        retry(queue, outbound, merged[0], 500L << outbound.attempts);
+      } else {
+        done(queue, outbound, merged[0]);
+      }
+    } finally {
+      Metrics.histogram(Metrics.TELEGRAM_LATENCY, outbound.name).recordSince(startNanos);
+    }
+  }
+
+  private Outbound takeNext(ChatQueue queue, int[] merged) {
+    Outbound[] next = new Outbound[1];
+    chats.compute(queue.key, (chatKey, current) -> {
+      next[0] = queue.pending.pollFirst();
+      merged[0] = 1;
+      while (coalesce && canMerge(next[0], queue.pending.peekFirst())) {
+        next[0] = new Outbound(merge((SendMessage) next[0].method, (SendMessage) queue.pending.pollFirst().method));
+        merged[0]++;
+      }
+      return current;
+    });
+    return next[0];
+  }
+
+  private void retry(ChatQueue queue, Outbound outbound, int messages, long delayMillis) {
+    chats.compute(queue.key, (chatKey, current) -> {
+      queue.pending.addFirst(outbound);
+      return current;
+    });
+    // merged message now takes single place in the queue
+    capacity.release(messages - 1);
+    scheduler.schedule(() -> readyChats.add(queue), delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void done(ChatQueue queue, Outbound outbound, int messages) {
+    discard(outbound.method);
+    capacity.release(messages);
+    chats.compute(queue.key, (chatKey, current) -> {
+      if (queue.pending.isEmpty()) {
+        queue.scheduled = false;
+      } else {
+        readyChats.add(queue);
+      }
+      return current;
+    });
+  }
+
+  private void removeIdleChats() {
+    for (String key : chats.keySet()) {
+      chats.computeIfPresent(key, (chatKey, queue) ->
+          !queue.scheduled && queue.pending.isEmpty() && (queue.bucket == null || queue.bucket.isFull()) ? null : queue);
+    }
+  }
+
+  /**
+   * Deletes uploaded file of the document that won't be sent anymore.
+   */
+  private static void discard(PartialBotApiMethod<?> method) {
+    if (method instanceof SendDocument && ((SendDocument) method).getNewDocumentFile() != null) {
+      File file = ((SendDocument) method).getNewDocumentFile();
+      if (!file.delete()) {
+        log.error("Unable to delete sent document " + file + ".");
+      }
+    }
+  }
+
+  /**
+   * Plain text message without keyboard can be merged with the following message to the same chat.
+   */
+  private static boolean canMerge(Outbound first, Outbound second) {
+    if (first == null || second == null || !(first.method instanceof SendMessage) || !(second.method instanceof SendMessage)) {
+      return false;
+    }
+    SendMessage firstMessage = (SendMessage) first.method;
+    SendMessage secondMessage = (SendMessage) second.method;
+    return firstMessage.getReplyMarkup() == null && firstMessage.getReplyToMessageId() == null
+        && secondMessage.getReplyToMessageId() == null
+        && firstMessage.getText().length() + secondMessage.getText().length() + 2 <= MAX_MESSAGE_LENGTH;
+  }
+
+  private static SendMessage merge(SendMessage first, SendMessage second) {
+    return new SendMessage()
+        .setChatId(first.getChatId())
+        .setText(first.getText() + "\n\n" + second.getText())
+        .setReplyMarkup(second.getReplyMarkup());
+  }
+
+  private static class ChatQueue {
+    private final String key;
+    private final TokenBucket bucket;
+    // guarded by compute() of the chats map
+    private final Deque<Outbound> pending = new ArrayDeque<>();
+    private boolean scheduled;
+
+    ChatQueue(String key, TokenBucket bucket) {
+      this.key = key;
+      this.bucket = bucket;
+    }
+  }
+
+  private static class Outbound {
+    private final PartialBotApiMethod<?> method;
+    // label used for latency metrics
+    private final String name;
+    private int attempts;
+
+    Outbound(PartialBotApiMethod<?> method) {
+      this.method = method;
+      this.name = method instanceof BotApiMethod ? ((BotApiMethod<?>) method).getMethod() : SendDocument.PATH;
+    }
+  }
+}
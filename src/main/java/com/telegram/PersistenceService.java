@@ -25,210 +25,679 @@
 package com.telegram;
 
 import lombok.extern.log4j.Log4j;
-import org.apache.commons.dbutils.DbUtils;
 import org.telegram.telegrambots.api.objects.Contact;
 import org.telegram.telegrambots.api.objects.User;
-import org.telegram.telegrambots.api.objects.inlinequery.inputmessagecontent.InputTextMessageContent;
 import org.telegram.telegrambots.api.objects.inlinequery.result.InlineQueryResult;
-import org.telegram.telegrambots.api.objects.inlinequery.result.InlineQueryResultArticle;
 
-import java.sql.*;
+import javax.sql.DataSource;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
 
 @Log4j
 class PersistenceService {
-  private Connection dbConnection;
-  private Statement findUserStatement;
+  private final LedgerStore ledgerStore;
+  private final LedgerCache ledgerCache;
+  private final InlineResultCache inlineResultCache;
+  private final SettlementEngine settlementEngine;
+  private final FxRateTable fxRateTable;
 
-  private String LENDER_STRING = "lender";
-  private String LENDER_ID_STRING = "lender_id";
-  private String PENDING_MONEY_STRING = "pending_money";
-  // icon URL that shows up in inline results
-  private String THUMBNAIL_URL_STRING = "http://via.placeholder.com/100x100";
+  PersistenceService() throws LedgerStoreException {
+    this(openLedgerStore());
+  }
 
-  PersistenceService() {
-    try {
-      dbConnection = DriverManager.getConnection(BuildVars.DATABASE_LINK);
-    } catch (SQLException e) {
-      log.error(e.getMessage());
-    }
+  PersistenceService(DataSource dataSource) throws LedgerStoreException {
+    this(new JdbcLedgerStore(dataSource));
+  }
+
+  PersistenceService(LedgerStore ledgerStore) {
+    this.ledgerStore = ledgerStore;
+    this.ledgerCache = new LedgerCache(BuildVars.LEDGER_CACHE_MAX_SIZE, BuildVars.LEDGER_CACHE_TTL_MINUTES, TimeUnit.MINUTES);
+    this.inlineResultCache = new InlineResultCache(BuildVars.LEDGER_CACHE_MAX_SIZE);
+    this.fxRateTable = new FxRateTable(Paths.get(BuildVars.FX_RATES_PATH), BuildVars.BASE_CURRENCY, BuildVars.FX_RATES_RELOAD_SECONDS);
+    this.settlementEngine = new SettlementEngine(BuildVars.SETTLEMENT_MAX_AGE_MINUTES, TimeUnit.MINUTES, fxRateTable::get);
+
+    Metrics.gauge("ledger_cache_hits", ledgerCache::getHits);
+    Metrics.gauge("ledger_cache_misses", ledgerCache::getMisses);
+    Metrics.gauge("ledger_cache_evictions", ledgerCache::getEvictions);
+    Metrics.gauge("ledger_cache_size", ledgerCache::size);
+    Metrics.gauge("inline_result_cache_size", inlineResultCache::size);
+    Metrics.gauge("settlement_graph_edges", settlementEngine::getEdgeCount);
   }
 
   /**
-   * Returns list of LendUsers that have connections with current user.
+   * Returns inline results with debts of current user. Results are rendered from cached ledger and reused until
+   * ledger changes, so inline queries don't reach the database.
    *
-   * @param user current user
+   * @param user  current user
+   * @param query inline query text, lenders are filtered by name prefix unless it is empty or "me"
    * @return list of LendUsers that are wrapped in InlineQueryResult
    * @see User
    * @see LendUser
    * @see InlineQueryResult
    */
-  List<InlineQueryResult> findInlineInfoWithUser(User user) {
-    List<InlineQueryResult> resultArticleArrayList = new ArrayList<>();
-    try {
-      boolean isExecuted = getCurrentUserInformation(user, null);
-      log.info("Statement execution status: " + isExecuted);
-      if (isExecuted) {
-        ResultSet resultSet = findUserStatement.getResultSet();
-        int i = 0;
-        while (resultSet.next()) {
-          resultArticleArrayList.add(
-              new InlineQueryResultArticle()
-                  .setId(String.valueOf(++i))
-                  .setTitle("Debt to " + resultSet.getString(LENDER_STRING))
-                  .setDescription("How much money do I have to return to this person.")
-                  .setInputMessageContent(
-                      new InputTextMessageContent()
-                          .setMessageText("I own " + resultSet.getString(LENDER_STRING) + " ₴" + resultSet.getString(PENDING_MONEY_STRING))
-                          .disableWebPagePreview()
-                  )
-                  .setThumbUrl(THUMBNAIL_URL_STRING)
-                  .setThumbHeight(100)
-                  .setThumbWidth(100)
-                  .setHideUrl(true));
+  List<InlineQueryResult> findInlineInfoWithUser(User user, String query) {
+    return inlineResultCache.get(user.getId(), getAllUsersInformation(user), query);
+  }
+
+  /**
+   * Adds user to lenders and specifies the sum that current user owns. Debt to a lender the user already owes is
+   * kept in the currency of the existing debt, sum in another currency is converted with current rates.
+   *
+   * @param addContactCandidate user to be added
+   * @param lendSum             own sum in minor units
+   * @param currency            ISO 4217 code of the sum currency
+   * @param adderId             current user id
+   * @return added debt in the currency it is kept in, null if it couldn't be added
+   * @see Contact
+   */
+  LendUser addLenderTo(Contact addContactCandidate, long lendSum, String currency, Integer adderId) {
+    long startNanos = System.nanoTime();
+    boolean added = false;
+    try {
+      String pairCurrency = currency;
+      for (LendUser lendUser : loadLedger(adderId)) {
+        if (lendUser.getUserId() == addContactCandidate.getUserID()) {
+          pairCurrency = lendUser.getCurrency();
+          break;
         }
       }
-    } catch (SQLException e) {
+      long sum = fxRateTable.get().convert(lendSum, currency, pairCurrency);
+      ledgerStore.addLender(addContactCandidate, sum, pairCurrency, adderId);
+      added = true;
+      String name = addContactCandidate.getLastName() == null ? addContactCandidate.getFirstName()
+          : addContactCandidate.getFirstName() + " " + addContactCandidate.getLastName();
+      return new LendUser(addContactCandidate.getUserID(), name, sum, pairCurrency);
+    } catch (LedgerStoreException e) {
+      Metrics.increment(Metrics.ERRORS, "db");
+      log.error(e.getMessage(), e);
+      return null;
+    } catch (IllegalArgumentException | ArithmeticException e) {
+      // rate of the debt currency was removed or converted sum doesn't fit
+      Metrics.increment(Metrics.ERRORS, "fx_rates");
       log.error(e.getMessage());
-      e.printStackTrace();
+      return null;
     } finally {
-      DbUtils.closeQuietly(findUserStatement);
+      ledgerCache.invalidate(adderId);
+      inlineResultCache.invalidate(adderId);
+      Metrics.histogram(Metrics.DB_LATENCY, "add_lender").recordSince(startNanos);
+      if (added) {
+        refreshSettlementGraph(adderId);
+      }
     }
-    return resultArticleArrayList;
   }
 
   /**
-   * Method executes query to get information about current user.
+   * Splits a bill the payer paid equally between group members: every member gets debt of one share to the payer.
+   * Currencies of the members' debts to the payer are read with one store call, then all debts are added in one
+   * batch, so the number of round trips doesn't grow with the group. Cached ledgers of the members are dropped and
+   * the settlement graph is loaded again on next settlement instead of reading every member's ledger now.
    *
-   * @param user     object to get information about
-   * @param lenderId lender id to get only 1 result if present
-   * @return result of query execution
-   * @see User
+   * @param payer       member who paid the bill
+   * @param members     member id -> name, the bill is split between them and the payer
+   * @param sum         whole bill in minor units
+   * @param currency    ISO 4217 code of the bill currency
+   * @param description what the bill was for, may be null
+   * @return split with added debts or null if they couldn't be added
+   * @see BillSplit
    */
-  private boolean getCurrentUserInformation(User user, Integer lenderId) throws SQLException {
-    findUserStatement = dbConnection.createStatement();
-    log.info("Created statement.");
-
-    String findUserQuery = "SELECT " +
-        "username, " +
-        "CONCAT(first_name, ' ', last_name) as 'borrower', " +
-        "sum AS '" + PENDING_MONEY_STRING + "', " +
-        "(select CONCAT(first_name, ' ', last_name) from user where lender_id = user.telegram_id) as '" + LENDER_STRING + "', " +
-        "lender_id as 'lender_id' " +
-        "FROM lending " +
-        " INNER JOIN user ON lending.borrower_id = user.telegram_id" +
-        " WHERE borrower_id = " + user.getId();
+  BillSplit splitBill(User payer, Map<Integer, String> members, long sum, String currency, String description) {
+    List<Integer> borrowerIds = new ArrayList<>(members.keySet());
+    borrowerIds.remove(payer.getId());
+    int memberCount = borrowerIds.size() + 1;
+    long share = sum / memberCount;
+    long startNanos = System.nanoTime();
+    try {
+      Map<Integer, String> pairCurrencies = new HashMap<>();
+      ledgerStore.forEachDebtTo(payer.getId(), borrowerIds,
+          (borrowerId, lenderId, lenderName, debtSum, debtCurrency) -> pairCurrencies.put(borrowerId, debtCurrency));
 
-    if (lenderId != null) {
-      findUserQuery += " and lender_id = " + lenderId;
+      FxRates rates = fxRateTable.get();
+      List<LedgerMutation> adds = new ArrayList<>(borrowerIds.size());
+      List<BillSplit.Debt> debts = new ArrayList<>(borrowerIds.size());
+      for (int borrowerId : borrowerIds) {
+        String pairCurrency = pairCurrencies.getOrDefault(borrowerId, currency);
+        long debtSum = rates.convert(share, currency, pairCurrency);
+        adds.add(LedgerMutation.addLender(borrowerId, payer.getId(), debtSum, pairCurrency, payer.getFirstName(), payer.getLastName()));
+        debts.add(new BillSplit.Debt(borrowerId, members.get(borrowerId), debtSum, pairCurrency));
+      }
+      ledgerStore.addDebts(adds);
+      return new BillSplit(GroupMembers.nameOf(payer), sum, currency, description, memberCount, share, debts);
+    } catch (LedgerStoreException e) {
+      Metrics.increment(Metrics.ERRORS, "db");
+      log.error(e.getMessage(), e);
+      return null;
+    } catch (IllegalArgumentException | ArithmeticException e) {
+      // rate of a debt currency was removed or converted sum doesn't fit
+      Metrics.increment(Metrics.ERRORS, "fx_rates");
+      log.error(e.getMessage());
+      return null;
+    } finally {
+      for (int borrowerId : borrowerIds) {
+        ledgerCache.invalidate(borrowerId);
+        inlineResultCache.invalidate(borrowerId);
+      }
+      settlementEngine.invalidate();
+      Metrics.histogram(Metrics.DB_LATENCY, "split_bill").recordSince(startNanos);
     }
-    findUserQuery += ";";
-
-    return findUserStatement.execute(findUserQuery);
   }
 
   /**
-   * Adds user to lenders and specifies the sum that current user owns
+   * Computes transfers that settle debts in the circle of the user.
    *
-   * @param addContactCandidate user to be added
-   * @param lendSum             own sum
-   * @param adderId             current user id
-   * @return result of add user query execution
-   * @see Contact
+   * @param user self explanatory
+   * @return settlement or null if debt graph can't be loaded
+   * @see Settlement
    */
-  boolean addLenderTo(Contact addContactCandidate, double lendSum, Integer adderId) {
-    // Add contact candidate to user table query
-    String addContactQuery = "INSERT ignore into user (telegram_id, username, first_name, last_name) VALUES (\n" +
-        addContactCandidate.getUserID() + ", null, '" + addContactCandidate.getFirstName() + "', '" +
-        addContactCandidate.getLastName() + "');";
-
-    // Make connection between current user and lender query
-    String addLendInfoQuery = "INSERT INTO lending (lender_id, borrower_id, lending.sum) VALUES (\n"
-        + addContactCandidate.getUserID() + ", " + adderId + ", " + lendSum + ");";
-
+  Settlement getSettlement(User user) {
     try {
-      Statement addLenderStatement = dbConnection.createStatement();
-      addLenderStatement.addBatch(addContactQuery);
-      addLenderStatement.addBatch(addLendInfoQuery);
-      int[] batchResults = addLenderStatement.executeBatch();
-      log.info("Array: " + Arrays.toString(batchResults));
-      return true;
-    } catch (SQLException e) {
-      log.error(e.getMessage());
-      e.printStackTrace();
-      return false;
+      return settlementEngine.settle(user.getId(), ledgerStore::forEachDebt);
+    } catch (LedgerStoreException e) {
+      Metrics.increment(Metrics.ERRORS, "db");
+      log.error(e.getMessage(), e);
+      return null;
     }
   }
 
   /**
-   * Get list of all users that are connected with specified user
+   * Returns settlement of the user circle as inline result.
    *
    * @param user self explanatory
-   * @return list of LendUser objects
+   * @return single inline result, empty list if debt graph can't be loaded
+   */
+  List<InlineQueryResult> findInlineSettlement(User user) {
+    Settlement settlement = getSettlement(user);
+    return settlement == null ? new ArrayList<>() : Collections.singletonList(InlineResultCache.render(settlement));
+  }
+
+  /**
+   * Get list of all users that are connected with specified user. Ledger is served from cache when possible.
+   *
+   * @param user self explanatory
+   * @return unmodifiable list of LendUser objects
    * @see User
    * @see LendUser
    */
   List<LendUser> getAllUsersInformation(User user) {
-    List<LendUser> userData = new ArrayList<>();
-    try {
-      boolean isUserDataFound = getCurrentUserInformation(user, null);
-      if (isUserDataFound) {
-        ResultSet resultSet = findUserStatement.getResultSet();
-        while (resultSet.next()) {
-          userData.add(new LendUser(Integer.parseInt(resultSet.getString(LENDER_ID_STRING)), resultSet.getString(LENDER_STRING),
-              Double.parseDouble(resultSet.getString(PENDING_MONEY_STRING))));
+    try {
+      return loadLedger(user.getId());
+    } catch (LedgerStoreException e) {
+      Metrics.increment(Metrics.ERRORS, "db");
+      log.error(e.getMessage(), e);
+      return new ArrayList<>();
+    }
+  }
+
+  /**
+   * Adds up user debts in one currency. Cached ledger is walked once summing debts per currency, then every
+   * currency sum is converted once with the same rates snapshot.
+   *
+   * @param user     self explanatory
+   * @param currency ISO 4217 code of the total currency
+   * @return total or null if ledger can't be read or currency has no rate
+   * @see LedgerTotal
+   */
+  LedgerTotal getLedgerTotal(User user, String currency) {
+    FxRates rates = fxRateTable.get();
+    if (!rates.supports(currency)) {
+      return null;
+    }
+
+    try {
+      Map<String, Long> sums = new LinkedHashMap<>();
+      for (LendUser lendUser : loadLedger(user.getId())) {
+        sums.merge(lendUser.getCurrency(), lendUser.getSum(), Long::sum);
+      }
+
+      long sum = 0;
+      Map<String, Long> convertedSums = new HashMap<>();
+      for (Map.Entry<String, Long> currencySum : sums.entrySet()) {
+        if (rates.supports(currencySum.getKey())) {
+          long convertedSum = rates.convert(currencySum.getValue(), currencySum.getKey(), currency);
+          convertedSums.put(currencySum.getKey(), convertedSum);
+          sum = Math.addExact(sum, convertedSum);
         }
       }
-    } catch (SQLException e) {
-      e.printStackTrace();
+      return new LedgerTotal(currency, sum, sums, convertedSums, rates.getLoadedAtMillis());
+    } catch (LedgerStoreException e) {
+      Metrics.increment(Metrics.ERRORS, "db");
+      log.error(e.getMessage(), e);
+      return null;
+    } catch (ArithmeticException e) {
+      log.error("Total of user " + user.getId() + " doesn't fit: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * @return current FX rates snapshot
+   */
+  FxRates getFxRates() {
+    return fxRateTable.get();
+  }
+
+  /**
+   * Returns page of user debts ordered by lender id. Page is cut from the cached ledger when there is one, otherwise
+   * only the page is read from the store, so its cost doesn't depend on ledger size.
+   *
+   * @param user         self explanatory
+   * @param fromLenderId lender id page starts after or, when reading backwards, ends before
+   * @param forward      whether page is read towards bigger lender ids
+   * @return page of debts, empty page if store failed
+   * @see LedgerPage
+   */
+  LedgerPage getLedgerPage(User user, int fromLenderId, boolean forward) {
+    List<LendUser> cachedLedger = ledgerCache.getIfPresent(user.getId());
+    if (cachedLedger != null) {
+      return LedgerPage.slice(cachedLedger, fromLenderId, forward, BuildVars.LEDGER_PAGE_SIZE);
+    }
+
+    long startNanos = System.nanoTime();
+    try {
+      return ledgerStore.findLedgerPage(user.getId(), fromLenderId, forward, BuildVars.LEDGER_PAGE_SIZE);
+    } catch (LedgerStoreException e) {
+      Metrics.increment(Metrics.ERRORS, "db");
+      log.error(e.getMessage(), e);
+      return new LedgerPage(new ArrayList<>(), false, false);
+    } finally {
+      Metrics.histogram(Metrics.DB_LATENCY, "find_ledger_page").recordSince(startNanos);
+    }
+  }
+
+  /**
+   * Returns page of user debt changes, newest first. Page is read by entry id key like ledger pages.
+   *
+   * @param user        self explanatory
+   * @param fromEntryId entry id page starts before or, when reading newer entries, ends after
+   * @param older       whether page is read towards older entries
+   * @return page of history entries or null if history can't be read
+   * @see HistoryPage
+   */
+  HistoryPage getHistoryPage(User user, long fromEntryId, boolean older) {
+    long startNanos = System.nanoTime();
+    try {
+      return ledgerStore.findHistoryPage(user.getId(), fromEntryId, older, BuildVars.LEDGER_PAGE_SIZE);
+    } catch (LedgerStoreException e) {
+      Metrics.increment(Metrics.ERRORS, "db");
       log.error(e.getMessage());
+      return null;
     } finally {
-      DbUtils.closeQuietly(findUserStatement);
+      Metrics.histogram(Metrics.DB_LATENCY, "find_history_page").recordSince(startNanos);
     }
-    return userData;
   }
 
   /**
-   * Add or subtract sum from user. If user debt balance is zero or negative then delete user connection from the lending table.
+   * Returns user debts as they were at the moment. Debts are read from the nearest history checkpoint and changes
+   * after it, so cost doesn't depend on history length.
+   *
+   * @param user       self explanatory
+   * @param timeMillis moment in milliseconds since epoch
+   * @return list of LendUser objects ordered by lender id or null if history can't be read
+   */
+  List<LendUser> getLedgerAt(User user, long timeMillis) {
+    long startNanos = System.nanoTime();
+    try {
+      return ledgerStore.findLedgerAt(user.getId(), timeMillis);
+    } catch (LedgerStoreException e) {
+      Metrics.increment(Metrics.ERRORS, "db");
+      log.error(e.getMessage());
+      return null;
+    } finally {
+      Metrics.histogram(Metrics.DB_LATENCY, "find_ledger_at").recordSince(startNanos);
+    }
+  }
+
+  /**
+   * Add or subtract sum from user. If user debt balance becomes zero or negative then delete this user connection
+   * from the lending table.
    *
    * @param currentUserId current user id
    * @param editUserId    id of user to be edited
    * @param decreaseDebt  holds boolean to add or subtract sum
-   * @param sum           amount of money
+   * @param sum           amount of money in minor units
    * @return result of edit user query execution
-   * @see Statement
    */
-  boolean editUser(int currentUserId, int editUserId, boolean decreaseDebt, double sum) {
-    String editUserQuery = "UPDATE lending set sum = sum " + (decreaseDebt ? "- " : "+ ") + sum + " where lender_id = " + editUserId + " and " +
-        "borrower_id = " + currentUserId + ";";
-    log.info("Edit query: " + editUserQuery);
+  boolean editUser(int currentUserId, int editUserId, boolean decreaseDebt, long sum) {
+    long startNanos = System.nanoTime();
+    boolean edited = false;
+    try {
+      ledgerStore.editBalance(currentUserId, editUserId, decreaseDebt, sum);
+      edited = true;
+      return true;
+    } catch (LedgerStoreException e) {
+      Metrics.increment(Metrics.ERRORS, "db");
+      log.error(e.getMessage(), e);
+      return false;
+    } finally {
+      ledgerCache.invalidate(currentUserId);
+      inlineResultCache.invalidate(currentUserId);
+      Metrics.histogram(Metrics.DB_LATENCY, "edit_user").recordSince(startNanos);
+      // failed write changed nothing, graph is left alone
+      if (edited) {
+        refreshSettlementGraph(currentUserId);
+      }
+    }
+  }
+
+  /**
+   * Imports debts of the user from CSV lines, see {@link LedgerCsv}. Lines are read one by one and valid ones are
+   * added in chunks of IMPORT_CHUNK_SIZE, every chunk in its own transaction, so memory use doesn't depend on the
+   * file size. Invalid lines and lines in currencies without a rate are skipped, sums in another currency than the
+   * existing debt to the lender are converted to it. Import stops at the first chunk store fails to add.
+   *
+   * @param user   self explanatory
+   * @param reader CSV lines
+   * @return import outcome
+   * @throws IOException if lines can't be read
+   * @see LedgerImport
+   */
+  LedgerImport importLedger(User user, BufferedReader reader) throws IOException {
+    int borrowerId = user.getId();
+    List<LedgerMutation> chunk = new ArrayList<>(BuildVars.IMPORT_CHUNK_SIZE);
+    List<Integer> skippedLines = new ArrayList<>(LedgerImport.MAX_REPORTED_LINES);
+    int importedCount = 0;
+    int skippedCount = 0;
+    int lineNumber = 0;
+    FxRates rates = fxRateTable.get();
+    try {
+      // lender id -> currency the debt is kept in, filled from the ledger once and then by imported lines
+      Map<Integer, String> pairCurrencies = new HashMap<>();
+      for (LendUser lendUser : loadLedger(borrowerId)) {
+        pairCurrencies.put(lendUser.getUserId(), lendUser.getCurrency());
+      }
+
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        lineNumber++;
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+
+        LedgerMutation add = parseImportLine(borrowerId, line, rates, pairCurrencies);
+        if (add == null) {
+          // header is allowed as the first line only
+          if (lineNumber > 1 || !LedgerCsv.isHeader(LedgerCsv.parseLine(line))) {
+            skippedCount++;
+            if (skippedLines.size() < LedgerImport.MAX_REPORTED_LINES) {
+              skippedLines.add(lineNumber);
+            }
+          }
+          continue;
+        }
+
+        chunk.add(add);
+        if (chunk.size() == BuildVars.IMPORT_CHUNK_SIZE) {
+          importedCount += addImportChunk(borrowerId, chunk);
+        }
+      }
+      importedCount += addImportChunk(borrowerId, chunk);
+      return new LedgerImport(importedCount, skippedCount, skippedLines, false);
+    } catch (LedgerStoreException e) {
+      Metrics.increment(Metrics.ERRORS, "db");
+      log.error(e.getMessage(), e);
+      return new LedgerImport(importedCount, skippedCount, skippedLines, true);
+    } finally {
+      if (importedCount > 0) {
+        ledgerCache.invalidate(borrowerId);
+        inlineResultCache.invalidate(borrowerId);
+        refreshSettlementGraph(borrowerId);
+      }
+    }
+  }
+
+  /**
+   * Writes debts of the user as CSV, see {@link LedgerCsv}. Debts are streamed from the store straight to the
+   * writer.
+   *
+   * @param user   self explanatory
+   * @param writer writer CSV is written to
+   * @return number of exported debts, -1 if store failed
+   * @throws IOException if writer fails
+   */
+  int exportLedger(User user, Writer writer) throws IOException {
+    long startNanos = System.nanoTime();
+    int[] exportedCount = new int[1];
+    writer.write(LedgerCsv.HEADER);
+    writer.write('\n');
+    try {
+      ledgerStore.forEachDebt(user.getId(), (borrowerId, lenderId, lenderName, sum, currency) -> {
+        try {
+          LedgerCsv.writeLine(writer, lenderId, lenderName, sum, currency);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        exportedCount[0]++;
+      });
+      return exportedCount[0];
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } catch (LedgerStoreException e) {
+      Metrics.increment(Metrics.ERRORS, "db");
+      log.error(e.getMessage(), e);
+      return -1;
+    } finally {
+      Metrics.histogram(Metrics.DB_LATENCY, "export_ledger").recordSince(startNanos);
+    }
+  }
+
+  /**
+   * Returns debts of the borrower from cache or store, used by background jobs that have no Telegram user at hand.
+   *
+   * @param borrowerId Telegram id of the borrower
+   * @return unmodifiable list of LendUser objects or null if ledger can't be read
+   */
+  List<LendUser> getLedger(int borrowerId) {
+    try {
+      return loadLedger(borrowerId);
+    } catch (LedgerStoreException e) {
+      Metrics.increment(Metrics.ERRORS, "db");
+      log.error(e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Turns on reminder about debt of the borrower to the lender, replacing the reminder pair had. First reminder is
+   * sent one interval from now.
+   *
+   * @param borrowerId     Telegram id of the borrower
+   * @param lenderId       Telegram id of the lender
+   * @param intervalMillis time between reminders
+   * @return saved reminder or null if it couldn't be saved
+   */
+  Reminder setReminder(int borrowerId, int lenderId, long intervalMillis) {
+    Reminder reminder = new Reminder(borrowerId, lenderId, intervalMillis, System.currentTimeMillis() + intervalMillis);
+    long startNanos = System.nanoTime();
     try {
-      Statement editUserStatement = dbConnection.createStatement();
-      editUserStatement.execute(editUserQuery);
-      log.info(editUserStatement.getFetchSize());
+      ledgerStore.saveReminder(reminder);
+      return reminder;
+    } catch (LedgerStoreException e) {
+      Metrics.increment(Metrics.ERRORS, "db");
+      log.error(e.getMessage());
+      return null;
+    } finally {
+      Metrics.histogram(Metrics.DB_LATENCY, "save_reminder").recordSince(startNanos);
+    }
+  }
 
-      Statement updateNegativeSum = dbConnection.createStatement();
-      updateNegativeSum.execute("DELETE FROM lending WHERE sum <= 0;");
+  /**
+   * Turns off reminder about debt of the borrower to the lender.
+   *
+   * @return true if pair has no reminder now
+   */
+  boolean removeReminder(int borrowerId, int lenderId) {
+    long startNanos = System.nanoTime();
+    try {
+      ledgerStore.removeReminder(borrowerId, lenderId);
+      return true;
+    } catch (LedgerStoreException e) {
+      Metrics.increment(Metrics.ERRORS, "db");
+      log.error(e.getMessage());
+      return false;
+    } finally {
+      Metrics.histogram(Metrics.DB_LATENCY, "remove_reminder").recordSince(startNanos);
+    }
+  }
 
+  /**
+   * Moves sent reminders to their next fire times and removes the ones that are not needed anymore.
+   *
+   * @param fired reminders as they were when they fired
+   * @param next  reminders to keep at the same positions as fired ones, null for reminders to remove
+   * @return true if batch was saved
+   * @see LedgerStore#completeReminders(List, List)
+   */
+  boolean completeReminders(List<Reminder> fired, List<Reminder> next) {
+    long startNanos = System.nanoTime();
+    try {
+      ledgerStore.completeReminders(fired, next);
       return true;
-    } catch (SQLException e) {
-      e.printStackTrace();
+    } catch (LedgerStoreException e) {
+      Metrics.increment(Metrics.ERRORS, "db");
       log.error(e.getMessage());
       return false;
+    } finally {
+      Metrics.histogram(Metrics.DB_LATENCY, "complete_reminders").recordSince(startNanos);
     }
   }
 
   /**
-   * Returns number of user connections
+   * Streams all reminders from the store.
    *
-   * @param user self explanatory
-   * @return number of connections
-   * @see User
+   * @param consumer receiver of reminders
+   * @return true if all reminders were read
+   */
+  boolean forEachReminder(Consumer<Reminder> consumer) {
+    long startNanos = System.nanoTime();
+    try {
+      ledgerStore.forEachReminder(consumer);
+      return true;
+    } catch (LedgerStoreException e) {
+      Metrics.increment(Metrics.ERRORS, "db");
+      log.error(e.getMessage());
+      return false;
+    } finally {
+      Metrics.histogram(Metrics.DB_LATENCY, "find_reminders").recordSince(startNanos);
+    }
+  }
+
+  /**
+   * Drops cached ledgers of matching users, so they are loaded from the store on the next read.
+   *
+   * @param userIds users whose cached ledgers are dropped
+   */
+  void invalidateCachedLedgers(IntPredicate userIds) {
+    ledgerCache.invalidateIf(userIds);
+    inlineResultCache.invalidateIf(userIds);
+  }
+
+  private static LedgerStore openLedgerStore() throws LedgerStoreException {
+    if (BuildVars.EMBEDDED_STORE_ENABLED) {
+      return EmbeddedLedgerStore.open(BuildVars.EMBEDDED_STORE_PATH);
+    }
+
+    JdbcLedgerStore database = new JdbcLedgerStore(new PooledDataSource(BuildVars.DATABASE_LINK, BuildVars.DATABASE_POOL_MIN_IDLE,
+        BuildVars.DATABASE_POOL_MAX_TOTAL, BuildVars.DATABASE_POOL_MAX_WAIT_MILLIS, BuildVars.DATABASE_VALIDATION_TIMEOUT_SECONDS,
+        BuildVars.DATABASE_LEAK_TIMEOUT_SECONDS));
+    return BuildVars.WRITE_BEHIND_ENABLED ? WriteBehindLedgerStore.open(database, BuildVars.WRITE_BEHIND_JOURNAL_PATH) : database;
+  }
+
+  /**
+   * @param pairCurrencies lender id -> currency of the debt to the lender, updated with the line lender
+   * @return add lender mutation in the currency of the pair or null if line is not a valid debt of the borrower
+   */
+  private static LedgerMutation parseImportLine(int borrowerId, String line, FxRates rates, Map<Integer, String> pairCurrencies) {
+    try {
+      List<String> fields = LedgerCsv.parseLine(line);
+      if (fields.size() < LedgerCsv.MIN_FIELD_COUNT || fields.size() > LedgerCsv.FIELD_COUNT) {
+        return null;
+      }
+
+      int lenderId = Integer.parseInt(fields.get(LedgerCsv.LENDER_ID_FIELD).trim());
+      String name = fields.get(LedgerCsv.NAME_FIELD).trim();
+      long sum = Money.parse(fields.get(LedgerCsv.SUM_FIELD));
+      String currency = fields.size() == LedgerCsv.FIELD_COUNT
+          ? fields.get(LedgerCsv.CURRENCY_FIELD).trim().toUpperCase(Locale.ROOT) : rates.getBaseCurrency();
+      if (lenderId <= 0 || lenderId == borrowerId || name.isEmpty() || name.length() > BuildVars.IMPORT_MAX_NAME_LENGTH || sum <= 0
+          || !rates.supports(currency)) {
+        return null;
+      }
+
+      String pairCurrency = pairCurrencies.get(lenderId);
+      if (pairCurrency == null) {
+        pairCurrencies.put(lenderId, currency);
+        pairCurrency = currency;
+      }
+      return LedgerMutation.addLender(borrowerId, lenderId, rates.convert(sum, currency, pairCurrency), pairCurrency, name, null);
+    } catch (IllegalArgumentException | ArithmeticException e) {
+      // NumberFormatException included
+      return null;
+    }
+  }
+
+  /**
+   * Adds chunk of imported debts and clears it.
+   *
+   * @return number of added debts
+   */
+  private int addImportChunk(int borrowerId, List<LedgerMutation> chunk) throws LedgerStoreException {
+    if (chunk.isEmpty()) {
+      return 0;
+    }
+
+    long startNanos = System.nanoTime();
+    try {
+      ledgerStore.addLenders(borrowerId, chunk);
+      int added = chunk.size();
+      chunk.clear();
+      return added;
+    } finally {
+      Metrics.histogram(Metrics.DB_LATENCY, "import_chunk").recordSince(startNanos);
+    }
+  }
+
+  private void refreshSettlementGraph(int borrowerId) {
+    try {
+      settlementEngine.refresh(borrowerId, this::loadLedger);
+    } catch (LedgerStoreException e) {
+      // graph can't be trusted anymore, it is loaded from scratch on next settlement
+      settlementEngine.invalidate();
+      log.error(e.getMessage());
+    }
+  }
+
+  private List<LendUser> loadLedger(int borrowerId) throws LedgerStoreException {
+    return ledgerCache.get(borrowerId, id -> {
+      long startNanos = System.nanoTime();
+      try {
+        return ledgerStore.findLedger(id);
+      } finally {
+        Metrics.histogram(Metrics.DB_LATENCY, "find_ledger").recordSince(startNanos);
+      }
+    });
+  }
+
+  LedgerCache getLedgerCache() {
+    return ledgerCache;
+  }
+
+  /**
+   * Closes underlying ledger store and stops reloading FX rates.
    */
-  int getAmountOfUsers(User user) {
-    return this.getAllUsersInformation(user).size();
+  void close() {
+    fxRateTable.close();
+    ledgerStore.close();
   }
 
 }
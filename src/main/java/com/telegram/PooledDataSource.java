@@ -0,0 +1,218 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import lombok.extern.log4j.Log4j;
+import org.apache.commons.pool2.BasePooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.AbandonedConfig;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * DataSource that keeps a bounded pool of JDBC connections. Connections are validated before being handed out,
+ * connections that were not returned during leak timeout are reclaimed and logged.
+ * Closing connection obtained from this DataSource returns it to the pool.
+ */
+@Log4j
+class PooledDataSource implements DataSource {
+  private final GenericObjectPool<Connection> pool;
+
+  PooledDataSource(String jdbcUrl, int minIdle, int maxTotal, long maxWaitMillis, int validationTimeoutSeconds,
+                   int leakTimeoutSeconds) {
+    GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+    config.setMinIdle(minIdle);
+    config.setMaxIdle(maxTotal);
+    config.setMaxTotal(maxTotal);
+    config.setMaxWaitMillis(maxWaitMillis);
+    config.setTestOnBorrow(true);
+    config.setTestWhileIdle(true);
+    config.setTimeBetweenEvictionRunsMillis(30_000);
+
+    AbandonedConfig abandonedConfig = new AbandonedConfig();
+    abandonedConfig.setRemoveAbandonedOnBorrow(true);
+    abandonedConfig.setRemoveAbandonedOnMaintenance(true);
+    abandonedConfig.setRemoveAbandonedTimeout(leakTimeoutSeconds);
+    abandonedConfig.setLogAbandoned(true);
+
+    pool = new GenericObjectPool<>(new ConnectionFactory(jdbcUrl, validationTimeoutSeconds), config, abandonedConfig);
+    try {
+      pool.preparePool();
+    } catch (Exception e) {
+      log.error("Unable to open initial connections: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    Connection connection;
+    try {
+      connection = pool.borrowObject();
+    } catch (SQLException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new SQLException("Unable to get connection from pool.", e);
+    }
+    return wrap(connection);
+  }
+
+  @Override
+  public Connection getConnection(String username, String password) throws SQLException {
+    throw new SQLFeatureNotSupportedException("Pool connections use credentials from JDBC URL.");
+  }
+
+  int getNumActive() {
+    return pool.getNumActive();
+  }
+
+  int getNumIdle() {
+    return pool.getNumIdle();
+  }
+
+  void close() {
+    pool.close();
+  }
+
+  /**
+   * Wraps pooled connection so that close() returns it back to the pool instead of closing the socket.
+   */
+  private Connection wrap(Connection connection) {
+    AtomicBoolean returned = new AtomicBoolean();
+    return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "close":
+              if (returned.compareAndSet(false, true)) {
+                pool.returnObject(connection);
+              }
+              return null;
+            case "isClosed":
+              return returned.get() || connection.isClosed();
+            default:
+              if (returned.get()) {
+                throw new SQLException("Connection is already returned to the pool.");
+              }
+              try {
+                return method.invoke(connection, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+          }
+        });
+  }
+
+  @Override
+  public PrintWriter getLogWriter() {
+    return null;
+  }
+
+  @Override
+  public void setLogWriter(PrintWriter out) {
+  }
+
+  @Override
+  public void setLoginTimeout(int seconds) {
+  }
+
+  @Override
+  public int getLoginTimeout() {
+    return 0;
+  }
+
+  @Override
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    if (iface.isInstance(this)) {
+      return iface.cast(this);
+    }
+    throw new SQLException("Not a wrapper for " + iface.getName());
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> iface) {
+    return iface.isInstance(this);
+  }
+
+  private static class ConnectionFactory extends BasePooledObjectFactory<Connection> {
+    private final String jdbcUrl;
+    private final int validationTimeoutSeconds;
+
+    ConnectionFactory(String jdbcUrl, int validationTimeoutSeconds) {
+      this.jdbcUrl = jdbcUrl;
+      this.validationTimeoutSeconds = validationTimeoutSeconds;
+    }
+
+    @Override
+    public Connection create() throws SQLException {
+      return DriverManager.getConnection(jdbcUrl);
+    }
+
+    @Override
+    public PooledObject<Connection> wrap(Connection connection) {
+      return new DefaultPooledObject<>(connection);
+    }
+
+    @Override
+    public boolean validateObject(PooledObject<Connection> pooledConnection) {
+      try {
+        return pooledConnection.getObject().isValid(validationTimeoutSeconds);
+      } catch (SQLException e) {
+        return false;
+      }
+    }
+
+    @Override
+    public void passivateObject(PooledObject<Connection> pooledConnection) throws SQLException {
+      // Connection must come back to the pool without open transaction
+      Connection connection = pooledConnection.getObject();
+      if (!connection.getAutoCommit()) {
+        connection.rollback();
+        connection.setAutoCommit(true);
+      }
+    }
+
+    @Override
+    public void destroyObject(PooledObject<Connection> pooledConnection) throws SQLException {
+      pooledConnection.getObject().close();
+    }
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import lombok.Value;
+
+/**
+ * Reminder about debt of the borrower to the lender. It is sent to the borrower's private chat every interval until
+ * the debt is paid off or the borrower turns it off.
+ */
+@Value
+class Reminder {
+  private final int borrowerId;
+  private final int lenderId;
+  private final long intervalMillis;
+  private final long nextFireAtMillis;
+
+  /**
+   * @return reminder moved to the first fire time after the moment, fire times missed while bot was down are skipped
+   */
+  Reminder next(long nowMillis) {
+    long intervals = Math.max(0, (nowMillis - nextFireAtMillis) / intervalMillis) + 1;
+    return new Reminder(borrowerId, lenderId, intervalMillis, nextFireAtMillis + intervals * intervalMillis);
+  }
+
+  /**
+   * @return key of the lending pair, pair has at most one reminder
+   */
+  long getPairKey() {
+    return (long) borrowerId << 32 | (lenderId & 0xFFFFFFFFL);
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import lombok.extern.log4j.Log4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+
+/**
+ * Fires debt reminders from a {@link TimerWheel}, so pending reminders cost nothing until they are due and the store
+ * is only read when schedule is rebuilt. Wheel belongs to the wheel thread, other threads only queue changes for it,
+ * so turning a reminder on from a dialog never waits for the wheel or the delivery.
+ * <p>
+ * Due reminders are passed to {@link Delivery} in batches on the worker thread. Reminders delivery still needs are
+ * moved to their next fire time and the rest are removed, with one store round trip per batch.
+ */
+@Log4j
+class ReminderScheduler {
+  private final PersistenceService persistenceService;
+  private final Delivery delivery;
+  private final long tickMillis;
+  private final int batchSize;
+
+  // wheel and timers are touched by the wheel thread only
+  private final TimerWheel<Reminder> wheel;
+  private final Map<Long, TimerWheel.Timer<Reminder>> timers = new HashMap<>();
+  private final Queue<Runnable> changes = new ConcurrentLinkedQueue<>();
+  private final Queue<IntPredicate> pendingLoads = new ConcurrentLinkedQueue<>();
+  private final ScheduledExecutorService wheelThread;
+  private final ExecutorService worker;
+  private volatile int scheduled;
+
+  /**
+   * Sends due reminders.
+   */
+  @FunctionalInterface
+  interface Delivery {
+    /**
+     * @param due reminders that are due, several of them can belong to one borrower
+     * @return whether each reminder is still needed, at the same positions as due ones
+     */
+    boolean[] deliver(List<Reminder> due);
+  }
+
+  /**
+   * @param tickMillis wheel tick, reminders fire up to this late
+   * @param batchSize  max reminders passed to delivery at once
+   */
+  ReminderScheduler(PersistenceService persistenceService, Delivery delivery, long tickMillis, int batchSize) {
+    this.persistenceService = persistenceService;
+    this.delivery = delivery;
+    this.tickMillis = tickMillis;
+    this.batchSize = batchSize;
+    this.wheel = new TimerWheel<>(System.currentTimeMillis() / tickMillis);
+
+    wheelThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "reminder-wheel");
+      thread.setDaemon(true);
+      return thread;
+    });
+    worker = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "reminder-worker"));
+    wheelThread.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Schedules reminder, replacing the one its lending pair had.
+   */
+  void schedule(Reminder reminder) {
+    changes.add(() -> put(reminder));
+  }
+
+  /**
+   * Drops reminder of the lending pair.
+   */
+  void cancel(int borrowerId, int lenderId) {
+    long pairKey = new Reminder(borrowerId, lenderId, 0, 0).getPairKey();
+    changes.add(() -> {
+      TimerWheel.Timer<Reminder> timer = timers.remove(pairKey);
+      if (timer != null) {
+        wheel.cancel(timer);
+      }
+    });
+  }
+
+  /**
+   * Reads reminders of matching borrowers from the store and schedules them. Loads requested while another one runs
+   * are done together in a single pass over the store, so a burst of them, e.g. when node joins cluster, doesn't
+   * read the store over and over.
+   *
+   * @param borrowerIds borrowers whose reminders are loaded
+   */
+  void load(IntPredicate borrowerIds) {
+    pendingLoads.add(borrowerIds);
+    worker.execute(this::loadPending);
+  }
+
+  /**
+   * Drops reminders of matching borrowers from the schedule, they stay in the store.
+   *
+   * @param borrowerIds borrowers whose reminders are dropped
+   */
+  void forget(IntPredicate borrowerIds) {
+    changes.add(() -> {
+      Iterator<TimerWheel.Timer<Reminder>> iterator = timers.values().iterator();
+      while (iterator.hasNext()) {
+        TimerWheel.Timer<Reminder> timer = iterator.next();
+        if (borrowerIds.test(timer.getValue().getBorrowerId())) {
+          wheel.cancel(timer);
+          iterator.remove();
+        }
+      }
+    });
+  }
+
+  int getScheduled() {
+    return scheduled;
+  }
+
+  /**
+   * Stops firing reminders and waits for the batch being delivered.
+   */
+  void shutdown(long timeout, TimeUnit unit) {
+    wheelThread.shutdownNow();
+    worker.shutdown();
+    try {
+      if (!worker.awaitTermination(timeout, unit)) {
+        log.error("Reminder delivery didn't finish in time.");
+        worker.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      worker.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void tick() {
+    try {
+      for (Runnable change = changes.poll(); change != null; change = changes.poll()) {
+        change.run();
+      }
+
+      List<Reminder> due = new ArrayList<>();
+      // fired timers stay in timers map until delivery completes, so changes made meanwhile can be told apart
+      wheel.advanceTo(System.currentTimeMillis() / tickMillis, due::add);
+      scheduled = wheel.size();
+      for (int from = 0; from < due.size(); from += batchSize) {
+        List<Reminder> batch = new ArrayList<>(due.subList(from, Math.min(due.size(), from + batchSize)));
+        worker.execute(() -> deliver(batch));
+      }
+    } catch (RuntimeException e) {
+      // exception would cancel the periodic task
+      log.error("Reminder tick failed: " + e.getMessage(), e);
+    }
+  }
+
+  private void put(Reminder reminder) {
+    TimerWheel.Timer<Reminder> previous = timers.put(reminder.getPairKey(), wheel.schedule(reminder, deadlineTick(reminder)));
+    if (previous != null) {
+      wheel.cancel(previous);
+    }
+  }
+
+  private void loadPending() {
+    List<IntPredicate> loads = new ArrayList<>();
+    for (IntPredicate borrowerIds = pendingLoads.poll(); borrowerIds != null; borrowerIds = pendingLoads.poll()) {
+      loads.add(borrowerIds);
+    }
+    if (loads.isEmpty()) {
+      return;
+    }
+
+    List<Reminder> loaded = new ArrayList<>();
+    persistenceService.forEachReminder(reminder -> {
+      for (IntPredicate borrowerIds : loads) {
+        if (borrowerIds.test(reminder.getBorrowerId())) {
+          loaded.add(reminder);
+          return;
+        }
+      }
+    });
+    changes.add(() -> {
+      for (Reminder reminder : loaded) {
+        // reminder turned on meanwhile is newer than the stored one
+        if (!timers.containsKey(reminder.getPairKey())) {
+          put(reminder);
+        }
+      }
+    });
+    log.info("Loaded " + loaded.size() + " reminders.");
+  }
+
+  private void deliver(List<Reminder> due) {
+    boolean[] keep;
+    try {
+      keep = delivery.deliver(due);
+      for (boolean kept : keep) {
+        Metrics.increment(Metrics.REMINDERS, kept ? "sent" : "removed");
+      }
+    } catch (RuntimeException e) {
+      Metrics.increment(Metrics.ERRORS, "reminder");
+      log.error("Reminder delivery failed: " + e.getMessage(), e);
+      // try again next time rather than lose reminders
+      keep = new boolean[due.size()];
+      Arrays.fill(keep, true);
+    }
+
+    long nowMillis = System.currentTimeMillis();
+    List<Reminder> next = new ArrayList<>(due.size());
+    for (int i = 0; i < due.size(); i++) {
+      next.add(keep[i] ? due.get(i).next(nowMillis) : null);
+    }
+    // reminders are rescheduled even if store fails, they would just fire again after restart
+    persistenceService.completeReminders(due, next);
+
+    changes.add(() -> {
+      for (int i = 0; i < due.size(); i++) {
+        Reminder fired = due.get(i);
+        TimerWheel.Timer<Reminder> current = timers.get(fired.getPairKey());
+        // reminder replaced or turned off after it fired is left as borrower set it
+        if (current != null && current.getValue() == fired) {
+          if (next.get(i) != null) {
+            timers.put(fired.getPairKey(), wheel.schedule(next.get(i), deadlineTick(next.get(i))));
+          } else {
+            timers.remove(fired.getPairKey());
+          }
+        }
+      }
+    });
+  }
+
+  private long deadlineTick(Reminder reminder) {
+    return (reminder.getNextFireAtMillis() + tickMillis - 1) / tickMillis;
+  }
+}
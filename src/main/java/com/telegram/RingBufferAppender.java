@@ -0,0 +1,271 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.OnlyOnceErrorHandler;
+import org.apache.log4j.spi.ErrorHandler;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log4j appender that hands events to a background thread through a bounded lock-free ring, so logging threads never
+ * wait for console or disk.
+ * <p>
+ * Producers claim a slot by advancing tail sequence, store the event and publish it by writing slot sequence. Single
+ * drainer thread passes published events to the wrapped appenders in claim order. When the ring is full the event is
+ * dropped and counted instead of blocking, the drainer reports the number of dropped events once there is room again.
+ * Filters and thresholds of the wrapped appenders still apply, they are checked on the drainer thread.
+ */
+final class RingBufferAppender implements Appender {
+  private static final String NAME = "ring";
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+  private final LoggingEvent[] events;
+  // slot holds sequence + 1 of the event published to it, so initial zeros mean nothing is published
+  private final AtomicLongArray published;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final List<Appender> appenders;
+  private final Thread drainer;
+  // written only by drainer thread
+  private volatile long head;
+  private volatile boolean closed;
+  private long reportedDropped;
+  private ErrorHandler errorHandler = new OnlyOnceErrorHandler();
+
+  /**
+   * Creates appender and starts its drainer thread.
+   *
+   * @param capacity  number of events the ring holds, power of two
+   * @param appenders appenders events are passed to
+   */
+  RingBufferAppender(int capacity, List<Appender> appenders) {
+    if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Ring capacity must be a power of two: " + capacity);
+    }
+    this.events = new LoggingEvent[capacity];
+    this.published = new AtomicLongArray(capacity);
+    this.mask = capacity - 1;
+    this.appenders = new ArrayList<>(appenders);
+
+    drainer = new Thread(this::drain, "log-drainer");
+    // shutdown hook flushes the ring, JVM must not wait for drainer to exit
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  /**
+   * Moves appenders of root logger behind a ring buffer. Call once, before the first request is handled.
+   *
+   * @param capacity number of events the ring holds, power of two
+   * @return installed appender
+   */
+  static RingBufferAppender install(int capacity) {
+    Logger rootLogger = Logger.getRootLogger();
+    List<Appender> appenders = new ArrayList<>();
+    for (Enumeration<?> enumeration = rootLogger.getAllAppenders(); enumeration.hasMoreElements(); ) {
+      appenders.add((Appender) enumeration.nextElement());
+    }
+
+    RingBufferAppender ringBufferAppender = new RingBufferAppender(capacity, appenders);
+    // removeAllAppenders() would close them
+    for (Appender appender : appenders) {
+      rootLogger.removeAppender(appender);
+    }
+    rootLogger.addAppender(ringBufferAppender);
+
+    Metrics.gauge("log_events_dropped", ringBufferAppender::getDropped);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> ringBufferAppender.flush(CLOSE_TIMEOUT_MILLIS), "log-flush"));
+    return ringBufferAppender;
+  }
+
+  @Override
+  public void doAppend(LoggingEvent event) {
+    if (closed) {
+      return;
+    }
+    // values layouts read lazily must be taken on the logging thread
+    event.getThreadName();
+    event.getNDC();
+    event.getMDCCopy();
+    event.getRenderedMessage();
+
+    long sequence;
+    do {
+      sequence = tail.get();
+      if (sequence - head >= events.length) {
+        dropped.incrementAndGet();
+        return;
+      }
+    } while (!tail.compareAndSet(sequence, sequence + 1));
+
+    int index = (int) sequence & mask;
+    events[index] = event;
+    published.lazySet(index, sequence + 1);
+  }
+
+  /**
+   * Waits until events logged so far are passed to the wrapped appenders.
+   *
+   * @param timeoutMillis max time to wait
+   * @return true if ring was drained in time
+   */
+  boolean flush(long timeoutMillis) {
+    long target = tail.get();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (head < target && drainer.isAlive()) {
+      if (System.nanoTime() - deadline >= 0) {
+        return false;
+      }
+      LockSupport.parkNanos(IDLE_PARK_NANOS);
+    }
+    return true;
+  }
+
+  /**
+   * @return number of events dropped because the ring was full
+   */
+  long getDropped() {
+    return dropped.get();
+  }
+
+  private void drain() {
+    long sequence = head;
+    while (true) {
+      int index = (int) sequence & mask;
+      if (published.get(index) == sequence + 1) {
+        LoggingEvent event = events[index];
+        events[index] = null;
+        head = ++sequence;
+        reportDropped();
+        forward(event);
+      } else if (closed && sequence == tail.get()) {
+        return;
+      } else {
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      }
+    }
+  }
+
+  private void reportDropped() {
+    long droppedCount = dropped.get();
+    if (droppedCount != reportedDropped) {
+      forward(new LoggingEvent(Logger.class.getName(), Logger.getLogger(RingBufferAppender.class), Level.WARN,
+          (droppedCount - reportedDropped) + " log events dropped, ring buffer was full.", null));
+      reportedDropped = droppedCount;
+    }
+  }
+
+  private void forward(LoggingEvent event) {
+    for (Appender appender : appenders) {
+      try {
+        appender.doAppend(event);
+      } catch (RuntimeException e) {
+        // broken appender must not stop the others
+        errorHandler.error("Appender " + appender.getName() + " failed", e, 0, event);
+      }
+    }
+  }
+
+  /**
+   * Stops accepting events, drains the ring and closes the wrapped appenders.
+   */
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      drainer.join(CLOSE_TIMEOUT_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (Appender appender : appenders) {
+      appender.close();
+    }
+  }
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public void setName(String name) {
+  }
+
+  @Override
+  public void addFilter(Filter newFilter) {
+  }
+
+  @Override
+  public Filter getFilter() {
+    return null;
+  }
+
+  @Override
+  public void clearFilters() {
+  }
+
+  @Override
+  public ErrorHandler getErrorHandler() {
+    return errorHandler;
+  }
+
+  @Override
+  public void setErrorHandler(ErrorHandler errorHandler) {
+    this.errorHandler = errorHandler;
+  }
+
+  @Override
+  public Layout getLayout() {
+    return null;
+  }
+
+  @Override
+  public void setLayout(Layout layout) {
+  }
+
+  @Override
+  public boolean requiresLayout() {
+    return false;
+  }
+}
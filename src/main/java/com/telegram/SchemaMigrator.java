@@ -0,0 +1,155 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import lombok.extern.log4j.Log4j;
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.handlers.ColumnListHandler;
+
+import javax.sql.DataSource;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Brings database schema to the latest version. Every migration is a SQL script in db/migration resources folder
+ * named V{version}__{description}.sql. Applied versions are recorded in schema_version table, so every script runs once.
+ * <p>
+ * MariaDB commits every DDL statement on its own, so a script that failed half way can't be rolled back. Scripts are
+ * written to be run again after such failure: DDL statements are guarded by IF [NOT] EXISTS, and data changes either
+ * come after the last DDL statement of the script, so they are committed together with its version, or find nothing
+ * to do when repeated.
+ */
+@Log4j
+class SchemaMigrator {
+  private static final String MIGRATIONS_PATH = "/db/migration/";
+  // add new migration scripts to the end of this list
+  private static final String[] MIGRATIONS = {
+      "V1__create_user_and_lending.sql",
+      "V2__add_lending_indexes.sql",
+      "V3__store_sums_in_minor_units.sql",
+      "V4__add_journal_checkpoint.sql",
+      "V5__add_lending_history.sql",
+      "V6__add_reminders.sql",
+      "V7__add_lending_currency.sql",
+      "V8__unique_lending_pair.sql",
+      "V9__drop_lending_sum.sql",
+      "V10__add_ledger_lock.sql"
+  };
+
+  private static final String CREATE_VERSION_TABLE_QUERY = "CREATE TABLE IF NOT EXISTS schema_version (" +
+      "version INT NOT NULL PRIMARY KEY, " +
+      "script VARCHAR(255) NOT NULL, " +
+      "installed_on TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)";
+  private static final String FIND_VERSIONS_QUERY = "SELECT version FROM schema_version";
+  private static final String ADD_VERSION_QUERY = "INSERT INTO schema_version (version, script) VALUES (?, ?)";
+
+  private final DataSource dataSource;
+  private final QueryRunner queryRunner;
+
+  SchemaMigrator(DataSource dataSource) {
+    this.dataSource = dataSource;
+    this.queryRunner = new QueryRunner(dataSource);
+  }
+
+  /**
+   * Applies all migrations that are not recorded in schema_version table yet.
+   *
+   * @throws SQLException if any migration fails, later migrations are not applied then
+   */
+  void migrate() throws SQLException {
+    queryRunner.update(CREATE_VERSION_TABLE_QUERY);
+    Set<Integer> appliedVersions = new HashSet<>(queryRunner.query(FIND_VERSIONS_QUERY, new ColumnListHandler<Integer>(1)));
+
+    for (String script : MIGRATIONS) {
+      int version = versionOf(script);
+      if (appliedVersions.contains(version)) {
+        continue;
+      }
+
+      log.info("Applying migration " + script);
+      try (Connection connection = dataSource.getConnection()) {
+        connection.setAutoCommit(false);
+        try {
+          for (String statement : readStatements(script)) {
+            queryRunner.update(connection, statement);
+          }
+          queryRunner.update(connection, ADD_VERSION_QUERY, version, script);
+          connection.commit();
+        } catch (SQLException e) {
+          connection.rollback();
+          throw e;
+        }
+      }
+    }
+  }
+
+  private static int versionOf(String script) {
+    return Integer.parseInt(script.substring(1, script.indexOf("__")));
+  }
+
+  /**
+   * Reads migration script and splits it into separate statements. Lines starting with -- are skipped.
+   */
+  private static List<String> readStatements(String script) throws SQLException {
+    InputStream scriptStream = SchemaMigrator.class.getResourceAsStream(MIGRATIONS_PATH + script);
+    if (scriptStream == null) {
+      throw new SQLException("Migration script " + script + " not found.");
+    }
+
+    List<String> statements = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(scriptStream, StandardCharsets.UTF_8))) {
+      StringBuilder statementBuilder = new StringBuilder();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String trimmedLine = line.trim();
+        if (trimmedLine.isEmpty() || trimmedLine.startsWith("--")) {
+          continue;
+        }
+        statementBuilder.append(trimmedLine).append(' ');
+        if (trimmedLine.endsWith(";")) {
+          statementBuilder.setLength(statementBuilder.length() - 2);
+          statements.add(statementBuilder.toString());
+          statementBuilder.setLength(0);
+        }
+      }
+      if (statementBuilder.length() > 0) {
+        statements.add(statementBuilder.toString().trim());
+      }
+    } catch (IOException e) {
+      throw new SQLException("Unable to read migration script " + script, e);
+    }
+    return statements;
+  }
+}
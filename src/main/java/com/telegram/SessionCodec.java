@@ -0,0 +1,72 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import org.telegram.telegrambots.api.objects.Contact;
+
+/**
+ * Encodes dialog scratch data kept in Redis between dialog steps.
+ *
+ * @see BinarySessionCodec
+ * @see GsonSessionCodec
+ */
+interface SessionCodec {
+
+  /**
+   * @param contact lender contact received on "/add"
+   * @return encoded contact
+   */
+  byte[] encodeContact(Contact contact);
+
+  /**
+   * @param data encoded contact
+   * @return decoded contact or null if data can't be read
+   */
+  Contact decodeContact(byte[] data);
+
+  /**
+   * @param userId id of the user selected for edit
+   * @return encoded user id
+   */
+  byte[] encodeUserId(int userId);
+
+  /**
+   * @param data encoded user id
+   * @return decoded user id or null if data can't be read
+   */
+  Integer decodeUserId(byte[] data);
+
+  /**
+   * @param userIds ids of users listed on edit page
+   * @return encoded user ids
+   */
+  byte[] encodeUserIds(int[] userIds);
+
+  /**
+   * @param data encoded user ids
+   * @return decoded user ids or null if data can't be read
+   */
+  int[] decodeUserIds(byte[] data);
+}
@@ -0,0 +1,89 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Transfers that settle all debts in the circle of a user, the people connected to the user by debts.
+ *
+ * @see SettlementEngine
+ */
+@Value
+class Settlement {
+  private final int userId;
+  // people in the circle including the user
+  private final int circleSize;
+  // debts between people of the circle
+  private final int debtCount;
+  // transfers that settle the whole circle
+  private final int transferCount;
+  // currency of all transfer sums, debts in other currencies are converted to it
+  private final String currency;
+  // transfers the user pays or receives
+  private final List<Transfer> transfers;
+
+  @Value
+  static class Transfer {
+    private final int fromUserId;
+    private final String fromName;
+    private final int toUserId;
+    private final String toName;
+    // in minor units, see Money
+    private final long sum;
+  }
+
+  @Override
+  public String toString() {
+    if (transferCount == 0) {
+      return "Nothing to settle. :)";
+    }
+
+    StringBuilder settlementBuilder = new StringBuilder()
+        .append(debtCount).append(" debts between ").append(circleSize).append(" people can be settled with ")
+        .append(transferCount).append(" transfers.\n");
+    for (Transfer transfer : transfers) {
+      if (transfer.fromUserId == userId) {
+        settlementBuilder.append("You pay ").append(nameOf(transfer.toUserId, transfer.toName));
+      } else {
+        settlementBuilder.append(nameOf(transfer.fromUserId, transfer.fromName)).append(" pays you");
+      }
+      settlementBuilder.append(" ");
+      Money.appendTo(settlementBuilder, transfer.sum, currency);
+      settlementBuilder.append("\n");
+    }
+    if (transfers.isEmpty()) {
+      settlementBuilder.append("You are even, no transfers for you. :)");
+    }
+    return settlementBuilder.toString();
+  }
+
+  private static String nameOf(int userId, String name) {
+    // only lenders added by contact have known names
+    return name == null ? "user " + userId : name;
+  }
+}
@@ -0,0 +1,509 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Whole debt graph kept in memory for computing settlements. Debt of a borrower to a lender is an edge, balance of
+ * a person is what others owe to them minus what they owe to others.
+ * <p>
+ * Graph is kept in primitive arrays: people are dense node indexes, edges of every node are intrusive doubly linked
+ * lists, so replacing debts of a borrower costs only as much as the borrower's debts. Balances are updated together
+ * with edges. Settlement walks the connected circle of the user and repeatedly matches the biggest creditor with
+ * the biggest debtor, which takes at most circle size - 1 transfers.
+ * <p>
+ * Debts are converted to the base currency with the exchange rates current when they are added to the graph, debts
+ * in currencies without a rate are left out.
+ * <p>
+ * Graph is loaded on first use and reloaded after maxAge, so changes made by other nodes are picked up. Thread safe.
+ * The store is never read under the engine lock, so a slow load doesn't hold up writers refreshing their debts: full
+ * load builds a new graph that is swapped in when complete, and every read is numbered so debts read later are
+ * never replaced by debts read earlier.
+ */
+class SettlementEngine {
+  private static final int NONE = -1;
+
+  private final long maxAgeNanos;
+  private final Supplier<FxRates> fxRates;
+  // only one thread loads the graph, others wait for it without holding the engine lock
+  private final Object loadLock = new Object();
+  // numbers store reads, taken before the read starts
+  private final AtomicLong readSequence = new AtomicLong();
+
+  private DebtGraph graph;
+  private long loadedAt;
+  // borrower debts read while the graph is loading, applied to it before it is swapped in
+  private LongObjectHashMap<BorrowerDebts> refreshedWhileLoading;
+  private long invalidatedAt;
+
+  /**
+   * @param maxAge  time after which graph is reloaded from the store
+   * @param unit    time unit of the maxAge argument
+   * @param fxRates supplier of current exchange rates
+   */
+  SettlementEngine(long maxAge, TimeUnit unit, Supplier<FxRates> fxRates) {
+    this.maxAgeNanos = unit.toNanos(maxAge);
+    this.fxRates = fxRates;
+  }
+
+  /**
+   * Computes settlement of the user circle, loading the graph first if needed.
+   *
+   * @param userId Telegram id of the user
+   * @param debts  source graph is loaded from, usually {@link LedgerStore#forEachDebt(LedgerStore.DebtConsumer)}
+   * @return settlement with transfers of the user
+   */
+  Settlement settle(int userId, DebtSource debts) throws LedgerStoreException {
+    DebtGraph current;
+    synchronized (this) {
+      current = isFresh() ? graph : null;
+    }
+    if (current == null) {
+      synchronized (loadLock) {
+        current = load(debts);
+      }
+    }
+    synchronized (this) {
+      return current.settle(userId, fxRates.get().getBaseCurrency());
+    }
+  }
+
+  /**
+   * Replaces debts of the borrower with the current ones. Does nothing until graph is loaded.
+   *
+   * @param borrowerId Telegram id of the borrower whose debts changed
+   * @param loader     loader of current borrower debts, called without engine lock
+   */
+  void refresh(int borrowerId, LedgerCache.LedgerLoader loader) throws LedgerStoreException {
+    synchronized (this) {
+      if (graph == null && refreshedWhileLoading == null) {
+        return;
+      }
+    }
+    long sequence = readSequence.incrementAndGet();
+    List<LendUser> ledger = loader.load(borrowerId);
+    synchronized (this) {
+      if (graph != null) {
+        graph.replaceDebts(fxRates.get(), borrowerId, ledger, sequence);
+      }
+      if (refreshedWhileLoading != null) {
+        BorrowerDebts previous = refreshedWhileLoading.get(borrowerId);
+        if (previous == null || previous.sequence < sequence) {
+          refreshedWhileLoading.put(borrowerId, new BorrowerDebts(ledger, sequence));
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops the graph, it is loaded again on next settlement. Graph being loaded right now is not kept either.
+   */
+  synchronized void invalidate() {
+    graph = null;
+    invalidatedAt = readSequence.incrementAndGet();
+  }
+
+  synchronized int getEdgeCount() {
+    return graph == null ? 0 : graph.edgeCount;
+  }
+
+  private boolean isFresh() {
+    return graph != null && System.nanoTime() - loadedAt <= maxAgeNanos;
+  }
+
+  /**
+   * Reads the whole graph from the source. Called under load lock only.
+   *
+   * @return loaded graph or the current one if it was loaded by the thread this one waited for
+   */
+  private DebtGraph load(DebtSource debts) throws LedgerStoreException {
+    long sequence;
+    synchronized (this) {
+      if (isFresh()) {
+        return graph;
+      }
+      refreshedWhileLoading = new LongObjectHashMap<>(64);
+      sequence = readSequence.incrementAndGet();
+    }
+
+    try {
+      DebtGraph loading = new DebtGraph(sequence);
+      FxRates rates = fxRates.get();
+      debts.forEachDebt((borrowerId, lenderId, lenderName, sum, currency) ->
+          loading.addDebt(rates, borrowerId, lenderId, lenderName, sum, currency));
+
+      synchronized (this) {
+        FxRates currentRates = fxRates.get();
+        refreshedWhileLoading.forEach((borrowerId, borrowerDebts) ->
+            loading.replaceDebts(currentRates, (int) borrowerId, borrowerDebts.ledger, borrowerDebts.sequence));
+        // graph invalidated during the load may miss changes, it still answers this settlement
+        if (invalidatedAt < sequence) {
+          graph = loading;
+          loadedAt = System.nanoTime();
+        }
+      }
+      return loading;
+    } finally {
+      synchronized (this) {
+        refreshedWhileLoading = null;
+      }
+    }
+  }
+
+  /**
+   * Debts of all borrowers in primitive arrays with settlement scratch space. Not thread safe.
+   */
+  private static class DebtGraph {
+    // read sequence of the full load, debts of every borrower are at least that fresh
+    private final long loadSequence;
+
+    // user id -> node index
+    private final LongIntHashMap nodeIndexes = new LongIntHashMap(1024, NONE);
+    private int[] nodeUserIds = new int[1024];
+    private String[] nodeNames = new String[1024];
+    private long[] balances = new long[1024];
+    private int[] firstDebt = new int[1024];
+    private int[] firstLoan = new int[1024];
+    // read sequence debts of the borrower come from
+    private long[] debtSequences = new long[1024];
+    private int nodeCount;
+
+    private int[] edgeBorrowers = new int[1024];
+    private int[] edgeLenders = new int[1024];
+    private long[] edgeSums = new long[1024];
+    // links of borrower debt list and lender loan list, free edges are chained through nextDebt
+    private int[] nextDebt = new int[1024];
+    private int[] previousDebt = new int[1024];
+    private int[] nextLoan = new int[1024];
+    private int[] previousLoan = new int[1024];
+    private int edgeCount;
+    private int edgeSlots;
+    private int freeEdge = NONE;
+
+    // settlement scratch space, reused between calls
+    private int[] visitedStamps = new int[1024];
+    private int stamp;
+    private int[] circle = new int[1024];
+    private final NodeHeap creditors = new NodeHeap();
+    private final NodeHeap debtors = new NodeHeap();
+
+    DebtGraph(long loadSequence) {
+      this.loadSequence = loadSequence;
+    }
+
+    /**
+     * Replaces debts of the borrower unless the graph already has debts read later.
+     */
+    void replaceDebts(FxRates rates, int borrowerId, List<LendUser> ledger, long sequence) {
+      int borrower = nodeOf(borrowerId);
+      if (debtSequences[borrower] > sequence) {
+        return;
+      }
+      debtSequences[borrower] = sequence;
+      while (firstDebt[borrower] != NONE) {
+        removeEdge(firstDebt[borrower]);
+      }
+      for (LendUser lendUser : ledger) {
+        addDebt(rates, borrowerId, lendUser.getUserId(), lendUser.getName(), lendUser.getSum(), lendUser.getCurrency());
+      }
+    }
+
+    void addDebt(FxRates rates, int borrowerId, int lenderId, String lenderName, long sum, String currency) {
+      if (!rates.supports(currency)) {
+        return;
+      }
+      sum = rates.convert(sum, currency, rates.getBaseCurrency());
+
+      int borrower = nodeOf(borrowerId);
+      int lender = nodeOf(lenderId);
+      if (lenderName != null) {
+        nodeNames[lender] = lenderName;
+      }
+
+      int edge = allocateEdge();
+      edgeBorrowers[edge] = borrower;
+      edgeLenders[edge] = lender;
+      edgeSums[edge] = sum;
+
+      previousDebt[edge] = NONE;
+      nextDebt[edge] = firstDebt[borrower];
+      if (firstDebt[borrower] != NONE) {
+        previousDebt[firstDebt[borrower]] = edge;
+      }
+      firstDebt[borrower] = edge;
+
+      previousLoan[edge] = NONE;
+      nextLoan[edge] = firstLoan[lender];
+      if (firstLoan[lender] != NONE) {
+        previousLoan[firstLoan[lender]] = edge;
+      }
+      firstLoan[lender] = edge;
+
+      balances[borrower] -= sum;
+      balances[lender] += sum;
+      edgeCount++;
+    }
+
+    private void removeEdge(int edge) {
+      int borrower = edgeBorrowers[edge];
+      int lender = edgeLenders[edge];
+
+      if (previousDebt[edge] != NONE) {
+        nextDebt[previousDebt[edge]] = nextDebt[edge];
+      } else {
+        firstDebt[borrower] = nextDebt[edge];
+      }
+      if (nextDebt[edge] != NONE) {
+        previousDebt[nextDebt[edge]] = previousDebt[edge];
+      }
+
+      if (previousLoan[edge] != NONE) {
+        nextLoan[previousLoan[edge]] = nextLoan[edge];
+      } else {
+        firstLoan[lender] = nextLoan[edge];
+      }
+      if (nextLoan[edge] != NONE) {
+        previousLoan[nextLoan[edge]] = previousLoan[edge];
+      }
+
+      balances[borrower] += edgeSums[edge];
+      balances[lender] -= edgeSums[edge];
+      nextDebt[edge] = freeEdge;
+      freeEdge = edge;
+      edgeCount--;
+    }
+
+    Settlement settle(int userId, String baseCurrency) {
+      int userNode = nodeIndexes.get(userId);
+      if (userNode == NONE) {
+        return new Settlement(userId, 1, 0, 0, baseCurrency, Collections.emptyList());
+      }
+
+      // walk the circle in both edge directions, debts are counted once from the borrower side
+      if (++stamp == 0) {
+        Arrays.fill(visitedStamps, 0);
+        stamp = 1;
+      }
+      int circleSize = 0;
+      int debtCount = 0;
+      circle[circleSize++] = userNode;
+      visitedStamps[userNode] = stamp;
+      for (int head = 0; head < circleSize; head++) {
+        int node = circle[head];
+        for (int edge = firstDebt[node]; edge != NONE; edge = nextDebt[edge]) {
+          debtCount++;
+          circleSize = visit(edgeLenders[edge], circleSize);
+        }
+        for (int edge = firstLoan[node]; edge != NONE; edge = nextLoan[edge]) {
+          circleSize = visit(edgeBorrowers[edge], circleSize);
+        }
+      }
+
+      creditors.clear();
+      debtors.clear();
+      for (int i = 0; i < circleSize; i++) {
+        int node = circle[i];
+        if (balances[node] > 0) {
+          creditors.push(node, balances[node]);
+        } else if (balances[node] < 0) {
+          debtors.push(node, -balances[node]);
+        }
+      }
+
+      List<Settlement.Transfer> transfers = new ArrayList<>();
+      int transferCount = 0;
+      while (creditors.size > 0 && debtors.size > 0) {
+        int creditor = creditors.topNode();
+        long credit = creditors.topAmount();
+        int debtor = debtors.topNode();
+        long debt = debtors.topAmount();
+        creditors.pop();
+        debtors.pop();
+
+        long sum = Math.min(credit, debt);
+        transferCount++;
+        if (creditor == userNode || debtor == userNode) {
+          transfers.add(new Settlement.Transfer(nodeUserIds[debtor], nodeNames[debtor], nodeUserIds[creditor], nodeNames[creditor], sum));
+        }
+        if (credit > sum) {
+          creditors.push(creditor, credit - sum);
+        }
+        if (debt > sum) {
+          debtors.push(debtor, debt - sum);
+        }
+      }
+      return new Settlement(userId, circleSize, debtCount, transferCount, baseCurrency, transfers);
+    }
+
+    private int visit(int node, int circleSize) {
+      if (visitedStamps[node] == stamp) {
+        return circleSize;
+      }
+      visitedStamps[node] = stamp;
+      circle[circleSize] = node;
+      return circleSize + 1;
+    }
+
+    private int nodeOf(int userId) {
+      int node = nodeIndexes.get(userId);
+      if (node != NONE) {
+        return node;
+      }
+
+      if (nodeCount == nodeUserIds.length) {
+        int capacity = nodeCount << 1;
+        nodeUserIds = Arrays.copyOf(nodeUserIds, capacity);
+        nodeNames = Arrays.copyOf(nodeNames, capacity);
+        balances = Arrays.copyOf(balances, capacity);
+        firstDebt = Arrays.copyOf(firstDebt, capacity);
+        firstLoan = Arrays.copyOf(firstLoan, capacity);
+        debtSequences = Arrays.copyOf(debtSequences, capacity);
+        visitedStamps = Arrays.copyOf(visitedStamps, capacity);
+        circle = Arrays.copyOf(circle, capacity);
+      }
+      int index = nodeCount++;
+      nodeUserIds[index] = userId;
+      nodeNames[index] = null;
+      balances[index] = 0;
+      firstDebt[index] = NONE;
+      firstLoan[index] = NONE;
+      debtSequences[index] = loadSequence;
+      visitedStamps[index] = 0;
+      nodeIndexes.put(userId, index);
+      return index;
+    }
+
+    private int allocateEdge() {
+      if (freeEdge != NONE) {
+        int edge = freeEdge;
+        freeEdge = nextDebt[edge];
+        return edge;
+      }
+
+      if (edgeSlots == edgeBorrowers.length) {
+        int capacity = edgeSlots << 1;
+        edgeBorrowers = Arrays.copyOf(edgeBorrowers, capacity);
+        edgeLenders = Arrays.copyOf(edgeLenders, capacity);
+        edgeSums = Arrays.copyOf(edgeSums, capacity);
+        nextDebt = Arrays.copyOf(nextDebt, capacity);
+        previousDebt = Arrays.copyOf(previousDebt, capacity);
+        nextLoan = Arrays.copyOf(nextLoan, capacity);
+        previousLoan = Arrays.copyOf(previousLoan, capacity);
+      }
+      return edgeSlots++;
+    }
+  }
+
+  /**
+   * Debts of a borrower read while the graph was loading.
+   */
+  private static class BorrowerDebts {
+    private final List<LendUser> ledger;
+    private final long sequence;
+
+    BorrowerDebts(List<LendUser> ledger, long sequence) {
+      this.ledger = ledger;
+      this.sequence = sequence;
+    }
+  }
+
+  /**
+   * Binary max-heap of nodes by amount kept in parallel arrays.
+   */
+  private static class NodeHeap {
+    private int[] nodes = new int[64];
+    private long[] amounts = new long[64];
+    private int size;
+
+    void clear() {
+      size = 0;
+    }
+
+    int topNode() {
+      return nodes[0];
+    }
+
+    long topAmount() {
+      return amounts[0];
+    }
+
+    void push(int node, long amount) {
+      if (size == nodes.length) {
+        nodes = Arrays.copyOf(nodes, size << 1);
+        amounts = Arrays.copyOf(amounts, size << 1);
+      }
+      int child = size++;
+      while (child > 0) {
+        int parent = (child - 1) >>> 1;
+        if (amounts[parent] >= amount) {
+          break;
+        }
+        nodes[child] = nodes[parent];
+        amounts[child] = amounts[parent];
+        child = parent;
+      }
+      nodes[child] = node;
+      amounts[child] = amount;
+    }
+
+    void pop() {
+      int node = nodes[--size];
+      long amount = amounts[size];
+      int parent = 0;
+      while (true) {
+        int child = (parent << 1) + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && amounts[child + 1] > amounts[child]) {
+          child++;
+        }
+        if (amounts[child] <= amount) {
+          break;
+        }
+        nodes[parent] = nodes[child];
+        amounts[parent] = amounts[child];
+        parent = child;
+      }
+      nodes[parent] = node;
+      amounts[parent] = amount;
+    }
+  }
+
+  /**
+   * Passes every debt of all borrowers to the consumer.
+   */
+  @FunctionalInterface
+  interface DebtSource {
+    void forEachDebt(LedgerStore.DebtConsumer consumer) throws LedgerStoreException;
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timer wheel. Level 0 has a slot for each of the next SLOTS ticks, every next level has a slot for
+ * SLOTS slots of the level below. Timer is put in the lowest level its deadline fits into and is moved one level down
+ * whenever the level below wraps around, so scheduling, cancelling and expiring a timer is O(1) no matter how many
+ * timers are pending, and a tick only touches timers that expire or move down.
+ * <p>
+ * Wheel is not thread safe, it is owned by a single thread.
+ */
+class TimerWheel<T> {
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int SLOT_MASK = SLOTS - 1;
+  // 64^6 ticks, over two thousand years with one second ticks
+  private static final int LEVELS = 6;
+
+  // slot lists are circular with a sentinel head, so timers unlink themselves without knowing their slot
+  private final Timer<T>[][] slots;
+  private long currentTick;
+  private int size;
+
+  @SuppressWarnings("unchecked")
+  TimerWheel(long startTick) {
+    this.currentTick = startTick;
+    slots = (Timer<T>[][]) new Timer<?>[LEVELS][SLOTS];
+    for (Timer<T>[] level : slots) {
+      for (int i = 0; i < SLOTS; i++) {
+        level[i] = new Timer<>(null, 0);
+        level[i].previous = level[i];
+        level[i].next = level[i];
+      }
+    }
+  }
+
+  /**
+   * Schedules value to expire at the tick. Deadline that already passed expires on the next tick.
+   *
+   * @return timer that can be cancelled
+   */
+  Timer<T> schedule(T value, long deadlineTick) {
+    Timer<T> timer = new Timer<>(value, deadlineTick);
+    link(timer, currentTick + 1);
+    size++;
+    return timer;
+  }
+
+  /**
+   * Removes timer that has not expired yet, does nothing for expired or cancelled timer.
+   */
+  void cancel(Timer<T> timer) {
+    if (timer.next != null) {
+      unlink(timer);
+      size--;
+    }
+  }
+
+  /**
+   * Moves wheel to the tick, passing values of all timers that expire on the way to the consumer.
+   */
+  void advanceTo(long tick, Consumer<T> expired) {
+    while (currentTick < tick) {
+      currentTick++;
+      int index = (int) (currentTick & SLOT_MASK);
+      // level wraps around, so one slot of the level above comes within its range
+      for (int level = 1; index == 0 && level < LEVELS; level++) {
+        index = (int) ((currentTick >>> (level * SLOT_BITS)) & SLOT_MASK);
+        cascade(slots[level][index]);
+      }
+
+      Timer<T> head = slots[0][(int) (currentTick & SLOT_MASK)];
+      while (head.next != head) {
+        Timer<T> timer = head.next;
+        unlink(timer);
+        size--;
+        expired.accept(timer.value);
+      }
+    }
+  }
+
+  long getCurrentTick() {
+    return currentTick;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void cascade(Timer<T> head) {
+    while (head.next != head) {
+      Timer<T> timer = head.next;
+      unlink(timer);
+      // slot of the current tick is not expired yet, so timers due now still make it
+      link(timer, currentTick);
+    }
+  }
+
+  private void link(Timer<T> timer, long earliestTick) {
+    long deadline = Math.max(timer.deadline, earliestTick);
+    long delta = deadline - currentTick;
+    int level = 0;
+    while (level < LEVELS - 1 && delta >= 1L << ((level + 1) * SLOT_BITS)) {
+      level++;
+    }
+    // deadlines beyond the last level wait in its farthest slot and are placed again when it comes around
+    long slotTick = level == LEVELS - 1 ? Math.min(deadline, currentTick + ((long) SLOT_MASK << ((LEVELS - 1) * SLOT_BITS))) : deadline;
+    Timer<T> head = slots[level][(int) ((slotTick >>> (level * SLOT_BITS)) & SLOT_MASK)];
+    timer.previous = head.previous;
+    timer.next = head;
+    head.previous.next = timer;
+    head.previous = timer;
+  }
+
+  private static <T> void unlink(Timer<T> timer) {
+    timer.previous.next = timer.next;
+    timer.next.previous = timer.previous;
+    timer.previous = null;
+    timer.next = null;
+  }
+
+  static final class Timer<T> {
+    private final T value;
+    private final long deadline;
+    private Timer<T> previous;
+    private Timer<T> next;
+
+    private Timer(T value, long deadline) {
+      this.value = value;
+      this.deadline = deadline;
+    }
+
+    T getValue() {
+      return value;
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.telegram;
+
+import lombok.extern.log4j.Log4j;
+import org.telegram.telegrambots.api.objects.Update;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Spreads incoming updates over a fixed set of single threaded lanes. Lane is chosen by chat id,
+ * so updates from the same chat are handled in order while different chats are handled in parallel.
+ * Every lane has bounded queue, when it is full caller is blocked until there is free space again.
+ */
+@Log4j
+class UpdateDispatcher {
+  private final Consumer<Update> handler;
+  private final ThreadPoolExecutor[] lanes;
+
+  UpdateDispatcher(Consumer<Update> handler, int laneCount, int laneCapacity) {
+    this.handler = handler;
+    this.lanes = new ThreadPoolExecutor[laneCount];
+
+    RejectedExecutionHandler blockingHandler = (task, executor) -> {
+      if (executor.isShutdown()) {
+        log.error("Dispatcher is shut down, update dropped.");
+        ((LaneTask) task).drop();
+        return;
+      }
+      try {
+        executor.getQueue().put(task);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        log.error("Interrupted while waiting for free lane slot, update dropped.");
+        ((LaneTask) task).drop();
+        return;
+      }
+      // lane could have been shut down and finished its queue while caller waited, task would never run then
+      if (executor.isShutdown() && executor.remove(task)) {
+        log.error("Dispatcher is shut down, update dropped.");
+        ((LaneTask) task).drop();
+      }
+    };
+
+    for (int i = 0; i < laneCount; i++) {
+      String threadName = "update-lane-" + i;
+      lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(laneCapacity), runnable -> new Thread(runnable, threadName), blockingHandler);
+    }
+  }
+
+  /**
+   * Queues update to the lane of its chat. Blocks when the lane queue is full.
+   *
+   * @param update update received from Telegram
+   */
+  void dispatch(Update update) {
+    dispatch(update, null);
+  }
+
+  /**
+   * Queues update to the lane of its chat. Blocks when the lane queue is full.
+   *
+   * @param update    update received from Telegram
+   * @param onHandled called on the lane thread after update is handled, even if handler failed, or on the caller
+   *                  thread if update is dropped
+   */
+  void dispatch(Update update, Runnable onHandled) {
+    lanes[laneOf(update)].execute(new LaneTask(update, onHandled));
+  }
+
+  /**
+   * Returns number of updates waiting in all lanes.
+   *
+   * @return total queue depth
+   */
+  int getQueueDepth() {
+    int depth = 0;
+    for (ThreadPoolExecutor lane : lanes) {
+      depth += lane.getQueue().size();
+    }
+    return depth;
+  }
+
+  /**
+   * Stops accepting new updates and waits until already queued ones are handled.
+   *
+   * @param timeout max time to wait
+   * @param unit    time unit of the timeout argument
+   * @return true if all queued updates were handled in time
+   */
+  boolean shutdown(long timeout, TimeUnit unit) {
+    for (ThreadPoolExecutor lane : lanes) {
+      lane.shutdown();
+    }
+
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    try {
+      for (ThreadPoolExecutor lane : lanes) {
+        if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+          log.error("Not all updates were handled before shutdown timeout.");
+          return false;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    return true;
+  }
+
+  private int laneOf(Update update) {
+    return (int) Math.floorMod(chatKey(update), (long) lanes.length);
+  }
+
+  /**
+   * Finds id used to keep updates in order. Chat id for messages and callbacks, user id for inline mode.
+   *
+   * @param update update received from Telegram
+   * @return id of chat or user the update belongs to
+   */
+  static long chatKey(Update update) {
+    if (update.hasMessage()) {
+      return update.getMessage().getChatId();
+    } else if (update.hasEditedMessage()) {
+      return update.getEditedMessage().getChatId();
+    } else if (update.hasCallbackQuery()) {
+      return update.getCallbackQuery().getFrom().getId();
+    } else if (update.hasInlineQuery()) {
+      return update.getInlineQuery().getFrom().getId();
+    } else if (update.hasChosenInlineQuery()) {
+      return update.getChosenInlineQuery().getFrom().getId();
+    }
+    return update.getUpdateId();
+  }
+
+  /**
+   * Handles update on lane thread. Update that never gets to a lane is dropped, onHandled is called either way.
+   */
+  private class LaneTask implements Runnable {
+    private final Update update;
+    private final Runnable onHandled;
+    private final long queuedAtNanos = System.nanoTime();
+
+    LaneTask(Update update, Runnable onHandled) {
+      this.update = update;
+      this.onHandled = onHandled;
+    }
+
+    @Override
+    public void run() {
+      Metrics.histogram(Metrics.QUEUE_WAIT_LATENCY, "dispatcher").recordSince(queuedAtNanos);
+      try {
+        handler.accept(update);
+      } catch (RuntimeException e) {
+        Metrics.increment(Metrics.ERRORS, "handler");
+        Logs.error(log, "Error handling update {}: {}", update.getUpdateId(), e.getMessage(), e);
+      } finally {
+        if (onHandled != null) {
+          onHandled.run();
+        }
+      }
+    }
+
+    void drop() {
+      if (onHandled != null) {
+        onHandled.run();
+      }
+    }
+  }
+}
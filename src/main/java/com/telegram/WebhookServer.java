@@ -0,0 +1,498 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.log4j.Log4j;
+import org.telegram.telegrambots.api.objects.Update;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking HTTP server that receives updates pushed by Telegram to bot webhooks.
+ * <p>
+ * Single selector thread serves all connections. Requests are read into pooled buffers and update JSON is parsed
+ * straight from the buffer, so no intermediate strings are made. Every bot registers its own path, so any number of
+ * bots can share one port. Only plain HTTP is served, TLS is expected to be terminated by reverse proxy in front.
+ * <p>
+ * Path of the webhook can be guessed, so every path has its own secret token. Telegram sends the token given to
+ * setWebhook in X-Telegram-Bot-Api-Secret-Token header, requests without it are answered with 404 Not Found.
+ * <p>
+ * Update handlers run on the selector thread, so they should only queue the update, like {@link UpdateDispatcher}
+ * does. When handler blocks because of backpressure, server stops reading and Telegram retries delivery later.
+ */
+@Log4j
+class WebhookServer {
+  private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+  private static final long SELECT_TIMEOUT_MILLIS = 1000;
+  private static final byte[] HEADERS_END = {'\r', '\n', '\r', '\n'};
+  private static final String SECRET_TOKEN_HEADER = "x-telegram-bot-api-secret-token:";
+
+  private static final ByteBuffer OK = response("200 OK", false);
+  private static final ByteBuffer BAD_REQUEST = response("400 Bad Request", true);
+  private static final ByteBuffer NOT_FOUND = response("404 Not Found", false);
+  private static final ByteBuffer METHOD_NOT_ALLOWED = response("405 Method Not Allowed", false);
+  private static final ByteBuffer LENGTH_REQUIRED = response("411 Length Required", true);
+  private static final ByteBuffer PAYLOAD_TOO_LARGE = response("413 Payload Too Large", true);
+
+  private final Map<String, Route> routes = new ConcurrentHashMap<>();
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final InetSocketAddress address;
+  private final int bufferSize;
+  // buffers are used by selector thread only
+  private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+  private final int bufferPoolSize;
+
+  private Selector selector;
+  private ServerSocketChannel serverChannel;
+  private Thread selectorThread;
+  private volatile int connections;
+
+  /**
+   * @param host           address to listen on
+   * @param port           port to listen on
+   * @param bufferSize     max size of single request including headers
+   * @param bufferPoolSize number of request buffers kept for reuse
+   */
+  WebhookServer(String host, int port, int bufferSize, int bufferPoolSize) {
+    this.address = new InetSocketAddress(host, port);
+    this.bufferSize = bufferSize;
+    this.bufferPoolSize = bufferPoolSize;
+  }
+
+  /**
+   * Routes updates posted to the path to the handler.
+   *
+   * @param path        request path, like "/lendmoneybot"
+   * @param secretToken token Telegram sends with every update, the same should be passed to setWebhook
+   * @param handler     update handler
+   */
+  void register(String path, String secretToken, Consumer<Update> handler) {
+    routes.put(path, new Route(secretToken.getBytes(StandardCharsets.US_ASCII), handler));
+  }
+
+  int getConnections() {
+    return connections;
+  }
+
+  void start() throws IOException {
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+    serverChannel.bind(address);
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+    selectorThread = new Thread(this::run, "webhook-server");
+    selectorThread.start();
+    log.info("Webhook updates are received on " + serverChannel.getLocalAddress() + " for " + routes.keySet());
+  }
+
+  /**
+   * Stops accepting updates and closes all connections.
+   */
+  void stop() {
+    if (selector == null) {
+      return;
+    }
+    selectorThread.interrupt();
+    selector.wakeup();
+    try {
+      selectorThread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    long lastIdleCheck = System.nanoTime();
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        selector.select(SELECT_TIMEOUT_MILLIS);
+        Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+        while (selectedKeys.hasNext()) {
+          SelectionKey key = selectedKeys.next();
+          selectedKeys.remove();
+          try {
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept();
+            } else if (key.isReadable()) {
+              read(key);
+            } else if (key.isWritable()) {
+              write(key);
+            }
+          } catch (IOException e) {
+            close(key);
+          } catch (RuntimeException e) {
+            // one bad request must not stop the selector thread serving everyone else
+            Metrics.increment(Metrics.ERRORS, "webhook");
+            log.error("Webhook request failed", e);
+            close(key);
+          }
+        }
+
+        long now = System.nanoTime();
+        if (now - lastIdleCheck > TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT_MILLIS)) {
+          closeIdle(now);
+          lastIdleCheck = now;
+        }
+      }
+    } catch (IOException | ClosedSelectorException e) {
+      log.error("Webhook server failed: " + e.getMessage());
+    } finally {
+      for (SelectionKey key : selector.keys()) {
+        close(key);
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        log.error(e.getMessage());
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    channel.register(selector, SelectionKey.OP_READ, new Connection());
+    connections++;
+  }
+
+  private void read(SelectionKey key) throws IOException {
+    Connection connection = (Connection) key.attachment();
+    if (connection.request == null) {
+      connection.request = takeBuffer();
+    }
+
+    int read = ((SocketChannel) key.channel()).read(connection.request);
+    if (read < 0) {
+      close(key);
+      return;
+    }
+    connection.lastActive = System.nanoTime();
+    serve(key, connection);
+  }
+
+  private void write(SelectionKey key) throws IOException {
+    Connection connection = (Connection) key.attachment();
+    ((SocketChannel) key.channel()).write(connection.response);
+    if (connection.response.hasRemaining()) {
+      return;
+    }
+
+    connection.response = null;
+    if (connection.closeAfterResponse) {
+      close(key);
+      return;
+    }
+    key.interestOps(SelectionKey.OP_READ);
+    // pipelined requests may already wait in the buffer
+    serve(key, connection);
+  }
+
+  /**
+   * Handles complete requests from connection buffer one by one until response can't be written at once.
+   */
+  private void serve(SelectionKey key, Connection connection) throws IOException {
+    while (connection.response == null && connection.request != null && handleRequest(connection)) {
+      SocketChannel channel = (SocketChannel) key.channel();
+      channel.write(connection.response);
+      if (connection.response.hasRemaining()) {
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+      connection.response = null;
+      if (connection.closeAfterResponse) {
+        close(key);
+        return;
+      }
+    }
+
+    // idle keep-alive connections don't hold buffers
+    if (connection.request != null && connection.request.position() == 0) {
+      releaseBuffer(connection.request);
+      connection.request = null;
+    }
+  }
+
+  /**
+   * Parses request at the start of connection buffer. When the request is complete, it is handled, removed from
+   * the buffer and response is set.
+   *
+   * @return true if request was handled
+   */
+  private boolean handleRequest(Connection connection) {
+    ByteBuffer request = connection.request;
+    byte[] data = request.array();
+    int length = request.position();
+
+    int headersEnd = indexOf(data, 0, length, HEADERS_END);
+    if (headersEnd < 0) {
+      return length == data.length && respond(connection, PAYLOAD_TOO_LARGE, 0);
+    }
+
+    // request line: METHOD SP PATH SP VERSION CRLF
+    int lineEnd = indexOf(data, 0, headersEnd + 2, HEADERS_END, 2);
+    int methodEnd = indexOf(data, 0, lineEnd, (byte) ' ');
+    int pathEnd = methodEnd < 0 ? -1 : indexOf(data, methodEnd + 1, lineEnd, (byte) ' ');
+    if (pathEnd < 0) {
+      return respond(connection, BAD_REQUEST, 0);
+    }
+    boolean keepAlive = startsWith(data, pathEnd + 1, lineEnd, "HTTP/1.1");
+
+    int contentLength = -1;
+    int secretTokenStart = -1;
+    int secretTokenEnd = -1;
+    for (int lineStart = lineEnd + 2; lineStart < headersEnd; lineStart = lineEnd + 2) {
+      lineEnd = indexOf(data, lineStart, headersEnd + 2, HEADERS_END, 2);
+      int valueStart = indexOf(data, lineStart, lineEnd, (byte) ':') + 1;
+      if (valueStart == 0) {
+        return respond(connection, BAD_REQUEST, 0);
+      }
+      while (valueStart < lineEnd && data[valueStart] == ' ') {
+        valueStart++;
+      }
+
+      if (startsWith(data, lineStart, valueStart, "content-length:")) {
+        contentLength = parseInt(data, valueStart, lineEnd);
+      } else if (startsWith(data, lineStart, valueStart, "transfer-encoding:")) {
+        return respond(connection, LENGTH_REQUIRED, 0);
+      } else if (startsWith(data, lineStart, valueStart, SECRET_TOKEN_HEADER)) {
+        secretTokenStart = valueStart;
+        secretTokenEnd = lineEnd;
+      } else if (startsWith(data, lineStart, valueStart, "connection:")) {
+        keepAlive = startsWith(data, valueStart, lineEnd, "keep-alive")
+            || keepAlive && !startsWith(data, valueStart, lineEnd, "close");
+      }
+    }
+
+    int bodyStart = headersEnd + HEADERS_END.length;
+    if (contentLength < 0) {
+      contentLength = 0;
+    }
+    if ((long) bodyStart + contentLength > data.length) {
+      return respond(connection, PAYLOAD_TOO_LARGE, 0);
+    }
+    if (bodyStart + contentLength > length) {
+      return false;
+    }
+    int requestEnd = bodyStart + contentLength;
+
+    if (!startsWith(data, 0, methodEnd, "POST") || methodEnd != 4) {
+      respond(connection, METHOD_NOT_ALLOWED, requestEnd);
+    } else {
+      Route route = routes.get(new String(data, methodEnd + 1, pathEnd - methodEnd - 1, StandardCharsets.US_ASCII));
+      if (route == null || !route.accepts(data, secretTokenStart, secretTokenEnd)) {
+        // forged requests get the same answer as unknown paths
+        respond(connection, NOT_FOUND, requestEnd);
+      } else {
+        Update update;
+        try {
+          update = objectMapper.readValue(data, bodyStart, contentLength, Update.class);
+        } catch (IOException e) {
+          update = null;
+          log.error("Unable to parse webhook update: " + e.getMessage());
+        }
+        // "null" body parses to null update and update without id can't be routed to a lane
+        if (update == null || update.getUpdateId() == null) {
+          Metrics.increment(Metrics.ERRORS, "webhook");
+          respond(connection, BAD_REQUEST, requestEnd);
+        } else {
+          route.handler.accept(update);
+          respond(connection, OK, requestEnd);
+        }
+      }
+    }
+    connection.closeAfterResponse |= !keepAlive;
+    return true;
+  }
+
+  /**
+   * Sets response and drops handled request from the buffer.
+   */
+  private static boolean respond(Connection connection, ByteBuffer response, int requestEnd) {
+    connection.response = response.duplicate();
+    connection.closeAfterResponse = response == BAD_REQUEST || response == LENGTH_REQUIRED || response == PAYLOAD_TOO_LARGE;
+
+    ByteBuffer request = connection.request;
+    int remaining = request.position() - requestEnd;
+    System.arraycopy(request.array(), requestEnd, request.array(), 0, remaining);
+    request.position(remaining);
+    return true;
+  }
+
+  private void closeIdle(long now) {
+    for (SelectionKey key : selector.keys()) {
+      if (key.attachment() instanceof Connection && now - ((Connection) key.attachment()).lastActive > IDLE_TIMEOUT_NANOS) {
+        close(key);
+      }
+    }
+  }
+
+  private void close(SelectionKey key) {
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException e) {
+      log.error(e.getMessage());
+    }
+
+    if (key.attachment() instanceof Connection) {
+      Connection connection = (Connection) key.attachment();
+      if (connection.request != null) {
+        releaseBuffer(connection.request);
+        connection.request = null;
+      }
+      key.attach(null);
+      connections--;
+    }
+  }
+
+  private ByteBuffer takeBuffer() {
+    ByteBuffer buffer = bufferPool.pollFirst();
+    return buffer == null ? ByteBuffer.allocate(bufferSize) : buffer;
+  }
+
+  private void releaseBuffer(ByteBuffer buffer) {
+    if (bufferPool.size() < bufferPoolSize) {
+      buffer.clear();
+      bufferPool.addFirst(buffer);
+    }
+  }
+
+  private static int indexOf(byte[] data, int from, int to, byte value) {
+    for (int i = from; i < to; i++) {
+      if (data[i] == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOf(byte[] data, int from, int to, byte[] pattern) {
+    return indexOf(data, from, to, pattern, pattern.length);
+  }
+
+  /**
+   * Finds first occurrence of the first patternLength bytes of the pattern.
+   */
+  private static int indexOf(byte[] data, int from, int to, byte[] pattern, int patternLength) {
+    search:
+    for (int i = from; i <= to - patternLength; i++) {
+      for (int j = 0; j < patternLength; j++) {
+        if (data[i + j] != pattern[j]) {
+          continue search;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Checks if bytes from start to end begin with lower case ASCII prefix, ignoring case.
+   */
+  private static boolean startsWith(byte[] data, int start, int end, String prefix) {
+    if (end - start < prefix.length()) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length(); i++) {
+      if (Character.toLowerCase((char) data[start + i]) != Character.toLowerCase(prefix.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int parseInt(byte[] data, int start, int end) {
+    long value = 0;
+    for (int i = start; i < end && data[i] != ' '; i++) {
+      if (data[i] < '0' || data[i] > '9' || value > Integer.MAX_VALUE) {
+        return Integer.MAX_VALUE;
+      }
+      value = value * 10 + data[i] - '0';
+    }
+    return (int) Math.min(value, Integer.MAX_VALUE);
+  }
+
+  private static ByteBuffer response(String status, boolean close) {
+    String response = "HTTP/1.1 " + status + "\r\nContent-Length: 0\r\n" + (close ? "Connection: close\r\n" : "") + "\r\n";
+    return ByteBuffer.wrap(response.getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+  }
+
+  private static class Route {
+    private final byte[] secretToken;
+    private final Consumer<Update> handler;
+
+    Route(byte[] secretToken, Consumer<Update> handler) {
+      this.secretToken = secretToken;
+      this.handler = handler;
+    }
+
+    /**
+     * Checks secret token header value in constant time.
+     */
+    boolean accepts(byte[] data, int tokenStart, int tokenEnd) {
+      if (tokenStart < 0) {
+        return false;
+      }
+      while (tokenEnd > tokenStart && data[tokenEnd - 1] == ' ') {
+        tokenEnd--;
+      }
+      return MessageDigest.isEqual(secretToken, Arrays.copyOfRange(data, tokenStart, tokenEnd));
+    }
+  }
+
+  private static class Connection {
+    private ByteBuffer request;
+    private ByteBuffer response;
+    private boolean closeAfterResponse;
+    private long lastActive = System.nanoTime();
+  }
+}
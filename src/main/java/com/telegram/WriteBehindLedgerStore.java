@@ -0,0 +1,823 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Maksym Tymoshyk
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.telegram;
+
+import lombok.extern.log4j.Log4j;
+import org.telegram.telegrambots.api.objects.Contact;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Ledger store that acknowledges mutations as soon as they are in the local journal and commits them to MariaDB
+ * in the background.
+ * <p>
+ * Journal writer collects mutations arriving within groupCommitMillis and writes them with a single fsync, callers
+ * wait only for that fsync. Committer applies up to batchSize journaled mutations in one database transaction that
+ * also stores sequence of the last applied record in journal_checkpoint table, so records replayed after restart
+ * are never applied twice. Journal record is [payload length][CRC32 of payload][payload], replay of a segment
+ * stops at the first torn record. Segments are deleted once all their records are committed.
+ * <p>
+ * Reads see own uncommitted mutations: ledger is read from the database together with the checkpoint and
+ * uncommitted mutations after the checkpoint are applied on top. Other nodes see mutations once they are committed.
+ * <p>
+ * Batch that fails maxCommitAttempts times in a row blocks all later mutations. If the database rejects the
+ * mutations themselves, like a constraint violation, the batch is committed one mutation at a time and rejected
+ * mutations are moved to the dead letter file in the journal directory. Otherwise new mutations are rejected instead
+ * of acknowledged until the batch is committed.
+ */
+@Log4j
+class WriteBehindLedgerStore implements LedgerStore {
+  private static final String JOURNAL_ID_FILE = "journal.id";
+  private static final String SEGMENT_FILE_PREFIX = "journal-";
+  private static final String SEGMENT_FILE_SUFFIX = ".log";
+  private static final String DEAD_LETTER_FILE = "dead-letter.log";
+
+  // records of type 1 were written before currencies were supported and are only replayed from old journals
+  private static final byte UAH_ADD_LENDER_RECORD = 1;
+  private static final byte EDIT_BALANCE_RECORD = 2;
+  private static final byte ADD_LENDER_RECORD = 3;
+  private static final String LEGACY_CURRENCY = "UAH";
+  private static final int RECORD_HEADER_SIZE = 8;
+  // sequence, type, borrower id, lender id, sum
+  private static final int FIXED_PAYLOAD_SIZE = 8 + 1 + 4 + 4 + 8;
+  private static final int MAX_CURRENCY_BYTES = 8;
+  // two names of up to 255 four byte characters and currency code with their lengths
+  private static final int MAX_PAYLOAD_SIZE = FIXED_PAYLOAD_SIZE + 2 * (2 + 255 * 4) + 2 + MAX_CURRENCY_BYTES;
+  private static final int GROUP_BUFFER_SIZE = 64 * 1024;
+  private static final long MIN_RETRY_DELAY_MILLIS = 100;
+  private static final long MAX_RETRY_DELAY_MILLIS = 30_000;
+
+  private final JdbcLedgerStore database;
+  private final Path directory;
+  private final String journalId;
+  private final long groupCommitNanos;
+  private final int batchSize;
+  private final long segmentSize;
+  private final long closeTimeoutMillis;
+  private final int maxCommitAttempts;
+
+  private final BlockingQueue<PendingWrite> writeQueue = new LinkedBlockingQueue<>();
+  private final BlockingQueue<LedgerMutation> commitQueue = new LinkedBlockingQueue<>();
+  // borrower id -> journaled mutations not committed yet in journal order, changed only inside compute
+  private final Map<Integer, Deque<LedgerMutation>> uncommitted = new ConcurrentHashMap<>();
+  private final AtomicLong uncommittedCount = new AtomicLong();
+  // segment -> sequence of the last record written to it
+  private final ConcurrentNavigableMap<Long, Long> segmentLastSequences = new ConcurrentSkipListMap<>();
+  private final Thread journalWriter;
+  private final Thread committer;
+  private volatile boolean running = true;
+  // set by committer while the oldest batch keeps failing
+  private volatile boolean commitFailing;
+  private volatile long segment;
+
+  // used by journal writer thread only
+  private final ByteBuffer groupBuffer = ByteBuffer.allocateDirect(GROUP_BUFFER_SIZE);
+  private final CRC32 crc = new CRC32();
+  private FileChannel segmentChannel;
+  private long nextSequence;
+
+  /**
+   * Opens journal in the directory and queues its uncommitted records for commit.
+   *
+   * @param database           store mutations are committed to
+   * @param directory          directory with journal files, created if missing
+   * @param groupCommitMillis  time mutations are collected for a single fsync
+   * @param batchSize          max number of mutations committed in one transaction
+   * @param segmentSize        journal segment size after which next segment is started
+   * @param closeTimeoutMillis max time to wait on close for commit of queued mutations
+   * @param maxCommitAttempts  failed commits of a batch after which new mutations are rejected
+   * @throws LedgerStoreException if journal can't be read or checkpoint can't be loaded
+   */
+  WriteBehindLedgerStore(JdbcLedgerStore database, Path directory, long groupCommitMillis, int batchSize,
+                         long segmentSize, long closeTimeoutMillis, int maxCommitAttempts) throws LedgerStoreException {
+    this.database = database;
+    this.directory = directory;
+    this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(groupCommitMillis);
+    this.batchSize = batchSize;
+    this.segmentSize = segmentSize;
+    this.closeTimeoutMillis = closeTimeoutMillis;
+    this.maxCommitAttempts = maxCommitAttempts;
+
+    try {
+      Files.createDirectories(directory);
+      journalId = readJournalId();
+      long committedSequence = database.findCheckpoint(journalId);
+      nextSequence = Math.max(recover(committedSequence), committedSequence) + 1;
+      segment = segmentLastSequences.isEmpty() ? 1 : segmentLastSequences.lastKey() + 1;
+      openSegment();
+      removeCommittedSegments(committedSequence);
+    } catch (IOException e) {
+      throw new LedgerStoreException(e);
+    }
+
+    Metrics.gauge("write_behind_uncommitted", uncommittedCount::get);
+    Metrics.gauge("write_behind_commit_failing", () -> commitFailing ? 1 : 0);
+    journalWriter = new Thread(this::writeJournal, "journal-writer");
+    committer = new Thread(this::commitJournal, "journal-committer");
+    journalWriter.start();
+    committer.start();
+  }
+
+  @Override
+  public List<LendUser> findLedger(int borrowerId) throws LedgerStoreException {
+    // uncommitted mutations are copied before database read, mutations committed in between are skipped by sequence
+    List<LedgerMutation> pending = new ArrayList<>();
+    uncommitted.computeIfPresent(borrowerId, (id, mutations) -> {
+      pending.addAll(mutations);
+      return mutations;
+    });
+
+    List<LendUser> ledger = new ArrayList<>();
+    long committedSequence = database.findLedger(borrowerId, journalId, ledger);
+    for (LedgerMutation mutation : pending) {
+      if (mutation.getSequence() > committedSequence) {
+        mutation.applyTo(ledger);
+      }
+    }
+    return ledger;
+  }
+
+  @Override
+  public LedgerPage findLedgerPage(int borrowerId, int fromLenderId, boolean forward, int limit) throws LedgerStoreException {
+    // pages are read from the database unless borrower has uncommitted mutations, which are rare and short-lived
+    if (uncommitted.containsKey(borrowerId)) {
+      return LedgerPage.slice(findLedger(borrowerId), fromLenderId, forward, limit);
+    }
+    return database.findLedgerPage(borrowerId, fromLenderId, forward, limit);
+  }
+
+  @Override
+  public void addLender(Contact lender, long sum, String currency, int borrowerId) throws LedgerStoreException {
+    append(LedgerMutation.addLender(borrowerId, lender.getUserID(), sum, currency, lender.getFirstName(),
+        lender.getLastName()));
+  }
+
+  @Override
+  public void addLenders(int borrowerId, List<LedgerMutation> adds) throws LedgerStoreException {
+    append(adds);
+  }
+
+  @Override
+  public void addDebts(List<LedgerMutation> adds) throws LedgerStoreException {
+    append(adds);
+  }
+
+  /**
+   * Debt is checked before the edit is journaled, since it is acknowledged long before it reaches the database.
+   * Edits of a borrower come from their own chat one at a time, and other chats only add debts, so the debt
+   * can't disappear in between.
+   */
+  @Override
+  public void editBalance(int borrowerId, int lenderId, boolean decreaseDebt, long sum) throws LedgerStoreException {
+    boolean[] owes = new boolean[1];
+    forEachDebtTo(lenderId, Collections.singletonList(borrowerId), (id, lender, name, debt, currency) -> owes[0] = true);
+    if (!owes[0]) {
+      throw new LedgerStoreException("Borrower " + borrowerId + " has no debt to lender " + lenderId);
+    }
+    append(LedgerMutation.editBalance(borrowerId, lenderId, decreaseDebt ? -sum : sum));
+  }
+
+  @Override
+  public int count(int borrowerId) throws LedgerStoreException {
+    return findLedger(borrowerId).size();
+  }
+
+  @Override
+  public void forEachDebt(DebtConsumer consumer) throws LedgerStoreException {
+    // borrowers with uncommitted mutations are read with them applied, everyone else straight from the database
+    Set<Integer> overlaid = new HashSet<>(uncommitted.keySet());
+    database.forEachDebt((borrowerId, lenderId, lenderName, sum, currency) -> {
+      if (!overlaid.contains(borrowerId)) {
+        consumer.accept(borrowerId, lenderId, lenderName, sum, currency);
+      }
+    });
+    for (int borrowerId : overlaid) {
+      for (LendUser lendUser : findLedger(borrowerId)) {
+        consumer.accept(borrowerId, lendUser.getUserId(), lendUser.getName(), lendUser.getSum(), lendUser.getCurrency());
+      }
+    }
+  }
+
+  @Override
+  public void forEachDebt(int borrowerId, DebtConsumer consumer) throws LedgerStoreException {
+    if (uncommitted.containsKey(borrowerId)) {
+      for (LendUser lendUser : findLedger(borrowerId)) {
+        consumer.accept(borrowerId, lendUser.getUserId(), lendUser.getName(), lendUser.getSum(), lendUser.getCurrency());
+      }
+    } else {
+      database.forEachDebt(borrowerId, consumer);
+    }
+  }
+
+  @Override
+  public void forEachDebtTo(int lenderId, Collection<Integer> borrowerIds, DebtConsumer consumer) throws LedgerStoreException {
+    // borrowers with uncommitted mutations are read with them applied, everyone else from the database in one go
+    List<Integer> committed = new ArrayList<>(borrowerIds.size());
+    for (int borrowerId : borrowerIds) {
+      if (!uncommitted.containsKey(borrowerId)) {
+        committed.add(borrowerId);
+        continue;
+      }
+      for (LendUser lendUser : findLedger(borrowerId)) {
+        if (lendUser.getUserId() == lenderId) {
+          consumer.accept(borrowerId, lenderId, lendUser.getName(), lendUser.getSum(), lendUser.getCurrency());
+        }
+      }
+    }
+    database.forEachDebtTo(lenderId, committed, consumer);
+  }
+
+  /**
+   * History is kept by the database, so mutations that are journaled but not committed yet are not in it.
+   */
+  @Override
+  public HistoryPage findHistoryPage(int borrowerId, long fromEntryId, boolean older, int limit) throws LedgerStoreException {
+    return database.findHistoryPage(borrowerId, fromEntryId, older, limit);
+  }
+
+  @Override
+  public List<LendUser> findLedgerAt(int borrowerId, long timeMillis) throws LedgerStoreException {
+    return database.findLedgerAt(borrowerId, timeMillis);
+  }
+
+  /**
+   * Reminders are not ledger changes, so they skip the journal and go straight to the database.
+   */
+  @Override
+  public void saveReminder(Reminder reminder) throws LedgerStoreException {
+    database.saveReminder(reminder);
+  }
+
+  @Override
+  public void removeReminder(int borrowerId, int lenderId) throws LedgerStoreException {
+    database.removeReminder(borrowerId, lenderId);
+  }
+
+  @Override
+  public void completeReminders(List<Reminder> fired, List<Reminder> next) throws LedgerStoreException {
+    database.completeReminders(fired, next);
+  }
+
+  @Override
+  public void forEachReminder(Consumer<Reminder> consumer) throws LedgerStoreException {
+    database.forEachReminder(consumer);
+  }
+
+  /**
+   * Stops accepting mutations and waits up to close timeout for commit of journaled ones. Mutations left
+   * uncommitted stay in the journal and are committed after restart.
+   */
+  @Override
+  public void close() {
+    running = false;
+    try {
+      journalWriter.join();
+      failPendingWrites();
+      committer.join(closeTimeoutMillis);
+      if (committer.isAlive()) {
+        committer.interrupt();
+        committer.join();
+        log.warn(uncommittedCount.get() + " ledger mutations left in journal, they are committed on next start.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    try {
+      segmentChannel.close();
+    } catch (IOException e) {
+      log.error("Unable to close journal segment: " + e.getMessage());
+    }
+    database.close();
+  }
+
+  /**
+   * Encodes mutation in caller thread and waits until journal writer makes it durable.
+   */
+  private void append(LedgerMutation mutation) throws LedgerStoreException {
+    append(Collections.singletonList(mutation));
+  }
+
+  /**
+   * Encodes mutations in caller thread and waits until journal writer makes them durable. Mutations are queued as
+   * one write, so they are journaled with the same fsync or none of them is.
+   */
+  private void append(List<LedgerMutation> mutations) throws LedgerStoreException {
+    long startNanos = System.nanoTime();
+    List<byte[]> payloads = new ArrayList<>(mutations.size());
+    for (LedgerMutation mutation : mutations) {
+      payloads.add(encode(mutation));
+    }
+    PendingWrite write = new PendingWrite(mutations, payloads);
+    if (!running) {
+      throw new LedgerStoreException("Ledger store is closed.");
+    }
+    if (commitFailing) {
+      throw new LedgerStoreException("Journaled ledger mutations can't be committed.");
+    }
+    writeQueue.add(write);
+    // close could have drained queue before write was added
+    if (!running && writeQueue.remove(write)) {
+      throw new LedgerStoreException("Ledger store is closed.");
+    }
+
+    try {
+      write.journaled.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LedgerStoreException(e);
+    } catch (ExecutionException e) {
+      throw new LedgerStoreException(e.getCause());
+    } finally {
+      Metrics.histogram(Metrics.DB_LATENCY, "journal_append").recordSince(startNanos);
+    }
+  }
+
+  private void writeJournal() {
+    List<PendingWrite> group = new ArrayList<>();
+    while (running || !writeQueue.isEmpty()) {
+      try {
+        PendingWrite first = writeQueue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+
+        // everything arriving within group commit time after the first write shares its fsync
+        long waitNanos = groupCommitNanos - (System.nanoTime() - first.createdNanos);
+        if (waitNanos > 0 && running) {
+          TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        group.add(first);
+        writeQueue.drainTo(group);
+        writeGroup(group);
+        group.clear();
+      } catch (InterruptedException e) {
+        break;
+      }
+    }
+  }
+
+  private void writeGroup(List<PendingWrite> group) {
+    long groupStartSequence = nextSequence;
+    long groupStartPosition = -1;
+    List<LedgerMutation> journaled = new ArrayList<>(group.size());
+    try {
+      groupStartPosition = segmentChannel.position();
+      groupBuffer.clear();
+      for (PendingWrite write : group) {
+        for (int i = 0; i < write.payloads.size(); i++) {
+          byte[] payload = write.payloads.get(i);
+          long sequence = nextSequence++;
+          ByteBuffer.wrap(payload).putLong(0, sequence);
+          crc.reset();
+          crc.update(payload, 0, payload.length);
+
+          if (groupBuffer.remaining() < RECORD_HEADER_SIZE + payload.length) {
+            flushGroupBuffer();
+          }
+          groupBuffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+          journaled.add(write.mutations.get(i).withSequence(sequence));
+        }
+      }
+      flushGroupBuffer();
+      segmentChannel.force(false);
+    } catch (IOException e) {
+      Metrics.increment(Metrics.ERRORS, "journal");
+      log.error("Unable to write " + (nextSequence - groupStartSequence) + " ledger mutations to journal: " + e.getMessage());
+      discardGroup(groupStartPosition);
+      nextSequence = groupStartSequence;
+      group.forEach(write -> write.journaled.completeExceptionally(e));
+      return;
+    }
+
+    segmentLastSequences.put(segment, nextSequence - 1);
+    for (LedgerMutation mutation : journaled) {
+      uncommitted.compute(mutation.getBorrowerId(), (id, mutations) -> {
+        Deque<LedgerMutation> borrowerMutations = mutations == null ? new ArrayDeque<>() : mutations;
+        borrowerMutations.add(mutation);
+        return borrowerMutations;
+      });
+    }
+    uncommittedCount.addAndGet(journaled.size());
+    commitQueue.addAll(journaled);
+    group.forEach(write -> write.journaled.complete(null));
+
+    // segment is rolled after its records are queued for commit, see removeCommittedSegments
+    try {
+      if (segmentChannel.position() >= segmentSize) {
+        segmentChannel.close();
+        segment++;
+        openSegment();
+      }
+    } catch (IOException e) {
+      log.error("Unable to start journal segment " + segment + ": " + e.getMessage());
+    }
+  }
+
+  private void flushGroupBuffer() throws IOException {
+    groupBuffer.flip();
+    while (groupBuffer.hasRemaining()) {
+      segmentChannel.write(groupBuffer);
+    }
+    groupBuffer.clear();
+  }
+
+  /**
+   * Cuts partially written group from the segment, so it is never replayed. If that fails writer moves to the next
+   * segment and replay of the current one stops at the torn record.
+   */
+  private void discardGroup(long groupStartPosition) {
+    try {
+      if (groupStartPosition < 0) {
+        throw new IOException("Segment position is unknown.");
+      }
+      segmentChannel.truncate(groupStartPosition);
+      segmentChannel.position(groupStartPosition);
+    } catch (IOException e) {
+      log.error("Unable to discard failed journal group: " + e.getMessage());
+      try {
+        segmentChannel.close();
+        segment++;
+        openSegment();
+      } catch (IOException openError) {
+        log.error("Unable to start journal segment " + segment + ": " + openError.getMessage());
+      }
+    }
+  }
+
+  private void failPendingWrites() {
+    List<PendingWrite> pendingWrites = new ArrayList<>();
+    writeQueue.drainTo(pendingWrites);
+    LedgerStoreException closed = new LedgerStoreException("Ledger store is closed.");
+    pendingWrites.forEach(write -> write.journaled.completeExceptionally(closed));
+  }
+
+  private void commitJournal() {
+    List<LedgerMutation> batch = new ArrayList<>(batchSize);
+    long retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+    int failedAttempts = 0;
+    while (running || !batch.isEmpty() || !commitQueue.isEmpty()) {
+      try {
+        if (batch.isEmpty()) {
+          LedgerMutation first = commitQueue.poll(100, TimeUnit.MILLISECONDS);
+          if (first == null) {
+            continue;
+          }
+          batch.add(first);
+          commitQueue.drainTo(batch, batchSize - 1);
+        }
+
+        long startNanos = System.nanoTime();
+        try {
+          database.applyBatch(journalId, batch);
+        } finally {
+          Metrics.histogram(Metrics.DB_LATENCY, "journal_commit").recordSince(startNanos);
+        }
+        removeCommitted(batch);
+        batch.clear();
+        retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+        failedAttempts = 0;
+        acceptMutations();
+      } catch (LedgerStoreException e) {
+        // batch is kept and retried, later mutations must not be committed before it
+        Metrics.increment(Metrics.ERRORS, "db");
+        log.error("Unable to commit " + batch.size() + " journaled ledger mutations, retrying in " + retryDelayMillis + " ms: "
+            + e.getMessage());
+        if (++failedAttempts >= maxCommitAttempts && isRejected(e)) {
+          // retrying the same batch fails the same way, so the mutations database rejects are put aside
+          commitOneByOne(batch);
+          if (batch.isEmpty()) {
+            retryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+            failedAttempts = 0;
+            acceptMutations();
+            continue;
+          }
+        }
+        if (failedAttempts == maxCommitAttempts) {
+          commitFailing = true;
+          log.error("Journal commit failed " + failedAttempts + " times in a row, new ledger mutations are rejected until it succeeds.");
+        }
+        try {
+          Thread.sleep(retryDelayMillis);
+        } catch (InterruptedException interrupted) {
+          break;
+        }
+        retryDelayMillis = Math.min(retryDelayMillis << 1, MAX_RETRY_DELAY_MILLIS);
+      } catch (InterruptedException e) {
+        break;
+      }
+    }
+  }
+
+  private void acceptMutations() {
+    if (commitFailing) {
+      commitFailing = false;
+      log.info("Journaled ledger mutations are committed again, new mutations are accepted.");
+    }
+  }
+
+  /**
+   * Commits mutations at the head of the batch one at a time and moves the ones database rejects to the dead letter
+   * file. Stops at the first mutation that fails for another reason, it stays at the head of the batch.
+   */
+  private void commitOneByOne(List<LedgerMutation> batch) {
+    while (!batch.isEmpty()) {
+      List<LedgerMutation> head = Collections.singletonList(batch.get(0));
+      try {
+        database.applyBatch(journalId, head);
+      } catch (LedgerStoreException e) {
+        if (!isRejected(e)) {
+          return;
+        }
+        try {
+          writeDeadLetter(head.get(0), e);
+          database.saveCheckpoint(journalId, head.get(0).getSequence());
+        } catch (IOException | LedgerStoreException deadLetterError) {
+          log.error("Unable to put aside rejected ledger mutation " + head.get(0).getSequence() + ": " + deadLetterError.getMessage());
+          return;
+        }
+        Metrics.increment(Metrics.ERRORS, "journal_dead_letter");
+        log.error("Ledger mutation " + head.get(0).getSequence() + " was rejected by database and moved to "
+            + directory.resolve(DEAD_LETTER_FILE) + ": " + e.getMessage());
+      }
+      removeCommitted(head);
+      batch.remove(0);
+    }
+  }
+
+  /**
+   * Appends mutation to the dead letter file as a readable line, so it can be fixed and applied by hand. Line can be
+   * written twice if the checkpoint couldn't be moved past it, sequence tells such lines apart.
+   */
+  private void writeDeadLetter(LedgerMutation mutation, LedgerStoreException e) throws IOException {
+    String line = mutation + " " + e.getMessage() + System.lineSeparator();
+    try (FileChannel channel = FileChannel.open(directory.resolve(DEAD_LETTER_FILE), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(false);
+    }
+  }
+
+  /**
+   * Tells if database refused the data of the mutations, like a constraint violation or value out of range, so
+   * the same mutations can never be committed. QueryRunner rethrows plain SQLException, so SQL state class is
+   * checked instead of exception type.
+   */
+  private static boolean isRejected(LedgerStoreException e) {
+    for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+      if (cause instanceof SQLException) {
+        String state = ((SQLException) cause).getSQLState();
+        return state != null && (state.startsWith("22") || state.startsWith("23"));
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Drops committed mutations from the uncommitted ones and deletes journal segments that are not needed anymore.
+   */
+  private void removeCommitted(List<LedgerMutation> batch) {
+    long committedSequence = batch.get(batch.size() - 1).getSequence();
+    for (LedgerMutation mutation : batch) {
+      uncommitted.computeIfPresent(mutation.getBorrowerId(), (id, mutations) -> {
+        while (!mutations.isEmpty() && mutations.peekFirst().getSequence() <= committedSequence) {
+          mutations.pollFirst();
+        }
+        return mutations.isEmpty() ? null : mutations;
+      });
+    }
+    uncommittedCount.addAndGet(-batch.size());
+    removeCommittedSegments(committedSequence);
+  }
+
+  /**
+   * Deletes segments before the current one whose records are all committed. Writer queues records for commit
+   * before it moves to the next segment, so records of earlier segments are never still on their way to committer.
+   */
+  private void removeCommittedSegments(long committedSequence) {
+    Iterator<Map.Entry<Long, Long>> segments = segmentLastSequences.headMap(segment).entrySet().iterator();
+    while (segments.hasNext()) {
+      Map.Entry<Long, Long> committedSegment = segments.next();
+      if (committedSegment.getValue() > committedSequence) {
+        break;
+      }
+      try {
+        Files.deleteIfExists(segmentPath(committedSegment.getKey()));
+        segments.remove();
+      } catch (IOException e) {
+        log.error("Unable to remove journal segment " + committedSegment.getKey() + ": " + e.getMessage());
+        break;
+      }
+    }
+  }
+
+  /**
+   * Reads all journal segments and queues records after the checkpoint for commit.
+   *
+   * @return sequence of the last record in journal, 0 if journal is empty
+   */
+  private long recover(long committedSequence) throws IOException {
+    List<Long> segments = new ArrayList<>();
+    try (DirectoryStream<Path> segmentFiles = Files.newDirectoryStream(directory, SEGMENT_FILE_PREFIX + "*" + SEGMENT_FILE_SUFFIX)) {
+      for (Path segmentFile : segmentFiles) {
+        String fileName = segmentFile.getFileName().toString();
+        segments.add(Long.parseLong(fileName.substring(SEGMENT_FILE_PREFIX.length(), fileName.length() - SEGMENT_FILE_SUFFIX.length())));
+      }
+    }
+    Collections.sort(segments);
+
+    long lastSequence = 0;
+    int replayed = 0;
+    for (long recoveredSegment : segments) {
+      ByteBuffer segmentBuffer = ByteBuffer.wrap(Files.readAllBytes(segmentPath(recoveredSegment)));
+      while (segmentBuffer.remaining() >= RECORD_HEADER_SIZE) {
+        int recordStart = segmentBuffer.position();
+        int payloadLength = segmentBuffer.getInt();
+        int checksum = segmentBuffer.getInt();
+        if (payloadLength < FIXED_PAYLOAD_SIZE || payloadLength > MAX_PAYLOAD_SIZE || payloadLength > segmentBuffer.remaining()) {
+          break;
+        }
+        crc.reset();
+        crc.update(segmentBuffer.array(), segmentBuffer.position(), payloadLength);
+        if ((int) crc.getValue() != checksum) {
+          log.error("Torn journal record at " + recordStart + " in segment " + recoveredSegment + ", dropping segment tail.");
+          break;
+        }
+
+        LedgerMutation mutation = decode(segmentBuffer);
+        segmentBuffer.position(recordStart + RECORD_HEADER_SIZE + payloadLength);
+        lastSequence = Math.max(lastSequence, mutation.getSequence());
+        if (mutation.getSequence() > committedSequence) {
+          uncommitted.computeIfAbsent(mutation.getBorrowerId(), id -> new ArrayDeque<>()).add(mutation);
+          uncommittedCount.incrementAndGet();
+          commitQueue.add(mutation);
+          replayed++;
+        }
+      }
+      segmentLastSequences.put(recoveredSegment, lastSequence);
+    }
+    if (replayed > 0) {
+      log.info("Replayed " + replayed + " uncommitted ledger mutations from journal.");
+    }
+    return lastSequence;
+  }
+
+  private static byte[] encode(LedgerMutation mutation) throws LedgerStoreException {
+    byte[] firstName = mutation.getFirstName() == null ? null : mutation.getFirstName().getBytes(StandardCharsets.UTF_8);
+    byte[] lastName = mutation.getLastName() == null ? null : mutation.getLastName().getBytes(StandardCharsets.UTF_8);
+    byte[] currency = mutation.getCurrency() == null ? null : mutation.getCurrency().getBytes(StandardCharsets.US_ASCII);
+    if (currency != null && currency.length > MAX_CURRENCY_BYTES) {
+      throw new LedgerStoreException("Currency code is too long.");
+    }
+    int payloadLength = FIXED_PAYLOAD_SIZE;
+    if (mutation.getType() == LedgerMutation.Type.ADD_LENDER) {
+      payloadLength += 6 + (firstName == null ? 0 : firstName.length) + (lastName == null ? 0 : lastName.length)
+          + (currency == null ? 0 : currency.length);
+    }
+    if (payloadLength > MAX_PAYLOAD_SIZE) {
+      throw new LedgerStoreException("Lender name is too long.");
+    }
+
+    // sequence is filled in by journal writer
+    ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+    payload.putLong(0).put(mutation.getType() == LedgerMutation.Type.ADD_LENDER ? ADD_LENDER_RECORD : EDIT_BALANCE_RECORD)
+        .putInt(mutation.getBorrowerId()).putInt(mutation.getLenderId()).putLong(mutation.getSum());
+    if (mutation.getType() == LedgerMutation.Type.ADD_LENDER) {
+      putName(payload, firstName);
+      putName(payload, lastName);
+      putName(payload, currency);
+    }
+    return payload.array();
+  }
+
+  private static LedgerMutation decode(ByteBuffer record) {
+    long sequence = record.getLong();
+    byte type = record.get();
+    int borrowerId = record.getInt();
+    int lenderId = record.getInt();
+    long sum = record.getLong();
+    if (type == ADD_LENDER_RECORD || type == UAH_ADD_LENDER_RECORD) {
+      String firstName = getName(record);
+      String lastName = getName(record);
+      String currency = type == ADD_LENDER_RECORD ? getName(record) : LEGACY_CURRENCY;
+      return LedgerMutation.addLender(borrowerId, lenderId, sum, currency, firstName, lastName).withSequence(sequence);
+    }
+    return LedgerMutation.editBalance(borrowerId, lenderId, sum).withSequence(sequence);
+  }
+
+  private static void putName(ByteBuffer payload, byte[] name) {
+    // -1 length stands for missing name
+    payload.putShort((short) (name == null ? -1 : name.length));
+    if (name != null) {
+      payload.put(name);
+    }
+  }
+
+  private static String getName(ByteBuffer record) {
+    short length = record.getShort();
+    if (length < 0) {
+      return null;
+    }
+    String name = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+    record.position(record.position() + length);
+    return name;
+  }
+
+  private String readJournalId() throws IOException {
+    // journal id ties checkpoint row to this journal, so nodes with own journals don't share checkpoints
+    Path journalIdPath = directory.resolve(JOURNAL_ID_FILE);
+    if (Files.exists(journalIdPath)) {
+      return new String(Files.readAllBytes(journalIdPath), StandardCharsets.UTF_8).trim();
+    }
+    String newJournalId = UUID.randomUUID().toString();
+    Files.write(journalIdPath, newJournalId.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+    return newJournalId;
+  }
+
+  private void openSegment() throws IOException {
+    segmentChannel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    segmentChannel.position(segmentChannel.size());
+  }
+
+  private Path segmentPath(long journalSegment) {
+    return directory.resolve(SEGMENT_FILE_PREFIX + journalSegment + SEGMENT_FILE_SUFFIX);
+  }
+
+  static WriteBehindLedgerStore open(JdbcLedgerStore database, String directory) throws LedgerStoreException {
+    return new WriteBehindLedgerStore(database, Paths.get(directory), BuildVars.WRITE_BEHIND_GROUP_COMMIT_MILLIS,
+        BuildVars.WRITE_BEHIND_BATCH_SIZE, BuildVars.WRITE_BEHIND_SEGMENT_SIZE, TimeUnit.SECONDS.toMillis(BuildVars.SHUTDOWN_TIMEOUT_SECONDS),
+        BuildVars.WRITE_BEHIND_MAX_COMMIT_ATTEMPTS);
+  }
+
+  /**
+   * Mutations of one caller waiting for journal writer, they are always written in the same group.
+   */
+  private static class PendingWrite {
+    private final List<LedgerMutation> mutations;
+    private final List<byte[]> payloads;
+    private final long createdNanos = System.nanoTime();
+    private final CompletableFuture<Void> journaled = new CompletableFuture<>();
+
+    PendingWrite(List<LedgerMutation> mutations, List<byte[]> payloads) {
+      this.mutations = mutations;
+      this.payloads = payloads;
+    }
+  }
+}
@@ -0,0 +1,5 @@
+-- Row of a borrower is locked by every transaction that changes their ledger, so changes of one borrower coming
+-- from different chats are committed one after another and history checkpoints never miss an older entry
+CREATE TABLE IF NOT EXISTS ledger_lock (
+  borrower_id INT NOT NULL PRIMARY KEY
+) ENGINE = InnoDB DEFAULT CHARSET = utf8mb4;
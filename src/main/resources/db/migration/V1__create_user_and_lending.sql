@@ -0,0 +1,14 @@
+-- Tables used by the bot. IF NOT EXISTS keeps deployments created before migrations untouched.
+CREATE TABLE IF NOT EXISTS user (
+  telegram_id INT          NOT NULL PRIMARY KEY,
+  username    VARCHAR(64)  NULL,
+  first_name  VARCHAR(255) NOT NULL,
+  last_name   VARCHAR(255) NULL
+) ENGINE = InnoDB DEFAULT CHARSET = utf8mb4;
+
+CREATE TABLE IF NOT EXISTS lending (
+  id          BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  lender_id   INT    NOT NULL,
+  borrower_id INT    NOT NULL,
+  sum         DOUBLE NOT NULL
+) ENGINE = InnoDB DEFAULT CHARSET = utf8mb4;
@@ -0,0 +1,3 @@
+-- Ledger reads and edits look up lending by borrower and by lender/borrower pair
+CREATE INDEX IF NOT EXISTS lending_borrower_lender_idx ON lending (borrower_id, lender_id);
+CREATE INDEX IF NOT EXISTS lending_lender_idx ON lending (lender_id);
@@ -0,0 +1,4 @@
+-- Sums are stored as exact number of minor units (kopiyky) instead of floating point hryvnias. Floating point column
+-- is dropped by V9, so this script can be re-run until it is recorded
+ALTER TABLE lending ADD COLUMN IF NOT EXISTS sum_minor BIGINT NOT NULL DEFAULT 0;
+UPDATE lending SET sum_minor = ROUND(sum * 100);
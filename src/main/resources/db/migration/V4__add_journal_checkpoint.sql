@@ -0,0 +1,5 @@
+-- Last journal record committed by write-behind store, written in the same transaction as the records
+CREATE TABLE IF NOT EXISTS journal_checkpoint (
+  journal_id         VARCHAR(64) NOT NULL PRIMARY KEY,
+  committed_sequence BIGINT      NOT NULL
+) ENGINE = InnoDB DEFAULT CHARSET = utf8mb4;
@@ -0,0 +1,32 @@
+-- Append-only history of ledger changes, balance_minor is balance of the pair after the change
+CREATE TABLE IF NOT EXISTS lending_history (
+  id            BIGINT       NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  borrower_id   INT          NOT NULL,
+  lender_id     INT          NOT NULL,
+  delta_minor   BIGINT       NOT NULL,
+  balance_minor BIGINT       NOT NULL,
+  created_at    TIMESTAMP(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3),
+  KEY lending_history_borrower_idx (borrower_id, id)
+) ENGINE = InnoDB DEFAULT CHARSET = utf8mb4;
+
+-- Balances of all lenders of a borrower as of history entry history_id, balances at any time are read from the
+-- nearest checkpoint and history entries after it
+CREATE TABLE IF NOT EXISTS ledger_checkpoint (
+  borrower_id INT          NOT NULL,
+  history_id  BIGINT       NOT NULL,
+  created_at  TIMESTAMP(3) NOT NULL,
+  PRIMARY KEY (borrower_id, history_id),
+  KEY ledger_checkpoint_time_idx (borrower_id, created_at)
+) ENGINE = InnoDB DEFAULT CHARSET = utf8mb4;
+
+CREATE TABLE IF NOT EXISTS ledger_checkpoint_balance (
+  borrower_id   INT    NOT NULL,
+  history_id    BIGINT NOT NULL,
+  lender_id     INT    NOT NULL,
+  balance_minor BIGINT NOT NULL,
+  PRIMARY KEY (borrower_id, history_id, lender_id)
+) ENGINE = InnoDB DEFAULT CHARSET = utf8mb4;
+
+-- Debts made before history was kept start it as opening balances
+INSERT INTO lending_history (borrower_id, lender_id, delta_minor, balance_minor)
+SELECT borrower_id, lender_id, SUM(sum_minor), SUM(sum_minor) FROM lending GROUP BY borrower_id, lender_id;
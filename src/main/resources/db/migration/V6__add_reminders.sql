@@ -0,0 +1,8 @@
+-- Debt reminders, at most one per lending pair. next_fire_at is moved forward every time reminder is sent
+CREATE TABLE IF NOT EXISTS reminder (
+  borrower_id     INT          NOT NULL,
+  lender_id       INT          NOT NULL,
+  interval_millis BIGINT       NOT NULL,
+  next_fire_at    TIMESTAMP(3) NOT NULL,
+  PRIMARY KEY (borrower_id, lender_id)
+) ENGINE = InnoDB DEFAULT CHARSET = utf8mb4;
@@ -0,0 +1,4 @@
+-- ISO 4217 code of the debt currency, debts made before currencies were supported are in hryvnias
+ALTER TABLE lending ADD COLUMN IF NOT EXISTS currency CHAR(3) NOT NULL DEFAULT 'UAH';
+ALTER TABLE lending_history ADD COLUMN IF NOT EXISTS currency CHAR(3) NOT NULL DEFAULT 'UAH';
+ALTER TABLE ledger_checkpoint_balance ADD COLUMN IF NOT EXISTS currency CHAR(3) NOT NULL DEFAULT 'UAH';
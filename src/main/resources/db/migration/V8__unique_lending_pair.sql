@@ -0,0 +1,12 @@
+-- Debt of a pair is kept in one row, rows added for the same pair before are merged into the first of them. Merge
+-- finds nothing to do when it runs again, so the script can be re-run if the index is not created
+DROP TABLE IF EXISTS lending_pair_total;
+CREATE TEMPORARY TABLE lending_pair_total AS
+SELECT MIN(id) AS id, borrower_id, lender_id, SUM(sum_minor) AS sum_minor FROM lending
+GROUP BY borrower_id, lender_id HAVING COUNT(*) > 1;
+UPDATE lending SET sum_minor = COALESCE((SELECT total.sum_minor FROM lending_pair_total AS total WHERE total.id = lending.id), sum_minor);
+DELETE FROM lending WHERE EXISTS (SELECT 1 FROM lending_pair_total AS total
+WHERE total.borrower_id = lending.borrower_id AND total.lender_id = lending.lender_id AND total.id < lending.id);
+DELETE FROM lending WHERE sum_minor <= 0;
+DROP TABLE lending_pair_total;
+CREATE UNIQUE INDEX IF NOT EXISTS lending_pair_idx ON lending (borrower_id, lender_id);
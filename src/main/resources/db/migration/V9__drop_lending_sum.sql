@@ -0,0 +1,2 @@
+-- Floating point sums were copied to sum_minor by V3
+ALTER TABLE lending DROP COLUMN IF EXISTS sum;